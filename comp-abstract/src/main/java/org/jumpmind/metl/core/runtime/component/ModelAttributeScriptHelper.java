@@ -69,6 +69,8 @@ public class ModelAttributeScriptHelper {
 
     static private ThreadLocal<ScriptEngine> scriptEngine = new ThreadLocal<ScriptEngine>();
 
+    static private final String IMPORT_STRING = "import org.jumpmind.metl.core.runtime.component.ModelAttributeScriptHelper;\n";
+
     public ModelAttributeScriptHelper(Message message, ComponentContext context, ModelAttrib attribute, ModelEntity entity, Model model,
             EntityData data, Object value) {
         this(context, attribute, entity, model);
@@ -465,11 +467,7 @@ public class ModelAttributeScriptHelper {
 
     public static Object eval(Message message, ComponentContext context, ModelAttrib attribute, Object value, Model model, ModelEntity entity,
             EntityData data, String expression) {
-        ScriptEngine engine = scriptEngine.get();
-        if (engine == null) {
-            engine = new GroovyScriptEngineImpl();
-            scriptEngine.set(engine);
-        }
+        ScriptEngine engine = getScriptEngine();
         engine.put("value", value);
         engine.put("data", data);
         engine.put("entity", entity);
@@ -479,17 +477,66 @@ public class ModelAttributeScriptHelper {
         engine.put("context", context);
 
         try {
-            String importString = "import org.jumpmind.metl.core.runtime.component.ModelAttributeScriptHelper;\n";
             String code = String.format(
                     "return new ModelAttributeScriptHelper(message, context, attribute, entity, model, data, value) { public Object eval() { return %s } }.eval()",
                     expression);
-            return engine.eval(importString + code);
+            return engine.eval(IMPORT_STRING + code);
         } catch (ScriptException e) {
             throw new RuntimeException("Unable to evaluate groovy script.  Attribute ==> " + attribute.getName() + ".  Value ==> "
                     + value.toString() + "." + e.getCause().getMessage(), e);
         }
     }
 
+    /**
+     * Compiles the expression once into a helper whose {@link #eval()} returns
+     * the result of the expression. The helper is meant to be reused for every
+     * row by the thread that compiled it with
+     * {@link #eval(Message, EntityData, Object)}.
+     */
+    public static ModelAttributeScriptHelper compile(ComponentContext context, ModelAttrib attribute, ModelEntity entity, Model model,
+            String expression) {
+        ScriptEngine engine = getScriptEngine();
+        /*
+         * the names differ from the ones eval uses so a null context cannot
+         * resolve to the script's own context property
+         */
+        engine.put("componentContext", context);
+        engine.put("modelAttribute", attribute);
+        engine.put("modelEntity", entity);
+        engine.put("modelVersion", model);
+
+        try {
+            String code = String.format(
+                    "return new ModelAttributeScriptHelper(componentContext, modelAttribute, modelEntity, modelVersion) { public Object eval() { return %s } }",
+                    expression);
+            return (ModelAttributeScriptHelper) engine.eval(IMPORT_STRING + code);
+        } catch (ScriptException e) {
+            throw new RuntimeException("Unable to compile groovy script.  Attribute ==> " + attribute.getName() + "."
+                    + e.getCause().getMessage(), e);
+        }
+    }
+
+    protected Object eval(Message message, EntityData data, Object value) {
+        this.message = message;
+        this.data = data;
+        this.value = value;
+        try {
+            return eval();
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Unable to evaluate groovy script.  Attribute ==> " + attribute.getName() + ".  Value ==> "
+                    + value + "." + e.getMessage(), e);
+        }
+    }
+
+    protected static ScriptEngine getScriptEngine() {
+        ScriptEngine engine = scriptEngine.get();
+        if (engine == null) {
+            engine = new GroovyScriptEngineImpl();
+            scriptEngine.set(engine);
+        }
+        return engine;
+    }
+
     static class RemoveAttribute {
 
     }
@@ -20,9 +20,11 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
+import org.jumpmind.metl.core.model.ModelAttrib;
 import org.junit.Test;
 
 public class ModelAttributeScriptHelperTest {
@@ -36,4 +38,13 @@ public class ModelAttributeScriptHelperTest {
         assertNotNull(helper.parsedate("yyyy-MM-dd", "0000-00-01"));
 
     }
+
+    @Test
+    public void testCompiledHelperIsReusedAcrossValues() {
+        ModelAttributeScriptHelper helper = ModelAttributeScriptHelper.compile(null, new ModelAttrib("a", "e", "name"), null, null,
+                "upper()");
+        assertEquals("FIRST", helper.eval(null, null, "first"));
+        assertEquals("SECOND", helper.eval(null, null, "second"));
+        assertNull(helper.eval(null, null, null));
+    }
 }
@@ -22,30 +22,20 @@ package org.jumpmind.metl.core.runtime.component;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.sql.Types;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-
-import org.apache.commons.io.FileUtils;
-import org.h2.Driver;
-import org.jumpmind.db.model.Column;
-import org.jumpmind.db.model.IIndex;
-import org.jumpmind.db.model.IndexColumn;
-import org.jumpmind.db.model.Table;
-import org.jumpmind.db.platform.IDatabasePlatform;
-import org.jumpmind.db.platform.JdbcDatabasePlatformFactory;
-import org.jumpmind.db.sql.SqlTemplateSettings;
-import org.jumpmind.db.util.ResettableBasicDataSource;
-import org.jumpmind.metl.core.model.AbstractNamedObject;
+
 import org.jumpmind.metl.core.model.Component;
 import org.jumpmind.metl.core.model.ComponentAttribSetting;
 import org.jumpmind.metl.core.model.ComponentEntitySetting;
@@ -53,19 +43,42 @@ import org.jumpmind.metl.core.model.DataType;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.model.ModelAttrib;
 import org.jumpmind.metl.core.model.ModelEntity;
-import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
-import org.jumpmind.metl.core.runtime.LogLevel;
+import org.jumpmind.metl.core.runtime.EntityDataFileReader;
+import org.jumpmind.metl.core.runtime.EntityDataFileWriter;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
 
+/**
+ * Compares the rows from two source steps by the primary key of each entity and
+ * sends ADD, CHG and DEL rows for the differences. ADD and CHG rows are sent
+ * entity by entity in entity order, then DEL rows in reverse entity order.
+ * <p>
+ * When {@link #INPUTS_SORTED_BY_KEY} is set, both inputs are merged as they
+ * arrive and only the rows one source is ahead of the other are held. Those
+ * rows are spilled to temporary files in segments when
+ * {@link #IN_MEMORY_COMPARE} is not set. Otherwise
+ * the rows of each source are hashed on their key into partitions. The
+ * partitions are kept in memory when {@link #IN_MEMORY_COMPARE} is set and
+ * spilled to temporary files otherwise. They are compared one at a time at the
+ * end of the unit of work.
+ * <p>
+ * Values are compared by the data type of their attribute so that, for
+ * example, 1 and 1.0 are equal for a numeric attribute. The hash of a row's
+ * compared values is only used to find changed rows quickly. Rows with equal
+ * hashes are always compared value by value.
+ */
 public class DataDiff extends AbstractComponentRuntime {
 
     public static String SOURCE_1 = "source.1";
     public static String SOURCE_2 = "source.2";
     public static String IN_MEMORY_COMPARE = "in.memory.compare";
+    public static String INPUTS_SORTED_BY_KEY = "inputs.sorted.by.key";
+    public static String HASH_PARTITIONS = "hash.partitions";
 
     public final static String ENTITY_ADD_ENABLED = "add.enabled";
 
@@ -85,19 +98,20 @@ public class DataDiff extends AbstractComponentRuntime {
 
     boolean inMemoryCompare = true;
 
-    IDatabasePlatform databasePlatform;
+    boolean inputsSortedByKey = false;
 
-    RdbmsWriter databaseWriter;
+    int hashPartitions = 32;
 
-    String databaseName;
+    int pendingRowsInMemory = 10000;
 
     List<ModelEntity> entities;
 
-    Throwable error;
+    List<EntityDiff> entityDiffs;
+
+    ArrayList<EntityData> dataToSend;
 
     @Override
     public void start() {
-        error = null;
         TypedProperties properties = getTypedProperties();
         this.sourceStep1Id = properties.get(SOURCE_1);
         if (isBlank(sourceStep1Id)) {
@@ -111,6 +125,8 @@ public class DataDiff extends AbstractComponentRuntime {
         }
 
         this.inMemoryCompare = properties.is(IN_MEMORY_COMPARE);
+        this.inputsSortedByKey = properties.is(INPUTS_SORTED_BY_KEY, false);
+        this.hashPartitions = inMemoryCompare ? 1 : Math.max(1, properties.getInt(HASH_PARTITIONS, 32));
         this.rowsPerMessage = properties.getInt(ROWS_PER_MESSAGE);
         Component comp = context.getFlowStep().getComponent();
         comp.setOutputModel(comp.getInputModel());
@@ -134,311 +150,641 @@ public class DataDiff extends AbstractComponentRuntime {
                 return new Integer(orderValue1).compareTo(new Integer(orderValue2));
             }
         });
+
+        entityDiffs = new ArrayList<>(entities.size());
+        for (ModelEntity entity : entities) {
+            entityDiffs.add(new EntityDiff(entity));
+        }
     }
 
     @Override
     public void handle(Message message, ISendMessageCallback callback,
             boolean unitOfWorkBoundaryReached) {
-        createDatabase();
-        loadIntoDatabase(message);
-        if (unitOfWorkBoundaryReached && error == null) {
-            calculateDiff(callback);
-        }
-    }
-    
-    /*
-     * Column names must be quoted in order to handle names with spaces.
-     * Note: Quoting the name also makes the name case sensitive in H2.
-     * Make the name upper case to match the table create statement.
-     */
-    protected String getFormattedName(AbstractNamedObject o) {
-        return "\"" + o.getName().toUpperCase() + "\"";
-    }
-
-    protected void calculateDiff(ISendMessageCallback callback) {
-        Map<ModelEntity, String> changeSqls = new HashMap<>();
-        Map<ModelEntity, String> addSqls = new HashMap<>();
-        Map<ModelEntity, String> delSqls = new HashMap<>();
-        Component component = context.getFlowStep().getComponent();
-        for (ModelEntity entity : entities) {
-            StringBuilder addSql = new StringBuilder("select ");
-            StringBuilder chgSql = new StringBuilder(addSql);
-            StringBuilder delSql = new StringBuilder(addSql);
-            appendColumns(addSql, "curr.", entity);
-            appendColumns(delSql, "orig.", entity);
-            appendColumns(chgSql, "curr.", entity);
-
-            addSql.append(" from " + entity.getName() + "_2 curr left join " + entity.getName()
-                    + "_1 orig on ");
-            delSql.append(" from " + entity.getName() + "_1 orig left join " + entity.getName()
-                    + "_2 curr on ");
-            chgSql.append(" from " + entity.getName() + "_1 orig join " + entity.getName()
-                    + "_2 curr on ");
-            boolean secondPk = false;
-            for (ModelAttrib attribute : entity.getModelAttributes()) {
-                if (attribute.isPk()) {
-                    if (secondPk) {
-                        addSql.append(" and ");
-                        delSql.append(" and ");
-                        chgSql.append(" and ");
-                    }
-                    addSql.append("curr.").append(getFormattedName(attribute)).append("=").append("orig.")
-                            .append(getFormattedName(attribute));
-                    delSql.append("curr.").append(getFormattedName(attribute)).append("=").append("orig.")
-                            .append(getFormattedName(attribute));
-                    chgSql.append("curr.").append(getFormattedName(attribute)).append("=").append("orig.")
-                            .append(getFormattedName(attribute));
-                    secondPk = true;
-                }
+        if (message instanceof EntityDataMessage) {
+            String originatingStepId = message.getHeader().getOriginatingStepId();
+            int source = 0;
+            if (sourceStep1Id.equals(originatingStepId)) {
+                source = 1;
+            } else if (sourceStep2Id.equals(originatingStepId)) {
+                source = 2;
             }
 
-            addSql.append(" where ");
-            delSql.append(" where ");
-            chgSql.append(" where ");
-            secondPk = false;
-            boolean secondCol = false;
-            for (ModelAttrib attribute : entity.getModelAttributes()) {
-                if (attribute.isPk()) {
-                    if (secondPk) {
-                        addSql.append(" or ");
-                        delSql.append(" or ");
-                    }
-                    addSql.append("orig.").append(getFormattedName(attribute)).append(" is null");
-                    delSql.append("curr.").append(getFormattedName(attribute)).append(" is null");
-                    secondPk = true;
-                } else {
-                    ComponentAttribSetting matchColumnSetting = component
-                            .getSingleAttributeSetting(attribute.getId(),
-                                    DataDiff.ATTRIBUTE_COMPARE_ENABLED);
-                    boolean matchColumn = matchColumnSetting != null
-                            ? Boolean.parseBoolean(matchColumnSetting.getValue()) : true;
-                    if (matchColumn) {
-                        if (secondCol) {
-                            chgSql.append(" or ");
+            if (source > 0) {
+                dataToSend = new ArrayList<>();
+                for (EntityData row : ((EntityDataMessage) message).getPayload()) {
+                    getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                    for (EntityDiff entityDiff : entityDiffs) {
+                        EntityData entityRow = entityDiff.project(row);
+                        if (entityRow != null) {
+                            entityDiff.add(source, entityRow, callback);
                         }
-                        chgSql.append("curr.").append(getFormattedName(attribute)).append(" != ")
-                                .append("orig.").append(getFormattedName(attribute));
-                        chgSql.append(" or ");
-                        chgSql.append("curr.").append(getFormattedName(attribute)).append(" is null and ")
-                                .append("orig.").append(getFormattedName(attribute))
-                                .append(" is not null ");
-                        chgSql.append(" or ");
-                        chgSql.append("curr.").append(getFormattedName(attribute))
-                                .append(" is not null and ").append("orig.")
-                                .append(getFormattedName(attribute)).append(" is null ");
-                        secondCol = true;
                     }
                 }
+                flush(callback);
             }
+        }
 
-            //we only want to do a change compare if this entity has 
-            //cols to compare other than the primary key.
-            if (!entity.hasOnlyPrimaryKeys() && secondCol) {
-                changeSqls.put(entity, chgSql.toString());
-                log(LogLevel.INFO, "Generated diff sql for CHG: %s", chgSql);
+        if (unitOfWorkBoundaryReached) {
+            try {
+                calculateDiff(callback);
+            } finally {
+                reset();
             }
-            log(LogLevel.INFO, "Generated diff sql for ADD: %s", addSql);
-            log(LogLevel.INFO, "Generated diff sql for DEL: %s", delSql);
-            addSqls.put(entity, addSql.toString());
-            delSqls.put(entity, delSql.toString());
-
         }
+    }
 
-        RdbmsReader reader = new RdbmsReader();
-        reader.setDataSource(databasePlatform.getDataSource());
-        reader.setContext(context);
-        reader.setComponentDefinition(componentDefinition);
-        reader.setRowsPerMessage(rowsPerMessage);
-        reader.setThreadNumber(threadNumber);
+    @Override
+    public void stop() {
+        reset();
+        super.stop();
+    }
 
-        for (ModelEntity entity : entities) {
-            ComponentEntitySetting add = component.getSingleEntitySetting(entity.getId(),
-                    DataDiff.ENTITY_ADD_ENABLED);
-            ComponentEntitySetting chg = component.getSingleEntitySetting(entity.getId(),
-                    DataDiff.ENTITY_CHG_ENABLED);
-            boolean addEnabled = add != null ? Boolean.parseBoolean(add.getValue()) : true;
-            boolean chgEnabled = chg != null ? Boolean.parseBoolean(chg.getValue()) : true;
-            if (addEnabled) {
-                reader.setSql(addSqls.get(entity));
-                reader.setEntityChangeType(ChangeType.ADD);
-                reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback,
-                        false);
-                info("Sent %d ADD records for %s", reader.getRowReadDuringHandle(),
-                        entity.getName());
+    protected void reset() {
+        if (entityDiffs != null) {
+            for (EntityDiff entityDiff : entityDiffs) {
+                entityDiff.reset();
             }
+        }
+    }
 
-            if (chgEnabled && changeSqls.get(entity) != null) {
-                reader.setSql(changeSqls.get(entity));
-                reader.setEntityChangeType(ChangeType.CHG);
-                reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback,
-                        false);
-                info("Sent %d CHG records for %s", reader.getRowReadDuringHandle(),
-                        entity.getName());
+    protected void calculateDiff(ISendMessageCallback callback) {
+        dataToSend = new ArrayList<>();
+        for (EntityDiff entityDiff : entityDiffs) {
+            entityDiff.finish();
+            if (entityDiff.addEnabled) {
+                entityDiff.adds.send(ChangeType.ADD, callback);
             }
+            if (entityDiff.chgEnabled) {
+                entityDiff.changes.send(ChangeType.CHG, callback);
+            }
+            info("Sent %d ADD records for %s", entityDiff.addCount, entityDiff.entity.getName());
+            info("Sent %d CHG records for %s", entityDiff.chgCount, entityDiff.entity.getName());
+        }
 
+        for (int i = entityDiffs.size() - 1; i >= 0; i--) {
+            EntityDiff entityDiff = entityDiffs.get(i);
+            if (entityDiff.delEnabled) {
+                entityDiff.deletes.send(ChangeType.DEL, callback);
+            }
+            info("Sent %d DEL records for %s", entityDiff.delCount, entityDiff.entity.getName());
         }
 
-        for (int i = entities.size() - 1; i >= 0; i--) {
-            ModelEntity entity = entities.get(i);
-            ComponentEntitySetting del = component.getSingleEntitySetting(entity.getId(),
-                    DataDiff.ENTITY_DEL_ENABLED);
-            boolean delEnabled = del != null ? Boolean.parseBoolean(del.getValue()) : true;
+        flush(callback);
+    }
 
-            if (delEnabled) {
-                reader.setSql(delSqls.get(entity));
-                reader.setEntityChangeType(ChangeType.DEL);
-                reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback,
-                        false);
-                info("Sent %d DEL records for %s", reader.getRowReadDuringHandle(),
-                        entity.getName());
-            }
+    protected void send(EntityData row, ChangeType changeType, ISendMessageCallback callback) {
+        row.setChangeType(changeType);
+        dataToSend.add(row);
+        if (dataToSend.size() >= rowsPerMessage) {
+            flush(callback);
         }
+    }
 
-        ResettableBasicDataSource ds = databasePlatform.getDataSource();
+    protected void flush(ISendMessageCallback callback) {
+        if (dataToSend != null && dataToSend.size() > 0) {
+            callback.sendEntityDataMessage(null, dataToSend);
+            dataToSend = new ArrayList<>();
+        }
+    }
 
-        ds.close();
+    protected boolean isEnabled(ComponentEntitySetting setting) {
+        return setting != null ? Boolean.parseBoolean(setting.getValue()) : true;
+    }
+
+    /**
+     * Normalize a value so that values that H2 would have considered equal for
+     * the attribute's column type are also equal in java.
+     */
+    protected static Object normalize(ModelAttrib attribute, Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) value);
+        }
 
-        if (!inMemoryCompare) {
+        DataType dataType = attribute.getDataType();
+        if (dataType != null && dataType.isNumeric()) {
             try {
-                Files.list(Paths.get(System.getProperty("h2.baseDir")))
-                        .filter(path -> path.toFile().getName().startsWith(databaseName))
-                        .forEach(path -> deleteDatabaseFile(path.toFile()));
-            } catch (IOException e) {
-                log.warn("Failed to delete file", e);
+                BigDecimal number = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+                return number.signum() == 0 ? BigDecimal.ZERO : number.stripTrailingZeros();
+            } catch (NumberFormatException e) {
+                return value.toString();
             }
+        } else if (dataType != null && dataType.isBoolean()) {
+            return value instanceof Boolean ? value : Boolean.valueOf(value.toString());
+        } else if (dataType != null && dataType.isTimestamp() && value instanceof Date) {
+            return value instanceof Timestamp ? value : new Timestamp(((Date) value).getTime());
+        } else if (dataType != null && dataType.isBinary()) {
+            return value;
+        } else {
+            return value.toString();
         }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    protected static int compareValues(Object obj1, Object obj2) {
+        if (obj1 == obj2) {
+            return 0;
+        } else if (obj1 == null) {
+            return -1;
+        } else if (obj2 == null) {
+            return 1;
+        } else if (obj1 instanceof Comparable && obj1.getClass().equals(obj2.getClass())) {
+            return ((Comparable) obj1).compareTo(obj2);
+        } else {
+            return obj1.toString().compareTo(obj2.toString());
+        }
+    }
+
+    /**
+     * The normalized primary key values of a row.
+     */
+    static class RowKey implements Comparable<RowKey> {
 
-        databasePlatform = null;
-        databaseName = null;
-        databaseWriter = null;
+        Object[] values;
 
+        int hashCode;
+
+        RowKey(Object[] values) {
+            this.values = values;
+            this.hashCode = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RowKey && hashCode == obj.hashCode()
+                    && Arrays.equals(values, ((RowKey) obj).values);
+        }
+
+        @Override
+        public int compareTo(RowKey o) {
+            for (int i = 0; i < values.length; i++) {
+                int result = compareValues(values[i], o.values[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(values);
+        }
     }
 
-    protected void deleteDatabaseFile(File file) {
-        log(LogLevel.INFO, "Deleting database file: %s", file.getName());
-        FileUtils.deleteQuietly(file);
+    /**
+     * A row of one entity along with its key and the hash of its compared
+     * values.
+     */
+    class DiffRow {
+
+        EntityData row;
+
+        RowKey key;
+
+        Object[] values;
+
+        long hash;
+
+        DiffRow(EntityDiff entityDiff, EntityData row) {
+            this.row = row;
+            this.key = entityDiff.key(row);
+            this.values = new Object[entityDiff.compareAttributes.length];
+            long hash = 1125899906842597L;
+            for (int i = 0; i < values.length; i++) {
+                ModelAttrib attribute = entityDiff.compareAttributes[i];
+                values[i] = normalize(attribute, row.get(attribute.getId()));
+                hash = 31 * hash + (values[i] != null ? values[i].hashCode() : 0);
+            }
+            this.hash = hash ^ (hash >>> 29);
+        }
+
+        boolean isChanged(DiffRow other) {
+            return hash != other.hash || !Arrays.equals(values, other.values);
+        }
     }
 
-    protected void appendColumns(StringBuilder sql, String prefix, ModelEntity entity) {
-        for (ModelAttrib attribute : entity.getModelAttributes()) {
+    /**
+     * Rows kept in memory or spilled to a temporary file.
+     */
+    class RowBuffer {
+
+        List<EntityData> rows;
 
-            Component component = context.getFlowStep().getComponent();
-            ComponentAttribSetting matchColumnSetting = component.getSingleAttributeSetting(
-                    attribute.getId(), DataDiff.ATTRIBUTE_COMPARE_ENABLED);
-            boolean matchColumn = matchColumnSetting != null
-                    ? Boolean.parseBoolean(matchColumnSetting.getValue()) : true;
-            if (matchColumn) {
-                sql.append(prefix).append(getFormattedName(attribute)).append(" /* ")
-                        .append(entity.getName()).append(".").append(attribute.getName())
-                        .append(" */").append(",");
+        EntityDataFileWriter writer;
+
+        boolean spill;
+
+        RowBuffer(boolean spill) {
+            this.spill = spill;
+            if (!spill) {
+                rows = new ArrayList<>();
+            }
+        }
+
+        void add(EntityData row) {
+            if (spill) {
+                if (writer == null) {
+                    writer = EntityDataFileWriter.createTempFile("metl-diff-");
+                }
+                writer.write(row);
+            } else {
+                rows.add(row);
+            }
+        }
+
+        Iterator<EntityData> iterator() {
+            if (!spill) {
+                return rows.iterator();
+            } else if (writer == null) {
+                return Collections.<EntityData> emptyList().iterator();
+            }
+
+            writer.close();
+            EntityDataFileReader reader = new EntityDataFileReader(writer.getFile());
+            return new Iterator<EntityData>() {
+                EntityData next = reader.read();
+
+                @Override
+                public boolean hasNext() {
+                    if (next == null) {
+                        reader.close();
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public EntityData next() {
+                    EntityData current = next;
+                    next = reader.read();
+                    return current;
+                }
+            };
+        }
+
+        void send(ChangeType changeType, ISendMessageCallback callback) {
+            Iterator<EntityData> i = iterator();
+            while (i.hasNext()) {
+                DataDiff.this.send(i.next(), changeType, callback);
+            }
+            reset();
+        }
+
+        void reset() {
+            if (rows != null) {
+                rows = new ArrayList<>();
+            }
+            if (writer != null) {
+                writer.close();
+                if (!writer.getFile().delete() && writer.getFile().exists()) {
+                    log.warn("Failed to delete {}", writer.getFile().getAbsolutePath());
+                }
+                writer = null;
             }
         }
-        sql.replace(sql.length() - 1, sql.length(), "");
     }
 
-    protected void loadIntoDatabase(Message message) {
-        String originatingStepId = message.getHeader().getOriginatingStepId();
-        String tableSuffix = null;
-        if (sourceStep1Id.equals(originatingStepId)) {
-            tableSuffix = "_1";
-        } else if (sourceStep2Id.equals(originatingStepId)) {
-            tableSuffix = "_2";
+    /**
+     * The rows of one sorted source that the other source has not caught up
+     * with yet, in the order they arrived. Unless the compare is in memory,
+     * every {@link DataDiff#pendingRowsInMemory} rows that arrive are spilled
+     * to a segment file, and segments are read back one at a time as the rows
+     * are taken.
+     */
+    class PendingRows {
+
+        EntityDiff entityDiff;
+
+        ArrayDeque<DiffRow> head = new ArrayDeque<>();
+
+        ArrayDeque<RowBuffer> segments = new ArrayDeque<>();
+
+        ArrayDeque<DiffRow> tail = new ArrayDeque<>();
+
+        PendingRows(EntityDiff entityDiff) {
+            this.entityDiff = entityDiff;
         }
 
-        if (databaseWriter == null) {
-            databaseWriter = new RdbmsWriter();
-            databaseWriter.setDatabasePlatform(databasePlatform);
-            databaseWriter.setComponentDefinition(componentDefinition);
-            databaseWriter.setReplaceRows(true);
-            databaseWriter.setContext(context);
-            databaseWriter.setThreadNumber(threadNumber);
+        void add(DiffRow row) {
+            tail.add(row);
+            if (!inMemoryCompare && tail.size() >= pendingRowsInMemory) {
+                RowBuffer segment = new RowBuffer(true);
+                for (DiffRow pending : tail) {
+                    segment.add(pending.row);
+                }
+                segments.add(segment);
+                tail.clear();
+            }
         }
 
-        if (tableSuffix != null) {
-            databaseWriter.setTableSuffix(tableSuffix);
-            try {
-                databaseWriter.handle(message, null, false);
-            } finally {
-                error = databaseWriter.getError();
+        boolean isEmpty() {
+            return head.isEmpty() && segments.isEmpty() && tail.isEmpty();
+        }
+
+        DiffRow peek() {
+            fill();
+            return head.peek();
+        }
+
+        DiffRow poll() {
+            fill();
+            return head.poll();
+        }
+
+        void fill() {
+            if (head.isEmpty()) {
+                if (!segments.isEmpty()) {
+                    RowBuffer segment = segments.poll();
+                    Iterator<EntityData> i = segment.iterator();
+                    while (i.hasNext()) {
+                        head.add(new DiffRow(entityDiff, i.next()));
+                    }
+                    segment.reset();
+                } else {
+                    ArrayDeque<DiffRow> rows = head;
+                    head = tail;
+                    tail = rows;
+                }
             }
         }
+
+        void reset() {
+            head.clear();
+            tail.clear();
+            for (RowBuffer segment : segments) {
+                segment.reset();
+            }
+            segments.clear();
+        }
     }
 
-    protected void createDatabase() {
-        if (databasePlatform == null) {
-            ResettableBasicDataSource ds = new ResettableBasicDataSource();
-            ds.setDriverClassName(Driver.class.getName());
-            ds.setMaxActive(1);
-            ds.setInitialSize(1);
-            ds.setMinIdle(1);
-            ds.setMaxIdle(1);
-            databaseName = UUID.randomUUID().toString();
-            if (inMemoryCompare) {
-                ds.setUrl("jdbc:h2:mem:" + databaseName);
-            } else {
-                ds.setUrl("jdbc:h2:file:./" + databaseName);
-            }
-            databasePlatform = JdbcDatabasePlatformFactory.createNewPlatformInstance(ds,
-                    new SqlTemplateSettings(), true, false);
-
-            Model inputModel = context.getFlowStep().getComponent().getInputModel();
-            List<ModelEntity> entities = inputModel.getModelEntities();
-            for (ModelEntity entity : entities) {
-                Table table = new Table();
-                table.setName(entity.getName() + "_1");
-                List<ModelAttrib> attributes = entity.getModelAttributes();
-                for (ModelAttrib attribute : attributes) {
-                    DataType dataType = attribute.getDataType();
-                    Column column = new Column(attribute.getName());
-                    if (dataType.isNumeric()) {
-                        column.setTypeCode(Types.DECIMAL);
-                    } else if (dataType.isBoolean()) {
-                        column.setTypeCode(Types.BOOLEAN);
-                    } else if (dataType.isTimestamp()) {
-                        column.setTypeCode(Types.TIMESTAMP);
-                    } else if (dataType.isBinary()) {
-                        column.setTypeCode(Types.BLOB);
-                    } else {
-                        column.setTypeCode(Types.LONGVARCHAR);
+    /**
+     * The diff state of one entity.
+     */
+    class EntityDiff {
+
+        ModelEntity entity;
+
+        ModelAttrib[] keyAttributes;
+
+        ModelAttrib[] compareAttributes;
+
+        String[] outputAttributeIds;
+
+        boolean addEnabled;
+
+        boolean chgEnabled;
+
+        boolean delEnabled;
+
+        boolean compareChanges;
+
+        RowBuffer[] source1Partitions;
+
+        RowBuffer[] source2Partitions;
+
+        PendingRows source1Pending = new PendingRows(this);
+
+        PendingRows source2Pending = new PendingRows(this);
+
+        RowKey lastSource1Key;
+
+        RowKey lastSource2Key;
+
+        RowBuffer adds;
+
+        RowBuffer changes;
+
+        RowBuffer deletes;
+
+        int addCount;
+
+        int chgCount;
+
+        int delCount;
+
+        EntityDiff(ModelEntity entity) {
+            this.entity = entity;
+            Component component = context.getFlowStep().getComponent();
+            addEnabled = isEnabled(component.getSingleEntitySetting(entity.getId(), ENTITY_ADD_ENABLED));
+            chgEnabled = isEnabled(component.getSingleEntitySetting(entity.getId(), ENTITY_CHG_ENABLED));
+            delEnabled = isEnabled(component.getSingleEntitySetting(entity.getId(), ENTITY_DEL_ENABLED));
+
+            List<ModelAttrib> keys = new ArrayList<>();
+            List<ModelAttrib> compares = new ArrayList<>();
+            List<String> outputs = new ArrayList<>();
+            for (ModelAttrib attribute : entity.getModelAttributes()) {
+                ComponentAttribSetting matchColumnSetting = component.getSingleAttributeSetting(attribute.getId(),
+                        ATTRIBUTE_COMPARE_ENABLED);
+                boolean matchColumn = matchColumnSetting != null ? Boolean.parseBoolean(matchColumnSetting.getValue()) : true;
+                if (attribute.isPk()) {
+                    keys.add(attribute);
+                } else if (matchColumn) {
+                    compares.add(attribute);
+                }
+                if (matchColumn) {
+                    outputs.add(attribute.getId());
+                }
+            }
+            if (keys.size() == 0) {
+                keys.addAll(entity.getModelAttributes());
+            }
+            keyAttributes = keys.toArray(new ModelAttrib[keys.size()]);
+            compareAttributes = compares.toArray(new ModelAttrib[compares.size()]);
+            outputAttributeIds = outputs.toArray(new String[outputs.size()]);
+            compareChanges = !entity.hasOnlyPrimaryKeys() && compareAttributes.length > 0;
+            reset();
+        }
+
+        void reset() {
+            for (RowBuffer[] partitions : new RowBuffer[][] { source1Partitions, source2Partitions }) {
+                if (partitions != null) {
+                    for (RowBuffer partition : partitions) {
+                        partition.reset();
                     }
+                }
+            }
+            for (RowBuffer buffer : new RowBuffer[] { adds, changes, deletes }) {
+                if (buffer != null) {
+                    buffer.reset();
+                }
+            }
 
-                    column.setPrimaryKey(attribute.isPk());
-                    table.addColumn(column);
+            source1Partitions = new RowBuffer[inputsSortedByKey ? 0 : hashPartitions];
+            source2Partitions = new RowBuffer[source1Partitions.length];
+            for (int i = 0; i < source1Partitions.length; i++) {
+                source1Partitions[i] = new RowBuffer(!inMemoryCompare);
+                source2Partitions[i] = new RowBuffer(!inMemoryCompare);
+            }
+            source1Pending.reset();
+            source2Pending.reset();
+            lastSource1Key = null;
+            lastSource2Key = null;
+            adds = new RowBuffer(!inMemoryCompare);
+            changes = new RowBuffer(!inMemoryCompare);
+            deletes = new RowBuffer(!inMemoryCompare);
+            addCount = 0;
+            chgCount = 0;
+            delCount = 0;
+        }
+
+        /**
+         * @return the attributes of this entity in the row or null if the row
+         *         has none of them
+         */
+        EntityData project(EntityData row) {
+            EntityData entityRow = null;
+            for (ModelAttrib attribute : entity.getModelAttributes()) {
+                String attributeId = attribute.getId();
+                if (row.containsKey(attributeId)) {
+                    if (entityRow == null) {
+                        entityRow = new EntityData();
+                    }
+                    entityRow.put(attributeId, row.get(attributeId));
                 }
-                alterCaseToMatchLogicalCase(table);
-                databasePlatform.createTables(false, false, table);
+            }
+            return entityRow;
+        }
 
-                table.setName(entity.getName().toUpperCase() + "_2");
-                databasePlatform.createTables(false, false, table);
+        RowKey key(EntityData row) {
+            Object[] values = new Object[keyAttributes.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = normalize(keyAttributes[i], row.get(keyAttributes[i].getId()));
+            }
+            return new RowKey(values);
+        }
 
+        EntityData output(EntityData row) {
+            EntityData outputRow = new EntityData();
+            for (String attributeId : outputAttributeIds) {
+                outputRow.put(attributeId, row.get(attributeId));
             }
+            return outputRow;
+        }
 
-            log(LogLevel.INFO, "Creating databasePlatform with the following url: %s", ds.getUrl());
+        void add(int source, EntityData row, ISendMessageCallback callback) {
+            if (inputsSortedByKey) {
+                DiffRow diffRow = new DiffRow(this, row);
+                RowKey last = source == 1 ? lastSource1Key : lastSource2Key;
+                if (last != null && last.compareTo(diffRow.key) > 0) {
+                    throw new IllegalStateException(String.format(
+                            "The rows from source %d for %s are not sorted by key.  %s came after %s", source,
+                            entity.getName(), diffRow.key, last));
+                }
+                if (source == 1) {
+                    lastSource1Key = diffRow.key;
+                    source1Pending.add(diffRow);
+                } else {
+                    lastSource2Key = diffRow.key;
+                    source2Pending.add(diffRow);
+                }
+                merge(entityDiffs.size() == 1 ? callback : null);
+            } else {
+                int partition = hashPartitions > 1 ? Math.floorMod(key(row).hashCode(), hashPartitions) : 0;
+                (source == 1 ? source1Partitions : source2Partitions)[partition].add(row);
+            }
         }
-    }
 
-    @Override
-    public boolean supportsStartupMessages() {
-        return false;
-    }
+        /**
+         * Compare the rows both sorted sources have in common so far. ADD rows
+         * are sent right away when a callback is passed. Otherwise they are
+         * held until this entity's turn at the end of the unit of work. CHG
+         * rows are always held so that they follow all of the entity's ADD
+         * rows.
+         */
+        void merge(ISendMessageCallback callback) {
+            while (!source1Pending.isEmpty() && !source2Pending.isEmpty()) {
+                int result = source1Pending.peek().key.compareTo(source2Pending.peek().key);
+                if (result < 0) {
+                    deleted(source1Pending.poll());
+                } else if (result > 0) {
+                    added(source2Pending.poll(), callback);
+                } else {
+                    compared(source1Pending.poll(), source2Pending.poll());
+                }
+            }
+        }
 
-    private void alterCaseToMatchLogicalCase(Table table) {
-        table.setName(table.getName().toUpperCase());
+        /**
+         * Compare the rows that are left at the end of the unit of work. The
+         * ADD, CHG and DEL rows are held to be sent in order afterwards.
+         */
+        void finish() {
+            if (inputsSortedByKey) {
+                merge(null);
+                while (!source1Pending.isEmpty()) {
+                    deleted(source1Pending.poll());
+                }
+                while (!source2Pending.isEmpty()) {
+                    added(source2Pending.poll(), null);
+                }
+            } else {
+                for (int i = 0; i < hashPartitions; i++) {
+                    Map<RowKey, DiffRow> source1Rows = load(source1Partitions[i]);
+                    Map<RowKey, DiffRow> source2Rows = load(source2Partitions[i]);
+                    for (DiffRow row2 : source2Rows.values()) {
+                        DiffRow row1 = source1Rows.remove(row2.key);
+                        if (row1 == null) {
+                            added(row2, null);
+                        } else {
+                            compared(row1, row2);
+                        }
+                    }
+                    for (DiffRow row1 : source1Rows.values()) {
+                        deleted(row1);
+                    }
+                }
+            }
+        }
+
+        Map<RowKey, DiffRow> load(RowBuffer partition) {
+            Map<RowKey, DiffRow> rows = new LinkedHashMap<>();
+            Iterator<EntityData> i = partition.iterator();
+            while (i.hasNext()) {
+                DiffRow row = new DiffRow(this, i.next());
+                rows.put(row.key, row);
+            }
+            partition.reset();
+            return rows;
+        }
 
-        Column[] columns = table.getColumns();
-        for (Column column : columns) {
-            column.setName(column.getName().toUpperCase());
+        void added(DiffRow row, ISendMessageCallback callback) {
+            addCount++;
+            if (addEnabled) {
+                if (callback != null) {
+                    send(output(row.row), ChangeType.ADD, callback);
+                } else {
+                    adds.add(output(row.row));
+                }
+            }
         }
 
-        IIndex[] indexes = table.getIndices();
-        for (IIndex index : indexes) {
-            index.setName(index.getName().toUpperCase());
+        void compared(DiffRow row1, DiffRow row2) {
+            if (compareChanges && row1.isChanged(row2)) {
+                chgCount++;
+                if (chgEnabled) {
+                    changes.add(output(row2.row));
+                }
+            }
+        }
 
-            IndexColumn[] indexColumns = index.getColumns();
-            for (IndexColumn indexColumn : indexColumns) {
-                indexColumn.setName(indexColumn.getName().toUpperCase());
+        void deleted(DiffRow row) {
+            delCount++;
+            if (delEnabled) {
+                deletes.add(output(row.row));
             }
         }
     }
 
+    @Override
+    public boolean supportsStartupMessages() {
+        return false;
+    }
+
 }
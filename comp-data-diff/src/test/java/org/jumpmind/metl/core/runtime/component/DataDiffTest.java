@@ -0,0 +1,214 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.DataType;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class DataDiffTest {
+
+    static final String[][] MODES = { { "true", "false" }, { "false", "false" }, { "true", "true" }, { "false", "true" } };
+
+    @Test
+    public void testDiffInEveryMode() {
+        for (String[] mode : MODES) {
+            List<String> diff = diff(mode[0], mode[1], 0,
+                    Arrays.asList(row(1, "1.0", "a"), row(2, "5", "b"), row(3, "7", "c")),
+                    Arrays.asList(row(1, 1, "a"), row(3, "7", "x"), row(4, "8", "d")));
+            assertEquals(Arrays.toString(mode), Arrays.asList("ADD{id=4, amt=8, nm=d}", "CHG{id=3, amt=7, nm=x}",
+                    "DEL{id=2, amt=5, nm=b}"), diff);
+        }
+    }
+
+    @Test
+    public void testChangesWithCollidingHashes() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        for (String[] mode : MODES) {
+            List<String> diff = diff(mode[0], mode[1], 0,
+                    Arrays.asList(row(1, 10, "Aa"), row(2, 10, "b"), row(3, 10, "c")),
+                    Arrays.asList(row(1, 10, "BB"), row(2, 10, "b"), row(3, 11, "c")));
+            assertEquals(Arrays.toString(mode), Arrays.asList("CHG{id=1, amt=10, nm=BB}", "CHG{id=3, amt=11, nm=c}"),
+                    sortWithinChangeTypes(diff));
+        }
+    }
+
+    @Test
+    public void testSortedMergeSpillsPendingRows() {
+        List<EntityData> source1 = new ArrayList<>();
+        List<EntityData> source2 = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            source1.add(row(i, i, "s1"));
+            if (i % 3 != 0) {
+                source2.add(row(i, i, i % 2 == 0 ? "s1" : "s2"));
+            }
+        }
+        source2.add(row(60, 1, "new"));
+        List<String> expected = sortWithinChangeTypes(diff("true", "false", 0, source1, source2));
+        assertEquals(expected, sortWithinChangeTypes(diff("false", "true", 4, source1, source2)));
+        assertEquals(expected, sortWithinChangeTypes(diff("true", "true", 0, source1, source2)));
+    }
+
+    @Test
+    public void testAddsAreSentBeforeChangesInEveryMode() {
+        for (String[] mode : MODES) {
+            List<String> diff = sortWithinChangeTypes(diff(mode[0], mode[1], 0,
+                    Arrays.asList(row(1, 1, "a"), row(3, 3, "c"), row(5, 5, "e")),
+                    Arrays.asList(row(1, 1, "x"), row(2, 2, "b"), row(3, 3, "y"), row(4, 4, "d"), row(5, 5, "e"))));
+            assertEquals(Arrays.toString(mode), Arrays.asList("ADD{id=2, amt=2, nm=b}", "ADD{id=4, amt=4, nm=d}",
+                    "CHG{id=1, amt=1, nm=x}", "CHG{id=3, amt=3, nm=y}"), diff);
+        }
+    }
+
+    @Test
+    public void testEntitiesAreSentInOrder() {
+        ModelEntity other = new ModelEntity("q", "Q");
+        ModelAttrib qid = new ModelAttrib("qid", "q", "QID");
+        qid.setPk(true);
+        qid.setDataType(DataType.INTEGER);
+        ModelAttrib qv = new ModelAttrib("qv", "q", "QV");
+        qv.setDataType(DataType.VARCHAR);
+        other.addModelAttribute(qid);
+        other.addModelAttribute(qv);
+        for (String[] mode : MODES) {
+            Model model = createModel();
+            model.getModelEntities().add(other);
+            List<String> diff = diff(model, mode[0], mode[1], 0,
+                    Arrays.asList(row(1, 1, "a"), row(2, 2, "b"), qrow(1, "a"), qrow(2, "b")),
+                    Arrays.asList(row(1, 1, "x"), row(3, 3, "c"), qrow(1, "x"), qrow(3, "c")));
+            assertEquals(Arrays.toString(mode),
+                    Arrays.asList("ADD{id=3, amt=3, nm=c}", "CHG{id=1, amt=1, nm=x}", "ADD{qid=3, qv=c}", "CHG{qid=1, qv=x}",
+                            "DEL{qid=2, qv=b}", "DEL{id=2, amt=2, nm=b}"),
+                    diff);
+        }
+    }
+
+    /**
+     * Rows of one change type come out in key order when the inputs are
+     * sorted and in hash partition order otherwise, so they are sorted here.
+     * The change types themselves are left in the order they were sent.
+     */
+    protected List<String> sortWithinChangeTypes(List<String> diff) {
+        List<String> sorted = new ArrayList<>(diff.size());
+        int start = 0;
+        for (int i = 1; i <= diff.size(); i++) {
+            if (i == diff.size() || !diff.get(i).startsWith(diff.get(start).substring(0, 3))) {
+                List<String> group = new ArrayList<>(diff.subList(start, i));
+                Collections.sort(group);
+                sorted.addAll(group);
+                start = i;
+            }
+        }
+        return sorted;
+    }
+
+    protected Model createModel() {
+        ModelEntity entity = new ModelEntity("p", "P");
+        ModelAttrib id = new ModelAttrib("id", "p", "ID");
+        id.setPk(true);
+        id.setDataType(DataType.INTEGER);
+        ModelAttrib amt = new ModelAttrib("amt", "p", "AMT");
+        amt.setDataType(DataType.NUMERIC);
+        ModelAttrib nm = new ModelAttrib("nm", "p", "NM");
+        nm.setDataType(DataType.VARCHAR);
+        entity.addModelAttribute(id);
+        entity.addModelAttribute(amt);
+        entity.addModelAttribute(nm);
+        Model model = new Model("m");
+        model.getModelEntities().add(entity);
+        return model;
+    }
+
+    protected List<String> diff(String inMemory, String sorted, int pendingRowsInMemory, List<EntityData> source1,
+            List<EntityData> source2) {
+        return diff(createModel(), inMemory, sorted, pendingRowsInMemory, source1, source2);
+    }
+
+    /**
+     * @return the rows in the order they were sent
+     */
+    protected List<String> diff(Model model, String inMemory, String sorted, int pendingRowsInMemory,
+            List<EntityData> source1, List<EntityData> source2) {
+        Flow flow = TestUtils.createFlow("TestFlow", null);
+        Component component = TestUtils.createComponent("DataDiff", false, null, model, null, null, new ArrayList<>(),
+                new Setting[] { new Setting(DataDiff.SOURCE_1, "s1"), new Setting(DataDiff.SOURCE_2, "s2"),
+                        new Setting(DataDiff.IN_MEMORY_COMPARE, inMemory), new Setting(DataDiff.INPUTS_SORTED_BY_KEY, sorted),
+                        new Setting(DataDiff.HASH_PARTITIONS, "4"), new Setting(DataDiff.ROWS_PER_MESSAGE, "1000") });
+        component.setEntitySettings(new ArrayList<>());
+        FlowStep step = new FlowStep();
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+
+        DataDiff dataDiff = new DataDiff();
+        dataDiff.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null, null));
+        dataDiff.start();
+        if (pendingRowsInMemory > 0) {
+            dataDiff.pendingRowsInMemory = pendingRowsInMemory;
+        }
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        dataDiff.handle(message("s1", source1), target, false);
+        dataDiff.handle(message("s2", source2), target, false);
+        dataDiff.handle(new ControlMessage("s1"), target, true);
+        dataDiff.stop();
+
+        List<String> diff = new ArrayList<>();
+        for (ArrayList<EntityData> payload : target.getPayloadList()) {
+            for (EntityData row : payload) {
+                diff.add(row.getChangeType() + row.toString());
+            }
+        }
+        return diff;
+    }
+
+    protected static EntityData row(int id, Object amt, String nm) {
+        return new EntityData(new NameValue("id", id), new NameValue("amt", amt), new NameValue("nm", nm));
+    }
+
+    protected static EntityData qrow(int qid, String qv) {
+        return new EntityData(new NameValue("qid", qid), new NameValue("qv", qv));
+    }
+
+    protected static EntityDataMessage message(String sourceStepId, List<EntityData> rows) {
+        EntityDataMessage message = new EntityDataMessage(sourceStepId);
+        message.setPayload(new ArrayList<>(rows));
+        return message;
+    }
+
+}
@@ -158,8 +158,7 @@ public class DelimitedFormatter extends AbstractComponentRuntime {
                 for (AttributeFormat attribute : attributes) {
                     Object object = inputRow.get(attribute.getAttributeId());
                     if (isNotBlank(attribute.getFormatFunction())) {
-                        object = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), object, getInputModel(),
-                                attribute.getEntity(), inputRow, attribute.getFormatFunction());
+                        object = attribute.format(inputMessage, inputRow, object);
                     }
 
                     csvWriter.write(object != null ? object.toString() : null,!trimColumns);
@@ -234,6 +233,8 @@ public class DelimitedFormatter extends AbstractComponentRuntime {
         int ordinal;
         String formatFunction;
 
+        ModelAttributeScriptHelper formatHelper;
+
         public AttributeFormat(String attributeId, ModelEntity entity, ModelAttrib attribute) {
             this.attributeId = attributeId;
             this.entity = entity;
@@ -267,6 +268,13 @@ public class DelimitedFormatter extends AbstractComponentRuntime {
         public ModelEntity getEntity() {
             return entity;
         }
+
+        public Object format(Message inputMessage, EntityData data, Object value) {
+            if (formatHelper == null) {
+                formatHelper = ModelAttributeScriptHelper.compile(context, attribute, entity, getInputModel(), formatFunction);
+            }
+            return formatHelper.eval(inputMessage, data, value);
+        }
         
        
     }
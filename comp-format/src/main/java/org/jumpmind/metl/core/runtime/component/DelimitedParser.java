@@ -137,13 +137,12 @@ public class DelimitedParser extends AbstractComponentRuntime {
             csvReader.setUseTextQualifier(false);
         }
         while (csvReader.readRecord()) {
-            EntityData data = new EntityData();
+            EntityData data = new EntityData(getOutputModel().getEntityDataLayout());
             if (attributes.size() > 0) {
                 for (AttributeFormat attribute : attributes) {
                     Object value = csvReader.get(attribute.getOrdinal() - 1);
                     if (isNotBlank(attribute.getFormatFunction())) {
-                        value = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), value, getOutputModel(), attribute.getEntity(),
-                                data, attribute.getFormatFunction());
+                        value = attribute.format(inputMessage, data, value);
                     }
 
                     data.put(attribute.getAttributeId(), value);
@@ -219,6 +218,8 @@ public class DelimitedParser extends AbstractComponentRuntime {
 
         String formatFunction;
 
+        ModelAttributeScriptHelper formatHelper;
+
         public String getAttributeId() {
             return attributeId;
         }
@@ -246,6 +247,13 @@ public class DelimitedParser extends AbstractComponentRuntime {
         public ModelEntity getEntity() {
             return entity;
         }
+
+        public Object format(Message inputMessage, EntityData data, Object value) {
+            if (formatHelper == null) {
+                formatHelper = ModelAttributeScriptHelper.compile(context, attribute, entity, getOutputModel(), formatFunction);
+            }
+            return formatHelper.eval(inputMessage, data, value);
+        }
     }
 
 }
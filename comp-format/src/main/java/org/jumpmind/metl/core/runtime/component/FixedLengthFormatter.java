@@ -120,8 +120,7 @@ public class FixedLengthFormatter extends AbstractComponentRuntime {
         for (AttributeFormat attribute : attributesList) {
             Object value = inputRow.get(attribute.getAttributeId());
             if (isNotBlank(attribute.getFormatFunction())) {
-                value = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), value, getInputModel(), attribute.getEntity(),
-                        inputRow, attribute.getFormatFunction());
+                value = attribute.format(inputMessage, inputRow, value);
             }
             if (value != null) {
                 if (value.toString().length() > attribute.getLength()) {
@@ -174,6 +173,7 @@ public class FixedLengthFormatter extends AbstractComponentRuntime {
         int ordinal;
         int length;
         String formatFunction;
+        ModelAttributeScriptHelper formatHelper;
 
         public AttributeFormat(ModelAttrib attribute, ModelEntity entity) {
             this.attribute = attribute;
@@ -215,6 +215,13 @@ public class FixedLengthFormatter extends AbstractComponentRuntime {
         public ModelEntity getEntity() {
             return entity;
         }
+
+        public Object format(Message inputMessage, EntityData data, Object value) {
+            if (formatHelper == null) {
+                formatHelper = ModelAttributeScriptHelper.compile(context, attribute, entity, getInputModel(), formatFunction);
+            }
+            return formatHelper.eval(inputMessage, data, value);
+        }
     }
 
 }
@@ -106,7 +106,7 @@ public class FixedLengthParser extends AbstractComponentRuntime {
 
     private EntityData processInputRow(Message inputMessage, String inputRow) throws IOException {
         if (attributesList.size() > 0) {
-            EntityData data = new EntityData();
+            EntityData data = new EntityData(getOutputModel().getEntityDataLayout());
             for (AttributeFormat attribute : attributesList) {
                 int length = attribute.getLength() > inputRow.length() ? inputRow.length() : attribute.getLength();
                 Object value = null;
@@ -118,8 +118,7 @@ public class FixedLengthParser extends AbstractComponentRuntime {
 
                 inputRow = inputRow.substring(length);
                 if (isNotBlank(attribute.getFormatFunction())) {
-                    value = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), value, getOutputModel(), attribute.getEntity(), data,
-                            attribute.getFormatFunction());
+                    value = attribute.format(inputMessage, data, value);
                 }
 
                 data.put(attribute.getAttributeId(), value);
@@ -168,6 +167,7 @@ public class FixedLengthParser extends AbstractComponentRuntime {
         int ordinal;
         int length;
         String formatFunction;
+        ModelAttributeScriptHelper formatHelper;
 
         public AttributeFormat(ModelAttrib attribute, ModelEntity entity) {
             this.attribute = attribute;
@@ -209,6 +209,13 @@ public class FixedLengthParser extends AbstractComponentRuntime {
         public ModelEntity getEntity() {
             return entity;
         }
+
+        public Object format(Message inputMessage, EntityData data, Object value) {
+            if (formatHelper == null) {
+                formatHelper = ModelAttributeScriptHelper.compile(context, attribute, entity, getOutputModel(), formatFunction);
+            }
+            return formatHelper.eval(inputMessage, data, value);
+        }
     }
 
 }
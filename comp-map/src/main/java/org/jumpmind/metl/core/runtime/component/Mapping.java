@@ -122,7 +122,7 @@ public class Mapping extends AbstractMapping {
                             .getName();
                     EntityData outputRow = outputRows.get(entityName);
                     if (outputRow == null) {
-                        outputRow = new EntityData();
+                        outputRow = new EntityData(outputModel.getEntityDataLayout());
                         outputRow.setChangeType(inputRow.getChangeType());
                         outputRows.put(entityName, outputRow);
                         
@@ -140,7 +140,7 @@ public class Mapping extends AbstractMapping {
                             .getName();                    
                     EntityData outputRow = outputRows.get(entityName);
                     if (outputRow == null) {
-                        outputRow = new EntityData();
+                        outputRow = new EntityData(outputModel.getEntityDataLayout());
                         outputRows.put(entityName, outputRow);   
                     }
                     if (!outputRow.containsKey(attr.getId())) {
@@ -163,7 +163,7 @@ public class Mapping extends AbstractMapping {
     protected ArrayList<EntityData> mapInputToOutput(EntityData inputRow) {
         ArrayList<EntityData> outputPayload = new ArrayList<EntityData>();
 
-        EntityData outputRow = new EntityData();
+        EntityData outputRow = new EntityData(getOutputModel().getEntityDataLayout());
         outputRow.setChangeType(inputRow.getChangeType());
 
         for (Entry<String, Object> attrEntry : inputRow.entrySet()) {
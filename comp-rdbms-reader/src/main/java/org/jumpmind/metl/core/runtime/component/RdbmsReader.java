@@ -44,6 +44,7 @@ import org.jumpmind.metl.core.runtime.ContentMessage;
 import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.jumpmind.metl.core.runtime.EntityDataLayout;
 import org.jumpmind.metl.core.runtime.LogLevel;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
@@ -487,6 +488,8 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
             ResultSetMetaData meta = rs.getMetaData();
             Map<Integer, String> columnHints = getSqlColumnEntityHints(sqlToExecute);
             ArrayList<String> attributeIds = getAttributeIds(sqlToExecute, meta, columnHints);
+            Model outputModel = getOutputModel();
+            EntityDataLayout layout = outputModel != null ? outputModel.getEntityDataLayout() : null;
             long ts = System.currentTimeMillis();
             while (rs.next()) {
                 if (outputRecCount++ % rowsPerMessage == 0 && payload != null && !payload.isEmpty()) {
@@ -496,7 +499,7 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
 
                 getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
 
-                EntityData rowData = new EntityData();
+                EntityData rowData = new EntityData(layout);
                 rowData.setChangeType(entityChangeType);
                 for (int i = 1; i <= meta.getColumnCount(); i++) {
                     String attributeId = attributeIds.get(i - 1);
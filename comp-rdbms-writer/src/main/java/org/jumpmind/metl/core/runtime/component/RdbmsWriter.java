@@ -23,23 +23,31 @@ package org.jumpmind.metl.core.runtime.component;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 
+import java.math.BigDecimal;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.lang.StringUtils;
 import org.jumpmind.db.model.Column;
 import org.jumpmind.db.model.Table;
 import org.jumpmind.db.platform.IDatabasePlatform;
 import org.jumpmind.db.platform.JdbcDatabasePlatformFactory;
 import org.jumpmind.db.sql.DmlStatement;
 import org.jumpmind.db.sql.DmlStatement.DmlType;
+import org.jumpmind.db.sql.ISqlRowMapper;
 import org.jumpmind.db.sql.ISqlTransaction;
+import org.jumpmind.db.sql.Row;
 import org.jumpmind.db.sql.SqlException;
 import org.jumpmind.db.sql.SqlTemplateSettings;
 import org.jumpmind.db.sql.UniqueKeyException;
@@ -60,6 +68,22 @@ import org.jumpmind.metl.core.util.LogUtils;
 import org.jumpmind.properties.TypedProperties;
 import org.jumpmind.util.FormatUtils;
 
+/**
+ * Writes entity data to the tables that match the entities of the input model.
+ * The {@link #COMMIT_POLICY} decides how long a transaction stays open: one
+ * transaction per message, or one transaction that spans messages and is
+ * committed every {@link #COMMIT_ROWS} rows, every {@link #COMMIT_INTERVAL_MS}
+ * milliseconds or at the end of the unit of work. The rows and time are
+ * checked after each message, so a commit always falls between messages. The
+ * transaction and its prepared statement are kept between commits. When a
+ * write fails only the rows written since the last commit are rolled back.
+ * <p>
+ * In batch mode, replace and insert fallback are done by looking up which
+ * keys of a message already exist with one select per
+ * {@link #EXISTS_QUERY_ROWS} keys. The rows are then split into a batch of
+ * updates and a batch of inserts. This needs a primary key, so insert fallback
+ * in batch mode is rejected for tables without one.
+ */
 public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
 
     public static final String TYPE = "RDBMS Writer";
@@ -78,6 +102,15 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     public final static String TABLE_PREFIX = "table.prefix";
     public final static String AUTO_CREATE_TABLE = "table.auto.create";
     public final static String USE_CACHED_METADATA = "use.cached.table.metadata";
+    public final static String COMMIT_POLICY = "commit.policy";
+    public final static String COMMIT_ROWS = "commit.rows";
+    public final static String COMMIT_INTERVAL_MS = "commit.interval.ms";
+    public final static String COMMIT_PER_MESSAGE = "PER MESSAGE";
+    public final static String COMMIT_ROWS_POLICY = "ROWS";
+    public final static String COMMIT_TIME_POLICY = "TIME";
+    public final static String COMMIT_PER_UNIT_OF_WORK = "PER UNIT OF WORK";
+
+    static final int EXISTS_QUERY_ROWS = 100;
 
     boolean useCachedMetadata = false;
     boolean continueOnError = false;
@@ -101,6 +134,14 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     Map<TargetTableDefintion, WriteStats> statsMap = new HashMap<>();
     long lastStatsLogTime = System.currentTimeMillis();
     long sqlDuration = 0;
+    String commitPolicy = COMMIT_PER_MESSAGE;
+    int commitRows = 10000;
+    long commitIntervalMs = 5000;
+    ISqlTransaction transaction;
+    long lastCommitTime;
+    long committedRowCount = 0;
+    int uncommittedRowCount = 0;
+    int uncommittedMessageCount = 0;
 
     @Override
     public void start() {
@@ -126,10 +167,13 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         fitToColumn = properties.is(FIT_TO_COLUMN);
         tableSuffix = properties.get(TABLE_SUFFIX, "");
         autoCreateTable = properties.is(AUTO_CREATE_TABLE, false);
-        
-        if (batchMode && insertFallback) {
-            throw new MisconfiguredException("Insert fallback is not supported in batch mode");
-        }
+        commitPolicy = properties.get(COMMIT_POLICY, COMMIT_PER_MESSAGE);
+        commitRows = Math.max(1, properties.getInt(COMMIT_ROWS, commitRows));
+        commitIntervalMs = Math.max(0, properties.getLong(COMMIT_INTERVAL_MS, commitIntervalMs));
+        committedRowCount = 0;
+        uncommittedRowCount = 0;
+        uncommittedMessageCount = 0;
+
 
         if (tableSuffix == null) {
             tableSuffix = "";
@@ -160,7 +204,6 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     public void handle(final Message inputMessage, final ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
         if (inputMessage instanceof EntityDataMessage) {
             results.clear();
-            lastPreparedDml = null;
 
             if (error == null) {
                 if (databasePlatform == null) {
@@ -190,30 +233,43 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
                             databasePlatform.createTables(false, false, table);
                         }
                         if (table != null) {
-                            targetTables.add(new TargetTableDefintion(entity, new TargetTable(DmlType.UPDATE, entity, table.copy()),
+                            TargetTableDefintion targetTableDefinition = new TargetTableDefintion(entity,
+                                    new TargetTable(DmlType.UPDATE, entity, table.copy()),
                                     new TargetTable(DmlType.INSERT, entity, table.copy()),
-                                    new TargetTable(DmlType.DELETE, entity, table.copy())));
+                                    new TargetTable(DmlType.DELETE, entity, table.copy()));
+                            if (batchMode && insertFallback && targetTableDefinition.getDeleteTable().getKeyTargetColumns().size() == 0) {
+                                throw new MisconfiguredException(
+                                        "Insert fallback is not supported in batch mode for table %s because it has no primary key",
+                                        table.getFullyQualifiedTableName());
+                            }
+                            targetTables.add(targetTableDefinition);
                         }
                     }
                 }
 
                 ArrayList<EntityData> inputRows = ((EntityDataMessage) inputMessage).getPayload();
                 if (inputRows != null && inputRows.size() > 0) {
-                    ISqlTransaction transaction = databasePlatform.getSqlTemplate().startSqlTransaction();
-                    transaction.setInBatchMode(batchMode);
+                    if (transaction == null) {
+                        transaction = databasePlatform.getSqlTemplate().startSqlTransaction();
+                        transaction.setInBatchMode(batchMode);
+                        lastPreparedDml = null;
+                        lastCommitTime = System.currentTimeMillis();
+                    }
                     try {
+                        uncommittedRowCount += inputRows.size();
+                        uncommittedMessageCount++;
                         write(transaction, (EntityDataMessage)inputMessage, callback, unitOfWorkBoundaryReached);
-                        transaction.commit();
+                        if (isCommitDue(unitOfWorkBoundaryReached)) {
+                            commit();
+                        }
                     } catch (Throwable ex) {
                         error = ex;
-                        transaction.rollback();
+                        rollback();
                         if (ex instanceof RuntimeException) {
                             throw (RuntimeException) ex;
                         } else {
                             throw new RuntimeException(ex);
                         }
-                    } finally {
-                        transaction.close();
                     }
                 }
                 if (callback != null && results.size() > 0) {
@@ -228,16 +284,96 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
                     targetTable.getUpdateTable().getRowValues().clear();
                 }
             }
-        } 
+        }
+
+        if (unitOfWorkBoundaryReached && transaction != null && error == null) {
+            try {
+                commit();
+                close();
+            } catch (RuntimeException ex) {
+                error = ex;
+                rollback();
+                throw ex;
+            }
+        }
+    }
+
+    protected boolean isCommitDue(boolean unitOfWorkBoundaryReached) {
+        if (unitOfWorkBoundaryReached || COMMIT_PER_MESSAGE.equals(commitPolicy)) {
+            return true;
+        } else if (COMMIT_ROWS_POLICY.equals(commitPolicy)) {
+            return uncommittedRowCount >= commitRows;
+        } else if (COMMIT_TIME_POLICY.equals(commitPolicy)) {
+            return System.currentTimeMillis() - lastCommitTime >= commitIntervalMs;
+        } else {
+            return false;
+        }
+    }
+
+    protected void commit() {
+        if (transaction != null && uncommittedMessageCount > 0) {
+            transaction.commit();
+            committedRowCount += uncommittedRowCount;
+            if (!COMMIT_PER_MESSAGE.equals(commitPolicy)) {
+                debug("Committed %d rows from %d messages. %d rows have been committed so far", uncommittedRowCount,
+                        uncommittedMessageCount, committedRowCount);
+            }
+            uncommittedRowCount = 0;
+            uncommittedMessageCount = 0;
+            lastCommitTime = System.currentTimeMillis();
+            if (COMMIT_PER_MESSAGE.equals(commitPolicy)) {
+                close();
+            }
+        }
+    }
+
+    protected void rollback() {
+        if (transaction != null) {
+            try {
+                transaction.rollback();
+                if (uncommittedRowCount > 0) {
+                    error("Rolled back %d rows from %d messages that were written since the last commit. "
+                            + "The first %d rows were committed", uncommittedRowCount, uncommittedMessageCount, committedRowCount);
+                }
+            } finally {
+                uncommittedRowCount = 0;
+                uncommittedMessageCount = 0;
+                close();
+            }
+        }
+    }
+
+    protected void close() {
+        if (transaction != null) {
+            try {
+                transaction.close();
+            } finally {
+                transaction = null;
+                lastPreparedDml = null;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        rollback();
+        super.stop();
     }
     
     @Override
     public void flowCompleted(boolean cancelled) {
+        if (cancelled) {
+            rollback();
+        } else if (transaction != null && error == null) {
+            commit();
+            close();
+        }
         writeStats(true);
     }
     
     @Override
     public void flowCompletedWithErrors(Throwable myError) {
+        rollback();
         writeStats(true);
     }
     
@@ -334,8 +470,13 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         for (TargetTableDefintion targetTableDefinition : targetTables) {
             WriteStats stats = getStats(targetTableDefinition);
             executeSqlDeletes(targetTableDefinition.getDeleteTable(), transaction, stats);
-            executeSqlChanges(targetTableDefinition, transaction, stats);
-            executeSqlInserts(targetTableDefinition, transaction, stats);
+            if (batchMode && (replaceRows || insertFallback)
+                    && targetTableDefinition.getDeleteTable().getKeyTargetColumns().size() > 0) {
+                executeSqlUpserts(targetTableDefinition, transaction, stats);
+            } else {
+                executeSqlChanges(targetTableDefinition, transaction, stats);
+                executeSqlInserts(targetTableDefinition, transaction, stats);
+            }
         }
     }
 
@@ -406,6 +547,236 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         }
     }
 
+    /**
+     * Sends each row to the update or the insert statement depending on
+     * whether its key is already in the table. The rows are routed in the
+     * order they would have been run in without batch mode, updates before
+     * inserts. A row for a key that an earlier row of the message inserts is
+     * updated after the inserts have run.
+     */
+    private void executeSqlUpserts(TargetTableDefintion targetTableDefinition, ISqlTransaction transaction, WriteStats stats) {
+        TargetTable targetUpdateTable = targetTableDefinition.getUpdateTable();
+        TargetTable targetInsertTable = targetTableDefinition.getInsertTable();
+        TargetTable keyTable = targetTableDefinition.getDeleteTable();
+
+        List<EntityData> changes = targetUpdateTable.getRowValues();
+        List<EntityData> adds = targetInsertTable.getRowValues();
+        if (changes.size() == 0 && adds.size() == 0) {
+            return;
+        }
+
+        List<EntityData> rows = new ArrayList<EntityData>(changes.size() + adds.size());
+        rows.addAll(changes);
+        rows.addAll(adds);
+        Set<List<Object>> existingKeys = findExistingKeys(keyTable, rows, transaction);
+        List<List<Object>> keys = new ArrayList<List<Object>>(rows.size());
+        for (EntityData row : rows) {
+            keys.add(getKey(keyTable, row));
+        }
+        UpsertRoute[] routes = routeUpserts(keys, changes.size(), existingKeys, replaceRows, insertFallback);
+
+        List<EntityData> updates = new ArrayList<EntityData>();
+        List<EntityData> inserts = new ArrayList<EntityData>();
+        List<EntityData> updatesAfterInserts = new ArrayList<EntityData>();
+        for (int i = 0; i < rows.size(); i++) {
+            boolean change = i < changes.size();
+            if (routes[i] == UpsertRoute.INSERT) {
+                inserts.add(rows.get(i));
+                stats.fallbackInsertCount += change ? 1 : 0;
+            } else {
+                (routes[i] == UpsertRoute.UPDATE ? updates : updatesAfterInserts).add(rows.get(i));
+                stats.fallbackUpdateCount += change ? 0 : 1;
+            }
+        }
+
+        for (EntityData row : updates) {
+            stats.updateCount += executeSql(targetUpdateTable, transaction, getValues(false, targetUpdateTable, row));
+        }
+        try {
+            for (EntityData row : inserts) {
+                stats.insertCount += executeSql(targetInsertTable, transaction, getValues(false, targetInsertTable, row));
+            }
+            transaction.flush();
+        } catch (UniqueKeyException e) {
+            throw new SqlException(String.format("A batched insert into %s hit a duplicate key.  Either an added row's key "
+                    + "is already in the table or the key values written do not compare equal to the ones looked up in the "
+                    + "table, for example because of a case insensitive collation.  Turn off batch mode to fall back row by row",
+                    targetInsertTable.getTable().getFullyQualifiedTableName()), e);
+        }
+        for (EntityData row : updatesAfterInserts) {
+            stats.updateCount += executeSql(targetUpdateTable, transaction, getValues(false, targetUpdateTable, row));
+        }
+    }
+
+    enum UpsertRoute {
+        UPDATE, INSERT, UPDATE_AFTER_INSERTS
+    }
+
+    /**
+     * Decide for each row whether it is updated or inserted. The first
+     * changeCount keys belong to changed rows and the rest to added rows.
+     * Changed rows are updated and added rows inserted, except that replace
+     * updates added rows whose key exists and insert fallback inserts changed
+     * rows whose key does not. A row for a key that an earlier row inserts is
+     * updated after the inserts.
+     */
+    static UpsertRoute[] routeUpserts(List<List<Object>> keys, int changeCount, Set<List<Object>> existingKeys,
+            boolean replaceRows, boolean insertFallback) {
+        UpsertRoute[] routes = new UpsertRoute[keys.size()];
+        Set<List<Object>> insertedKeys = new HashSet<List<Object>>();
+        for (int i = 0; i < routes.length; i++) {
+            List<Object> key = keys.get(i);
+            boolean change = i < changeCount;
+            if (existingKeys.contains(key)) {
+                routes[i] = change || replaceRows ? UpsertRoute.UPDATE : UpsertRoute.INSERT;
+            } else if (insertedKeys.contains(key)) {
+                routes[i] = change || replaceRows ? UpsertRoute.UPDATE_AFTER_INSERTS : UpsertRoute.INSERT;
+            } else if (!change || insertFallback) {
+                routes[i] = UpsertRoute.INSERT;
+                insertedKeys.add(key);
+            } else {
+                routes[i] = UpsertRoute.UPDATE;
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Select the keys of the rows that are already in the table. The rows
+     * batched so far are flushed first so that the select sees them.
+     */
+    private Set<List<Object>> findExistingKeys(final TargetTable keyTable, List<EntityData> rows, ISqlTransaction transaction) {
+        Map<List<Object>, Object[]> keys = new LinkedHashMap<List<Object>, Object[]>();
+        for (EntityData row : rows) {
+            List<Object> key = getKey(keyTable, row);
+            if (!keys.containsKey(key)) {
+                Object[] values = new Object[key.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = row.get(keyTable.getKeyTargetColumns().get(i).getModelAttribute().getId());
+                }
+                keys.put(key, values);
+            }
+        }
+
+        final List<TargetColumn> keyColumns = keyTable.getKeyTargetColumns();
+        DmlStatement select = databasePlatform.createDmlStatement(DmlType.SELECT, keyTable.getTable(), null);
+        String selectSql = select.getSql();
+        int whereIndex = selectSql.lastIndexOf(" where ");
+        String keyCondition = "(" + selectSql.substring(whereIndex + " where ".length()) + ")";
+        int[] keyTypes = new int[keyColumns.size()];
+        for (int i = 0; i < keyTypes.length; i++) {
+            keyTypes[i] = keyColumns.get(i).getColumn().getMappedTypeCode();
+        }
+
+        transaction.flush();
+        Set<List<Object>> existingKeys = new HashSet<List<Object>>();
+        List<Object[]> keyList = new ArrayList<Object[]>(keys.values());
+        for (int start = 0; start < keyList.size(); start += EXISTS_QUERY_ROWS) {
+            List<Object[]> chunk = keyList.subList(start, Math.min(start + EXISTS_QUERY_ROWS, keyList.size()));
+            StringBuilder sql = new StringBuilder(selectSql.substring(0, whereIndex)).append(" where ");
+            Object[] args = new Object[chunk.size() * keyTypes.length];
+            int[] types = new int[args.length];
+            for (int i = 0; i < chunk.size(); i++) {
+                if (i > 0) {
+                    sql.append(" or ");
+                }
+                sql.append(keyCondition);
+                Object[] key = chunk.get(i);
+                for (int j = 0; j < keyTypes.length; j++) {
+                    args[i * keyTypes.length + j] = key[j];
+                    types[i * keyTypes.length + j] = keyTypes[j];
+                }
+            }
+            long ts = System.currentTimeMillis();
+            existingKeys.addAll(transaction.query(sql.toString(), new ISqlRowMapper<List<Object>>() {
+                @Override
+                public List<Object> mapRow(Row row) {
+                    Object[] values = new Object[keyColumns.size()];
+                    for (int i = 0; i < values.length; i++) {
+                        Column column = keyColumns.get(i).getColumn();
+                        values[i] = normalizeKeyValue(column.getMappedTypeCode(), row.get(column.getName()));
+                    }
+                    return Arrays.asList(values);
+                }
+            }, args, types));
+            sqlDuration += System.currentTimeMillis() - ts;
+        }
+        return existingKeys;
+    }
+
+    private List<Object> getKey(TargetTable keyTable, EntityData row) {
+        List<TargetColumn> keyColumns = keyTable.getKeyTargetColumns();
+        Object[] values = new Object[keyColumns.size()];
+        for (int i = 0; i < values.length; i++) {
+            TargetColumn keyColumn = keyColumns.get(i);
+            values[i] = normalizeKeyValue(keyColumn.getColumn().getMappedTypeCode(), row.get(keyColumn.getModelAttribute().getId()));
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Key values from the model and from the database can have different
+     * types, so both are normalized by the type of the key column the way the
+     * database would compare them. Strings are parsed for numeric and date
+     * columns, trailing blanks are ignored for CHAR columns, numbers and dates
+     * are compared by value and everything else by its string form. Case
+     * insensitive collations are not detected.
+     */
+    static Object normalizeKeyValue(int typeCode, Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch (typeCode) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                if (value instanceof String) {
+                    try {
+                        value = new BigDecimal(((String) value).trim());
+                    } catch (NumberFormatException e) {
+                    }
+                }
+                break;
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                if (value instanceof String) {
+                    try {
+                        Date date = FormatUtils.parseDate(((String) value).trim(), FormatUtils.TIMESTAMP_PATTERNS);
+                        if (date != null) {
+                            value = date;
+                        }
+                    } catch (RuntimeException e) {
+                    }
+                }
+                break;
+            case Types.CHAR:
+            case Types.NCHAR:
+                return StringUtils.stripEnd(value.toString(), " ");
+            default:
+                break;
+        }
+
+        if (value instanceof Number) {
+            try {
+                BigDecimal number = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+                return number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException e) {
+                return value.toString();
+            }
+        } else if (value instanceof Date) {
+            return ((Date) value).getTime();
+        } else {
+            return value.toString();
+        }
+    }
+
     private int executeSql(TargetTable targetTable, ISqlTransaction transaction, Object[] rowData) {
         int count = execute(transaction, targetTable.getStatement(), new Object(), rowData);
         if (count > 0) {
@@ -416,7 +787,7 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         return count;
     }
 
-    private void write(ISqlTransaction transaction, EntityDataMessage inputMessage, ISendMessageCallback callback, boolean unitOfWorkLastMessage) {
+    protected void write(ISqlTransaction transaction, EntityDataMessage inputMessage, ISendMessageCallback callback, boolean unitOfWorkLastMessage) {
         sortAndStoreRowsByTableAndOperation(inputMessage.getPayload());
         executeSqlByTableAndOperation(transaction);
         writeStats(false);       
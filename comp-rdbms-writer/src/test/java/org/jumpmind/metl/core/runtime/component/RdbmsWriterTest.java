@@ -0,0 +1,279 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.jumpmind.metl.core.runtime.component.RdbmsWriter.normalizeKeyValue;
+import static org.jumpmind.metl.core.runtime.component.RdbmsWriter.routeUpserts;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jumpmind.db.platform.IDatabasePlatform;
+import org.jumpmind.db.sql.ISqlTemplate;
+import org.jumpmind.db.sql.ISqlTransaction;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.LogLevel;
+import org.jumpmind.metl.core.runtime.component.RdbmsWriter.UpsertRoute;
+import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class RdbmsWriterTest {
+
+    ISqlTransaction transaction;
+
+    List<String> errors;
+
+    @Test
+    public void testUpsertRoutesWithInsertFallback() {
+        /* changes for keys 1 and 3, then adds for keys 2 and 1 */
+        List<List<Object>> keys = Arrays.asList(key(1), key(3), key(2), key(1));
+        Set<List<Object>> existing = new HashSet<>(Arrays.asList(key(1)));
+        assertArrayEquals(new UpsertRoute[] { UpsertRoute.UPDATE, UpsertRoute.INSERT, UpsertRoute.INSERT, UpsertRoute.INSERT },
+                routeUpserts(keys, 2, existing, false, true));
+
+        keys = Arrays.asList(key(4), key(4), key(4));
+        assertArrayEquals(new UpsertRoute[] { UpsertRoute.INSERT, UpsertRoute.UPDATE_AFTER_INSERTS, UpsertRoute.INSERT },
+                routeUpserts(keys, 2, existing, false, true));
+    }
+
+    @Test
+    public void testUpsertRoutesWithReplace() {
+        /* a change for key 5, then adds for keys 1, 2 and 2 again */
+        List<List<Object>> keys = Arrays.asList(key(5), key(1), key(2), key(2));
+        Set<List<Object>> existing = new HashSet<>(Arrays.asList(key(1)));
+        assertArrayEquals(
+                new UpsertRoute[] { UpsertRoute.UPDATE, UpsertRoute.UPDATE, UpsertRoute.INSERT, UpsertRoute.UPDATE_AFTER_INSERTS },
+                routeUpserts(keys, 1, existing, true, false));
+        assertArrayEquals(
+                new UpsertRoute[] { UpsertRoute.INSERT, UpsertRoute.UPDATE, UpsertRoute.INSERT, UpsertRoute.UPDATE_AFTER_INSERTS },
+                routeUpserts(keys, 1, existing, true, true));
+        assertArrayEquals(new UpsertRoute[0], routeUpserts(Collections.<List<Object>> emptyList(), 0, existing, true, true));
+    }
+
+    @Test
+    public void testNumericKeysCompareByValue() {
+        assertEquals(normalizeKeyValue(Types.INTEGER, 10), normalizeKeyValue(Types.INTEGER, new BigDecimal("10.00")));
+        assertEquals(normalizeKeyValue(Types.NUMERIC, 10L), normalizeKeyValue(Types.NUMERIC, " 10.0 "));
+        assertEquals(normalizeKeyValue(Types.DECIMAL, 0), normalizeKeyValue(Types.DECIMAL, "0.000"));
+        assertEquals(normalizeKeyValue(Types.DOUBLE, 1.5d), normalizeKeyValue(Types.DOUBLE, new BigDecimal("1.50")));
+        assertEquals("abc", normalizeKeyValue(Types.INTEGER, "abc"));
+    }
+
+    @Test
+    public void testCharKeysIgnoreTrailingBlanks() {
+        assertEquals(normalizeKeyValue(Types.CHAR, "ab"), normalizeKeyValue(Types.CHAR, "ab   "));
+        assertEquals(" ab", normalizeKeyValue(Types.CHAR, " ab "));
+        assertNotEquals(normalizeKeyValue(Types.VARCHAR, "ab"), normalizeKeyValue(Types.VARCHAR, "ab "));
+    }
+
+    @Test
+    public void testDateKeysCompareByTime() {
+        Date date = new Date(1500000000000L);
+        assertEquals(normalizeKeyValue(Types.TIMESTAMP, date), normalizeKeyValue(Types.TIMESTAMP, new Timestamp(date.getTime())));
+        assertEquals(null, normalizeKeyValue(Types.TIMESTAMP, null));
+    }
+
+    @Test
+    public void testCommitPerMessage() {
+        RdbmsWriter writer = createWriter(RdbmsWriter.COMMIT_PER_MESSAGE);
+        writer.handle(createMessage(3), null, false);
+        writer.handle(createMessage(2), null, false);
+        verify(transaction, times(2)).commit();
+        verify(transaction, times(2)).close();
+        assertEquals(5, writer.committedRowCount);
+        assertNull(writer.transaction);
+    }
+
+    @Test
+    public void testCommitEveryRows() {
+        RdbmsWriter writer = createWriter(RdbmsWriter.COMMIT_ROWS_POLICY);
+        writer.commitRows = 5;
+        writer.handle(createMessage(3), null, false);
+        verify(transaction, never()).commit();
+        writer.handle(createMessage(3), null, false);
+        verify(transaction, times(1)).commit();
+        assertEquals(6, writer.committedRowCount);
+        assertEquals(0, writer.uncommittedRowCount);
+        writer.handle(createMessage(4), null, false);
+        verify(transaction, times(1)).commit();
+        verify(transaction, never()).close();
+        assertNotNull(writer.transaction);
+    }
+
+    @Test
+    public void testCommitEveryInterval() {
+        RdbmsWriter writer = createWriter(RdbmsWriter.COMMIT_TIME_POLICY);
+        writer.commitIntervalMs = 60000;
+        writer.handle(createMessage(3), null, false);
+        writer.handle(createMessage(3), null, false);
+        verify(transaction, never()).commit();
+        writer.lastCommitTime -= 60000;
+        writer.handle(createMessage(1), null, false);
+        verify(transaction, times(1)).commit();
+        assertEquals(7, writer.committedRowCount);
+        writer.handle(createMessage(1), null, false);
+        verify(transaction, times(1)).commit();
+    }
+
+    @Test
+    public void testCommitPerUnitOfWork() {
+        RdbmsWriter writer = createWriter(RdbmsWriter.COMMIT_PER_UNIT_OF_WORK);
+        for (int i = 0; i < 3; i++) {
+            writer.handle(createMessage(100), null, false);
+        }
+        verify(transaction, never()).commit();
+        writer.handle(new ControlMessage("source"), null, true);
+        verify(transaction, times(1)).commit();
+        verify(transaction, times(1)).close();
+        assertEquals(300, writer.committedRowCount);
+        assertNull(writer.transaction);
+
+        /* a control message with nothing written does not commit */
+        writer.handle(new ControlMessage("source"), null, true);
+        verify(transaction, times(1)).commit();
+    }
+
+    @Test
+    public void testCommitAtUnitOfWorkBoundary() {
+        RdbmsWriter writer = createWriter(RdbmsWriter.COMMIT_ROWS_POLICY);
+        writer.commitRows = 10;
+        writer.handle(createMessage(3), null, false);
+        writer.handle(createMessage(3), null, true);
+        verify(transaction, times(1)).commit();
+        verify(transaction, times(1)).close();
+        assertEquals(6, writer.committedRowCount);
+        assertNull(writer.transaction);
+    }
+
+    @Test
+    public void testRollbackToLastCommit() {
+        RdbmsWriter writer = createWriter(RdbmsWriter.COMMIT_ROWS_POLICY);
+        writer.commitRows = 5;
+        writer.handle(createMessage(3), null, false);
+        writer.handle(createMessage(3), null, false);
+        writer.handle(createMessage(2), null, false);
+        try {
+            writer.handle(createMessage(4, true), null, false);
+            fail("Expected the write to fail");
+        } catch (IllegalStateException ex) {
+        }
+        verify(transaction, times(1)).commit();
+        verify(transaction, times(1)).rollback();
+        verify(transaction, times(1)).close();
+        assertEquals(6, writer.committedRowCount);
+        assertEquals(0, writer.uncommittedRowCount);
+        assertEquals(Arrays.asList("Rolled back 6 rows from 2 messages that were written since the last commit. "
+                + "The first 6 rows were committed"), errors);
+
+        /* nothing more is written or committed after the error */
+        writer.handle(createMessage(1), null, false);
+        writer.handle(new ControlMessage("source"), null, true);
+        verify(transaction, times(1)).commit();
+        assertNull(writer.transaction);
+    }
+
+    protected RdbmsWriter createWriter(String commitPolicy) {
+        transaction = mock(ISqlTransaction.class);
+        ISqlTemplate sqlTemplate = mock(ISqlTemplate.class);
+        when(sqlTemplate.startSqlTransaction()).thenReturn(transaction);
+        IDatabasePlatform databasePlatform = mock(IDatabasePlatform.class);
+        when(databasePlatform.getSqlTemplate()).thenReturn(sqlTemplate);
+
+        errors = new ArrayList<>();
+        ExecutionTrackerNoOp tracker = new ExecutionTrackerNoOp() {
+            @Override
+            public void log(int threadNumber, LogLevel level, ComponentContext context, String output, Object... args) {
+                if (level == LogLevel.ERROR) {
+                    errors.add(String.format(output, args));
+                }
+            }
+        };
+        FlowStep step = new FlowStep(TestUtils.createComponent(RdbmsWriter.TYPE, false));
+        step.setId("writer");
+        step.setName("writer");
+
+        /* rows are not written anywhere, a failed row fails the write */
+        RdbmsWriter writer = new RdbmsWriter() {
+            @Override
+            protected void write(ISqlTransaction transaction, EntityDataMessage inputMessage, ISendMessageCallback callback,
+                    boolean unitOfWorkLastMessage) {
+                for (EntityData data : inputMessage.getPayload()) {
+                    if (data.containsKey("fail")) {
+                        throw new IllegalStateException("Failed to write " + data);
+                    }
+                }
+            }
+        };
+        writer.setContext(new ComponentContext(null, step, TestUtils.createFlow("flow", null), tracker, null, null, null, null));
+        writer.databasePlatform = databasePlatform;
+        writer.targetTables = new ArrayList<>();
+        writer.commitPolicy = commitPolicy;
+        return writer;
+    }
+
+    protected EntityDataMessage createMessage(int rowCount) {
+        return createMessage(rowCount, false);
+    }
+
+    protected EntityDataMessage createMessage(int rowCount, boolean fail) {
+        ArrayList<EntityData> payload = new ArrayList<>();
+        for (int i = 0; i < rowCount; i++) {
+            payload.add(new EntityData(new NameValue(fail ? "fail" : "id", i)));
+        }
+        EntityDataMessage message = new EntityDataMessage("source");
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected static List<Object> key(Object... values) {
+        Object[] normalized = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            normalized[i] = normalizeKeyValue(Types.INTEGER, values[i]);
+        }
+        return Arrays.asList(normalized);
+    }
+
+}
@@ -30,12 +30,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import javax.script.Bindings;
-import javax.script.ScriptContext;
-import javax.script.ScriptEngine;
-import javax.script.ScriptException;
-
-import org.codehaus.groovy.jsr223.GroovyScriptEngineImpl;
 import org.jumpmind.exception.IoException;
 import org.jumpmind.metl.core.model.FlowStepLink;
 import org.jumpmind.metl.core.runtime.ControlMessage;
@@ -50,6 +44,9 @@ import org.jumpmind.properties.TypedProperties;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+
 public class ContentRouter extends AbstractComponentRuntime {
 
     public static final String TYPE = "Content Router";
@@ -60,7 +57,9 @@ public class ContentRouter extends AbstractComponentRuntime {
 
     List<Route> routes;
 
-    ScriptEngine scriptEngine;
+    Script[] routeScripts;
+
+    ScriptBinding binding;
 
     boolean onlyRouteFirstMatch;
 
@@ -70,7 +69,6 @@ public class ContentRouter extends AbstractComponentRuntime {
 
     @Override
     public void start() {
-        scriptEngine = new GroovyScriptEngineImpl();
         TypedProperties properties = getTypedProperties();
         rowsPerMessage = properties.getLong(ROWS_PER_MESSAGE);
         String json = getComponent().get(SETTING_CONFIG);
@@ -90,9 +88,29 @@ public class ContentRouter extends AbstractComponentRuntime {
             } catch (Exception e) {
                 throw new IoException(e);
             }
+            compileRoutes();
+        }
+    }
+
+    /*
+     * Each match expression is compiled once into a script class that shares a
+     * binding which resolves entity attributes, headers and parameters on
+     * demand for the current row
+     */
+    protected void compileRoutes() {
+        binding = new ScriptBinding(getInputModel(), context.getFlowParameters());
+        GroovyShell shell = new GroovyShell();
+        routeScripts = new Script[routes.size()];
+        for (int i = 0; i < routes.size(); i++) {
+            routeScripts[i] = shell.parse(routes.get(i).getMatchExpression());
+            routeScripts[i].setBinding(binding);
         }
     }
 
+    protected boolean matches(int routeIndex) {
+        return Boolean.TRUE.equals(routeScripts[routeIndex].run());
+    }
+
     @Override
     public boolean supportsStartupMessages() {
         return true;
@@ -121,29 +139,26 @@ public class ContentRouter extends AbstractComponentRuntime {
 
         for (EntityData entityData : inputDatas) {
             getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-            bindEntityData(scriptEngine, inputMessage, entityData);
             if (routes != null) {
-                for (Route route : routes) {
-                    try {
-                        if (Boolean.TRUE.equals(scriptEngine.eval(route.getMatchExpression()))) {
-                            ArrayList<EntityData> outboundPayload = outboundMessages.get(route.getTargetStepId());
-                            if (outboundPayload != null && outboundPayload.size() >= rowsPerMessage) {
-                                outboundMessages.remove(route.getTargetStepId());
-                                callback.sendEntityDataMessage(null, outboundPayload, route.getTargetStepId());
-                                targetStepsThatNeedControlMessages.add(route.getTargetStepId());
-                                outboundPayload = null;
-                            }
-                            if (outboundPayload == null) {
-                                outboundPayload = new ArrayList<EntityData>();
-                                outboundMessages.put(route.getTargetStepId(), outboundPayload);
-                            }
-                            outboundPayload.add(entityData.copy());
-                            if (onlyRouteFirstMatch) {
-                                break;
-                            }
+                binding.bind(inputMessage, entityData);
+                for (int i = 0; i < routes.size(); i++) {
+                    Route route = routes.get(i);
+                    if (matches(i)) {
+                        ArrayList<EntityData> outboundPayload = outboundMessages.get(route.getTargetStepId());
+                        if (outboundPayload != null && outboundPayload.size() >= rowsPerMessage) {
+                            outboundMessages.remove(route.getTargetStepId());
+                            callback.sendEntityDataMessage(null, outboundPayload, route.getTargetStepId());
+                            targetStepsThatNeedControlMessages.add(route.getTargetStepId());
+                            outboundPayload = null;
+                        }
+                        if (outboundPayload == null) {
+                            outboundPayload = new ArrayList<EntityData>();
+                            outboundMessages.put(route.getTargetStepId(), outboundPayload);
+                        }
+                        outboundPayload.add(entityData.copy());
+                        if (onlyRouteFirstMatch) {
+                            break;
                         }
-                    } catch (ScriptException e) {
-                        throw new RuntimeException(e);
                     }
                 }
             }
@@ -156,21 +171,16 @@ public class ContentRouter extends AbstractComponentRuntime {
     }
 
     protected void handleControlMessages(ControlMessage inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
-        Bindings bindings = scriptEngine.createBindings();
-        bindHeadersAndFlowParameters(bindings, inputMessage);
-        scriptEngine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
         if (routes != null) {
-            for (Route route : routes) {
-                try {
-                    if (Boolean.TRUE.equals(scriptEngine.eval(route.getMatchExpression()))) {
-                        callback.sendControlMessage(inputMessage.getHeader(), route.getTargetStepId());
-                        targetStepsThatNeedControlMessages.remove(route.getTargetStepId());
-                        if (onlyRouteFirstMatch) {
-                            break;
-                        }
+            binding.bind(inputMessage);
+            for (int i = 0; i < routes.size(); i++) {
+                Route route = routes.get(i);
+                if (matches(i)) {
+                    callback.sendControlMessage(inputMessage.getHeader(), route.getTargetStepId());
+                    targetStepsThatNeedControlMessages.remove(route.getTargetStepId());
+                    if (onlyRouteFirstMatch) {
+                        break;
                     }
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e);
                 }
             }
         }
@@ -181,28 +191,25 @@ public class ContentRouter extends AbstractComponentRuntime {
         ArrayList<String> inputDatas = (ArrayList<String>) inputMessage.getPayload();
         for (String data : inputDatas) {
             getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-            bindStringData(scriptEngine, inputMessage, data);
             if (routes != null) {
-                for (Route route : routes) {
-                    try {
-                        if (Boolean.TRUE.equals(scriptEngine.eval(route.getMatchExpression()))) {
-                            ArrayList<String> outboundPayload = outboundMessages.get(route.getTargetStepId());
-                            if (outboundPayload == null) {
-                                outboundPayload = new ArrayList<String>();
-                                outboundMessages.put(route.getTargetStepId(), outboundPayload);
-                            }
-                            if (outboundPayload.size() >= rowsPerMessage) {
-                                outboundMessages.remove(route.getTargetStepId());
-                                callback.sendTextMessage(null, outboundPayload, route.getTargetStepId());
-                                targetStepsThatNeedControlMessages.add(route.getTargetStepId());
-                            }
-                            outboundPayload.add(data);
-                            if (onlyRouteFirstMatch) {
-                                break;
-                            }
+                binding.bind(inputMessage, data);
+                for (int i = 0; i < routes.size(); i++) {
+                    Route route = routes.get(i);
+                    if (matches(i)) {
+                        ArrayList<String> outboundPayload = outboundMessages.get(route.getTargetStepId());
+                        if (outboundPayload == null) {
+                            outboundPayload = new ArrayList<String>();
+                            outboundMessages.put(route.getTargetStepId(), outboundPayload);
+                        }
+                        if (outboundPayload.size() >= rowsPerMessage) {
+                            outboundMessages.remove(route.getTargetStepId());
+                            callback.sendTextMessage(null, outboundPayload, route.getTargetStepId());
+                            targetStepsThatNeedControlMessages.add(route.getTargetStepId());
+                        }
+                        outboundPayload.add(data);
+                        if (onlyRouteFirstMatch) {
+                            break;
                         }
-                    } catch (ScriptException e) {
-                        throw new RuntimeException(e);
                     }
                 }
             }
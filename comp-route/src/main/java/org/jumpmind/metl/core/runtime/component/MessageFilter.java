@@ -20,16 +20,15 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
-import javax.script.Bindings;
-import javax.script.ScriptEngine;
-import javax.script.ScriptException;
-
-import org.codehaus.groovy.jsr223.GroovyScriptEngineImpl;
+import org.apache.commons.lang.StringUtils;
 import org.jumpmind.metl.core.runtime.ContentMessage;
 import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+
 public class MessageFilter extends AbstractComponentRuntime {
 
     public final static String SETTING_FILTER_EXPRESSION = "filter.expression";
@@ -40,7 +39,20 @@ public class MessageFilter extends AbstractComponentRuntime {
 
     public final static String MESSAGE_TYPE_TO_FILTER_CONTROL = "CONTROL";
 
-    ScriptEngine scriptEngine;
+    String messageTypeToFilter;
+
+    Script filterScript;
+
+    ScriptBinding binding;
+
+    @Override
+    public void start() {
+        messageTypeToFilter = properties.get(SETTING_MESSAGE_TYPE_TO_FILTER);
+        String expression = properties.get(SETTING_FILTER_EXPRESSION);
+        binding = new ScriptBinding(getInputModel(), context.getFlowParameters());
+        filterScript = new GroovyShell().parse(StringUtils.isNotBlank(expression) ? expression : "null");
+        filterScript.setBinding(binding);
+    }
 
     @Override
     public boolean supportsStartupMessages() {
@@ -49,30 +61,22 @@ public class MessageFilter extends AbstractComponentRuntime {
 
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
-        if (scriptEngine == null) {
-            scriptEngine = new GroovyScriptEngineImpl();
-        }
-
-        String messageTypeToFilter = properties.get(SETTING_MESSAGE_TYPE_TO_FILTER);
-        String expression = properties.get(SETTING_FILTER_EXPRESSION);
-        Bindings bindings = scriptEngine.createBindings();
-        bindHeadersAndFlowParameters(bindings, inputMessage);
-        try {
-            if (MESSAGE_TYPE_TO_FILTER_CONTENT.equals(messageTypeToFilter) && inputMessage instanceof ContentMessage) {
-                if (Boolean.TRUE.equals(scriptEngine.eval(expression, bindings))) {
-                    callback.forward(inputMessage);
-                }
-            } else if (MESSAGE_TYPE_TO_FILTER_CONTROL.equals(messageTypeToFilter) && inputMessage instanceof ControlMessage) {
-                if (Boolean.TRUE.equals(scriptEngine.eval(expression, bindings))) {
-                    callback.sendControlMessage();
-                }
-            } else if (inputMessage instanceof ControlMessage) {
+        if (MESSAGE_TYPE_TO_FILTER_CONTENT.equals(messageTypeToFilter) && inputMessage instanceof ContentMessage) {
+            if (matches(inputMessage)) {
+                callback.forward(inputMessage);
+            }
+        } else if (MESSAGE_TYPE_TO_FILTER_CONTROL.equals(messageTypeToFilter) && inputMessage instanceof ControlMessage) {
+            if (matches(inputMessage)) {
                 callback.sendControlMessage();
             }
-        } catch (ScriptException e) {
-            throw new RuntimeException(e);
+        } else if (inputMessage instanceof ControlMessage) {
+            callback.sendControlMessage();
         }
+    }
 
+    protected boolean matches(Message inputMessage) {
+        binding.bind(inputMessage);
+        return Boolean.TRUE.equals(filterScript.run());
     }
 
 }
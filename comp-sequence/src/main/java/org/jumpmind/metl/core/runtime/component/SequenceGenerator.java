@@ -21,8 +21,9 @@
 package org.jumpmind.metl.core.runtime.component;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jumpmind.metl.core.model.Component;
 import org.jumpmind.metl.core.model.Model;
@@ -33,6 +34,14 @@ import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.util.FormatUtils;
 
+/**
+ * Stamps each row with the next number of a sequence. A shared sequence is an
+ * {@link AtomicLong} per shared name, so steps only meet when they take
+ * numbers from the same sequence. With a {@link #BLOCK_SIZE} larger than one
+ * a step takes a block of numbers at a time and hands them out without going
+ * back to the shared sequence. Numbers left in a block when the step stops are
+ * not used.
+ */
 public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
 
     public static final String TYPE = "Sequence";
@@ -50,6 +59,8 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
     public final static String RESET_ATTRIBUTE = "reset.attribute";
 
     public final static String SEQUENCE_START_VALUE = "sequence.start.value";
+
+    public final static String BLOCK_SIZE = "block.size";
     
     String sequenceAttributeId;
 
@@ -68,8 +79,16 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
     Long sequenceStartValue;
     
     Object fieldChangeValue = null;
+
+    int blockSize = 1;
+
+    long blockNext;
+
+    long blockEnd;
+
+    AtomicLong sharedSequenceNumber;
     
-    static final Map<String, Long> sharedSequence = new HashMap<String, Long>();
+    static final Map<String, AtomicLong> sharedSequence = new ConcurrentHashMap<String, AtomicLong>();
 
     @Override
     public void start() {
@@ -95,6 +114,8 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
             throw new IllegalStateException("Either a sequence start value or sql statement to get the start value is required");
         }
         
+        blockSize = Math.max(1, getComponent().getInt(BLOCK_SIZE, blockSize));
+
         resetOnAttributeChange = getComponent().getBoolean(RESET_ON_ATTRIBUTE_CHANGE, resetOnAttributeChange);
         if (resetOnAttributeChange) {
             resetAttribute = getComponent().get(RESET_ATTRIBUTE);
@@ -119,26 +140,25 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
                     "The sequence attribute must be a valid 'entity.attribute' in the input model.");
         }
 
-        synchronized (SequenceGenerator.class) {
-            
-            if (sql != null && !sql.isEmpty()) {            
-                final String sqlToExecute = FormatUtils.replaceTokens(this.sql, context.getFlowParameters(), true);
-                log(LogLevel.DEBUG, "About to run: " + sqlToExecute);
-                nonSharedSequenceNumber = getJdbcTemplate().queryForObject(sqlToExecute, context.getFlowParameters(), Long.class);
-                if (nonSharedSequenceNumber == null) {
-                    nonSharedSequenceNumber = 1l;
-                }
-                sequenceStartValue = nonSharedSequenceNumber;
-            } else {
-                nonSharedSequenceNumber = sequenceStartValue;                
+        if (sql != null && !sql.isEmpty()) {            
+            final String sqlToExecute = FormatUtils.replaceTokens(this.sql, context.getFlowParameters(), true);
+            log(LogLevel.DEBUG, "About to run: " + sqlToExecute);
+            nonSharedSequenceNumber = getJdbcTemplate().queryForObject(sqlToExecute, context.getFlowParameters(), Long.class);
+            if (nonSharedSequenceNumber == null) {
+                nonSharedSequenceNumber = 1l;
             }
+            sequenceStartValue = nonSharedSequenceNumber;
+        } else {
+            nonSharedSequenceNumber = sequenceStartValue;                
+        }
 
-            if (shared) {
-                Long currentValue = sharedSequence.get(sharedName);
-                if (currentValue == null || currentValue < nonSharedSequenceNumber) {
-                    info("'%s' is setting the shared sequence '%s' to %d", getFlowStep().getName(), sharedName, nonSharedSequenceNumber);
-                    sharedSequence.put(sharedName, nonSharedSequenceNumber);
-                }
+        blockNext = blockEnd = 0;
+        if (shared) {
+            final long startValue = nonSharedSequenceNumber;
+            sharedSequenceNumber = sharedSequence.computeIfAbsent(sharedName, k -> new AtomicLong(Long.MIN_VALUE));
+            long previousValue = sharedSequenceNumber.getAndAccumulate(startValue, Math::max);
+            if (previousValue < startValue) {
+                info("'%s' is setting the shared sequence '%s' to %d", getFlowStep().getName(), sharedName, startValue);
             }
         }
     }
@@ -151,20 +171,26 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
         if (inputMessage instanceof EntityDataMessage) {
+            /*
+             * The same rows are delivered to every target of the sending step,
+             * so each row is copied before it is stamped. A copy shares its
+             * values until it is written to.
+             */
             ArrayList<EntityData> outgoingPayload = new ArrayList<EntityData>();
             ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
             for (EntityData entityData : payload) {
                 entityData = entityData.copy();
                 long sequence;
                 if (shared) {
-                    synchronized (SequenceGenerator.class) {
-                        Long sequenceNumber = sharedSequence.get(sharedName);
-                        if (resetNeeded(entityData)) {
-                            sequenceNumber = sequenceStartValue;
-                        }
-                        sequence = ++sequenceNumber;
-                        sharedSequence.put(sharedName, sequenceNumber);                        
+                    if (resetNeeded(entityData)) {
+                        sharedSequenceNumber.set(sequenceStartValue);
+                        blockNext = blockEnd = 0;
+                    }
+                    if (blockNext >= blockEnd) {
+                        blockNext = sharedSequenceNumber.getAndAdd(blockSize);
+                        blockEnd = blockNext + blockSize;
                     }
+                    sequence = ++blockNext;
                 } else {
                     if (resetNeeded(entityData)) {
                         nonSharedSequenceNumber = sequenceStartValue;
@@ -20,39 +20,35 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.PriorityQueue;
 
 import org.apache.commons.lang.ObjectUtils;
-import org.h2.Driver;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttribSetting;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.model.ModelAttrib;
 import org.jumpmind.metl.core.model.ModelEntity;
-import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataFileReader;
+import org.jumpmind.metl.core.runtime.EntityDataFileWriter;
+import org.jumpmind.metl.core.runtime.EntityDataLayout;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
-import org.jumpmind.metl.core.runtime.LogLevel;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
-import org.jumpmind.db.model.Column;
-import org.jumpmind.db.model.IIndex;
-import org.jumpmind.db.model.IndexColumn;
-import org.jumpmind.db.model.Table;
-import org.jumpmind.db.platform.IDatabasePlatform;
-import org.jumpmind.db.platform.JdbcDatabasePlatformFactory;
-import org.jumpmind.db.sql.SqlTemplateSettings;
-import org.jumpmind.db.util.ResettableBasicDataSource;
-import org.jumpmind.metl.core.model.Component;
-import org.jumpmind.metl.core.model.ComponentAttribSetting;
-import org.jumpmind.metl.core.model.DataType;
 
+/**
+ * Sorts all of the rows in a unit of work on one or more attributes. Rows are
+ * buffered in memory until {@link #MAX_ROWS_IN_MEMORY} is reached. The buffer
+ * is then sorted and spilled to a temporary file as a sorted run. At the end of
+ * the unit of work the runs and whatever is left in memory are merged and sent
+ * on in batches of {@link #ROWS_PER_MESSAGE}.
+ */
 public class Sorter extends AbstractComponentRuntime {
 
     public static final String TYPE = "Sorter";
@@ -63,39 +59,43 @@ public class Sorter extends AbstractComponentRuntime {
 
     public final static String ATTRIBUTE_SORTER_ENABLED = "sort.enabled";
 
-    int rowsPerMessage;
+    public final static String MAX_ROWS_IN_MEMORY = "max.rows.in.memory";
 
-    IDatabasePlatform databasePlatform;
+    int rowsPerMessage;
 
-    RdbmsWriter databaseWriter;
-    
-    String sortAttributeId;
+    int maxRowsInMemory;
 
     ArrayList<ComponentAttribSetting> sortKeyAttributeIdList = new ArrayList<>();
     
+    String[] sortKeyAttributeIds;
+
+    Comparator<EntityData> comparator;
+
     List<EntityData> sortedRecords = new ArrayList<EntityData>();
+
+    List<EntityDataFileWriter> runs = new ArrayList<>();
     
     List<ModelEntity> entities;
 
-    String databaseName;
+    EntityDataLayout layout;
 
-    Throwable error;
-    
-    boolean entitySort = true;
-    
     @Override
     public void start() {
         TypedProperties properties = getTypedProperties();
         rowsPerMessage = properties.getInt(ROWS_PER_MESSAGE);
+        maxRowsInMemory = properties.getInt(MAX_ROWS_IN_MEMORY, 100000);
+        if (maxRowsInMemory <= 0) {
+            maxRowsInMemory = Integer.MAX_VALUE;
+        }
         String sortAttribute = properties.get(SORT_ATTRIBUTE);
         Model inputModel = this.getComponent().getInputModel();
         Component component = context.getFlowStep().getComponent();
     	entities = new ArrayList<>(inputModel.getModelEntities());
+        layout = inputModel.getEntityDataLayout();
 
         // check if a value was input on the main screen and if not verify there were sort attributes
         // selected in the component editor screen
         if (sortAttribute == null || sortAttribute.isEmpty()) {
-        	entitySort = false;
             for (ModelEntity entity : entities) {
                 for (ModelAttrib attribute : entity.getModelAttributes()) {
                 	ComponentAttribSetting matchColumnSetting = component.getSingleAttributeSetting(attribute.getId(),
@@ -114,7 +114,7 @@ public class Sorter extends AbstractComponentRuntime {
 	            throw new IllegalStateException(
 	                    "The sort attribute must be specified as 'entity.attribute'");
 	        }
-	        sortAttributeId = inputModel.getAttributeByName(joinAttributeElements[0],
+	        String sortAttributeId = inputModel.getAttributeByName(joinAttributeElements[0],
 	                joinAttributeElements[1]).getId();
 	        ComponentAttribSetting attributeComponent = new ComponentAttribSetting(sortAttributeId, Sorter.SORTER_ATTRIBUTE_ORDINAL, "1");
 	    	sortKeyAttributeIdList.add(attributeComponent);
@@ -131,7 +131,13 @@ public class Sorter extends AbstractComponentRuntime {
         	throw new IllegalStateException(
         			"Sort attribute must be a valid 'entity.attribute' in the input model. "
         			+ "Or at least one attribute must be specified to sort on in the component editor.");
-        }        
+        }
+
+        sortKeyAttributeIds = new String[sortKeyAttributeIdList.size()];
+        for (int i = 0; i < sortKeyAttributeIds.length; i++) {
+            sortKeyAttributeIds[i] = sortKeyAttributeIdList.get(i).getAttributeId();
+        }
+        comparator = new SortKeyComparator(sortKeyAttributeIds);
     }
     
     @Override
@@ -142,226 +148,175 @@ public class Sorter extends AbstractComponentRuntime {
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
     	if (inputMessage instanceof EntityDataMessage) {
-            if (!entitySort) {
-	            createDatabase();
-	            loadIntoDatabase(inputMessage);
-            }
-            
             ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
             for (int i = 0; i < payload.size(); i++) {
                 getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-                
-                if (entitySort) {
-                	EntityData record = payload.get(i);
-                	sortedRecords.add(record);
+                sortedRecords.add(payload.get(i));
+                if (sortedRecords.size() >= maxRowsInMemory) {
+                    spill();
                 }
             }
     	}
 
-    	if (unitOfWorkBoundaryReached && error == null) {
-    		if (entitySort) {
-    			ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
-    			
-    			sort();
-
-    			for (EntityData record : sortedRecords) {
-    				if (dataToSend.size() >= rowsPerMessage) {
-    					callback.sendEntityDataMessage(null, dataToSend);
-    					dataToSend = new ArrayList<EntityData>();
-    				}
-    				dataToSend.add(record);
-    			}
-
-    			sortedRecords.clear();
-
-    			if (dataToSend != null && dataToSend.size() > 0) {
-    				callback.sendEntityDataMessage(null, dataToSend);
-    			}
-    		} else {
-    			sortData(callback);
-    		}
+    	if (unitOfWorkBoundaryReached) {
+    	    try {
+    	        merge(callback);
+    	    } finally {
+    	        deleteRuns();
+    	    }
     	}
     }
 
-    private void sort() {
-    	Collections.sort(sortedRecords, new Comparator<EntityData>() {
-    		@Override
-    		public int compare(EntityData o1, EntityData o2) {
-    			Object obj1 = o1.get(sortAttributeId);
-    			Object obj2 = o2.get(sortAttributeId);
-    			if ((obj1 instanceof Comparable || obj1 == null)
-    					&& (obj2 instanceof Comparable || obj2 == null)) {
-    				return ObjectUtils.compare((Comparable<?>) obj1, (Comparable<?>) obj2);
-    			} else {
-    				String str1 = obj1 != null ? obj1.toString() : null;
-    				String str2 = obj2 != null ? obj2.toString() : null;
-    				return ObjectUtils.compare(str1, str2);
-    			}
-    		}
-    	});
+    @Override
+    public void stop() {
+        deleteRuns();
+        super.stop();
     }
 
-	private void sortData(ISendMessageCallback callback) {
-		Map<ModelEntity, String> sqls = new HashMap<>();
-		boolean addOrderBy = false;
-		for (ModelEntity entity : entities) {
-			StringBuilder sql = new StringBuilder("select ");
-			appendColumns(sql, entity);
-			sql.append(" from " + entity.getName() + "_1 ");
-			
-			// check to see if any one attribute of the entity is flagged to sort by before adding the 'order by' clause 
-			for (ComponentAttribSetting componentAttribute : sortKeyAttributeIdList) {
-				for (ModelAttrib attribute : entity.getModelAttributes()) {
-					if (componentAttribute.getAttributeId().equals(attribute.getId())) {
-						addOrderBy = true;
-						break;
-					}
-				}
-				if (addOrderBy) {
-					break;
-				}
-			}
-			
-			if (addOrderBy) {
-				sql.append(" order by ");
-				appendSortColumns(sql, entity);
-			}
-			
-			log(LogLevel.INFO, "Generated sort sql: %s", sql);
-			sqls.put(entity, sql.toString());
-			addOrderBy = false;
-		}
-		
-		RdbmsReader reader = new RdbmsReader();
-		reader.setDataSource(databasePlatform.getDataSource());
-		reader.setContext(context);
-		reader.setComponentDefinition(componentDefinition);
-		reader.setRowsPerMessage(rowsPerMessage);
-		reader.setThreadNumber(threadNumber);
-		
-		for (ModelEntity entity : entities) {
-			reader.setSql(sqls.get(entity));
-			reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback, false);
-			info("Read %d  records for %s", reader.getRowReadDuringHandle(), entity.getName());
-		}
-		
-		ResettableBasicDataSource ds = databasePlatform.getDataSource();
-		
-		ds.close();
-		
-		databasePlatform = null;
-		databaseName = null;
-		databaseWriter = null;
-	}
-
-	
-	protected void appendColumns(StringBuilder sql, ModelEntity entity) {
-		for (ModelAttrib attribute : entity.getModelAttributes()) {
-			sql.append(attribute.getName()).append(" /* ")
-				.append(entity.getName()).append(".").append(attribute.getName())
-				.append(" */").append(",");
-		}
-		sql.replace(sql.length() - 1, sql.length(), "");
-	}
-
-
-	protected void appendSortColumns(StringBuilder sql, ModelEntity entity) {
-		for (ComponentAttribSetting componentAttribute : sortKeyAttributeIdList) {
-			for (ModelAttrib attribute : entity.getModelAttributes()) {
-				if (componentAttribute.getAttributeId().equals(attribute.getId())) {
-					sql.append(attribute.getName()).append(",");
-					break;
-				}
-			}
-		}
-		sql.replace(sql.length() - 1, sql.length(), "");
-	}
-
-	protected void loadIntoDatabase(Message message) {
-		String tableSuffix = "_1";
-		
-		if (databaseWriter == null) {
-			databaseWriter = new RdbmsWriter();
-			databaseWriter.setDatabasePlatform(databasePlatform);
-			databaseWriter.setComponentDefinition(componentDefinition);
-			databaseWriter.setReplaceRows(true);
-			databaseWriter.setContext(context);
-			databaseWriter.setThreadNumber(threadNumber);
-		}
-		
-		if (tableSuffix != null) {
-			databaseWriter.setTableSuffix(tableSuffix);
-			try {
-				databaseWriter.handle(message, null, false);
-			} finally {
-				error = databaseWriter.getError();
-			}
-		}
-	}
-
-	protected void createDatabase() {
-		if (databasePlatform == null) {
-			ResettableBasicDataSource ds = new ResettableBasicDataSource();
-			ds.setDriverClassName(Driver.class.getName());
-			ds.setMaxActive(1);
-			ds.setInitialSize(1);
-			ds.setMinIdle(1);
-			ds.setMaxIdle(1);
-			databaseName = UUID.randomUUID().toString();
-			ds.setUrl("jdbc:h2:mem:" + databaseName);
-			databasePlatform = JdbcDatabasePlatformFactory.createNewPlatformInstance(ds,
-					new SqlTemplateSettings(), true, false);
-			
-			Model inputModel = context.getFlowStep().getComponent().getInputModel();
-			List<ModelEntity> entities = inputModel.getModelEntities();
-			for (ModelEntity entity : entities) {
-				Table table = new Table();
-				table.setName(entity.getName() + "_1");
-				List<ModelAttrib> attributes = entity.getModelAttributes();
-				for (ModelAttrib attribute : attributes) {
-					DataType dataType = attribute.getDataType();
-					Column column = new Column(attribute.getName());
-					if (dataType.isNumeric()) {
-						column.setTypeCode(Types.DECIMAL);
-					} else if (dataType.isBoolean()) {
-						column.setTypeCode(Types.BOOLEAN);
-					} else if (dataType.isTimestamp()) {
-						column.setTypeCode(Types.TIMESTAMP);
-					} else if (dataType.isBinary()) {
-						column.setTypeCode(Types.BLOB);
-					} else {
-						column.setTypeCode(Types.LONGVARCHAR);
-					}
-					
-					column.setPrimaryKey(attribute.isPk());
-					table.addColumn(column);
-				}
-				
-				alterCaseToMatchLogicalCase(table);
-				databasePlatform.createTables(false, false, table);
-			}
-			
-			log(LogLevel.INFO, "Creating databasePlatform with the following url: %s", ds.getUrl());
-		}
-	}
-
-
-	private void alterCaseToMatchLogicalCase(Table table) {
-		table.setName(table.getName().toUpperCase());
-		
-		Column[] columns = table.getColumns();
-		for (Column column : columns) {
-			column.setName(column.getName().toUpperCase());
-		}
-		
-		IIndex[] indexes = table.getIndices();
-		for (IIndex index : indexes) {
-			index.setName(index.getName().toUpperCase());
-			
-			IndexColumn[] indexColumns = index.getColumns();
-			for (IndexColumn indexColumn : indexColumns) {
-				indexColumn.setName(indexColumn.getName().toUpperCase());
-			}
-		}
-	}
+    protected void spill() {
+        Collections.sort(sortedRecords, comparator);
+        EntityDataFileWriter run = EntityDataFileWriter.createTempFile("metl-sort-");
+        runs.add(run);
+        try {
+            for (EntityData record : sortedRecords) {
+                run.write(record);
+            }
+        } finally {
+            run.close();
+        }
+        debug("Spilled a sorted run of %d rows to %s", run.getRowCount(), run.getFile().getAbsolutePath());
+        sortedRecords = new ArrayList<EntityData>();
+    }
+
+    protected void merge(ISendMessageCallback callback) {
+        Collections.sort(sortedRecords, comparator);
+        ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
+        if (runs.size() == 0) {
+            for (EntityData record : sortedRecords) {
+                dataToSend = send(record, dataToSend, callback);
+            }
+        } else {
+            info("Merging %d sorted runs and %d rows from memory", runs.size(), sortedRecords.size());
+            List<EntityDataFileReader> readers = new ArrayList<>(runs.size());
+            try {
+                PriorityQueue<RunCursor> queue = new PriorityQueue<>(runs.size() + 1);
+                for (int i = 0; i < runs.size(); i++) {
+                    EntityDataFileReader reader = new EntityDataFileReader(runs.get(i).getFile(), layout);
+                    readers.add(reader);
+                    RunCursor cursor = new RunCursor(i, reader, null);
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+                RunCursor inMemory = new RunCursor(runs.size(), null, sortedRecords.iterator());
+                if (inMemory.next()) {
+                    queue.add(inMemory);
+                }
+
+                while (!queue.isEmpty()) {
+                    RunCursor cursor = queue.poll();
+                    dataToSend = send(cursor.current, dataToSend, callback);
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+            } finally {
+                for (EntityDataFileReader reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+
+        sortedRecords = new ArrayList<EntityData>();
+
+        if (dataToSend.size() > 0) {
+            callback.sendEntityDataMessage(null, dataToSend);
+        }
+    }
+
+    protected ArrayList<EntityData> send(EntityData record, ArrayList<EntityData> dataToSend, ISendMessageCallback callback) {
+        if (dataToSend.size() >= rowsPerMessage) {
+            callback.sendEntityDataMessage(null, dataToSend);
+            dataToSend = new ArrayList<EntityData>();
+        }
+        dataToSend.add(record);
+        return dataToSend;
+    }
+
+    protected void deleteRuns() {
+        for (EntityDataFileWriter run : runs) {
+            run.close();
+            if (!run.getFile().delete() && run.getFile().exists()) {
+                log.warn("Failed to delete sorted run {}", run.getFile().getAbsolutePath());
+            }
+        }
+        runs.clear();
+    }
+
+    static class SortKeyComparator implements Comparator<EntityData> {
+
+        String[] attributeIds;
+
+        SortKeyComparator(String[] attributeIds) {
+            this.attributeIds = attributeIds;
+        }
+
+        @Override
+        public int compare(EntityData o1, EntityData o2) {
+            for (String attributeId : attributeIds) {
+                int result = compareValues(o1.get(attributeId), o2.get(attributeId));
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        protected int compareValues(Object obj1, Object obj2) {
+            if ((obj1 instanceof Comparable || obj1 == null) && (obj2 instanceof Comparable || obj2 == null)) {
+                return ObjectUtils.compare((Comparable) obj1, (Comparable) obj2);
+            } else {
+                String str1 = obj1 != null ? obj1.toString() : null;
+                String str2 = obj2 != null ? obj2.toString() : null;
+                return ObjectUtils.compare(str1, str2);
+            }
+        }
+    }
+
+    /**
+     * The head of a sorted run during the merge. Ties are broken on the run
+     * index so that rows with equal keys keep the order they arrived in.
+     */
+    class RunCursor implements Comparable<RunCursor> {
+
+        int index;
+
+        EntityDataFileReader reader;
+
+        Iterator<EntityData> iterator;
+
+        EntityData current;
+
+        RunCursor(int index, EntityDataFileReader reader, Iterator<EntityData> iterator) {
+            this.index = index;
+            this.reader = reader;
+            this.iterator = iterator;
+        }
+
+        boolean next() {
+            if (reader != null) {
+                current = reader.read();
+            } else {
+                current = iterator.hasNext() ? iterator.next() : null;
+            }
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(RunCursor o) {
+            int result = comparator.compare(current, o.current);
+            return result != 0 ? result : Integer.compare(index, o.index);
+        }
+    }
 }
@@ -0,0 +1,159 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class SorterTest {
+
+    @Test
+    public void testSortInMemory() {
+        List<EntityData> rows = createRows(50);
+        assertEquals(stableSort(rows), sort(rows, 0, 7));
+    }
+
+    @Test
+    public void testSpilledRunsAreMergedStably() {
+        List<EntityData> rows = createRows(200);
+        List<String> expected = stableSort(rows);
+        assertEquals(expected, sort(rows, 3, 7));
+        assertEquals(expected, sort(rows, 16, 1000));
+        assertEquals(expected, sort(rows, 200, 7));
+    }
+
+    @Test
+    public void testEachUnitOfWorkIsSortedOnItsOwn() {
+        Sorter sorter = createSorter(3, 5);
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<>();
+        List<EntityData> rows = createRows(20);
+        sorter.handle(createMessage(rows.subList(0, 10)), callback, true);
+        sorter.handle(createMessage(rows.subList(10, 20)), callback, true);
+        sorter.stop();
+
+        List<String> sent = toStrings(callback);
+        assertEquals(stableSort(rows.subList(0, 10)), sent.subList(0, 10));
+        assertEquals(stableSort(rows.subList(10, 20)), sent.subList(10, 20));
+        assertTrue(sorter.runs.isEmpty());
+    }
+
+    protected List<String> sort(List<EntityData> rows, int maxRowsInMemory, int rowsPerMessage) {
+        Sorter sorter = createSorter(maxRowsInMemory, rowsPerMessage);
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<>();
+        for (int i = 0; i < rows.size(); i += 10) {
+            sorter.handle(createMessage(rows.subList(i, Math.min(rows.size(), i + 10))), callback, false);
+        }
+        if (maxRowsInMemory > 0 && maxRowsInMemory < rows.size()) {
+            assertTrue(sorter.runs.size() > 0);
+        }
+        sorter.handle(new ControlMessage("source"), callback, true);
+        assertTrue(sorter.runs.isEmpty());
+        sorter.stop();
+
+        for (ArrayList<EntityData> payload : callback.getPayloadList()) {
+            assertTrue(payload.size() <= rowsPerMessage);
+        }
+        return toStrings(callback);
+    }
+
+    protected List<String> toStrings(SendMessageCallback<ArrayList<EntityData>> callback) {
+        List<String> sent = new ArrayList<>();
+        for (ArrayList<EntityData> payload : callback.getPayloadList()) {
+            for (EntityData row : payload) {
+                sent.add(row.get("k") + ":" + row.get("seq"));
+            }
+        }
+        return sent;
+    }
+
+    /*
+     * Few distinct keys so that most rows tie and the sequence shows whether
+     * ties kept their arrival order
+     */
+    protected List<EntityData> createRows(int count) {
+        Random random = new Random(count);
+        List<EntityData> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new EntityData(new NameValue("k", random.nextInt(5)), new NameValue("seq", i)));
+        }
+        return rows;
+    }
+
+    protected List<String> stableSort(List<EntityData> rows) {
+        List<EntityData> sorted = new ArrayList<>(rows);
+        Collections.sort(sorted, (o1, o2) -> ((Integer) o1.get("k")).compareTo((Integer) o2.get("k")));
+        List<String> strings = new ArrayList<>();
+        for (EntityData row : sorted) {
+            strings.add(row.get("k") + ":" + row.get("seq"));
+        }
+        return strings;
+    }
+
+    protected Sorter createSorter(int maxRowsInMemory, int rowsPerMessage) {
+        ModelEntity entity = new ModelEntity("p", "P");
+        entity.addModelAttribute(new ModelAttrib("k", "p", "K"));
+        entity.addModelAttribute(new ModelAttrib("seq", "p", "SEQ"));
+        Model model = new Model("m");
+        model.getModelEntities().add(entity);
+
+        Component component = TestUtils.createComponent(Sorter.TYPE, false, null, model, null, null, new ArrayList<>(),
+                new Setting(Sorter.SORT_ATTRIBUTE, "P.K"),
+                new Setting(Sorter.MAX_ROWS_IN_MEMORY, Integer.toString(maxRowsInMemory)),
+                new Setting(Sorter.ROWS_PER_MESSAGE, Integer.toString(rowsPerMessage)));
+        Flow flow = TestUtils.createFlow("flow", null);
+        FlowStep step = new FlowStep();
+        step.setId("sorter");
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+
+        Sorter sorter = new Sorter();
+        sorter.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null, null));
+        sorter.start();
+        return sorter;
+    }
+
+    protected EntityDataMessage createMessage(List<EntityData> rows) {
+        EntityDataMessage message = new EntityDataMessage("source");
+        message.setPayload(new ArrayList<>(rows));
+        return message;
+    }
+
+}
@@ -24,14 +24,11 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.script.ScriptException;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.codehaus.groovy.jsr223.GroovyScriptEngineImpl;
 import org.jumpmind.metl.core.model.ComponentAttribSetting;
 import org.jumpmind.metl.core.model.DataType;
@@ -55,11 +52,12 @@ public class Transformer extends AbstractComponentRuntime {
     Map<String, String> transformsByAttributeId = new HashMap<String, String>();
     
     GroovyScriptEngineImpl scriptEngine;
-    
-    Map<String, ModelAttributeScriptHelper> helpers = new HashMap<>();
-       
-    long totalTime = 0;
-    long totalCalls = 0;
+
+    RowPlan rowPlan;
+
+    int[] entityStamps;
+
+    int rowStamp;
     
     @Override
     public void start() {
@@ -72,7 +70,13 @@ public class Transformer extends AbstractComponentRuntime {
                     transformsByAttributeId.put(setting.getAttributeId(), setting.getValue());
                 }
             }
-        }     
+        }
+
+        Model inputModel = getInputModel();
+        if (inputModel != null) {
+            rowPlan = new RowPlan(inputModel);
+            entityStamps = new int[rowPlan.entitySlots.length];
+        }
     }
     
     @Override
@@ -80,31 +84,8 @@ public class Transformer extends AbstractComponentRuntime {
         return false;
     }   
     
-    protected Set<String> getAllAttributesForIncludedEntities(EntityData data) {
-        Set<String> allAttributesForIncludedEntities = new HashSet<>();
-        Model inputModel = getComponent().getInputModel();
-        Set<String> attributeIds = data.keySet();
-        for (String attributeId : attributeIds) {
-            ModelAttrib attribute = inputModel.getAttributeById(attributeId);
-            if (attribute != null) {
-                ModelEntity entity = inputModel.getEntityById(attribute.getEntityId());
-                List<ModelAttrib> attributes = entity.getModelAttributes();
-                for (ModelAttrib modelAttribute : attributes) {
-                    allAttributesForIncludedEntities.add(modelAttribute.getId());
-                }
-            } else {
-                log.warn("Found an attribute that wasn't in the configured model.  The attribute id was: {}", attributeId);
-            }
-        }
-        return allAttributesForIncludedEntities;
-    }
-
     @Override
 	public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
-        if (scriptEngine == null) {
-            scriptEngine = new GroovyScriptEngineImpl();
-        }
-        totalTime = 0;
 		if (inputMessage instanceof EntityDataMessage) {
 			Model inputModel = getComponent().getInputModel();
 			List<EntityData> inDatas = ((EntityDataMessage)inputMessage).getPayload();
@@ -116,27 +97,45 @@ public class Transformer extends AbstractComponentRuntime {
 				}
 			}
 			callback.sendEntityDataMessage(null, outDatas);
-			
-			if (totalCalls > 0) {
-			   log.debug("It took " + (totalTime/totalCalls) + "ms on average to call eval");
-			}
 						
 		} else if (inputMessage instanceof ControlMessage && properties.is(PASS_ALONG_CONTROL_MESSAGES, false)) {
 		        callback.sendControlMessage();
 		}
 	}
     
-    @SuppressWarnings("unchecked")
+    /*
+     * Every attribute of the row is processed, then the transforms of the
+     * attributes that are missing from the row but belong to an entity that
+     * has at least one attribute in the row
+     */
     protected EntityData processEntity(EntityData inData, Message inputMessage, Model inputModel,
     		boolean isRoot) {
 
-    		EntityData outData = new EntityData();
+    		EntityData outData = new EntityData(inputModel.getEntityDataLayout());
 		outData.setChangeType(inData.getChangeType());
-		Set<String> attributeIds = new HashSet<String>();
-		attributeIds.addAll(inData.keySet());					
-		attributeIds.addAll(CollectionUtils.intersection(getAllAttributesForIncludedEntities(inData), transformsByAttributeId.keySet()));		
-		for (String attributeId : attributeIds) {
-			processAttribute(attributeId, inData, outData, inputMessage, inputModel);
+		for (String attributeId : inData.keySet()) {
+			AttributeSlot slot = rowPlan.getSlot(attributeId);
+			if (slot != null) {
+				processAttribute(slot, inData.get(attributeId), inData, outData, inputMessage, inputModel);
+			} else {
+				log.warn("Found an attribute that wasn't in the configured model.  The attribute id was: {}", attributeId);
+				outData.put(attributeId, inData.get(attributeId));
+			}
+		}
+
+		if (rowPlan.hasTransforms) {
+			int stamp = ++rowStamp;
+			for (String attributeId : inData.keySet()) {
+				AttributeSlot slot = rowPlan.getSlot(attributeId);
+				if (slot != null && entityStamps[slot.entityIndex] != stamp) {
+					entityStamps[slot.entityIndex] = stamp;
+					for (AttributeSlot transformSlot : rowPlan.entitySlots[slot.entityIndex]) {
+						if (!inData.containsKey(transformSlot.attributeId)) {
+							processAttribute(transformSlot, null, inData, outData, inputMessage, inputModel);
+						}
+					}
+				}
+			}
 		}
 		getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
 
@@ -154,55 +153,128 @@ public class Transformer extends AbstractComponentRuntime {
     }    
 
     @SuppressWarnings("unchecked")
-    protected void processAttribute(String attributeId, EntityData inData, EntityData outData, Message inputMessage, Model inputModel) {
-        String transform = transformsByAttributeId.get(attributeId);
-        Object value = inData.get(attributeId);
-        ModelAttrib attribute = inputModel.getAttributeById(attributeId);
-
-        if (value != null && attribute.getDataType().equals(DataType.ARRAY)) {
-            outData.put(attributeId, processEntityArray((ArrayList<EntityData>) value, inputMessage, inputModel, false));
-        } else if (value != null && attribute.getDataType().equals(DataType.REF)) {
-            outData.put(attributeId, processEntity((EntityData) value, inputMessage, inputModel, false));
+    protected void processAttribute(AttributeSlot slot, Object value, EntityData inData, EntityData outData, Message inputMessage,
+            Model inputModel) {
+        if (value != null && slot.array) {
+            outData.put(slot.attributeId, processEntityArray((ArrayList<EntityData>) value, inputMessage, inputModel, false));
+        } else if (value != null && slot.ref) {
+            outData.put(slot.attributeId, processEntity((EntityData) value, inputMessage, inputModel, false));
         } else {
-            if (isNotBlank(transform)) {
-                ModelEntity entity = inputModel.getEntityById(attribute.getEntityId());
-                ModelAttributeScriptHelper helper = helpers.get(attribute.getId());
-                if (helper == null) {
-                    long ts = System.currentTimeMillis();
-                    scriptEngine.put("entity", entity);
-                    scriptEngine.put("attribute", attribute);
-                    scriptEngine.put("context", context);
-                    scriptEngine.put("model", getInputModel());
-                    try {
-                        String importString = "import org.jumpmind.metl.core.runtime.component.ModelAttributeScriptHelper;\n";
-                        String code = String.format(
-                                "return new ModelAttributeScriptHelper(context, attribute, entity, model) { public Object eval() { %s \n } }",
-                                transform);
-                        helper = (ModelAttributeScriptHelper) scriptEngine.eval(importString + code);
-                        helpers.put(attribute.getId(), helper);
-                    } catch (ScriptException e) {
-                        throw new RuntimeException("Unable to evaluate groovy script.  Attribute ==> " + attribute.getName() + ".  Value ==> "
-                                + (value == null ? "null" : value.toString()) + "." + e.getCause().getMessage(), e);
-                    }
-                    log.debug("It took " + (System.currentTimeMillis() - ts) + "ms to create class");
-                }
+            ModelAttributeScriptHelper helper = slot.helper;
+            if (helper != null) {
                 helper.setData(inData);
                 helper.setValue(value);
                 helper.setMessage(inputMessage);
-                long ts = System.currentTimeMillis();
                 try {
                     value = helper.eval();
                 } catch (Exception e) {
-                    throw new RuntimeException("Groovy script evaluation resulted in an exception.  Attribute ==> " + attribute.getName()
+                    throw new RuntimeException("Groovy script evaluation resulted in an exception.  Attribute ==> " + slot.attribute.getName()
                             + ".  Value ==> " + (value == null ? "null" : value.toString()) + ".  Payload ==>\n"
                             + getComponent().toRow(inData, false, false), e);
                 }
-                totalTime += (System.currentTimeMillis() - ts);
-                totalCalls++;
             }
             if (value != ModelAttributeScriptHelper.REMOVE_ATTRIBUTE) {
-                outData.put(attributeId, value);
+                outData.put(slot.attributeId, value);
             }
         }
     }
+
+    protected ModelAttributeScriptHelper createHelper(ModelAttrib attribute, ModelEntity entity, String transform) {
+        if (scriptEngine == null) {
+            scriptEngine = new GroovyScriptEngineImpl();
+        }
+        long ts = System.currentTimeMillis();
+        scriptEngine.put("entity", entity);
+        scriptEngine.put("attribute", attribute);
+        scriptEngine.put("context", context);
+        scriptEngine.put("model", getInputModel());
+        try {
+            String importString = "import org.jumpmind.metl.core.runtime.component.ModelAttributeScriptHelper;\n";
+            String code = String.format(
+                    "return new ModelAttributeScriptHelper(context, attribute, entity, model) { public Object eval() { %s \n } }",
+                    transform);
+            ModelAttributeScriptHelper helper = (ModelAttributeScriptHelper) scriptEngine.eval(importString + code);
+            log.debug("It took " + (System.currentTimeMillis() - ts) + "ms to create class");
+            return helper;
+        } catch (ScriptException e) {
+            throw new RuntimeException("Unable to evaluate groovy script.  Attribute ==> " + attribute.getName() + "."
+                    + e.getCause().getMessage(), e);
+        }
+    }
+
+    /**
+     * The attributes of the input model resolved once at start. Every
+     * attribute has a slot that knows its entity, whether it nests entity
+     * data and its compiled transform, if any. The transformed slots are also
+     * grouped by entity so the transforms of attributes that are not in a row
+     * can be applied without looking at the rest of the model.
+     */
+    class RowPlan {
+
+        final Map<String, AttributeSlot> slots = new HashMap<>();
+
+        final AttributeSlot[][] entitySlots;
+
+        final boolean hasTransforms;
+
+        final Model model;
+
+        RowPlan(Model model) {
+            this.model = model;
+            List<ModelEntity> entities = model.getModelEntities();
+            entitySlots = new AttributeSlot[entities.size()][];
+            boolean transforms = false;
+            for (int i = 0; i < entities.size(); i++) {
+                ModelEntity entity = entities.get(i);
+                List<AttributeSlot> transformed = new ArrayList<>();
+                for (ModelAttrib attribute : entity.getModelAttributes()) {
+                    String transform = transformsByAttributeId.get(attribute.getId());
+                    ModelAttributeScriptHelper helper = isNotBlank(transform) ? createHelper(attribute, entity, transform) : null;
+                    AttributeSlot slot = new AttributeSlot(attribute, i, helper);
+                    slots.putIfAbsent(attribute.getId(), slot);
+                    if (helper != null) {
+                        transformed.add(slot);
+                        transforms = true;
+                    }
+                }
+                entitySlots[i] = transformed.toArray(new AttributeSlot[transformed.size()]);
+            }
+            this.hasTransforms = transforms;
+        }
+
+        AttributeSlot getSlot(String attributeId) {
+            AttributeSlot slot = slots.get(attributeId);
+            if (slot == null) {
+                ModelAttrib attribute = model.getAttributeById(attributeId);
+                if (attribute != null) {
+                    slot = slots.get(attribute.getId());
+                }
+            }
+            return slot;
+        }
+    }
+
+    static class AttributeSlot {
+
+        final ModelAttrib attribute;
+
+        final String attributeId;
+
+        final int entityIndex;
+
+        final boolean array;
+
+        final boolean ref;
+
+        final ModelAttributeScriptHelper helper;
+
+        AttributeSlot(ModelAttrib attribute, int entityIndex, ModelAttributeScriptHelper helper) {
+            this.attribute = attribute;
+            this.attributeId = attribute.getId();
+            this.entityIndex = entityIndex;
+            this.array = DataType.ARRAY.equals(attribute.getDataType());
+            this.ref = DataType.REF.equals(attribute.getDataType());
+            this.helper = helper;
+        }
+    }
 }
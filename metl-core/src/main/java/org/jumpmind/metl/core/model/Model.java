@@ -30,6 +30,7 @@ import java.util.UUID;
 
 import org.jumpmind.db.sql.Row;
 import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataLayout;
 import org.jumpmind.metl.core.util.LogUtils;
 
 public class Model extends AbstractNamedObject implements IAuditable {
@@ -60,6 +61,8 @@ public class Model extends AbstractNamedObject implements IAuditable {
 
     boolean deleted = false;
 
+    transient volatile Index index;
+
     public Model() {
         this.modelEntities = new ArrayList<ModelEntity>();
         this.modelRelations = new ArrayList<ModelRelation>();
@@ -117,64 +120,113 @@ public class Model extends AbstractNamedObject implements IAuditable {
 	}
 
 	public ModelEntity getEntityById(String entityId) {
-        for (ModelEntity entity : modelEntities) {
-            if (entity.getId().equalsIgnoreCase(entityId)) {
-                return entity;
-            }
+        if (entityId == null) {
+            return null;
         }
-        return null;
+        Index current = getIndex();
+        ModelEntity entity = current.entitiesById.get(entityId.toLowerCase());
+        if (entity != null && entityId.equalsIgnoreCase(entity.getId())) {
+            return entity;
+        }
+        if (entity == null && current.isUnchanged(this)) {
+            return null;
+        }
+        index = null;
+        entity = getIndex().entitiesById.get(entityId.toLowerCase());
+        return entity != null && entityId.equalsIgnoreCase(entity.getId()) ? entity : null;
     }
 
     public ModelEntity getEntityByName(String entityName) {
-        for (ModelEntity entity : modelEntities) {
-            if (entity.getName().equalsIgnoreCase(entityName)) {
-                return entity;
+        if (entityName == null) {
+            return null;
+        }
+        ModelEntity entity = getIndex().entitiesByName.get(entityName.toLowerCase());
+        if (entity != null && entityName.equalsIgnoreCase(entity.getName())) {
+            return entity;
+        }
+        for (ModelEntity candidate : modelEntities) {
+            if (candidate.getName().equalsIgnoreCase(entityName)) {
+                index = null;
+                return candidate;
             }
         }
         return null;
     }
 
     public ModelAttrib getAttributeById(String attributeId) {
-        for (ModelEntity entity : modelEntities) {
-            for (ModelAttrib modelAttribute : entity.getModelAttributes()) {
-                if (modelAttribute.getId().equalsIgnoreCase(attributeId)) {
-                    return modelAttribute;
-                }
-            }
+        if (attributeId == null) {
+            return null;
         }
-        return null;
+        Index current = getIndex();
+        IndexedAttribute indexed = current.attributesById.get(attributeId.toLowerCase());
+        if (indexed != null && indexed.isCurrent() && attributeId.equalsIgnoreCase(indexed.attribute.getId())) {
+            return indexed.attribute;
+        }
+        if (indexed == null && current.isUnchanged(this)) {
+            return null;
+        }
+        index = null;
+        indexed = getIndex().attributesById.get(attributeId.toLowerCase());
+        return indexed != null && attributeId.equalsIgnoreCase(indexed.attribute.getId()) ? indexed.attribute : null;
     }
 
     public ModelAttrib getAttributeByName(String entityName, String attributeName) {
         ModelEntity entity = getEntityByName(entityName);
         if (entity != null) {
-            for (ModelAttrib modelAttribute : entity.getModelAttributes()) {
-                if (modelAttribute.getName().equalsIgnoreCase(attributeName)) {
-                    return modelAttribute;
-                }
-            }
+            return entity.getModelAttributeByName(attributeName);
         }
         return null;
     }
 
     public List<ModelAttrib> getAttributesByName(String attributeName) {
         List<ModelAttrib> attributes = new ArrayList<ModelAttrib>();
+        if (attributeName == null) {
+            return attributes;
+        }
         for (ModelEntity entity : modelEntities) {
-            for (ModelAttrib modelAttribute : entity.getModelAttributes()) {
-                if (modelAttribute.getName().equalsIgnoreCase(attributeName)) {
-                    attributes.add(modelAttribute);
-                }
+            ModelAttrib modelAttribute = entity.getModelAttributeByName(attributeName);
+            if (modelAttribute != null) {
+                attributes.add(modelAttribute);
             }
         }
         return attributes;
     }
 
+    Index getIndex() {
+        Index current = index;
+        if (current == null || !current.isCurrent(this)) {
+            current = new Index(this);
+            index = current;
+        }
+        return current;
+    }
+
     public List<ModelEntity> getModelEntities() {
         return modelEntities;
     }
 
     public void setModelEntities(List<ModelEntity> modelEntities) {
         this.modelEntities = modelEntities;
+        this.index = null;
+    }
+
+    /**
+     * The layout is kept with the index and is rebuilt along with it when
+     * entities or attributes were changed in place since it was built, so
+     * ordinals always match the current attributes.
+     */
+    public EntityDataLayout getEntityDataLayout() {
+        Index current = getIndex();
+        if (!current.isUnchanged(this)) {
+            current = new Index(this);
+            index = current;
+        }
+        EntityDataLayout layout = current.entityDataLayout;
+        if (layout == null) {
+            layout = new EntityDataLayout(this);
+            current.entityDataLayout = layout;
+        }
+        return layout;
     }
     
     public List<ModelRelation> getModelRelations() {
@@ -276,6 +328,121 @@ public class Model extends AbstractNamedObject implements IAuditable {
 		return new TreeSet<ModelEntity>(this.getModelEntities());
     }
     
+    /**
+     * Entities and attributes by lower case id and name, built on first use.
+     * The index is rebuilt when the entity list is replaced or changes size,
+     * and an indexed attribute is only trusted while the attribute list of its
+     * entity is unchanged. Ids do not change, so a lookup by id that misses
+     * only rebuilds the index when entities or attributes were changed in
+     * place since it was built. Names can change, so a lookup by name that
+     * misses falls back to a linear search.
+     */
+    static class Index {
+
+        final List<ModelEntity> entities;
+
+        final int size;
+
+        final Map<String, ModelEntity> entitiesById;
+
+        final Map<String, ModelEntity> entitiesByName;
+
+        final Map<String, IndexedAttribute> attributesById;
+
+        final ModelEntity[] entityStamps;
+
+        final List<?>[] attributeListStamps;
+
+        final int[] attributeCountStamps;
+
+        final int[] modificationCountStamps;
+
+        volatile EntityDataLayout entityDataLayout;
+
+        Index(Model model) {
+            this.entities = model.modelEntities;
+            this.size = entities.size();
+            this.entityStamps = new ModelEntity[size];
+            this.attributeListStamps = new List<?>[size];
+            this.attributeCountStamps = new int[size];
+            this.modificationCountStamps = new int[size];
+            int entityIndex = 0;
+            this.entitiesById = new HashMap<>(size * 2);
+            this.entitiesByName = new HashMap<>(size * 2);
+            this.attributesById = new HashMap<>();
+            for (ModelEntity entity : entities) {
+                if (entity.getId() != null) {
+                    entitiesById.putIfAbsent(entity.getId().toLowerCase(), entity);
+                }
+                if (entity.getName() != null) {
+                    entitiesByName.putIfAbsent(entity.getName().toLowerCase(), entity);
+                }
+                List<ModelAttrib> attributes = entity.getModelAttributes();
+                int attributeCount = attributes.size();
+                int modificationCount = entity.modificationCount;
+                entityStamps[entityIndex] = entity;
+                attributeListStamps[entityIndex] = attributes;
+                attributeCountStamps[entityIndex] = attributeCount;
+                modificationCountStamps[entityIndex++] = modificationCount;
+                for (ModelAttrib attribute : attributes) {
+                    if (attribute.getId() != null) {
+                        attributesById.putIfAbsent(attribute.getId().toLowerCase(),
+                                new IndexedAttribute(attribute, entity, attributes, attributeCount, modificationCount));
+                    }
+                }
+            }
+        }
+
+        boolean isCurrent(Model model) {
+            List<ModelEntity> current = model.modelEntities;
+            return current == entities && current.size() == size;
+        }
+
+        /*
+         * True if no entity was replaced and no attribute list was changed
+         * since the index was built
+         */
+        @SuppressWarnings("unchecked")
+        boolean isUnchanged(Model model) {
+            if (!isCurrent(model)) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                ModelEntity entity = entities.get(i);
+                if (entity != entityStamps[i] || !entity.isUnchanged((List<ModelAttrib>) attributeListStamps[i],
+                        attributeCountStamps[i], modificationCountStamps[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class IndexedAttribute {
+
+        final ModelAttrib attribute;
+
+        final ModelEntity entity;
+
+        final List<ModelAttrib> attributes;
+
+        final int size;
+
+        final int modificationCount;
+
+        IndexedAttribute(ModelAttrib attribute, ModelEntity entity, List<ModelAttrib> attributes, int size, int modificationCount) {
+            this.attribute = attribute;
+            this.entity = entity;
+            this.attributes = attributes;
+            this.size = size;
+            this.modificationCount = modificationCount;
+        }
+
+        boolean isCurrent() {
+            return entity.isUnchanged(attributes, size, modificationCount);
+        }
+    }
+
     public ModelAttrib getModelAttribByTypeEntityId(String typeEntityId) {
         for (ModelEntity entity:this.getModelEntities()) {
             for (ModelAttrib attrib : entity.getModelAttributes()) {
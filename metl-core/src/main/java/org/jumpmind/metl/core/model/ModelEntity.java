@@ -21,7 +21,9 @@
 package org.jumpmind.metl.core.model;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ModelEntity extends AbstractNamedObject implements IAuditable, Comparable<ModelEntity> {
 
@@ -35,6 +37,10 @@ public class ModelEntity extends AbstractNamedObject implements IAuditable, Comp
     
     String description;
 
+    transient volatile AttributeIndex attributeIndex;
+
+    transient volatile int modificationCount;
+
     public ModelEntity() {
         modelAttributes = new ArrayList<ModelAttrib>();
     }
@@ -51,26 +57,59 @@ public class ModelEntity extends AbstractNamedObject implements IAuditable, Comp
 
     public void setModelAttributes(List<ModelAttrib> modelAttributes) {
         this.modelAttributes = modelAttributes;
+        this.modificationCount++;
     }
 
     public void addModelAttribute(ModelAttrib modelAttribute) {
         modelAttribute.setAttributeOrder(modelAttributes.size());
         this.modelAttributes.add(modelAttribute);
+        this.modificationCount++;
     }
 
     public void removeModelAttribute(ModelAttrib modelAttribute) {
         this.modelAttributes.remove(modelAttribute);
+        this.modificationCount++;
     }
 
     public ModelAttrib getModelAttributeByName(String name) {
-        for (ModelAttrib modelAttribute : modelAttributes) {
-            if (modelAttribute.getName().equalsIgnoreCase(name)) {
-                return modelAttribute;
+        if (name == null) {
+            return null;
+        }
+        ModelAttrib modelAttribute = getAttributeIndex().byName.get(name.toLowerCase());
+        if (modelAttribute != null && name.equalsIgnoreCase(modelAttribute.getName())) {
+            return modelAttribute;
+        }
+        /*
+         * a miss or a renamed attribute might mean the attribute list was
+         * changed in place since the index was built
+         */
+        for (ModelAttrib candidate : modelAttributes) {
+            if (candidate.getName().equalsIgnoreCase(name)) {
+                attributeIndex = null;
+                return candidate;
             }
         }
         return null;
     }
 
+    AttributeIndex getAttributeIndex() {
+        AttributeIndex index = attributeIndex;
+        if (index == null || !index.isCurrent(this)) {
+            index = new AttributeIndex(this);
+            attributeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return true if the attribute list is the same list, with the same
+     *         size, that it was when the stamp values were taken
+     */
+    boolean isUnchanged(List<ModelAttrib> list, int size, int count) {
+        List<ModelAttrib> current = modelAttributes;
+        return current == list && current.size() == size && modificationCount == count;
+    }
+
     public ModelAttrib getModelAttributeByTypeEntityId(String typeEntityId) {
         for (ModelAttrib modelAttribute : modelAttributes) {
             if (modelAttribute.getTypeEntityId() != null && modelAttribute.getTypeEntityId().equalsIgnoreCase(typeEntityId)) {
@@ -112,6 +151,37 @@ public class ModelEntity extends AbstractNamedObject implements IAuditable, Comp
         return pksOnly;
     }
 
+    /**
+     * Attributes by lower case name. The first attribute wins when names
+     * collide, like the linear search it replaces.
+     */
+    static class AttributeIndex {
+
+        final List<ModelAttrib> attributes;
+
+        final int size;
+
+        final int modificationCount;
+
+        final Map<String, ModelAttrib> byName;
+
+        AttributeIndex(ModelEntity entity) {
+            this.modificationCount = entity.modificationCount;
+            this.attributes = entity.modelAttributes;
+            this.size = attributes.size();
+            this.byName = new HashMap<>(size * 2);
+            for (ModelAttrib attribute : attributes) {
+                if (attribute.getName() != null) {
+                    byName.putIfAbsent(attribute.getName().toLowerCase(), attribute);
+                }
+            }
+        }
+
+        boolean isCurrent(ModelEntity entity) {
+            return entity.isUnchanged(attributes, size, modificationCount);
+        }
+    }
+
 	@Override
 	public int compareTo(ModelEntity o) {
 		for (ModelAttrib attrib:this.getModelAttributes()) {
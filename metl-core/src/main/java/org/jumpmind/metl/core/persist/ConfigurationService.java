@@ -23,12 +23,15 @@ package org.jumpmind.metl.core.persist;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
 
@@ -40,6 +43,7 @@ import org.jumpmind.db.sql.Row;
 import org.jumpmind.db.sql.mapper.StringMapper;
 import org.jumpmind.metl.core.model.AbstractObject;
 import org.jumpmind.metl.core.model.AbstractObjectCreateTimeDescSorter;
+import org.jumpmind.metl.core.model.AbstractObjectLastUpdateTimeDescSorter;
 import org.jumpmind.metl.core.model.AbstractObjectNameBasedSorter;
 import org.jumpmind.metl.core.model.Agent;
 import org.jumpmind.metl.core.model.AuditEvent;
@@ -84,6 +88,8 @@ import org.jumpmind.util.FormatUtils;
 public class ConfigurationService extends AbstractService
         implements IConfigurationService {
     
+    static final int MAX_IN_LIST_SIZE = 500;
+
     protected IOperationsService operationsService;
     
     protected IDatabasePlatform databasePlatform;
@@ -485,39 +491,68 @@ public class ConfigurationService extends AbstractService
     }
 
     protected Model refreshModelRelations(Model model) {
-        model.setModelEntities(new ArrayList<>());
-        Map<String, Object> params = new HashMap<String, Object>();
-        params.put("modelId", model.getId());
-        List<ModelEntity> entities = persistenceManager.find(ModelEntity.class, params, null, null,
-                tableName(ModelEntity.class));
-        List<ModelAttrib> attributes = findAllAttributesForModel(model.getId());
-        List<ModelRelation> relations = persistenceManager.find(ModelRelation.class, params, null, null,
-                tableName(ModelRelation.class));
-        List<ModelRelationMapping> relationMappings = findAllRelationMappingsForModel(model.getId());
+        refreshModelRelations(Collections.singletonList(model));
+        return model;
+    }
+
+    /**
+     * Loads the entities, attributes, relations and relation mappings of all
+     * the given models with one query per table (per chunk of ids) and
+     * assembles them in memory.
+     */
+    protected void refreshModelRelations(Collection<Model> models) {
+        Map<String, Model> byModelId = new HashMap<String, Model>();
+        for (Model model : models) {
+            model.setModelEntities(new ArrayList<>());
+            byModelId.put(model.getId(), model);
+        }
+        if (byModelId.isEmpty()) {
+            return;
+        }
+
+        List<ModelEntity> entities = findIn(ModelEntity.class, "model_id", byModelId.keySet());
         Map<String, ModelEntity> byModelEntityId = new HashMap<String, ModelEntity>();
-        Map<String, ModelRelation> byModelRelationId = new HashMap<String, ModelRelation>();
         for (ModelEntity entity : entities) {
             byModelEntityId.put(entity.getId(), entity);
-            model.getModelEntities().add(entity);
+            byModelId.get(entity.getModelId()).getModelEntities().add(entity);
         }
+
+        List<ModelAttrib> attributes = findIn(ModelAttrib.class, "entity_id", byModelEntityId.keySet());
+        Map<String, ModelAttrib> byModelAttributeId = new HashMap<String, ModelAttrib>();
         for (ModelAttrib modelAttribute : attributes) {
+            byModelAttributeId.put(modelAttribute.getId(), modelAttribute);
             byModelEntityId.get(modelAttribute.getEntityId()).getModelAttributes()
                     .add(modelAttribute);
         }
         for (ModelEntity entity : entities) {
             Collections.sort(entity.getModelAttributes());
         }
+
+        List<ModelRelation> relations = findIn(ModelRelation.class, "model_id", byModelId.keySet());
+        Map<String, ModelRelation> byModelRelationId = new HashMap<String, ModelRelation>();
         for (ModelRelation relation : relations) {
             byModelRelationId.put(relation.getId(), relation);
-        		model.getModelRelations().add(relation);
+            byModelId.get(relation.getModelId()).getModelRelations().add(relation);
         }
+
+        List<ModelRelationMapping> relationMappings = findIn(ModelRelationMapping.class,
+                "model_relation_id", byModelRelationId.keySet());
         for (ModelRelationMapping relationMapping : relationMappings) {
-        		refresh(relationMapping);
-        		byModelRelationId.get(relationMapping.getModelRelationId()).getModelRelationMappings().add(relationMapping);
-        		
+            ModelAttrib source = byModelAttributeId.get(relationMapping.getSourceAttribId());
+            ModelAttrib target = byModelAttributeId.get(relationMapping.getTargetAttribId());
+            if (source != null && target != null) {
+                relationMapping.setSourceAttribute(source);
+                relationMapping.setTargetAttribute(target);
+            } else {
+                refresh(relationMapping);
+            }
+            byModelRelationId.get(relationMapping.getModelRelationId()).getModelRelationMappings()
+                    .add(relationMapping);
+        }
+
+        for (Model model : models) {
+            AbstractObjectNameBasedSorter.sort(model.getModelEntities());
         }
-        AbstractObjectNameBasedSorter.sort(entities);
-        return model;
     }
     
     protected void refresh(ModelRelationMapping relationMapping) {
@@ -529,7 +564,46 @@ public class ConfigurationService extends AbstractService
         relationMapping.setTargetAttribute(this.find(ModelAttrib.class, params).get(0));
     		
     }
-    
+
+    /**
+     * Loads the models and resources with the given ids, including their
+     * folders, entities and settings, with a fixed number of queries.
+     */
+    protected void findModelsAndResources(Collection<String> modelIds, Collection<String> resourceIds,
+            Map<String, Model> models, Map<String, Resource> resources) {
+        Set<String> folderIds = new HashSet<String>();
+        for (Model model : findIn(Model.class, "id", modelIds)) {
+            models.put(model.getId(), model);
+            folderIds.add(model.getFolderId());
+        }
+        refreshModelRelations(models.values());
+
+        for (Resource resource : findIn(Resource.class, "id", resourceIds)) {
+            resource.setSettings(new ArrayList<>());
+            resources.put(resource.getId(), resource);
+            folderIds.add(resource.getFolderId());
+        }
+        List<ResourceSetting> resourceSettings = findIn(ResourceSetting.class, "resource_id",
+                resources.keySet());
+        decrypt(resourceSettings);
+        AbstractObjectLastUpdateTimeDescSorter.sort(resourceSettings);
+        for (ResourceSetting setting : resourceSettings) {
+            resources.get(setting.getResourceId()).getSettings().add(setting);
+        }
+
+        folderIds.remove(null);
+        Map<String, Folder> folders = new HashMap<String, Folder>();
+        for (Folder folder : findIn(Folder.class, "id", folderIds)) {
+            folders.put(folder.getId(), folder);
+        }
+        for (Model model : models.values()) {
+            model.setFolder(folders.get(model.getFolderId()));
+        }
+        for (Resource resource : resources.values()) {
+            resource.setFolder(folders.get(resource.getFolderId()));
+        }
+    }
+
     protected List<Resource> buildResource(List<Resource> datas) {
         return buildResource(datas.toArray(new Resource[datas.size()]));
     }
@@ -639,6 +713,12 @@ public class ConfigurationService extends AbstractService
         refreshFlowRelations(flow);
     }
 
+    /*
+     * The whole flow is read with a fixed number of set based queries
+     * regardless of the number of steps: steps, links, components and their
+     * settings are selected by flow id and the models and resources they
+     * reference are selected by id.
+     */
     private void refreshFlowRelations(Flow flow) {
         flow.setFlowSteps(new ArrayList<>());
         flow.setFlowStepLinks(new ArrayList<>());
@@ -658,51 +738,95 @@ public class ConfigurationService extends AbstractService
             }
         });
 
+        String componentIdsSql = String.format("select component_id from %s where flow_id=?",
+                tableName(FlowStep.class));
+        Map<String, Component> components = new HashMap<String, Component>();
+        for (Component component : findWhere(Component.class,
+                "id in (" + componentIdsSql + ")", flow.getId())) {
+            component.setSettings(new ArrayList<>());
+            component.setEntitySettings(new ArrayList<>());
+            component.setAttributeSettings(new ArrayList<>());
+            components.put(component.getId(), component);
+        }
+
+        String componentSettingsWhere = "component_id in (" + componentIdsSql + ")";
+        List<ComponentSetting> settings = findWhere(ComponentSetting.class, componentSettingsWhere,
+                flow.getId());
+        decrypt(settings);
+        AbstractObjectLastUpdateTimeDescSorter.sort(settings);
+        for (ComponentSetting setting : settings) {
+            components.get(setting.getComponentId()).getSettings().add(setting);
+        }
+
+        List<ComponentEntitySetting> entitySettings = findWhere(ComponentEntitySetting.class,
+                componentSettingsWhere, flow.getId());
+        decrypt(entitySettings);
+        AbstractObjectLastUpdateTimeDescSorter.sort(entitySettings);
+        for (ComponentEntitySetting setting : entitySettings) {
+            components.get(setting.getComponentId()).getEntitySettings().add(setting);
+        }
+
+        List<ComponentAttribSetting> attributeSettings = findWhere(ComponentAttribSetting.class,
+                componentSettingsWhere, flow.getId());
+        decrypt(attributeSettings);
+        AbstractObjectLastUpdateTimeDescSorter.sort(attributeSettings);
+        for (ComponentAttribSetting setting : attributeSettings) {
+            components.get(setting.getComponentId()).getAttributeSettings().add(setting);
+        }
+
+        Set<String> modelIds = new HashSet<String>();
+        Set<String> resourceIds = new HashSet<String>();
+        for (Component component : components.values()) {
+            if (isNotBlank(component.getInputModelId())) {
+                modelIds.add(component.getInputModelId());
+            }
+            if (isNotBlank(component.getOutputModelId())) {
+                modelIds.add(component.getOutputModelId());
+            }
+            if (isNotBlank(component.getResourceId())) {
+                resourceIds.add(component.getResourceId());
+            }
+        }
+
         Map<String, Model> models = new HashMap<>();
         Map<String, Resource> resources = new HashMap<>();
+        findModelsAndResources(modelIds, resourceIds, models, resources);
+
+        List<FlowStepLink> links = findWhere(FlowStepLink.class, String.format(
+                "source_step_id in (select id from %s where flow_id=?)", tableName(FlowStep.class)),
+                flow.getId());
+        Map<String, List<FlowStepLink>> linksBySourceStepId = new HashMap<String, List<FlowStepLink>>();
+        for (FlowStepLink link : links) {
+            List<FlowStepLink> stepLinks = linksBySourceStepId.get(link.getSourceStepId());
+            if (stepLinks == null) {
+                stepLinks = new ArrayList<>();
+                linksBySourceStepId.put(link.getSourceStepId(), stepLinks);
+            }
+            stepLinks.add(link);
+        }
 
         for (FlowStep step : steps) {
-            Component component = findComponent(step.getComponentId(), false);
+            Component component = components.get(step.getComponentId());
+            if (component == null) {
+                component = new Component();
+                component.setId(step.getComponentId());
+            }
             step.setComponent(component);
             flow.getFlowSteps().add(step);
 
-            String modelId = component.getOutputModelId();
-            if (isNotBlank(modelId)) {
-                Model model = models.get(modelId);
-                if (model == null) {
-                    model = findModel(modelId);
-                    models.put(modelId, model);
-                }
-                component.setOutputModel(model);
+            if (isNotBlank(component.getOutputModelId())) {
+                component.setOutputModel(models.get(component.getOutputModelId()));
             }
-
-            modelId = component.getInputModelId();
-            if (isNotBlank(modelId)) {
-                Model model = models.get(modelId);
-                if (model == null) {
-                    model = findModel(modelId);
-                    models.put(modelId, model);
-                }
-                component.setInputModel(model);
+            if (isNotBlank(component.getInputModelId())) {
+                component.setInputModel(models.get(component.getInputModelId()));
             }
-
-            String resourceId = component.getResourceId();
-            if (isNotBlank(resourceId)) {
-                Resource resource = resources.get(resourceId);
-                if (resource == null) {
-                    resource = findResource(resourceId);
-                    resources.put(resourceId, resource);
-                }
-                component.setResource(resource);
+            if (isNotBlank(component.getResourceId())) {
+                component.setResource(resources.get(component.getResourceId()));
             }
 
-            Map<String, Object> linkParams = new HashMap<String, Object>();
-            linkParams.put("sourceStepId", step.getId());
-
-            List<FlowStepLink> dataLinks = persistenceManager.find(FlowStepLink.class, linkParams,
-                    null, null, tableName(FlowStepLink.class));
-            for (FlowStepLink dataLink : dataLinks) {
-                flow.getFlowStepLinks().add(dataLink);
+            List<FlowStepLink> stepLinks = linksBySourceStepId.get(step.getId());
+            if (stepLinks != null) {
+                flow.getFlowStepLinks().addAll(stepLinks);
             }
         }
     }
@@ -1218,28 +1342,36 @@ public class ConfigurationService extends AbstractService
         return template.query(String.format("select v.id from %1$s_project_version v join %1$s_project p on p.id=v.project_id where v.deleted=0 and p.deleted=0", tablePrefix), new StringMapper());
     }
 
-    protected List<ModelAttrib> findAllAttributesForModel(String modelId) {
+    protected <T> List<T> findWhere(final Class<T> clazz, String where, Object... args) {
         ISqlTemplate template = databasePlatform.getSqlTemplate();
-        String sql = String.format(
-                "select * from %1$s_model_attrib where entity_id in (select id from %1$s_model_entity where model_id=?)", tablePrefix);
-        return template.query(sql, new ISqlRowMapper<ModelAttrib>() {
-            @Override
-            public ModelAttrib mapRow(Row row) {
-                return persistenceManager.map(row, ModelAttrib.class, null, null, tableName(ModelAttrib.class));
-            }
-        }, new Object[] { modelId });
-    }
-
-    protected List<ModelRelationMapping> findAllRelationMappingsForModel(String modelId) {
-        ISqlTemplate template = databasePlatform.getSqlTemplate();
-        String sql = String.format(
-                "select * from %1$s_model_relation_mapping where model_relation_id in (select id from %1$s_model_relation where model_id=?)", tablePrefix);
-        return template.query(sql, new ISqlRowMapper<ModelRelationMapping>() {
-            @Override
-            public ModelRelationMapping mapRow(Row row) {
-                return persistenceManager.map(row, ModelRelationMapping.class, null, null, tableName(ModelRelationMapping.class));
+        final String tableName = tableName(clazz);
+        return template.query(String.format("select * from %s where %s", tableName, where),
+                new ISqlRowMapper<T>() {
+                    @Override
+                    public T mapRow(Row row) {
+                        return persistenceManager.map(row, clazz, null, null, tableName);
+                    }
+                }, args);
+    }
+
+    /**
+     * Selects the rows whose column matches one of the values. The values are
+     * bound in chunks to stay under the bind variable limits of the supported
+     * databases.
+     */
+    protected <T> List<T> findIn(Class<T> clazz, String columnName, Collection<String> values) {
+        List<T> list = new ArrayList<T>();
+        List<String> all = new ArrayList<String>(values);
+        for (int i = 0; i < all.size(); i += MAX_IN_LIST_SIZE) {
+            List<String> chunk = all.subList(i, Math.min(i + MAX_IN_LIST_SIZE, all.size()));
+            StringBuilder where = new StringBuilder(columnName).append(" in (");
+            for (int j = 0; j < chunk.size(); j++) {
+                where.append(j == 0 ? "?" : ",?");
             }
-        }, new Object[] { modelId });
+            where.append(")");
+            list.addAll(findWhere(clazz, where.toString(), chunk.toArray()));
+        }
+        return list;
     }
 
     protected String getComponentIds(Flow flow) {
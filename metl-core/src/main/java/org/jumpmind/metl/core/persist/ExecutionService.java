@@ -23,47 +23,100 @@ package org.jumpmind.metl.core.persist;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Function;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
-import org.jumpmind.db.model.Table;
 import org.jumpmind.db.platform.IDatabasePlatform;
 import org.jumpmind.db.sql.ISqlRowMapper;
 import org.jumpmind.db.sql.ISqlTemplate;
+import org.jumpmind.db.sql.ISqlTransaction;
 import org.jumpmind.db.sql.Row;
 import org.jumpmind.db.sql.mapper.StringMapper;
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.model.AbstractObject;
 import org.jumpmind.metl.core.model.Execution;
 import org.jumpmind.metl.core.model.ExecutionStatus;
 import org.jumpmind.metl.core.model.ExecutionStep;
 import org.jumpmind.metl.core.model.ExecutionStepLog;
 import org.jumpmind.metl.core.security.ISecurityService;
-import org.jumpmind.metl.core.util.LogUtils;
 import org.jumpmind.persist.IPersistenceManager;
 import org.jumpmind.symmetric.csv.CsvReader;
+import org.jumpmind.symmetric.csv.CsvWriter;
 import org.jumpmind.util.FormatUtils;
 import org.springframework.core.env.Environment;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 public class ExecutionService extends AbstractService implements IExecutionService {
 
+    static final int[] EXECUTION_STEP_UPDATE_TYPES = new int[] { Types.VARCHAR, Types.INTEGER, Types.INTEGER, Types.INTEGER,
+            Types.INTEGER, Types.INTEGER, Types.TIMESTAMP, Types.TIMESTAMP, Types.BIGINT, Types.BIGINT, Types.CHAR };
+
+    static final int[] EXECUTION_STEP_INSERT_TYPES = new int[] { Types.CHAR, Types.CHAR, Types.INTEGER, Types.CHAR, Types.VARCHAR,
+            Types.INTEGER, Types.VARCHAR, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.TIMESTAMP,
+            Types.TIMESTAMP, Types.BIGINT, Types.BIGINT };
+
+    static final int MAX_SAVE_ATTEMPTS = 3;
+
+    static final int MAX_TRACKED_EXECUTIONS = 1000;
+
     ThreadPoolTaskScheduler purgeScheduler;
 
+    ThreadPoolTaskScheduler saveScheduler;
+
+    ThreadPoolTaskExecutor purgeFileDeleter;
+
     Environment environment;
     
     protected IDatabasePlatform databasePlatform;
 
+    /*
+     * Objects waiting to be written, keyed by id so that repeated saves of the
+     * same row between flushes are written once
+     */
+    Map<String, AbstractObject> queuedSaves = new LinkedHashMap<>();
+
+    /*
+     * Ids of the execution steps that have been inserted, by execution id.
+     * Executions that never record an end time are evicted least recently
+     * used first. Steps of an evicted execution are simply saved through the
+     * slower update or insert path again.
+     */
+    @SuppressWarnings("serial")
+    Map<String, Set<String>> insertedExecutionStepIds = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+            return size() > MAX_TRACKED_EXECUTIONS;
+        }
+    };
+
+    /* Number of times in a row that saving an object has failed, by id */
+    Map<String, Integer> failedSaveAttempts = new HashMap<>();
+
+    int maxQueuedSaves;
+
+    volatile boolean executionTablesExist;
+
+    final Object flushLock = new Object();
+
     public ExecutionService(ISecurityService securityService, IPersistenceManager persistenceManager, IDatabasePlatform databasePlatform, String tablePrefix, Environment env) {
         super(securityService, persistenceManager, tablePrefix);
         this.databasePlatform = databasePlatform;
@@ -77,6 +130,197 @@ public class ExecutionService extends AbstractService implements IExecutionServi
         Date firstScheduledRunTime = DateUtils.addMilliseconds(new Date(), periodInMs);
         log.info("Scheduling the purge job to run every {}ms.  The first scheduled run time is at {}", periodInMs, firstScheduledRunTime);
         this.purgeScheduler.scheduleWithFixedDelay(new PurgeExecutionHandler(), firstScheduledRunTime, periodInMs);
+
+        /*
+         * Log files of purged steps are deleted by a few threads. When they
+         * fall behind the purge job deletes files itself.
+         */
+        this.purgeFileDeleter = new ThreadPoolTaskExecutor();
+        this.purgeFileDeleter.setThreadNamePrefix("execution-purge-files-");
+        this.purgeFileDeleter.setCorePoolSize(Integer.parseInt(environment.getProperty("execution.purge.file.delete.threads", "4")));
+        this.purgeFileDeleter.setQueueCapacity(10000);
+        this.purgeFileDeleter.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        this.purgeFileDeleter.setDaemon(true);
+        this.purgeFileDeleter.initialize();
+
+        this.maxQueuedSaves = Integer.parseInt(environment.getProperty("execution.save.max.queued", "10000"));
+        this.saveScheduler = new ThreadPoolTaskScheduler();
+        this.saveScheduler.setThreadNamePrefix("execution-save-job-");
+        this.saveScheduler.setPoolSize(1);
+        this.saveScheduler.initialize();
+        this.saveScheduler.setDaemon(true);
+        this.saveScheduler.scheduleWithFixedDelay(() -> flushQueuedSaves(),
+                Long.parseLong(environment.getProperty("execution.save.period.time.ms", "1000")));
+    }
+
+    @Override
+    public void queueSave(AbstractObject object) {
+        boolean full = false;
+        synchronized (queuedSaves) {
+            queuedSaves.put(object.getId(), object);
+            full = queuedSaves.size() >= maxQueuedSaves;
+        }
+        if (full) {
+            flushQueuedSaves();
+        }
+    }
+
+    /*
+     * Execution steps are inserted and updated in batches. When a batch fails
+     * its rows are saved one at a time so that one bad row does not lose the
+     * others. Objects that still fail are queued again, up to
+     * MAX_SAVE_ATTEMPTS times, unless a newer copy was queued in the meantime.
+     */
+    @Override
+    public void flushQueuedSaves() {
+        synchronized (flushLock) {
+            List<AbstractObject> toSave = null;
+            synchronized (queuedSaves) {
+                toSave = new ArrayList<>(queuedSaves.values());
+                queuedSaves.clear();
+            }
+
+            List<AbstractObject> others = new ArrayList<>();
+            List<ExecutionStep> stepInserts = new ArrayList<>();
+            List<ExecutionStep> stepUpdates = new ArrayList<>();
+            for (AbstractObject object : toSave) {
+                if (object instanceof ExecutionStep) {
+                    ExecutionStep step = (ExecutionStep) object;
+                    if (isInserted(step)) {
+                        stepUpdates.add(step);
+                    } else {
+                        stepInserts.add(step);
+                    }
+                } else {
+                    others.add(object);
+                }
+            }
+
+            List<AbstractObject> failed = new ArrayList<>();
+            List<Execution> finishedExecutions = new ArrayList<>();
+            for (AbstractObject object : others) {
+                if (trySave(object, failed) && object instanceof Execution && ((Execution) object).getEndTime() != null) {
+                    finishedExecutions.add((Execution) object);
+                }
+            }
+
+            saveExecutionSteps(stepInserts, true, failed);
+            saveExecutionSteps(stepUpdates, false, failed);
+
+            for (Execution execution : finishedExecutions) {
+                insertedExecutionStepIds.remove(execution.getId());
+            }
+
+            if (failed.size() > 0) {
+                requeue(failed);
+            }
+        }
+    }
+
+    protected boolean isInserted(ExecutionStep step) {
+        Set<String> stepIds = insertedExecutionStepIds.get(step.getExecutionId());
+        return stepIds != null && stepIds.contains(step.getId());
+    }
+
+    protected void markInserted(ExecutionStep step) {
+        Set<String> stepIds = insertedExecutionStepIds.get(step.getExecutionId());
+        if (stepIds == null) {
+            stepIds = new HashSet<>();
+            insertedExecutionStepIds.put(step.getExecutionId(), stepIds);
+        }
+        stepIds.add(step.getId());
+    }
+
+    protected void saveExecutionSteps(List<ExecutionStep> steps, boolean insert, List<AbstractObject> failed) {
+        if (steps.size() > 0) {
+            try {
+                if (insert) {
+                    insertExecutionSteps(steps);
+                } else {
+                    updateExecutionSteps(steps);
+                }
+                for (ExecutionStep step : steps) {
+                    failedSaveAttempts.remove(step.getId());
+                    markInserted(step);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to " + (insert ? "insert " : "update ") + steps.size()
+                        + " execution steps in a batch.  Saving them one at a time", e);
+                for (ExecutionStep step : steps) {
+                    if (trySave(step, failed)) {
+                        markInserted(step);
+                    }
+                }
+            }
+        }
+    }
+
+    protected boolean trySave(AbstractObject object, List<AbstractObject> failed) {
+        try {
+            save(object);
+            failedSaveAttempts.remove(object.getId());
+            return true;
+        } catch (RuntimeException e) {
+            log.error("Failed to save " + object.getClass().getSimpleName() + " " + object.getId(), e);
+            failed.add(object);
+            return false;
+        }
+    }
+
+    protected void requeue(List<AbstractObject> failed) {
+        synchronized (queuedSaves) {
+            for (AbstractObject object : failed) {
+                int attempts = failedSaveAttempts.merge(object.getId(), 1, Integer::sum);
+                if (attempts < MAX_SAVE_ATTEMPTS) {
+                    queuedSaves.putIfAbsent(object.getId(), object);
+                } else {
+                    failedSaveAttempts.remove(object.getId());
+                    log.error("Giving up on saving {} {} after {} attempts", object.getClass().getSimpleName(), object.getId(),
+                            attempts);
+                }
+            }
+        }
+    }
+
+    protected void insertExecutionSteps(List<ExecutionStep> steps) {
+        executeBatch(String.format("insert into %1$s_execution_step (id, execution_id, thread_number, flow_step_id, "
+                + "component_name, approximate_order, status, messages_received, messages_produced, payload_received, "
+                + "payload_produced, entities_processed, start_time, end_time, handle_duration, queue_duration) "
+                + "values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)", tablePrefix), steps,
+                step -> new Object[] { step.getId(), step.getExecutionId(), step.getThreadNumber(), step.getFlowStepId(),
+                        step.getComponentName(), step.getApproximateOrder(), step.getStatus(), step.getMessagesReceived(),
+                        step.getMessagesProduced(), step.getPayloadReceived(), step.getPayloadProduced(),
+                        step.getEntitiesProcessed(), step.getStartTime(), step.getEndTime(), step.getHandleDuration(),
+                        step.getQueueDuration() },
+                EXECUTION_STEP_INSERT_TYPES);
+    }
+
+    protected void updateExecutionSteps(List<ExecutionStep> steps) {
+        executeBatch(String.format("update %1$s_execution_step set status=?, messages_received=?, messages_produced=?, "
+                + "payload_received=?, payload_produced=?, entities_processed=?, start_time=?, end_time=?, "
+                + "handle_duration=?, queue_duration=? where id=?", tablePrefix), steps,
+                step -> new Object[] { step.getStatus(), step.getMessagesReceived(), step.getMessagesProduced(),
+                        step.getPayloadReceived(), step.getPayloadProduced(), step.getEntitiesProcessed(), step.getStartTime(),
+                        step.getEndTime(), step.getHandleDuration(), step.getQueueDuration(), step.getId() },
+                EXECUTION_STEP_UPDATE_TYPES);
+    }
+
+    protected void executeBatch(String sql, List<ExecutionStep> steps, Function<ExecutionStep, Object[]> args, int[] types) {
+        ISqlTransaction transaction = databasePlatform.getSqlTemplate().startSqlTransaction();
+        transaction.setInBatchMode(true);
+        try {
+            transaction.prepare(sql);
+            for (ExecutionStep step : steps) {
+                transaction.addRow(step, args.apply(step), types);
+            }
+            transaction.flush();
+            transaction.commit();
+        } catch (RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            transaction.close();
+        }
     }
 
     public Execution findExecution(String id) {
@@ -108,16 +352,92 @@ public class ExecutionService extends AbstractService implements IExecutionServi
         return findExecutionStepLogs(executionStepIds, limit, null);
     }
     
+    /*
+     * Logs are stored in a binary format, so a CSV copy is exported to a
+     * temporary file that is deleted when the returned stream is closed. Logs
+     * written in the old format are already CSV and are streamed as they are.
+     */
+    @Override
+    public InputStream openExecutionStepLog(String executionStepId) {
+        try {
+            if (!ExecutionStepLogFiles.getDataFile(executionStepId).exists()) {
+                return new FileInputStream(ExecutionStepLogFiles.getLegacyFile(executionStepId));
+            }
+
+            final File file = File.createTempFile(executionStepId, ExecutionStepLogFiles.LEGACY_SUFFIX);
+            InputStream in = null;
+            CsvWriter writer = null;
+            try {
+                writer = new CsvWriter(file.getAbsolutePath(), '"', Charset.forName("UTF-8"));
+                long count = countExecutionStepLogs(executionStepId);
+                for (long start = 0; start < count; start += 10000) {
+                    for (ExecutionStepLog stepLog : findExecutionStepLogs(executionStepId, start, 10000)) {
+                        writer.writeRecord(new String[] { stepLog.getLevel(),
+                                FormatUtils.TIMESTAMP_FORMATTER.format(stepLog.getCreateTime()), stepLog.getLogText() });
+                    }
+                }
+                writer.flush();
+                writer.close();
+                writer = null;
+                in = new FileInputStream(file) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            FileUtils.deleteQuietly(file);
+                        }
+                    }
+                };
+                return in;
+            } finally {
+                if (writer != null) {
+                    writer.close();
+                }
+                if (in == null) {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
     @Override
-    public File getExecutionStepLog(String executionStepId) {
-        return new File(LogUtils.getLogDir(), executionStepId + ".log");
+    public long countExecutionStepLogs(String executionStepId) {
+        if (ExecutionStepLogFiles.getDataFile(executionStepId).exists()) {
+            try (ExecutionStepLogReader reader = new ExecutionStepLogReader(executionStepId)) {
+                return reader.getRecordCount();
+            } catch (IOException e) {
+                log.error("", e);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public List<ExecutionStepLog> findExecutionStepLogs(String executionStepId, long start, int limit) {
+        if (ExecutionStepLogFiles.getDataFile(executionStepId).exists()) {
+            try (ExecutionStepLogReader reader = new ExecutionStepLogReader(executionStepId)) {
+                return reader.read(start, limit, null);
+            } catch (IOException e) {
+                log.error("", e);
+            }
+        }
+        return new ArrayList<>();
     }
     
     protected List<ExecutionStepLog> findExecutionStepLogs(Set<String> executionStepIds, int limit, Set<String> statuses) {
         List<ExecutionStepLog> executionStepLogs = new ArrayList<>();
         for (String executionStepId : executionStepIds) {
-            File file = getExecutionStepLog(executionStepId);
-            if (file.exists()) {
+            File file = ExecutionStepLogFiles.getLegacyFile(executionStepId);
+            if (ExecutionStepLogFiles.getDataFile(executionStepId).exists()) {
+                try (ExecutionStepLogReader reader = new ExecutionStepLogReader(executionStepId)) {
+                    executionStepLogs.addAll(reader.read(0, limit, statuses));
+                } catch (IOException e) {
+                    log.error("", e);
+                }
+            } else if (file.exists()) {
                 CsvReader reader = null;
                 try {
                     reader = new CsvReader(file.getAbsolutePath(),'"',Charset.forName("UTF-8"));
@@ -263,56 +583,74 @@ public class ExecutionService extends AbstractService implements IExecutionServi
         List<String> executionStepIds = template.query(
                 String.format("select id from %1$s_execution_step where execution_id = ?", tablePrefix),
                 new StringMapper(),  executionId );
-        for (String executionStepId : executionStepIds) {
-            File file = new File(LogUtils.getLogDir(), executionStepId + ".log");
-            FileUtils.deleteQuietly(file);
-        }
         template.update(String.format(
                 "delete from %1$s_execution_step where execution_id in (select id from %1$s_execution where id=?)", tablePrefix),
                 executionId);
         template.update(String.format("delete from %1$s_execution where id=?", tablePrefix), executionId);
+        for (String executionStepId : executionStepIds) {
+            ExecutionStepLogFiles.delete(executionStepId);
+        }
         log.info("Deleted execution with an id of {}", executionId);
     }
 
     protected void purgeExecutions(String status, int retentionTimeInMs) {
         if (databasePlatform != null) {
-            Table table = databasePlatform.readTableFromDatabase(null, null, tableName(Execution.class));
-            if (table != null) {
+            if (!executionTablesExist) {
+                executionTablesExist = databasePlatform.readTableFromDatabase(null, null, tableName(Execution.class)) != null;
+            }
+            if (executionTablesExist) {
                 Date purgeBefore = DateUtils.addMilliseconds(new Date(), -retentionTimeInMs);
                 log.debug("Purging executions with the status of {} before {}", status, purgeBefore);
                 ISqlTemplate template = databasePlatform.getSqlTemplate();
+                int chunkSize = Integer.parseInt(environment.getProperty("execution.purge.chunk.size", "500"));
 
-                long ts = System.currentTimeMillis();
-                
-                List<String> executionIds = template.query(
-                        String.format("select id from %1$s_execution where last_update_time <= ? and status=?", tablePrefix),
-                        new StringMapper(), new Object[] { purgeBefore, status });
-                
-                if (0 > executionIds.size()) {
-                   log.info("It took {}ms to find {} executions to purge with a status of {}", System.currentTimeMillis()-ts, executionIds.size(), status);
-                }
+                long startTime = System.currentTimeMillis();
+                long ts = startTime;
                 int countSteps = 0;
                 int countExecutions = 0;
-                for (String id : executionIds) {
-                    List<String> executionStepIds = template.query(
-                            String.format("select id from %1$s_execution_step where execution_id = ?", tablePrefix),
-                            new StringMapper(), new Object[] { id });                    
-                    for (String executionStepId : executionStepIds) {
-                        File file = new File(LogUtils.getLogDir(), executionStepId + ".log");
-                        FileUtils.deleteQuietly(file);
-                        countSteps += template.update(String.format("delete from %1$s_execution_step where id=?", tablePrefix), executionStepId);
+                List<String> executionIds = null;
+                do {
+                    /*
+                     * Each chunk is deleted with a few set based statements
+                     * so that locks are only held for a bounded number of rows
+                     */
+                    executionIds = template.query(
+                            String.format("select id from %1$s_execution where last_update_time <= ? and status=?", tablePrefix),
+                            chunkSize, new StringMapper(), new Object[] { purgeBefore, status });
+                    if (executionIds.size() > 0) {
+                        String inClause = StringUtils.repeat("?", ",", executionIds.size());
+                        Object[] ids = executionIds.toArray();
+                        List<String> executionStepIds = template.query(
+                                String.format("select id from %1$s_execution_step where execution_id in (%2$s)", tablePrefix, inClause),
+                                new StringMapper(), ids);
+                        countSteps += template.update(
+                                String.format("delete from %1$s_execution_step where execution_id in (%2$s)", tablePrefix, inClause), ids);
+                        int deleted = template.update(String.format("delete from %1$s_execution where id in (%2$s)", tablePrefix, inClause),
+                                ids);
+                        countExecutions += deleted;
+                        /* the rows are gone, so the logs are no longer reachable */
+                        for (String executionStepId : executionStepIds) {
+                            purgeFileDeleter.execute(() -> ExecutionStepLogFiles.delete(executionStepId));
+                        }
+                        if (deleted == 0) {
+                            break;
+                        }
                     }
-                    countExecutions += template.update(String.format("delete from %1$s_execution where id=?", tablePrefix), id);
-                    
+
                     if (System.currentTimeMillis() - ts > 60000) {
-                        log.info("Purged {} execution records and {} execution step records with the status of {} so far ...", new Object[] { countExecutions, countSteps, status });
+                        log.info("Purged {} execution records and {} execution step records with the status of {} so far at {} rows/s ...",
+                                new Object[] { countExecutions, countSteps, status,
+                                        rowsPerSecond(countExecutions + countSteps, System.currentTimeMillis() - startTime) });
                         ts = System.currentTimeMillis();
                     }
-                }
-                
-                log.debug("Purged {} execution records and {} execution step records with the status of {}", new Object[] { countExecutions, countSteps, status });
+                } while (executionIds.size() >= chunkSize);
+
+                long elapsed = System.currentTimeMillis() - startTime;
+                log.debug("Purged {} execution records and {} execution step records with the status of {} in {}ms",
+                        new Object[] { countExecutions, countSteps, status, elapsed });
                 if (!log.isDebugEnabled() && (countSteps > 0 || countExecutions > 0)) {
-                    log.info("Finished purging {} execution records and {} execution step records with the status of {}", new Object[] { countExecutions, countSteps, status });
+                    log.info("Finished purging {} execution records and {} execution step records with the status of {} in {}ms at {} rows/s",
+                            new Object[] { countExecutions, countSteps, status, elapsed, rowsPerSecond(countExecutions + countSteps, elapsed) });
                 }
             } else {
                 log.info("Could not run execution purge for status '{}' because table had not been created yet", status);
@@ -320,4 +658,8 @@ public class ExecutionService extends AbstractService implements IExecutionServi
         }
     }
 
+    private long rowsPerSecond(long rows, long elapsedMs) {
+        return elapsedMs > 0 ? rows * 1000 / elapsedMs : rows;
+    }
+
 }
@@ -0,0 +1,64 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.persist;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.jumpmind.metl.core.util.LogUtils;
+
+/**
+ * Names the files that hold the log of an execution step. A log is an append
+ * only data file of binary records and an index file holding the offset of
+ * each record as a long, so record n can be found by reading the long at
+ * n * 8 in the index. Logs written before this format existed are CSV files
+ * that are still read when no data file is present.
+ */
+public final class ExecutionStepLogFiles {
+
+    public static final String DATA_SUFFIX = ".dat";
+
+    public static final String INDEX_SUFFIX = ".idx";
+
+    public static final String LEGACY_SUFFIX = ".log";
+
+    private ExecutionStepLogFiles() {
+    }
+
+    public static File getDataFile(String executionStepId) {
+        return new File(LogUtils.getLogDir(), executionStepId + DATA_SUFFIX);
+    }
+
+    public static File getIndexFile(String executionStepId) {
+        return new File(LogUtils.getLogDir(), executionStepId + INDEX_SUFFIX);
+    }
+
+    public static File getLegacyFile(String executionStepId) {
+        return new File(LogUtils.getLogDir(), executionStepId + LEGACY_SUFFIX);
+    }
+
+    public static void delete(String executionStepId) {
+        FileUtils.deleteQuietly(getDataFile(executionStepId));
+        FileUtils.deleteQuietly(getIndexFile(executionStepId));
+        FileUtils.deleteQuietly(getLegacyFile(executionStepId));
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.persist;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jumpmind.metl.core.model.ExecutionStepLog;
+
+/**
+ * Reads pages of records from the log of an execution step written by
+ * {@link ExecutionStepLogWriter}. The index is used to seek straight to the
+ * first record of a page, so reading the last records of a large log costs
+ * the same as reading the first ones. The number of records is taken from
+ * the index when the reader is opened; records appended later are not seen.
+ */
+public class ExecutionStepLogReader implements Closeable {
+
+    String executionStepId;
+
+    RandomAccessFile data;
+
+    RandomAccessFile index;
+
+    long recordCount;
+
+    public ExecutionStepLogReader(String executionStepId) throws IOException {
+        this(executionStepId, ExecutionStepLogFiles.getDataFile(executionStepId), ExecutionStepLogFiles.getIndexFile(executionStepId));
+    }
+
+    public ExecutionStepLogReader(String executionStepId, File dataFile, File indexFile) throws IOException {
+        this.executionStepId = executionStepId;
+        this.data = new RandomAccessFile(dataFile, "r");
+        this.index = new RandomAccessFile(indexFile, "r");
+        this.recordCount = index.length() / 8;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @param start
+     *            the zero based number of the first record to read
+     * @param limit
+     *            the maximum number of records to return
+     * @param levels
+     *            when not empty, only records with one of these levels are
+     *            returned and records are scanned until limit of them are
+     *            found
+     */
+    public List<ExecutionStepLog> read(long start, int limit, Set<String> levels) throws IOException {
+        List<ExecutionStepLog> stepLogs = new ArrayList<>();
+        if (start < 0) {
+            start = 0;
+        }
+        if (start < recordCount && limit > 0) {
+            index.seek(start * 8);
+            data.getChannel().position(index.readLong());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(data.getChannel())));
+            Inflater inflater = null;
+            try {
+                for (long recordNumber = start; recordNumber < recordCount && stepLogs.size() < limit; recordNumber++) {
+                    int flags = in.readUnsignedByte();
+                    byte[] levelBytes = new byte[in.readUnsignedByte()];
+                    in.readFully(levelBytes);
+                    String level = new String(levelBytes, StandardCharsets.UTF_8);
+                    long createTime = in.readLong();
+                    int length = in.readInt();
+                    if (levels == null || levels.size() == 0 || levels.contains(level)) {
+                        byte[] text = new byte[length];
+                        in.readFully(text);
+                        if ((flags & ExecutionStepLogWriter.FLAG_COMPRESSED) != 0) {
+                            if (inflater == null) {
+                                inflater = new Inflater();
+                            }
+                            text = inflate(inflater, text);
+                        }
+                        ExecutionStepLog stepLog = new ExecutionStepLog();
+                        stepLog.setId(Long.toString(recordNumber + 1));
+                        stepLog.setExecutionStepId(executionStepId);
+                        stepLog.setLevel(level);
+                        stepLog.setCreateTime(new Date(createTime));
+                        stepLog.setLogText(new String(text, StandardCharsets.UTF_8));
+                        stepLogs.add(stepLog);
+                    } else {
+                        skipFully(in, length);
+                    }
+                }
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+        }
+        return stepLogs;
+    }
+
+    protected void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new IOException("Truncated log record in " + executionStepId);
+            }
+            length -= skipped;
+        }
+    }
+
+    protected byte[] inflate(Inflater inflater, byte[] bytes) throws IOException {
+        inflater.reset();
+        inflater.setInput(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+        byte[] buffer = new byte[4096];
+        try {
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed log record in " + executionStepId);
+                }
+                out.write(buffer, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            data.close();
+        } finally {
+            index.close();
+        }
+    }
+
+}
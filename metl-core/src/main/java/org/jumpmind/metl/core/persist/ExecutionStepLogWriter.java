@@ -0,0 +1,154 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.persist;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.jumpmind.metl.core.model.ExecutionStepLog;
+
+/**
+ * Appends records to the log of an execution step. Records are buffered and
+ * only reach the files when {@link #flush()} is called, so a caller writing a
+ * batch of records pays for one flush per batch. The offsets of pending
+ * records are held in memory and only appended to the index after the data
+ * file has been flushed, so the index never points past the data.
+ * <p>
+ * Each record is a flags byte, the level, the create time in milliseconds,
+ * the length of the text and the UTF-8 text, which is deflated when it is
+ * long and compression is on.
+ */
+public class ExecutionStepLogWriter implements Closeable {
+
+    static final int FLAG_COMPRESSED = 1;
+
+    static final int COMPRESSION_THRESHOLD = 1024;
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    DataOutputStream data;
+
+    DataOutputStream index;
+
+    long[] pendingOffsets = new long[256];
+
+    int pendingCount;
+
+    long offset;
+
+    boolean compress;
+
+    Deflater deflater;
+
+    public ExecutionStepLogWriter(String executionStepId, boolean compress) throws IOException {
+        this(ExecutionStepLogFiles.getDataFile(executionStepId), ExecutionStepLogFiles.getIndexFile(executionStepId), compress);
+    }
+
+    public ExecutionStepLogWriter(File dataFile, File indexFile, boolean compress) throws IOException {
+        this.offset = dataFile.length();
+        this.data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile, true), BUFFER_SIZE));
+        this.index = new DataOutputStream(new FileOutputStream(indexFile, true));
+        this.compress = compress;
+    }
+
+    public void write(ExecutionStepLog stepLog) throws IOException {
+        String logText = stepLog.getLogText();
+        byte[] text = logText != null ? logText.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int flags = 0;
+        if (compress && text.length > COMPRESSION_THRESHOLD) {
+            byte[] deflated = deflate(text);
+            if (deflated.length < text.length) {
+                text = deflated;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        byte[] level = stepLog.getLevel() != null ? stepLog.getLevel().getBytes(StandardCharsets.UTF_8) : new byte[0];
+
+        if (pendingCount == pendingOffsets.length) {
+            pendingOffsets = Arrays.copyOf(pendingOffsets, pendingCount * 2);
+        }
+        pendingOffsets[pendingCount++] = offset;
+
+        data.writeByte(flags);
+        data.writeByte(level.length);
+        data.write(level);
+        data.writeLong(stepLog.getCreateTime() != null ? stepLog.getCreateTime().getTime() : 0);
+        data.writeInt(text.length);
+        data.write(text);
+        offset += 1 + 1 + level.length + 8 + 4 + text.length;
+    }
+
+    protected byte[] deflate(byte[] bytes) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    public void flush() throws IOException {
+        data.flush();
+        if (pendingCount > 0) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(pendingCount * 8);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = 0; i < pendingCount; i++) {
+                out.writeLong(pendingOffsets[i]);
+            }
+            bytes.writeTo(index);
+            index.flush();
+            pendingCount = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            try {
+                data.close();
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+}
@@ -20,7 +20,7 @@
  */
 package org.jumpmind.metl.core.persist;
 
-import java.io.File;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -34,6 +34,19 @@ public interface IExecutionService {
 
     public void save(AbstractObject object);
 
+    /**
+     * Queues an execution record to be written by the next flush. Queued
+     * saves of the same record are coalesced so only its latest state is
+     * written.
+     */
+    public void queueSave(AbstractObject object);
+
+    /**
+     * Writes all queued execution records. Execution step updates are written
+     * as a single JDBC batch.
+     */
+    public void flushQueuedSaves();
+
     public List<Execution> findExecutions(Map<String, Object> params, int limit);
 
     public Execution findExecution(String id);
@@ -45,6 +58,16 @@ public interface IExecutionService {
     public List<ExecutionStepLog> findExecutionStepLogs(String executionStepId, int limit);
     
     public List<ExecutionStepLog> findExecutionStepLogs(Set<String> executionStepIds, int limit);
+
+    /**
+     * Reads a page of a step's log without reading the records before it.
+     * 
+     * @param start
+     *            the zero based number of the first record to return
+     */
+    public List<ExecutionStepLog> findExecutionStepLogs(String executionStepId, long start, int limit);
+
+    public long countExecutionStepLogs(String executionStepId);
     
     public void markAbandoned(String agentId);
     
@@ -52,6 +75,10 @@ public interface IExecutionService {
     
     public List<String> findExecutedFlowIds();
 
-    public File getExecutionStepLog(String executionStepId);
+    /**
+     * Opens a step's log as CSV for download. Close the stream when done so
+     * that any temporary copy made for it is deleted.
+     */
+    public InputStream openExecutionStepLog(String executionStepId);
     	
 }
@@ -95,6 +95,12 @@ public class XMLComponentDefinition extends XMLAbstractDefinition {
     @XmlAttribute(required = false)
     protected boolean supportsMultipleThreads;
 
+    @XmlAttribute(required = false)
+    protected boolean supportsPartitionedThreads;
+
+    @XmlAttribute(required = false)
+    protected boolean fusable;
+
     @XmlAttribute(required = false)
     protected boolean inputOutputModelsMatch;
 
@@ -177,6 +183,22 @@ public class XMLComponentDefinition extends XMLAbstractDefinition {
         this.supportsMultipleThreads = supportsMultipleThreads;
     }
 
+    public boolean isSupportsPartitionedThreads() {
+        return supportsPartitionedThreads;
+    }
+
+    public void setSupportsPartitionedThreads(boolean supportsPartitionedThreads) {
+        this.supportsPartitionedThreads = supportsPartitionedThreads;
+    }
+
+    public boolean isFusable() {
+        return fusable;
+    }
+
+    public void setFusable(boolean fusable) {
+        this.fusable = fusable;
+    }
+
     public void setFlowManipulatorClassName(String flowManipulatorClassName) {
         this.flowManipulatorClassName = flowManipulatorClassName;
     }
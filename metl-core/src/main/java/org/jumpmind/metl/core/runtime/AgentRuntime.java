@@ -64,6 +64,7 @@ import org.jumpmind.metl.core.plugin.XMLResourceDefinition;
 import org.jumpmind.metl.core.runtime.component.IComponentDeploymentListener;
 import org.jumpmind.metl.core.runtime.component.IComponentRuntimeFactory;
 import org.jumpmind.metl.core.runtime.component.Results;
+import org.jumpmind.metl.core.runtime.flow.FlowPlanCache;
 import org.jumpmind.metl.core.runtime.flow.FlowRuntime;
 import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
 import org.jumpmind.metl.core.runtime.subscribe.ISubscribeManager;
@@ -121,6 +122,8 @@ public class AgentRuntime {
 
     Map<AgentDeploy, List<FlowRuntime>> runningFlows = Collections.synchronizedMap(new HashMap<>());
 
+    FlowPlanCache flowPlanCache = new FlowPlanCache();
+
     public AgentRuntime(Agent agent, IOperationsService operationsService, IConfigurationService configurationService,
             IExecutionService executionService, IComponentRuntimeFactory componentFactory, IDefinitionFactory definitionFactory,
             IHttpRequestMappingRegistry httpRequestMappingRegistry, ISubscribeManager subscribeManager) {
@@ -267,6 +270,7 @@ public class AgentRuntime {
             }
             
             deployedResources.clear();
+            flowPlanCache.clear();
 
             log.info("Agent '{}' has been stopped", agent);
         }
@@ -484,7 +488,7 @@ public class AgentRuntime {
         String executionId = createExecutionId();
         return new FlowRuntime(executionId, userId, findDeployed(deployment), agent, componentRuntimeFactory, definitionFactory,
                 flowStepsExecutionThreads, operationsService, configurationService, executionService, deployedResources, null, globalSettings,
-                runtimeParameters);
+                runtimeParameters, flowPlanCache);
     }
 
     public Results execute(String userId, AgentDeploy deployment, Map<String, String> runtimeParameters) throws Exception {
@@ -572,6 +576,7 @@ public class AgentRuntime {
         }
         operationsService.delete(deployment);
         agent.getAgentDeployments().remove(deployment);
+        flowPlanCache.remove(deployment.getFlowId());
     }
 
     private void removeFromRunning(AgentDeploy deployment, FlowRuntime flowRuntime) {
@@ -633,7 +638,7 @@ public class AgentRuntime {
                 List<Notification> notifications = operationsService.findNotificationsForDeployment(deployment.getAgentDeployment());
                 flowRuntime = new FlowRuntime(executionId, userId, deployment, agent, componentRuntimeFactory, definitionFactory,
                         flowStepsExecutionThreads, operationsService, configurationService, executionService, deployedResources,
-                        notifications, globalSettings, runtimeParameters);
+                        notifications, globalSettings, runtimeParameters, flowPlanCache);
                 addToRunning(deployment.getAgentDeployment(), flowRuntime);
                 flowRuntime.execute();
             } catch (Exception e) {
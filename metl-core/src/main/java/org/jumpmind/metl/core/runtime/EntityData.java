@@ -20,10 +20,40 @@
  */
 package org.jumpmind.metl.core.runtime;
 
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
 import org.jumpmind.metl.core.util.NameValue;
 import org.jumpmind.util.LinkedCaseInsensitiveMap;
 
-public class EntityData extends LinkedCaseInsensitiveMap<Object> {
+/**
+ * A row of attribute values keyed by attribute id. Copies are cheap: a copy
+ * shares its values with the original until either one of them is written
+ * to, at which point the writer takes a private copy of the values. While
+ * values are shared the key, value and entry views are read only, and that
+ * includes {@link java.util.Map.Entry#setValue(Object)} on their entries.
+ * <p>
+ * To be able to swap the values it shares, entity data extends
+ * {@link AbstractMap} and delegates to a case insensitive map instead of
+ * extending {@link LinkedCaseInsensitiveMap} as earlier versions did. Keys are
+ * still case insensitive, but code that treats entity data as a
+ * {@link LinkedCaseInsensitiveMap} has to use it as a {@link Map}, and entity
+ * data serialized by an earlier version cannot be deserialized.
+ * <p>
+ * Entity data created with an {@link EntityDataLayout} keeps the values of the
+ * attributes in the layout in an array indexed by attribute ordinal. Such rows
+ * iterate in layout order (the order of the entities and attributes of the
+ * model) followed by attributes outside the layout in insertion order, where
+ * other rows iterate in insertion order. Anything that depends on iteration
+ * order sees the difference: {@link #toString()}, hashes built over the
+ * entries (for example the Deduper's ENTITY mode) and the column order of
+ * writers that output the values as they iterate.
+ */
+public class EntityData extends AbstractMap<String, Object> implements Serializable, Cloneable {
 
     private static final long serialVersionUID = 1L;
 
@@ -33,10 +63,24 @@ public class EntityData extends LinkedCaseInsensitiveMap<Object> {
 
     ChangeType changeType = ChangeType.ADD;
 
+    Map<String, Object> data;
+
+    boolean shared = false;
+
     public EntityData() {
+        this.data = new LinkedCaseInsensitiveMap<Object>();
+    }
+
+    public EntityData(EntityDataLayout layout) {
+        if (layout != null) {
+            this.data = new OrdinalValueMap(layout);
+        } else {
+            this.data = new LinkedCaseInsensitiveMap<Object>();
+        }
     }
 
     public EntityData(NameValue... nameValues) {
+        this();
         if (nameValues != null) {
             for (NameValue nameValue : nameValues) {
                 put(nameValue.getName(), nameValue.getValue());
@@ -44,8 +88,58 @@ public class EntityData extends LinkedCaseInsensitiveMap<Object> {
         }
     }
 
+    private EntityData(EntityData original) {
+        original.shared = true;
+        this.shared = true;
+        this.data = original.data;
+        this.changeType = original.changeType;
+    }
+
     public EntityData copy() {
-        return (EntityData) this.clone();
+        return new EntityData(this);
+    }
+
+    @Override
+    public Object clone() {
+        return copy();
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    protected void ensureWritable() {
+        if (shared) {
+            if (data instanceof OrdinalValueMap) {
+                data = new OrdinalValueMap((OrdinalValueMap) data);
+            } else {
+                LinkedCaseInsensitiveMap<Object> copied = new LinkedCaseInsensitiveMap<Object>();
+                copied.putAll(data);
+                data = copied;
+            }
+            shared = false;
+        }
+    }
+
+    public EntityDataLayout getLayout() {
+        return data instanceof OrdinalValueMap ? ((OrdinalValueMap) data).layout : null;
+    }
+
+    /**
+     * Get a value by its ordinal in the {@link EntityDataLayout} this entity
+     * data was created with.
+     */
+    public Object getValue(int ordinal) {
+        return ((OrdinalValueMap) data).getValue(ordinal);
+    }
+
+    /**
+     * Set a value by its ordinal in the {@link EntityDataLayout} this entity
+     * data was created with.
+     */
+    public Object setValue(int ordinal, Object value) {
+        ensureWritable();
+        return ((OrdinalValueMap) data).setValue(ordinal, value);
     }
 
     public ChangeType getChangeType() {
@@ -56,4 +150,73 @@ public class EntityData extends LinkedCaseInsensitiveMap<Object> {
         this.changeType = changeType;
     }
 
+    @Override
+    public Object get(Object key) {
+        return data.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return data.containsValue(value);
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        ensureWritable();
+        return data.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> map) {
+        ensureWritable();
+        data.putAll(map);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        ensureWritable();
+        return data.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        if (shared) {
+            EntityDataLayout layout = getLayout();
+            data = layout != null ? new OrdinalValueMap(layout) : new LinkedCaseInsensitiveMap<Object>();
+            shared = false;
+        } else {
+            data.clear();
+        }
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return shared ? Collections.unmodifiableMap(data).keySet() : data.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return shared ? Collections.unmodifiableMap(data).values() : data.values();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return shared ? Collections.unmodifiableMap(data).entrySet() : data.entrySet();
+    }
+
 }
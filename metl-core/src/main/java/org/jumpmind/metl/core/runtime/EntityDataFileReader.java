@@ -0,0 +1,180 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+
+/**
+ * Reads back the rows written by an {@link EntityDataFileWriter} in the order
+ * they were written.
+ */
+public class EntityDataFileReader implements Closeable {
+
+    File file;
+
+    EntityDataLayout layout;
+
+    ObjectInputStream in;
+
+    List<String> keys = new ArrayList<>();
+
+    long tag;
+
+    public EntityDataFileReader(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param layout
+     *            if not null, rows are created with this layout
+     */
+    public EntityDataFileReader(File file, EntityDataLayout layout) {
+        this.file = file;
+        this.layout = layout;
+        try {
+            this.in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    /**
+     * @return the next row or null if the end of the file has been reached
+     */
+    public EntityData read() {
+        int changeType;
+        try {
+            changeType = in.readByte();
+        } catch (EOFException e) {
+            return null;
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+
+        try {
+            EntityData data = new EntityData(layout);
+            data.setChangeType(ChangeType.values()[changeType]);
+            tag = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String key = readKey();
+                data.put(key, readValue());
+            }
+            return data;
+        } catch (IOException e) {
+            throw new IoException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected String readKey() throws IOException {
+        int index = in.readInt();
+        if (index == keys.size()) {
+            keys.add(in.readUTF());
+        }
+        return keys.get(index);
+    }
+
+    protected Object readValue() throws IOException, ClassNotFoundException {
+        return readValue(in);
+    }
+
+    /**
+     * Read a value written by {@link EntityDataFileWriter#writeValue(java.io.DataOutput, Object)}.
+     */
+    public static Object readValue(DataInput in) throws IOException, ClassNotFoundException {
+        int type = in.readByte();
+        switch (type) {
+            case EntityDataFileWriter.TYPE_NULL:
+                return null;
+            case EntityDataFileWriter.TYPE_STRING:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case EntityDataFileWriter.TYPE_LONG:
+                return in.readLong();
+            case EntityDataFileWriter.TYPE_INTEGER:
+                return in.readInt();
+            case EntityDataFileWriter.TYPE_BIG_DECIMAL:
+                return new BigDecimal(in.readUTF());
+            case EntityDataFileWriter.TYPE_BOOLEAN:
+                return in.readBoolean();
+            case EntityDataFileWriter.TYPE_DATE:
+                return new Date(in.readLong());
+            case EntityDataFileWriter.TYPE_TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case EntityDataFileWriter.TYPE_DOUBLE:
+                return in.readDouble();
+            case EntityDataFileWriter.TYPE_OBJECT:
+                if (in instanceof ObjectInput) {
+                    return ((ObjectInput) in).readObject();
+                } else {
+                    byte[] serialized = new byte[in.readInt()];
+                    in.readFully(serialized);
+                    return SerializationUtils.deserialize(serialized);
+                }
+            default:
+                throw new IllegalStateException("Unexpected value type " + type);
+        }
+    }
+
+    /**
+     * @return the tag the last row read was written with
+     */
+    public long getTag() {
+        return tag;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+}
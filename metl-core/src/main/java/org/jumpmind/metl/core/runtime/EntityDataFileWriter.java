@@ -0,0 +1,215 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.jumpmind.exception.IoException;
+
+/**
+ * Writes {@link EntityData} rows sequentially to a file so that components can
+ * spill rows to disk when they do not fit in memory. Attribute ids are written
+ * once per file and referenced by index afterwards. Common value types are
+ * written in a compact form. Anything else falls back to java serialization.
+ * The file is read back with {@link EntityDataFileReader}.
+ */
+public class EntityDataFileWriter implements Closeable {
+
+    static final int TYPE_NULL = 0;
+    static final int TYPE_STRING = 1;
+    static final int TYPE_LONG = 2;
+    static final int TYPE_INTEGER = 3;
+    static final int TYPE_BIG_DECIMAL = 4;
+    static final int TYPE_BOOLEAN = 5;
+    static final int TYPE_DATE = 6;
+    static final int TYPE_TIMESTAMP = 7;
+    static final int TYPE_DOUBLE = 8;
+    static final int TYPE_OBJECT = 9;
+
+    static final int RESET_INTERVAL = 1000;
+
+    File file;
+
+    ObjectOutputStream out;
+
+    Map<String, Integer> keys = new HashMap<>();
+
+    long rowCount;
+
+    public EntityDataFileWriter(File file) {
+        this.file = file;
+        try {
+            this.out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    /**
+     * Create a writer on a new temporary file. The caller is responsible for
+     * deleting the file when it is no longer needed.
+     */
+    public static EntityDataFileWriter createTempFile(String prefix) {
+        try {
+            File dir = new File(System.getProperty("java.io.tmpdir"));
+            dir.mkdirs();
+            File file = File.createTempFile(prefix, ".dat", dir);
+            return new EntityDataFileWriter(file);
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    public void write(EntityData data) {
+        write(data, 0);
+    }
+
+    /**
+     * Write a row along with a tag that the caller can use to carry state like
+     * an ordering or source number. The tag is read back with
+     * {@link EntityDataFileReader#getTag()}.
+     */
+    public void write(EntityData data, long tag) {
+        try {
+            out.writeByte(data.getChangeType().ordinal());
+            out.writeLong(tag);
+            out.writeInt(data.size());
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                writeKey(entry.getKey());
+                writeValue(entry.getValue());
+            }
+            if (++rowCount % RESET_INTERVAL == 0) {
+                out.reset();
+            }
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    protected void writeKey(String key) throws IOException {
+        Integer index = keys.get(key);
+        if (index == null) {
+            index = keys.size();
+            keys.put(key, index);
+            out.writeInt(index);
+            out.writeUTF(key);
+        } else {
+            out.writeInt(index);
+        }
+    }
+
+    protected void writeValue(Object value) throws IOException {
+        writeValue(out, value);
+    }
+
+    /**
+     * Write a value in the compact form {@link EntityDataFileReader#readValue(DataInput)}
+     * reads. Values of other types are serialized. They are written inline
+     * when the output is an {@link ObjectOutput} and as length prefixed bytes
+     * otherwise.
+     */
+    public static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(TYPE_STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TYPE_BIG_DECIMAL);
+            out.writeUTF(value.toString());
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value.getClass().equals(Date.class)) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value.getClass().equals(Timestamp.class)) {
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else {
+            out.writeByte(TYPE_OBJECT);
+            if (out instanceof ObjectOutput) {
+                ((ObjectOutput) out).writeObject(value);
+            } else {
+                byte[] bytes = SerializationUtils.serialize((Serializable) value);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Flush the rows written so far so that they can be read while the writer
+     * stays open for more rows.
+     */
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+}
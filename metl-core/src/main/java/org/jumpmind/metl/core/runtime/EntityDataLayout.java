@@ -0,0 +1,81 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+
+/**
+ * Assigns an ordinal to every attribute of a {@link Model} so that
+ * {@link EntityData} created with the layout can keep its values in an array
+ * instead of a hash map.
+ */
+public class EntityDataLayout implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final String[] attributeIds;
+
+    final Map<String, Integer> ordinals;
+
+    public EntityDataLayout(Model model) {
+        List<String> ids = new ArrayList<>();
+        for (ModelEntity entity : model.getModelEntities()) {
+            for (ModelAttrib attribute : entity.getModelAttributes()) {
+                ids.add(attribute.getId());
+            }
+        }
+        this.attributeIds = ids.toArray(new String[ids.size()]);
+        this.ordinals = new HashMap<>(attributeIds.length * 4);
+        for (int i = 0; i < attributeIds.length; i++) {
+            ordinals.putIfAbsent(attributeIds[i], i);
+            ordinals.putIfAbsent(attributeIds[i].toLowerCase(), i);
+        }
+    }
+
+    /**
+     * @return the ordinal of the attribute or -1 if the attribute is not part
+     *         of the layout
+     */
+    public int getOrdinal(String attributeId) {
+        Integer ordinal = ordinals.get(attributeId);
+        if (ordinal == null) {
+            ordinal = ordinals.get(attributeId.toLowerCase());
+        }
+        return ordinal != null ? ordinal : -1;
+    }
+
+    public String getAttributeId(int ordinal) {
+        return attributeIds[ordinal];
+    }
+
+    public int size() {
+        return attributeIds.length;
+    }
+
+}
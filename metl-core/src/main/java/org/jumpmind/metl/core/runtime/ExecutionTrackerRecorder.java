@@ -170,13 +170,7 @@ public class ExecutionTrackerRecorder extends ExecutionTrackerLogger {
         if (lastUpdateTime == null || (System.currentTimeMillis() - lastUpdateTime.getTime() > TIME_BETWEEN_MESSAGE_UPDATES_IN_MS)) {
             ComponentStatistics stats = context.getComponentStatistics();
             if (stats != null) {
-                step.setEntitiesProcessed(stats.getNumberEntitiesProcessed(threadNumber));
-                step.setMessagesReceived(stats.getNumberInboundMessages(threadNumber));
-                step.setMessagesProduced(stats.getNumberOutboundMessages(threadNumber));
-                step.setPayloadProduced(stats.getNumberOutboundPayload(threadNumber));
-                step.setPayloadReceived(stats.getNumberInboundPayload(threadNumber));
-                step.setHandleDuration(stats.getTimeSpentInHandle(threadNumber));
-                step.setQueueDuration(stats.getTimeSpentWaiting(threadNumber));
+                updateStatistics(step, stats.getSnapshot(threadNumber));
                 lastStatUpdate.put(step, new Date());
             }
             step.setLastUpdateTime(new Date());
@@ -196,13 +190,7 @@ public class ExecutionTrackerRecorder extends ExecutionTrackerLogger {
             step.setStatus(error != null ? ExecutionStatus.ERROR.name() : ExecutionStatus.READY.name());
             ComponentStatistics stats = context.getComponentStatistics();
             if (stats != null) {
-                step.setEntitiesProcessed(stats.getNumberEntitiesProcessed(threadNumber));
-                step.setMessagesReceived(stats.getNumberInboundMessages(threadNumber));
-                step.setMessagesProduced(stats.getNumberOutboundMessages(threadNumber));
-                step.setPayloadProduced(stats.getNumberOutboundPayload(threadNumber));
-                step.setPayloadReceived(stats.getNumberInboundPayload(threadNumber));
-                step.setHandleDuration(stats.getTimeSpentInHandle(threadNumber));
-                step.setQueueDuration(stats.getTimeSpentWaiting(threadNumber));
+                updateStatistics(step, stats.getSnapshot(threadNumber));
                 lastStatUpdate.put(step, new Date());
             }
             step.setLastUpdateTime(new Date());
@@ -231,13 +219,7 @@ public class ExecutionTrackerRecorder extends ExecutionTrackerLogger {
         step.setStatus(status.name());
         ComponentStatistics stats = context.getComponentStatistics();
         if (stats != null) {
-            step.setEntitiesProcessed(stats.getNumberEntitiesProcessed(threadNumber));
-            step.setMessagesReceived(stats.getNumberInboundMessages(threadNumber));
-            step.setMessagesProduced(stats.getNumberOutboundMessages(threadNumber));
-            step.setPayloadProduced(stats.getNumberOutboundPayload(threadNumber));
-            step.setPayloadReceived(stats.getNumberInboundPayload(threadNumber));
-            step.setHandleDuration(stats.getTimeSpentInHandle(threadNumber));
-            step.setQueueDuration(stats.getTimeSpentWaiting(threadNumber));
+            updateStatistics(step, stats.getSnapshot(threadNumber));
             lastStatUpdate.put(step, new Date());
         }
         step.setLastUpdateTime(new Date());
@@ -256,6 +238,16 @@ public class ExecutionTrackerRecorder extends ExecutionTrackerLogger {
         }
     }
 
+    private void updateStatistics(ExecutionStep step, ComponentStatistics.Snapshot stats) {
+        step.setEntitiesProcessed(stats.getNumberEntitiesProcessed());
+        step.setMessagesReceived(stats.getNumberInboundMessages());
+        step.setMessagesProduced(stats.getNumberOutboundMessages());
+        step.setPayloadProduced(stats.getNumberOutboundPayload());
+        step.setPayloadReceived(stats.getNumberInboundPayload());
+        step.setHandleDuration(stats.getTimeSpentInHandle());
+        step.setQueueDuration(stats.getTimeSpentWaiting());
+    }
+
     private void setToErrorStatus(ExecutionStep step) {
         step.setStatus(ExecutionStatus.ERROR.name());
         step.setLastUpdateTime(new Date());
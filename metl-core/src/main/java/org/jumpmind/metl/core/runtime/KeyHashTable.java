@@ -0,0 +1,338 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.jumpmind.exception.IoException;
+
+/**
+ * An open addressing hash table of 128-bit key hashes, each with two long
+ * values. Slots are stored outside of the java heap. While the table fits in
+ * the memory budget it is kept in direct buffers. When it grows past the
+ * budget it is moved to a memory mapped temporary file so that the operating
+ * system can page it to disk.
+ * <p>
+ * Keys are hashed with {@link Hasher}. Slot numbers are only valid until the
+ * next {@link #add(long, long, long, long)} because the table may be resized.
+ */
+public class KeyHashTable implements Closeable {
+
+    static final int SLOT_SIZE = 32;
+
+    static final int PAGE_SHIFT = 20;
+
+    static final int SLOTS_PER_PAGE = 1 << PAGE_SHIFT;
+
+    static final double MAX_LOAD = 0.7;
+
+    long memoryBudget;
+
+    long capacity;
+
+    long mask;
+
+    long size;
+
+    ByteBuffer[] pages;
+
+    RandomAccessFile mappedFile;
+
+    File file;
+
+    public KeyHashTable(long memoryBudget) {
+        this(memoryBudget, 1024);
+    }
+
+    public KeyHashTable(long memoryBudget, long initialCapacity) {
+        this.memoryBudget = memoryBudget;
+        long capacity = 16;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return the slot of the key or -1 if it is not in the table
+     */
+    public long find(long h1, long h2) {
+        if (h1 == 0 && h2 == 0) {
+            h1 = 1;
+        }
+        long slot = h1 & mask;
+        while (true) {
+            long s1 = get(slot, 0);
+            long s2 = get(slot, 1);
+            if (s1 == 0 && s2 == 0) {
+                return -1;
+            } else if (s1 == h1 && s2 == h2) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Add a key that is not in the table yet.
+     * 
+     * @return the slot the key was added at
+     */
+    public long add(long h1, long h2, long value1, long value2) {
+        if (size + 1 > capacity * MAX_LOAD) {
+            resize();
+        }
+        if (h1 == 0 && h2 == 0) {
+            h1 = 1;
+        }
+        long slot = insert(h1, h2, value1, value2);
+        size++;
+        return slot;
+    }
+
+    public long getValue(long slot, int index) {
+        return get(slot, index + 2);
+    }
+
+    public void setValue(long slot, int index, long value) {
+        page(slot).putLong(offset(slot) + (index + 2) * 8, value);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isMapped() {
+        return mappedFile != null;
+    }
+
+    protected long insert(long h1, long h2, long value1, long value2) {
+        long slot = h1 & mask;
+        while (get(slot, 0) != 0 || get(slot, 1) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        page.putLong(offset, h1);
+        page.putLong(offset + 8, h2);
+        page.putLong(offset + 16, value1);
+        page.putLong(offset + 24, value2);
+        return slot;
+    }
+
+    protected long get(long slot, int index) {
+        return page(slot).getLong(offset(slot) + index * 8);
+    }
+
+    protected ByteBuffer page(long slot) {
+        return pages[(int) (slot >>> PAGE_SHIFT)];
+    }
+
+    protected int offset(long slot) {
+        return (int) (slot & (SLOTS_PER_PAGE - 1)) * SLOT_SIZE;
+    }
+
+    protected void resize() {
+        ByteBuffer[] oldPages = pages;
+        long oldCapacity = capacity;
+        RandomAccessFile oldMappedFile = mappedFile;
+        File oldFile = file;
+        allocate(capacity << 1);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer page = oldPages[(int) (slot >>> PAGE_SHIFT)];
+            int offset = offset(slot);
+            long h1 = page.getLong(offset);
+            long h2 = page.getLong(offset + 8);
+            if (h1 != 0 || h2 != 0) {
+                insert(h1, h2, page.getLong(offset + 16), page.getLong(offset + 24));
+            }
+        }
+        release(oldMappedFile, oldFile);
+    }
+
+    protected void allocate(long capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        long bytes = capacity * SLOT_SIZE;
+        int pageCount = (int) ((capacity + SLOTS_PER_PAGE - 1) >>> PAGE_SHIFT);
+        int pageSize = (int) Math.min(capacity, SLOTS_PER_PAGE) * SLOT_SIZE;
+        pages = new ByteBuffer[pageCount];
+        if (bytes <= memoryBudget) {
+            mappedFile = null;
+            file = null;
+            for (int i = 0; i < pageCount; i++) {
+                pages[i] = ByteBuffer.allocateDirect(pageSize);
+            }
+        } else {
+            try {
+                File dir = new File(System.getProperty("java.io.tmpdir"));
+                dir.mkdirs();
+                file = File.createTempFile("metl-keys-", ".dat", dir);
+                mappedFile = new RandomAccessFile(file, "rw");
+                mappedFile.setLength(bytes);
+                FileChannel channel = mappedFile.getChannel();
+                for (int i = 0; i < pageCount; i++) {
+                    pages[i] = channel.map(MapMode.READ_WRITE, (long) i * pageSize, pageSize);
+                }
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+    }
+
+    protected void release(RandomAccessFile mappedFile, File file) {
+        if (mappedFile != null) {
+            try {
+                mappedFile.close();
+            } catch (IOException e) {
+            }
+            file.delete();
+        }
+    }
+
+    @Override
+    public void close() {
+        pages = new ByteBuffer[0];
+        release(mappedFile, file);
+        mappedFile = null;
+        file = null;
+        size = 0;
+    }
+
+    /**
+     * Accumulates a 128-bit hash of a sequence of values using the mixing
+     * steps of MurmurHash3.
+     */
+    public static class Hasher {
+
+        static final long C1 = 0x87c37b91114253d5L;
+
+        static final long C2 = 0x4cf5ad432745937fL;
+
+        long h1;
+
+        long h2;
+
+        long length;
+
+        public Hasher() {
+            reset();
+        }
+
+        public Hasher reset() {
+            h1 = 0x9368e53c2f6af274L;
+            h2 = 0x586dcd208f7cd3fdL;
+            length = 0;
+            return this;
+        }
+
+        public Hasher add(long k) {
+            length++;
+            long k1 = Long.rotateLeft(k * C1, 31) * C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            long k2 = Long.rotateLeft(k * C2, 33) * C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+            return this;
+        }
+
+        /**
+         * Add a string value. Null is distinct from every string, including
+         * "null".
+         */
+        public Hasher add(String value) {
+            if (value == null) {
+                return add(0xdeadbeefL);
+            }
+            int length = value.length();
+            long packed = 0;
+            for (int i = 0; i < length; i++) {
+                packed = (packed << 16) | value.charAt(i);
+                if ((i & 3) == 3) {
+                    add(packed);
+                    packed = 0;
+                }
+            }
+            if ((length & 3) != 0) {
+                add(packed);
+            }
+            return add(length + 1);
+        }
+
+        public Hasher add(byte[] value) {
+            if (value == null) {
+                return add((String) null);
+            }
+            long packed = 0;
+            for (int i = 0; i < value.length; i++) {
+                packed = (packed << 8) | (value[i] & 0xff);
+                if ((i & 7) == 7) {
+                    add(packed);
+                    packed = 0;
+                }
+            }
+            if ((value.length & 7) != 0) {
+                add(packed);
+            }
+            return add(value.length + 1);
+        }
+
+        public long getHash1() {
+            long h1 = this.h1 ^ length;
+            long h2 = this.h2 ^ length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            return h1 + h2;
+        }
+
+        public long getHash2() {
+            long h1 = this.h1 ^ length;
+            long h2 = this.h2 ^ length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            return h2 + h1;
+        }
+
+        static long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb93fe53a87ceL;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jumpmind.exception.IoException;
+
+/**
+ * Maps string keys to values outside of the java heap. Keys are kept as
+ * 128-bit hashes in a {@link KeyHashTable}. Values are encoded like
+ * {@link EntityDataFileWriter} encodes them and appended to pages of bytes.
+ * Pages are direct buffers until half of the memory budget is used, then they
+ * are memory mapped from a temporary file. The other half of the budget is
+ * for the key table.
+ * <p>
+ * A table may be read by many threads once it is fully loaded.
+ */
+public class LookupTable implements Closeable {
+
+    static final int PAGE_SIZE = 4 * 1024 * 1024;
+
+    long memoryBudget;
+
+    int pageSize;
+
+    KeyHashTable keys;
+
+    KeyHashTable.Hasher hasher = new KeyHashTable.Hasher();
+
+    List<ByteBuffer> pages = new ArrayList<>();
+
+    ByteBuffer currentPage;
+
+    long allocated;
+
+    RandomAccessFile mappedFile;
+
+    File file;
+
+    long mappedLength;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    public LookupTable(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.pageSize = (int) Math.max(64 * 1024, Math.min(PAGE_SIZE, memoryBudget / 16));
+        this.keys = new KeyHashTable(memoryBudget / 2);
+    }
+
+    /**
+     * Add or replace the value for a key. Not thread safe.
+     */
+    public void put(String key, Object value) {
+        try {
+            bytes.reset();
+            EntityDataFileWriter.writeValue(out, value);
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+
+        int length = bytes.size();
+        if (currentPage == null || currentPage.remaining() < length) {
+            currentPage = allocate(Math.max(pageSize, length));
+            pages.add(currentPage);
+        }
+        long location = ((long) (pages.size() - 1) << 32) | currentPage.position();
+        currentPage.put(bytes.toByteArray(), 0, length);
+
+        hasher.reset().add(key);
+        long slot = keys.find(hasher.getHash1(), hasher.getHash2());
+        if (slot < 0) {
+            keys.add(hasher.getHash1(), hasher.getHash2(), location, length);
+        } else {
+            keys.setValue(slot, 0, location);
+            keys.setValue(slot, 1, length);
+        }
+    }
+
+    public Object get(String key) {
+        KeyHashTable.Hasher hasher = new KeyHashTable.Hasher().add(key);
+        long slot = keys.find(hasher.getHash1(), hasher.getHash2());
+        if (slot < 0) {
+            return null;
+        }
+
+        long location = keys.getValue(slot, 0);
+        byte[] value = new byte[(int) keys.getValue(slot, 1)];
+        ByteBuffer page = pages.get((int) (location >>> 32)).duplicate();
+        page.position((int) location);
+        page.get(value);
+        try {
+            return EntityDataFileReader.readValue(new DataInputStream(new ByteArrayInputStream(value)));
+        } catch (IOException e) {
+            throw new IoException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long size() {
+        return keys.size();
+    }
+
+    public boolean isMapped() {
+        return mappedFile != null || keys.isMapped();
+    }
+
+    protected ByteBuffer allocate(int size) {
+        allocated += size;
+        if (allocated <= memoryBudget / 2) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        try {
+            if (mappedFile == null) {
+                File dir = new File(System.getProperty("java.io.tmpdir"));
+                dir.mkdirs();
+                file = File.createTempFile("metl-lookup-", ".dat", dir);
+                mappedFile = new RandomAccessFile(file, "rw");
+            }
+            mappedFile.setLength(mappedLength + size);
+            ByteBuffer page = mappedFile.getChannel().map(MapMode.READ_WRITE, mappedLength, size);
+            mappedLength += size;
+            return page;
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        keys.close();
+        pages.clear();
+        currentPage = null;
+        if (mappedFile != null) {
+            try {
+                mappedFile.close();
+            } catch (IOException e) {
+            }
+            file.delete();
+            mappedFile = null;
+        }
+    }
+
+}
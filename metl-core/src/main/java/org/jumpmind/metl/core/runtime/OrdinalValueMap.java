@@ -0,0 +1,270 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.jumpmind.util.LinkedCaseInsensitiveMap;
+
+/**
+ * Map of attribute id to value that keeps the values of the attributes in an
+ * {@link EntityDataLayout} in an array. Attributes that are not part of the
+ * layout are kept in an overflow map. Entries iterate in layout order, then
+ * in the insertion order of the overflow map.
+ */
+class OrdinalValueMap extends AbstractMap<String, Object> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    enum Unset {
+        VALUE
+    }
+
+    final EntityDataLayout layout;
+
+    Object[] values;
+
+    int count;
+
+    LinkedCaseInsensitiveMap<Object> overflow;
+
+    OrdinalValueMap(EntityDataLayout layout) {
+        this.layout = layout;
+        this.values = new Object[layout.size()];
+        Arrays.fill(values, Unset.VALUE);
+    }
+
+    OrdinalValueMap(OrdinalValueMap original) {
+        this.layout = original.layout;
+        this.values = original.values.clone();
+        this.count = original.count;
+        if (original.overflow != null) {
+            this.overflow = new LinkedCaseInsensitiveMap<Object>();
+            this.overflow.putAll(original.overflow);
+        }
+    }
+
+    int ordinalOf(Object key) {
+        return key instanceof String ? layout.getOrdinal((String) key) : -1;
+    }
+
+    Object getValue(int ordinal) {
+        Object value = values[ordinal];
+        return value != Unset.VALUE ? value : null;
+    }
+
+    Object setValue(int ordinal, Object value) {
+        Object old = values[ordinal];
+        values[ordinal] = value;
+        if (old == Unset.VALUE) {
+            count++;
+            return null;
+        }
+        return old;
+    }
+
+    Object unsetValue(int ordinal) {
+        Object old = values[ordinal];
+        if (old == Unset.VALUE) {
+            return null;
+        }
+        values[ordinal] = Unset.VALUE;
+        count--;
+        return old;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int ordinal = ordinalOf(key);
+        if (ordinal >= 0) {
+            return getValue(ordinal);
+        } else {
+            return overflow != null ? overflow.get(key) : null;
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int ordinal = ordinalOf(key);
+        if (ordinal >= 0) {
+            return values[ordinal] != Unset.VALUE;
+        } else {
+            return overflow != null && overflow.containsKey(key);
+        }
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int ordinal = ordinalOf(key);
+        if (ordinal >= 0) {
+            return setValue(ordinal, value);
+        } else {
+            if (overflow == null) {
+                overflow = new LinkedCaseInsensitiveMap<Object>();
+            }
+            return overflow.put(key, value);
+        }
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int ordinal = ordinalOf(key);
+        if (ordinal >= 0) {
+            return unsetValue(ordinal);
+        } else {
+            return overflow != null ? overflow.remove(key) : null;
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, Unset.VALUE);
+        count = 0;
+        overflow = null;
+    }
+
+    @Override
+    public int size() {
+        return count + (overflow != null ? overflow.size() : 0);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return OrdinalValueMap.this.size();
+            }
+        };
+    }
+
+    class EntryIterator implements Iterator<Entry<String, Object>> {
+
+        int next = -1;
+
+        int current = -1;
+
+        Iterator<Entry<String, Object>> overflowIterator;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next++;
+            while (next < values.length && values[next] == Unset.VALUE) {
+                next++;
+            }
+            if (next >= values.length && overflowIterator == null && overflow != null) {
+                overflowIterator = overflow.entrySet().iterator();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length || (overflowIterator != null && overflowIterator.hasNext());
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (next < values.length) {
+                current = next;
+                advance();
+                return new OrdinalEntry(current);
+            } else if (overflowIterator != null) {
+                current = -1;
+                return overflowIterator.next();
+            } else {
+                throw new NoSuchElementException();
+            }
+        }
+
+        @Override
+        public void remove() {
+            if (current >= 0) {
+                unsetValue(current);
+                current = -1;
+            } else if (overflowIterator != null) {
+                overflowIterator.remove();
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    class OrdinalEntry implements Entry<String, Object> {
+
+        final int ordinal;
+
+        OrdinalEntry(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public String getKey() {
+            return layout.getAttributeId(ordinal);
+        }
+
+        @Override
+        public Object getValue() {
+            return OrdinalValueMap.this.getValue(ordinal);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            return OrdinalValueMap.this.setValue(ordinal, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object value = getValue();
+            return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+}
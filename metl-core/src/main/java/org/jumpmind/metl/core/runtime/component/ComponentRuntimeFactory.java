@@ -20,6 +20,10 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import org.jumpmind.metl.core.plugin.IDefinitionFactory;
 import org.jumpmind.metl.core.plugin.XMLComponentDefinition;
 
@@ -27,16 +31,28 @@ public class ComponentRuntimeFactory implements IComponentRuntimeFactory {
 
     IDefinitionFactory componentDefinitionFactory;
 
+    /*
+     * Definitions are replaced when a plugin is reloaded, so the classes are
+     * weakly keyed by definition instance. Flows create their step runtimes
+     * concurrently, so access is synchronized on the map.
+     */
+    Map<XMLComponentDefinition, Class<?>> componentClasses = Collections.synchronizedMap(new WeakHashMap<>());
+
     public ComponentRuntimeFactory(IDefinitionFactory componentDefinitionFactory) {
         this.componentDefinitionFactory = componentDefinitionFactory;
     }
 
     @Override
-    synchronized public IComponentRuntime create(String projectVersionId, String id, ComponentContext context, int threadNumber) {
+    public IComponentRuntime create(String projectVersionId, String id, ComponentContext context, int threadNumber) {
         try {
             XMLComponentDefinition definition = componentDefinitionFactory.getComponentDefinition(projectVersionId, id);
             if (definition != null) {
-                IComponentRuntime component = (IComponentRuntime) Class.forName(definition.getClassName().trim(), true, definition.getClassLoader()).newInstance();
+                Class<?> componentClass = componentClasses.get(definition);
+                if (componentClass == null) {
+                    componentClass = Class.forName(definition.getClassName().trim(), true, definition.getClassLoader());
+                    componentClasses.put(definition, componentClass);
+                }
+                IComponentRuntime component = (IComponentRuntime) componentClass.newInstance();
                 component.create(definition, context, threadNumber);
                 return component;
             } else {
@@ -20,128 +20,204 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Counters for a step, kept per thread number. Each thread number gets its own
+ * slot of {@link LongAdder}s so incrementing never boxes, never takes a lock
+ * and never loses counts when several threads share a slot. Readers take a
+ * {@link Snapshot} of a slot.
+ */
 public class ComponentStatistics {
 
-    private Map<Integer, Integer> numberInboundMessages = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberOutboundMessages = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberEntitiesProcessed = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberInboundPayload = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberOutboundPayload = new ConcurrentHashMap<>();
-    private Map<Integer, Long> timeSpentInHandle = new ConcurrentHashMap<>();
-    private Map<Integer, Long> timeSpentWaiting = new ConcurrentHashMap<>();
-    
-    
+    private volatile Counters[] countersByThread = new Counters[2];
+
+    protected Counters getCounters(int thread) {
+        Counters[] slots = countersByThread;
+        Counters counters = thread < slots.length ? slots[thread] : null;
+        return counters != null ? counters : createCounters(thread);
+    }
+
+    private synchronized Counters createCounters(int thread) {
+        Counters[] slots = countersByThread;
+        if (thread >= slots.length) {
+            Counters[] grown = new Counters[Math.max(thread + 1, slots.length * 2)];
+            System.arraycopy(slots, 0, grown, 0, slots.length);
+            slots = grown;
+        }
+        Counters counters = slots[thread];
+        if (counters == null) {
+            counters = new Counters();
+            slots[thread] = counters;
+        }
+        countersByThread = slots;
+        return counters;
+    }
+
+    public Snapshot getSnapshot(int thread) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.add(getCounters(thread));
+        return snapshot;
+    }
+
     public long getTimeSpentInHandle(int thread) {
-        Long number = timeSpentInHandle.get(thread);
-        return number != null ? number : 0;
+        return getCounters(thread).timeSpentInHandle.sum();
     }
     
     public long getTimeSpentWaiting(int thread) {
-        Long number = timeSpentWaiting.get(thread);
-        return number != null ? number : 0;
+        return getCounters(thread).timeSpentWaiting.sum();
     }
     
     public void incrementTimeSpentInHandle(int thread, long amount) {
         if (amount > 0) {
-            Long number = timeSpentInHandle.get(thread);
-            if (number != null) {
-                number = number + amount;
-            } else {
-                number = amount;
-            }
-            timeSpentInHandle.put(thread, number);
+            getCounters(thread).timeSpentInHandle.add(amount);
         }
     }
 
     public void incrementTimeSpentWaiting(int thread, long amount) {
         if (amount > 0) {
-            Long number = timeSpentWaiting.get(thread);
-            if (number != null) {
-                number = number + amount;
-            } else {
-                number = amount;
-            }
-            timeSpentWaiting.put(thread, number);
+            getCounters(thread).timeSpentWaiting.add(amount);
         }
     }
 
     public int getNumberInboundMessages(int thread) {
-        Integer number = numberInboundMessages.get(thread);
-        return number != null ? number : 0;
+        return (int) getCounters(thread).inboundMessages.sum();
     }
 
     public void setNumberInboundMessages(int thread, int numberInboundMessages) {
-        this.numberInboundMessages.put(thread, numberInboundMessages);
+        set(getCounters(thread).inboundMessages, numberInboundMessages);
     }
 
     public void incrementInboundMessages(int thread) {
-        this.numberInboundMessages.put(thread, getNumberInboundMessages(thread)+1);
+        getCounters(thread).inboundMessages.increment();
     }
 
     public void setNumberOutboundMessages(int thread, int numberOutboundMessages) {
-        this.numberOutboundMessages.put(thread, numberOutboundMessages);
+        set(getCounters(thread).outboundMessages, numberOutboundMessages);
     }
 
     public int getNumberOutboundMessages(int thread) {
-        Integer number = numberOutboundMessages.get(thread);
-        return number != null ? number : 0;
+        return (int) getCounters(thread).outboundMessages.sum();
     }
 
     public void incrementOutboundMessages(int thread) {
-        this.numberOutboundMessages.put(thread, getNumberOutboundMessages(thread)+1);
+        getCounters(thread).outboundMessages.increment();
     }
 
     public void setNumberEntitiesProcessed(int thread, int numberEntitiesProcessed) {
-        this.numberEntitiesProcessed.put(thread, getNumberEntitiesProcessed(thread)+1);
+        set(getCounters(thread).entitiesProcessed, numberEntitiesProcessed);
     }
 
     public int getNumberEntitiesProcessed(int thread) {
-        Integer number = numberEntitiesProcessed.get(thread);
-        return number != null ? number : 0;
+        return (int) getCounters(thread).entitiesProcessed.sum();
     }
 
     public void incrementNumberEntitiesProcessed(int thread) {
-        this.numberEntitiesProcessed.put(thread, getNumberEntitiesProcessed(thread)+1);
+        getCounters(thread).entitiesProcessed.increment();
     }
 
     public void incrementNumberEntitiesProcessed(int thread, int count) {
-        this.numberEntitiesProcessed.put(thread, getNumberEntitiesProcessed(thread)+count);
+        getCounters(thread).entitiesProcessed.add(count);
     }
     
     public void setNumberInboundPayload(int thread, int numberInboundPayload) {
-        this.numberInboundPayload.put(thread, getNumberInboundPayload(thread)+1);
+        set(getCounters(thread).inboundPayload, numberInboundPayload);
     }
 
     public int getNumberInboundPayload(int thread) {
-        Integer number = numberInboundPayload.get(thread);
-        return number != null ? number : 0;
+        return (int) getCounters(thread).inboundPayload.sum();
     }
 
     public void incrementNumberInboundPayload(int thread) {
-        this.numberInboundPayload.put(thread, getNumberInboundPayload(thread)+1);
+        getCounters(thread).inboundPayload.increment();
     }
 
     public void incrementNumberInboundPayload(int thread, int count) {
-        this.numberInboundPayload.put(thread, getNumberInboundPayload(thread)+count);
+        getCounters(thread).inboundPayload.add(count);
     }
     
     public void setNumberOutboundPayload(int thread, int numberOutboundPayload) {
-        this.numberOutboundPayload.put(thread, getNumberOutboundPayload(thread)+1);
+        set(getCounters(thread).outboundPayload, numberOutboundPayload);
     }
 
     public int getNumberOutboundPayload(int thread) {
-        Integer number = numberOutboundPayload.get(thread);
-        return number != null ? number : 0;
+        return (int) getCounters(thread).outboundPayload.sum();
     }
 
     public void incrementNumberOutboundPayload(int thread) {
-        this.numberOutboundPayload.put(thread, getNumberOutboundPayload(thread)+1);
+        getCounters(thread).outboundPayload.increment();
     }
 
     public void incrementNumberOutboundPayload(int thread, int count) {
-        this.numberOutboundPayload.put(thread, getNumberOutboundPayload(thread)+count);
+        getCounters(thread).outboundPayload.add(count);
+    }
+
+    private static void set(LongAdder adder, long value) {
+        adder.reset();
+        adder.add(value);
+    }
+
+    static class Counters {
+        final LongAdder inboundMessages = new LongAdder();
+        final LongAdder outboundMessages = new LongAdder();
+        final LongAdder entitiesProcessed = new LongAdder();
+        final LongAdder inboundPayload = new LongAdder();
+        final LongAdder outboundPayload = new LongAdder();
+        final LongAdder timeSpentInHandle = new LongAdder();
+        final LongAdder timeSpentWaiting = new LongAdder();
+    }
+
+    /**
+     * A point in time copy of the counters. The values are read one counter at
+     * a time while other threads may still be counting, so they are not
+     * guaranteed to be consistent with each other.
+     */
+    public static class Snapshot {
+
+        long numberInboundMessages;
+        long numberOutboundMessages;
+        long numberEntitiesProcessed;
+        long numberInboundPayload;
+        long numberOutboundPayload;
+        long timeSpentInHandle;
+        long timeSpentWaiting;
+
+        void add(Counters counters) {
+            numberInboundMessages += counters.inboundMessages.sum();
+            numberOutboundMessages += counters.outboundMessages.sum();
+            numberEntitiesProcessed += counters.entitiesProcessed.sum();
+            numberInboundPayload += counters.inboundPayload.sum();
+            numberOutboundPayload += counters.outboundPayload.sum();
+            timeSpentInHandle += counters.timeSpentInHandle.sum();
+            timeSpentWaiting += counters.timeSpentWaiting.sum();
+        }
+
+        public long getNumberInboundMessages() {
+            return numberInboundMessages;
+        }
+
+        public long getNumberOutboundMessages() {
+            return numberOutboundMessages;
+        }
+
+        public long getNumberEntitiesProcessed() {
+            return numberEntitiesProcessed;
+        }
+
+        public long getNumberInboundPayload() {
+            return numberInboundPayload;
+        }
+
+        public long getNumberOutboundPayload() {
+            return numberOutboundPayload;
+        }
+
+        public long getTimeSpentInHandle() {
+            return timeSpentInHandle;
+        }
+
+        public long getTimeSpentWaiting() {
+            return timeSpentWaiting;
+        }
     }
 }
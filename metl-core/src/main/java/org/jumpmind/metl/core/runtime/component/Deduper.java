@@ -21,8 +21,10 @@
 package org.jumpmind.metl.core.runtime.component;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.jumpmind.metl.core.model.Component;
 import org.jumpmind.metl.core.model.ComponentAttribSetting;
@@ -30,12 +32,31 @@ import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.model.ModelAttrib;
 import org.jumpmind.metl.core.model.ModelEntity;
 import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataFileReader;
+import org.jumpmind.metl.core.runtime.EntityDataFileWriter;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.KeyHashTable;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
 
+/**
+ * Removes duplicate rows within a unit of work. Rows are identified by a
+ * 128-bit hash of either the whole row or the selected attributes. The hashes
+ * are kept in a {@link KeyHashTable} that moves to a memory mapped file once
+ * it outgrows {@link #MAX_MEMORY_MB}. A whole row is hashed in the attribute
+ * order of the input model, because rows created with an
+ * {@link org.jumpmind.metl.core.runtime.EntityDataLayout} iterate in model
+ * order and other rows iterate in the order their values were put.
+ * <p>
+ * When the first record is preserved, rows are sent as soon as their key is
+ * first seen. When the last record is preserved, rows are held in first seen
+ * order and sent at the end of the unit of work. Once more rows are held than
+ * fit in the memory budget, every row is spilled to a temporary file. The last
+ * row for each key is then picked out of the file and put back in first seen
+ * order, one budget sized range of keys at a time.
+ */
 public class Deduper extends AbstractComponentRuntime {
 
     public static final String TYPE = "Deduper";
@@ -51,6 +72,10 @@ public class Deduper extends AbstractComponentRuntime {
     public final static String PRESERVE_RECORD = "preserve.record";
 
     public final static String ATTRIBUTE_DEDUPE_ENABLED = "dedupe.enabled";
+
+    public final static String MAX_MEMORY_MB = "max.memory.mb";
+
+    static final int ESTIMATED_ROW_SIZE = 512;
     
     int rowsPerMessage = 1000;
     
@@ -59,10 +84,30 @@ public class Deduper extends AbstractComponentRuntime {
     String dedupeKeyAttribute;
     
     ArrayList<String> dedupeKeyAttributeIdList = new ArrayList<>();
+
+    String[] modelAttributeIds;
+
+    Set<String> modelAttributeIdSet;
     
     String preserveRecord = PRESERVE_FIRST;
 
-    LinkedHashMap<String, EntityData> deduped = new LinkedHashMap<String, EntityData>();
+    long memoryBudget;
+
+    int maxRowsInMemory;
+
+    KeyHashTable keys;
+
+    KeyHashTable.Hasher hasher = new KeyHashTable.Hasher();
+
+    List<EntityData> rows = new ArrayList<>();
+
+    EntityDataFileWriter spilledRows;
+
+    long spilledRowCount;
+
+    long keyCount;
+
+    ArrayList<EntityData> payload;
 
     @Override
     public void start() {
@@ -70,11 +115,22 @@ public class Deduper extends AbstractComponentRuntime {
         rowsPerMessage = getComponent().getInt(ROWS_PER_MESSAGE, rowsPerMessage);
         dedupeType = properties.get(DEDUPE_TYPE);
         preserveRecord = properties.get(PRESERVE_RECORD);
+        memoryBudget = Math.max(1, properties.getLong(MAX_MEMORY_MB, 256)) * 1024 * 1024;
+        maxRowsInMemory = (int) Math.min(Integer.MAX_VALUE - 8, memoryBudget / ESTIMATED_ROW_SIZE);
         Model inputModel = this.getComponent().getInputModel();
         if (inputModel == null) {
             throw new MisconfiguredException("The input model is not set and it is required");
         }
         Component component = context.getFlowStep().getComponent();
+
+        List<String> attributeIds = new ArrayList<>();
+        for (ModelEntity entity : inputModel.getModelEntities()) {
+            for (ModelAttrib attribute : entity.getModelAttributes()) {
+                attributeIds.add(attribute.getId());
+            }
+        }
+        modelAttributeIds = attributeIds.toArray(new String[attributeIds.size()]);
+        modelAttributeIdSet = new HashSet<>(attributeIds);
         
         if (DEDUPE_ATTRIBUTE.equals(dedupeType)) {
         	List<ModelEntity> entities = new ArrayList<>(inputModel.getModelEntities());
@@ -105,50 +161,215 @@ public class Deduper extends AbstractComponentRuntime {
 
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
-        if (inputMessage instanceof EntityDataMessage) {
-            ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
-            for (EntityData entityData : payload) {
-                String key = "";
+        if (keys == null) {
+            keys = new KeyHashTable(memoryBudget);
+        }
+        boolean preserveLast = PRESERVE_LAST.equals(preserveRecord);
+        payload = new ArrayList<EntityData>(rowsPerMessage);
 
-                if (DEDUPE_ATTRIBUTE.equals(dedupeType)) {
-                	for (String attributeId : dedupeKeyAttributeIdList) {
-                		key += entityData.get(attributeId);
-                	}
-                } else {
-                	key = entityData.toString();
-                }
-                
-                if (!deduped.containsKey(key)) {
+        if (inputMessage instanceof EntityDataMessage) {
+            ArrayList<EntityData> inputRows = ((EntityDataMessage)inputMessage).getPayload();
+            for (EntityData entityData : inputRows) {
+                hash(entityData);
+                long slot = keys.find(hasher.getHash1(), hasher.getHash2());
+                if (slot < 0) {
                     getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-                    deduped.put(key, entityData);
-                } else {
-                    // else it exists, check if we need to save the first or last value and replace if necessary
-                	if (PRESERVE_LAST.equals(preserveRecord)) {
-                		deduped.put(key, entityData);
-                	}
+                    if (!preserveLast) {
+                        keys.add(hasher.getHash1(), hasher.getHash2(), keyCount, keyCount);
+                        send(entityData, callback);
+                    } else if (spilledRows == null) {
+                        keys.add(hasher.getHash1(), hasher.getHash2(), keyCount, keyCount);
+                        rows.add(entityData);
+                        if (rows.size() > maxRowsInMemory) {
+                            spill();
+                        }
+                    } else {
+                        keys.add(hasher.getHash1(), hasher.getHash2(), keyCount, spilledRowCount);
+                        spilledRows.write(entityData);
+                        spilledRowCount++;
+                    }
+                    keyCount++;
+                } else if (preserveLast) {
+                    // it exists and the last value is the one to keep
+                    if (spilledRows == null) {
+                        rows.set((int) keys.getValue(slot, 0), entityData);
+                    } else {
+                        keys.setValue(slot, 1, spilledRowCount);
+                        spilledRows.write(entityData);
+                        spilledRowCount++;
+                    }
                 }
             }
         }
 
         if (unitOfWorkBoundaryReached) {
-            if (deduped.size() > 0) {
-                int count = 0;
-                ArrayList<EntityData> payload = new ArrayList<EntityData>(rowsPerMessage);
-                for (EntityData data : deduped.values()) {
-                    if (count >= rowsPerMessage) {
-                        callback.sendEntityDataMessage(null, payload);
-                        payload = new ArrayList<EntityData>();
-                        count = 0;
+            try {
+                if (spilledRows != null) {
+                    sendSpilledRows(callback);
+                } else {
+                    for (EntityData data : rows) {
+                        send(data, callback);
                     }
-                    payload.add(data);
-                    count++;
                 }
+            } finally {
+                reset();
+            }
+        }
 
-                deduped.clear();
+        if (payload.size() > 0) {
+            callback.sendEntityDataMessage(null, payload);
+        }
+    }
 
-                callback.sendEntityDataMessage(null, payload);
+    @Override
+    public void stop() {
+        reset();
+        super.stop();
+    }
+
+    protected void reset() {
+        if (keys != null) {
+            keys.close();
+            keys = null;
+        }
+        if (spilledRows != null) {
+            spilledRows.close();
+            spilledRows.getFile().delete();
+            spilledRows = null;
+        }
+        rows = new ArrayList<>();
+        spilledRowCount = 0;
+        keyCount = 0;
+    }
+
+    protected void hash(EntityData entityData) {
+        hasher.reset();
+        if (DEDUPE_ATTRIBUTE.equals(dedupeType)) {
+            for (String attributeId : dedupeKeyAttributeIdList) {
+                hash(entityData.get(attributeId));
+            }
+        } else {
+            int hashed = 0;
+            for (String attributeId : modelAttributeIds) {
+                if (entityData.containsKey(attributeId)) {
+                    hasher.add(attributeId);
+                    hash(entityData.get(attributeId));
+                    hashed++;
+                }
+            }
+            if (hashed < entityData.size()) {
+                List<String> otherIds = new ArrayList<>();
+                for (String attributeId : entityData.keySet()) {
+                    if (!modelAttributeIdSet.contains(attributeId)) {
+                        otherIds.add(attributeId);
+                    }
+                }
+                Collections.sort(otherIds);
+                for (String attributeId : otherIds) {
+                    hasher.add(attributeId);
+                    hash(entityData.get(attributeId));
+                }
             }
         }
     }
 
+    protected void hash(Object value) {
+        if (value instanceof byte[]) {
+            hasher.add((byte[]) value);
+        } else {
+            hasher.add(value != null ? value.toString() : null);
+        }
+    }
+
+    protected void send(EntityData data, ISendMessageCallback callback) {
+        payload.add(data);
+        if (payload.size() >= rowsPerMessage) {
+            callback.sendEntityDataMessage(null, payload);
+            payload = new ArrayList<EntityData>(rowsPerMessage);
+        }
+    }
+
+    /**
+     * Rows held in memory were written in first seen order, so their position
+     * in the file is the order their key was first seen in.
+     */
+    protected void spill() {
+        spilledRows = EntityDataFileWriter.createTempFile("metl-dedupe-");
+        for (EntityData data : rows) {
+            spilledRows.write(data);
+        }
+        spilledRowCount = rows.size();
+        rows = new ArrayList<>();
+        info("Spilled %d rows to %s", spilledRowCount, spilledRows.getFile().getAbsolutePath());
+    }
+
+    /**
+     * Pick the last row for each key out of the spill file. The rows are
+     * split into files by ranges of the order their key was first seen in,
+     * then each range is put in order in memory and sent.
+     */
+    protected void sendSpilledRows(ISendMessageCallback callback) {
+        spilledRows.close();
+        int rangeCount = (int) ((keyCount + maxRowsInMemory - 1) / maxRowsInMemory);
+        EntityDataFileWriter[] ranges = new EntityDataFileWriter[rangeCount];
+        try {
+            EntityDataFileReader reader = new EntityDataFileReader(spilledRows.getFile());
+            try {
+                EntityData data = null;
+                long rowNumber = 0;
+                while ((data = reader.read()) != null) {
+                    long slot = find(data);
+                    if (keys.getValue(slot, 1) == rowNumber) {
+                        int range = (int) (keys.getValue(slot, 0) / maxRowsInMemory);
+                        if (ranges[range] == null) {
+                            ranges[range] = EntityDataFileWriter.createTempFile("metl-dedupe-");
+                        }
+                        ranges[range].write(data);
+                    }
+                    rowNumber++;
+                }
+            } finally {
+                reader.close();
+            }
+
+            for (int i = 0; i < rangeCount; i++) {
+                if (ranges[i] != null) {
+                    ranges[i].close();
+                    long first = (long) i * maxRowsInMemory;
+                    EntityData[] ordered = new EntityData[(int) Math.min(maxRowsInMemory, keyCount - first)];
+                    reader = new EntityDataFileReader(ranges[i].getFile());
+                    try {
+                        EntityData data = null;
+                        while ((data = reader.read()) != null) {
+                            ordered[(int) (keys.getValue(find(data), 0) - first)] = data;
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    for (EntityData data : ordered) {
+                        send(data, callback);
+                    }
+                    ranges[i].getFile().delete();
+                    ranges[i] = null;
+                }
+            }
+        } finally {
+            for (EntityDataFileWriter range : ranges) {
+                if (range != null) {
+                    range.close();
+                    range.getFile().delete();
+                }
+            }
+        }
+    }
+
+    protected long find(EntityData data) {
+        hash(data);
+        long slot = keys.find(hasher.getHash1(), hasher.getHash2());
+        if (slot < 0) {
+            throw new IllegalStateException("Could not find the key of a spilled row");
+        }
+        return slot;
+    }
+
 }
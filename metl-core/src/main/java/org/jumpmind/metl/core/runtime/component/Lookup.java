@@ -27,17 +27,36 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.ObjectUtils;
 import org.jumpmind.metl.core.model.FlowStepLink;
 import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataFileReader;
+import org.jumpmind.metl.core.runtime.EntityDataFileWriter;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.LookupTable;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
 
+/**
+ * Replaces a value in each row with the value found for its key in the rows
+ * from the lookup data source. The lookup is held in a {@link LookupTable}
+ * that is memory mapped once it outgrows {@link #MAX_MEMORY_MB}. Rows that
+ * arrive before the lookup data source is done are staged to a temporary file.
+ * <p>
+ * When {@link #LOOKUP_CACHE_SECONDS} is set, a loaded lookup is kept and
+ * reused by later executions of the same step until it is that many seconds
+ * old. The rows from the lookup data source are ignored while it is reused.
+ * Expired lookups are evicted whenever a lookup is acquired or published, by a
+ * sweep every {@link #CACHE_SWEEP_PERIOD_MS} while the cache is not empty, and
+ * when the flow of the step is undeployed or its agent is stopped.
+ */
 public class Lookup extends AbstractComponentRuntime {
 
     public final static String TYPE = "Lookup";
@@ -47,6 +66,14 @@ public class Lookup extends AbstractComponentRuntime {
     public final static String LOOKUP_VALUE = "lookup.value.attribute";
     public final static String REPLACEMENT_VALUE_ATTRIBUTE = "replacement.value.attribute";
     public final static String REPLACEMENT_KEY_ATTRIBUTE = "replacement.key.attribute";
+    public final static String MAX_MEMORY_MB = "max.memory.mb";
+    public final static String LOOKUP_CACHE_SECONDS = "lookup.cache.seconds";
+
+    static final long CACHE_SWEEP_PERIOD_MS = 60000;
+
+    static final Map<String, CachedLookup> cachedLookups = new HashMap<>();
+
+    static ScheduledExecutorService cacheSweeper;
 
     boolean lookupInitialized = false;
 
@@ -56,9 +83,17 @@ public class Lookup extends AbstractComponentRuntime {
     String replacementKeyAttributeId;
     String replacementValueAttributeId;
 
-    Map<Object, Object> lookup = new HashMap<Object, Object>();
+    long memoryBudget;
 
-    List<Message> queuedWhileWaitingForLookup = new ArrayList<Message>();
+    long cacheMillis;
+
+    LookupTable lookup;
+
+    CachedLookup cachedLookup;
+
+    EntityDataFileWriter staged;
+
+    List<Integer> stagedMessageSizes = new ArrayList<>();
 
     @Override
     public void start() {
@@ -69,6 +104,8 @@ public class Lookup extends AbstractComponentRuntime {
         valueAttributeId = properties.get(LOOKUP_VALUE);
         replacementKeyAttributeId = properties.get(REPLACEMENT_KEY_ATTRIBUTE);
         replacementValueAttributeId = properties.get(REPLACEMENT_VALUE_ATTRIBUTE);
+        memoryBudget = Math.max(1, properties.getLong(MAX_MEMORY_MB, 256)) * 1024 * 1024;
+        cacheMillis = properties.getLong(LOOKUP_CACHE_SECONDS, 0) * 1000;
         
         if (getInputModel() == null) {
             throw new MisconfiguredException("The input model must be specified");
@@ -84,6 +121,19 @@ public class Lookup extends AbstractComponentRuntime {
         if (link == null) {
             throw new MisconfiguredException("The lookup data source is missing"); 
         }
+
+        if (cacheMillis > 0) {
+            cachedLookup = CachedLookup.acquire(getCacheKey(), cacheMillis);
+            if (cachedLookup != null) {
+                lookup = cachedLookup.table;
+                lookupInitialized = true;
+                info("Reusing a lookup of %d keys", lookup.size());
+            }
+        }
+
+        if (lookup == null) {
+            lookup = new LookupTable(memoryBudget);
+        }
     }
 
     @Override
@@ -98,39 +148,109 @@ public class Lookup extends AbstractComponentRuntime {
         }
     }
 
+    @Override
+    public void stop() {
+        if (cachedLookup != null) {
+            CachedLookup.release(cachedLookup);
+            cachedLookup = null;
+        } else if (lookup != null) {
+            lookup.close();
+        }
+        lookup = null;
+        deleteStaged();
+        super.stop();
+    }
+
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
         if (sourceStepId.equals(inputMessage.getHeader().getOriginatingStepId())) {
-            if (inputMessage instanceof EntityDataMessage) {
+            if (inputMessage instanceof EntityDataMessage && cachedLookup == null) {
                 List<EntityData> datas = ((EntityDataMessage)inputMessage).getPayload();
                 for (EntityData entityData : datas) {
                     lookup.put(ObjectUtils.toString(entityData.get(keyAttributeId)), entityData.get(valueAttributeId));
                 }
             }
-            lookupInitialized = inputMessage instanceof ControlMessage;
-
-            if (lookupInitialized) {
-                Iterator<Message> messages = queuedWhileWaitingForLookup.iterator();
-                while (messages.hasNext()) {
-                    Message message = messages.next();
-                    if (message instanceof EntityDataMessage) {
-                        enhanceAndSend((EntityDataMessage)message, callback, unitOfWorkBoundaryReached);
-                    }
+
+            if (!lookupInitialized && inputMessage instanceof ControlMessage) {
+                lookupInitialized = true;
+                info("Loaded a lookup of %d keys", lookup.size());
+                if (cacheMillis > 0) {
+                    cachedLookup = CachedLookup.publish(getCacheKey(), lookup, cacheMillis);
                 }
+                sendStaged(callback);
             }
         } else if (!lookupInitialized) {
-            queuedWhileWaitingForLookup.add(inputMessage);
-        } else if (lookupInitialized && !(inputMessage instanceof ControlMessage)) {
             if (inputMessage instanceof EntityDataMessage) {
-                enhanceAndSend((EntityDataMessage)inputMessage, callback, unitOfWorkBoundaryReached);
+                stage(((EntityDataMessage) inputMessage).getPayload());
+            }
+        } else if (inputMessage instanceof EntityDataMessage) {
+            enhanceAndSend(((EntityDataMessage) inputMessage).getPayload(), callback);
+        }
+    }
+
+    protected String getCacheKey() {
+        return getFlowStepId() + ":" + keyAttributeId + ":" + valueAttributeId;
+    }
+
+    /**
+     * Evict the cached lookups of a flow step. They are closed as soon as no
+     * execution is using them.
+     */
+    public static void evictCachedLookups(String flowStepId) {
+        synchronized (cachedLookups) {
+            Iterator<Map.Entry<String, CachedLookup>> entries = cachedLookups.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, CachedLookup> entry = entries.next();
+                if (entry.getKey().startsWith(flowStepId + ":")) {
+                    entries.remove();
+                    entry.getValue().retire();
+                }
             }
         }
     }
 
-    protected void enhanceAndSend(EntityDataMessage message, ISendMessageCallback callback, boolean unitOfWorkLastMessage) {
-        List<EntityData> datas = message.getPayload();
+    protected void stage(List<EntityData> datas) {
+        if (datas != null && datas.size() > 0) {
+            if (staged == null) {
+                staged = EntityDataFileWriter.createTempFile("metl-lookup-");
+            }
+            for (EntityData data : datas) {
+                staged.write(data);
+            }
+            stagedMessageSizes.add(datas.size());
+        }
+    }
+
+    protected void sendStaged(ISendMessageCallback callback) {
+        if (staged != null) {
+            staged.close();
+            EntityDataFileReader reader = new EntityDataFileReader(staged.getFile(), getInputModel().getEntityDataLayout());
+            try {
+                for (Integer size : stagedMessageSizes) {
+                    List<EntityData> datas = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        datas.add(reader.read());
+                    }
+                    enhanceAndSend(datas, callback);
+                }
+            } finally {
+                reader.close();
+                deleteStaged();
+            }
+        }
+    }
+
+    protected void deleteStaged() {
+        if (staged != null) {
+            staged.close();
+            staged.getFile().delete();
+            staged = null;
+        }
+        stagedMessageSizes.clear();
+    }
+
+    protected void enhanceAndSend(List<EntityData> datas, ISendMessageCallback callback) {
         if (datas != null) {
-            debug("Using lookup table: {}", lookup);
             ArrayList<EntityData> payload = new ArrayList<EntityData>();
             for (int j = 0; j < datas.size(); j++) {
                 getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
@@ -146,4 +266,102 @@ public class Lookup extends AbstractComponentRuntime {
         }   
     }
 
+    /**
+     * A loaded lookup shared by executions of the same step. It is closed once
+     * it has been replaced, expired or evicted and no execution is using it.
+     * The cache is guarded by synchronizing on {@link Lookup#cachedLookups}.
+     */
+    static class CachedLookup {
+
+        LookupTable table;
+
+        long loadTime = System.currentTimeMillis();
+
+        long cacheMillis;
+
+        int users;
+
+        boolean retired;
+
+        CachedLookup(LookupTable table, long cacheMillis) {
+            this.table = table;
+            this.cacheMillis = cacheMillis;
+        }
+
+        static CachedLookup acquire(String key, long cacheMillis) {
+            synchronized (cachedLookups) {
+                evictExpired();
+                CachedLookup cached = cachedLookups.get(key);
+                if (cached != null && System.currentTimeMillis() - cached.loadTime < cacheMillis) {
+                    cached.users++;
+                    return cached;
+                } else if (cached != null) {
+                    cachedLookups.remove(key);
+                    cached.retire();
+                }
+                return null;
+            }
+        }
+
+        static CachedLookup publish(String key, LookupTable table, long cacheMillis) {
+            synchronized (cachedLookups) {
+                evictExpired();
+                CachedLookup cached = new CachedLookup(table, cacheMillis);
+                cached.users = 1;
+                CachedLookup previous = cachedLookups.put(key, cached);
+                if (previous != null) {
+                    previous.retire();
+                }
+                if (cacheSweeper == null) {
+                    cacheSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "metl-lookup-cache-sweeper");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    cacheSweeper.scheduleWithFixedDelay(() -> sweep(), CACHE_SWEEP_PERIOD_MS, CACHE_SWEEP_PERIOD_MS,
+                            TimeUnit.MILLISECONDS);
+                }
+                return cached;
+            }
+        }
+
+        static void release(CachedLookup cached) {
+            synchronized (cachedLookups) {
+                cached.users--;
+                if (cached.retired && cached.users == 0) {
+                    cached.table.close();
+                }
+            }
+        }
+
+        static void sweep() {
+            synchronized (cachedLookups) {
+                evictExpired();
+                if (cachedLookups.isEmpty() && cacheSweeper != null) {
+                    cacheSweeper.shutdown();
+                    cacheSweeper = null;
+                }
+            }
+        }
+
+        static void evictExpired() {
+            long now = System.currentTimeMillis();
+            Iterator<CachedLookup> cached = cachedLookups.values().iterator();
+            while (cached.hasNext()) {
+                CachedLookup lookup = cached.next();
+                if (now - lookup.loadTime >= lookup.cacheMillis) {
+                    cached.remove();
+                    lookup.retire();
+                }
+            }
+        }
+
+        void retire() {
+            retired = true;
+            if (users == 0) {
+                table.close();
+            }
+        }
+    }
+
 }
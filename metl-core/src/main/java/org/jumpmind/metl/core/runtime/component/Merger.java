@@ -20,31 +20,84 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 import org.jumpmind.metl.core.model.Component;
 import org.jumpmind.metl.core.model.ComponentAttribSetting;
+import org.jumpmind.metl.core.model.FlowStepLink;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataFileReader;
+import org.jumpmind.metl.core.runtime.EntityDataFileWriter;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
+import org.jumpmind.properties.TypedProperties;
 
+/**
+ * Merges the rows that have the same values for the merge attributes into one
+ * row and sends the merged rows in the order their key was first seen.
+ * {@link #JOIN_TYPE} decides which keys are sent: every key, only keys every
+ * source had rows for, or only keys the {@link #LEFT_SOURCE} had rows for.
+ * <p>
+ * Merged rows are kept in memory until {@link #MAX_MEMORY_MB} is used up. They
+ * are then spread by key over partition files along with every row that
+ * follows, and each partition is merged on its own at the end of the unit of
+ * work. A partition with more keys than fit in memory is spread over
+ * partitions of its own in the same way. The merged partitions are put back
+ * in first seen order with a merge on the order the keys were seen in.
+ */
 public class Merger extends AbstractComponentRuntime {
 
     public static final String TYPE = "Merger";
 
     public final static String MERGE_ATTRIBUTE = "merge.attribute";
 
-    Map<Object, EntityData> mergedData = new LinkedHashMap<Object, EntityData>();
+    public final static String JOIN_TYPE = "join.type";
+
+    public final static String LEFT_SOURCE = "left.source";
+
+    public final static String MAX_MEMORY_MB = "max.memory.mb";
+
+    public final static String JOIN_FULL_OUTER = "FULL OUTER";
+
+    public final static String JOIN_INNER = "INNER";
+
+    public final static String JOIN_LEFT_OUTER = "LEFT OUTER";
+
+    static final int ESTIMATED_ROW_SIZE = 512;
+
+    static final int PARTITIONS = 64;
+
+    static final int MAX_REPARTITION_DEPTH = 4;
+
+    static final int SOURCE_BITS = 16;
+
+    Map<MergeKey, MergedRow> mergedData = new LinkedHashMap<MergeKey, MergedRow>();
 
     List<String> attributesToMergeOn = new ArrayList<String>();
 
+    List<String> sourceStepIds = new ArrayList<String>();
+
+    String joinType = JOIN_FULL_OUTER;
+
+    int leftSourceIndex = -1;
+
+    int maxRowsInMemory;
+
+    long sequence;
+
+    EntityDataFileWriter[] partitions;
+
     @Override
     public void start() {
         Component component = getComponent();
@@ -66,6 +119,28 @@ public class Merger extends AbstractComponentRuntime {
         if (attributesToMergeOn.size() == 0) {
             throw new MisconfiguredException("At least one attribute must be selected for joining.");
         }
+
+        TypedProperties properties = getTypedProperties();
+        joinType = properties.get(JOIN_TYPE, JOIN_FULL_OUTER);
+        long memoryBudget = Math.max(1, properties.getLong(MAX_MEMORY_MB, 256)) * 1024 * 1024;
+        maxRowsInMemory = (int) Math.min(Integer.MAX_VALUE - 8, memoryBudget / ESTIMATED_ROW_SIZE);
+
+        for (FlowStepLink link : getFlow().getFlowStepLinks()) {
+            if (link.getTargetStepId().equals(getFlowStepId()) && !sourceStepIds.contains(link.getSourceStepId())) {
+                sourceStepIds.add(link.getSourceStepId());
+            }
+        }
+
+        if (JOIN_LEFT_OUTER.equals(joinType)) {
+            leftSourceIndex = sourceStepIds.indexOf(properties.get(LEFT_SOURCE));
+            if (leftSourceIndex < 0) {
+                throw new MisconfiguredException("The left source must be one of the steps linked to this step for a left outer join.");
+            }
+        }
+
+        if (!JOIN_FULL_OUTER.equals(joinType) && sourceStepIds.size() > SOURCE_BITS) {
+            throw new MisconfiguredException("An %s join can have at most %d sources", joinType, SOURCE_BITS);
+        }
     }
 
     @Override
@@ -77,43 +152,61 @@ public class Merger extends AbstractComponentRuntime {
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
         if (inputMessage instanceof EntityDataMessage) {
             ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
-            join(payload);
+            join(payload, getSourceMask(inputMessage.getHeader().getOriginatingStepId()));
         }
 
         if (unitOfWorkBoundaryReached) {
-            ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
-            Iterator<EntityData> itr = mergedData.values().iterator();
-            while (itr.hasNext()) {
-                if (dataToSend.size() >= properties.getInt(ROWS_PER_MESSAGE)) {
-                    callback.sendEntityDataMessage(null, dataToSend);
-                    dataToSend = new ArrayList<EntityData>();
+            try {
+                if (partitions != null) {
+                    sendPartitions(callback);
+                } else {
+                    send(mergedData.values().iterator(), callback, true);
                 }
-                dataToSend.add(itr.next());
+            } finally {
+                reset();
             }
-            if (dataToSend != null && dataToSend.size() > 0) {
-                callback.sendEntityDataMessage(null, dataToSend);
+        }
+    }
+
+    @Override
+    public void stop() {
+        reset();
+        super.stop();
+    }
+
+    protected void reset() {
+        mergedData = new LinkedHashMap<MergeKey, MergedRow>();
+        sequence = 0;
+        if (partitions != null) {
+            for (EntityDataFileWriter partition : partitions) {
+                delete(partition);
             }
+            partitions = null;
         }
     }
 
-    private void join(ArrayList<EntityData> records) {
+    protected int getSourceMask(String sourceStepId) {
+        int index = sourceStepIds.indexOf(sourceStepId);
+        return index >= 0 && index < SOURCE_BITS ? 1 << index : 0;
+    }
+
+    private void join(ArrayList<EntityData> records, int sourceMask) {
         for (EntityData entityData : records) {
             getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-            StringBuilder key = new StringBuilder();
-            for (String attributeId : attributesToMergeOn) {
-                if (key.length() > 0) {
-                    key.append("&");
-                }
-                key.append(attributeId);
-                key.append("=");
-                key.append(entityData.get(attributeId));
-            }
-            Object keyValue = key.toString();
-            EntityData existingRecord = mergedData.get(keyValue);
-            if (existingRecord != null) {
-                mergeRecords(entityData, existingRecord);
+            MergeKey key = new MergeKey(entityData, attributesToMergeOn);
+            if (partitions != null) {
+                write(key, entityData, sequence++, sourceMask);
             } else {
-                mergedData.put(keyValue, entityData.copy());
+                MergedRow existingRecord = mergedData.get(key);
+                if (existingRecord != null) {
+                    mergeRecords(entityData, existingRecord.data);
+                    existingRecord.sourceMask |= sourceMask;
+                } else {
+                    mergedData.put(key, new MergedRow(entityData.copy(), sequence++, sourceMask));
+                    if (mergedData.size() > maxRowsInMemory) {
+                        spill();
+                    }
+                }
             }
         }
     }
@@ -129,4 +222,337 @@ public class Merger extends AbstractComponentRuntime {
             }
         }
     }
+
+    protected boolean isSent(MergedRow row) {
+        if (JOIN_INNER.equals(joinType)) {
+            int allSources = sourceStepIds.size() >= 32 ? -1 : (1 << sourceStepIds.size()) - 1;
+            return row.sourceMask == allSources;
+        } else if (JOIN_LEFT_OUTER.equals(joinType)) {
+            return (row.sourceMask & (1 << leftSourceIndex)) != 0;
+        } else {
+            return true;
+        }
+    }
+
+    protected void send(Iterator<MergedRow> rows, ISendMessageCallback callback, boolean filter) {
+        int rowsPerMessage = properties.getInt(ROWS_PER_MESSAGE);
+        ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
+        while (rows.hasNext()) {
+            MergedRow row = rows.next();
+            if (!filter || isSent(row)) {
+                if (dataToSend.size() >= rowsPerMessage) {
+                    callback.sendEntityDataMessage(null, dataToSend);
+                    dataToSend = new ArrayList<EntityData>();
+                }
+                dataToSend.add(row.data);
+            }
+        }
+        if (dataToSend != null && dataToSend.size() > 0) {
+            callback.sendEntityDataMessage(null, dataToSend);
+        }
+    }
+
+    protected void spill() {
+        partitions = new EntityDataFileWriter[PARTITIONS];
+        for (Map.Entry<MergeKey, MergedRow> entry : mergedData.entrySet()) {
+            MergedRow row = entry.getValue();
+            write(entry.getKey(), row.data, row.sequence, row.sourceMask);
+        }
+        info("Spilled %d merged rows to %d partitions", mergedData.size(), PARTITIONS);
+        mergedData = new LinkedHashMap<MergeKey, MergedRow>();
+    }
+
+    protected void write(MergeKey key, EntityData data, long sequence, int sourceMask) {
+        write(partitions, key, data, sequence, sourceMask, 0);
+    }
+
+    protected void write(EntityDataFileWriter[] partitions, MergeKey key, EntityData data, long sequence, int sourceMask, int depth) {
+        int partition = partitionOf(key, depth);
+        if (partitions[partition] == null) {
+            partitions[partition] = EntityDataFileWriter.createTempFile("metl-merge-");
+        }
+        partitions[partition].write(data, sequence << SOURCE_BITS | sourceMask);
+    }
+
+    /**
+     * The partition of a key at a depth of repartitioning. The key's hash is
+     * mixed with the depth so that keys that shared a partition at one depth
+     * are spread out again at the next.
+     */
+    static int partitionOf(MergeKey key, int depth) {
+        int hash = key.hashCode();
+        if (depth > 0) {
+            hash ^= depth * 0x9E3779B9;
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            hash *= 0xC2B2AE35;
+            hash ^= hash >>> 16;
+        }
+        return Math.floorMod(hash, PARTITIONS);
+    }
+
+    /**
+     * Merge each partition on its own. A partition's rows were written in the
+     * order they arrived, so its merged rows come out in first seen order and
+     * the partitions only need to be merged on that order.
+     */
+    protected void sendPartitions(ISendMessageCallback callback) {
+        EntityDataFileWriter[] merged = new EntityDataFileWriter[PARTITIONS];
+        List<EntityDataFileReader> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < PARTITIONS; i++) {
+                if (partitions[i] != null) {
+                    merged[i] = mergePartition(partitions[i], 0);
+                    partitions[i] = null;
+                }
+            }
+            send(merge(merged, readers), callback, false);
+        } finally {
+            for (EntityDataFileReader reader : readers) {
+                reader.close();
+            }
+            for (EntityDataFileWriter run : merged) {
+                delete(run);
+            }
+        }
+    }
+
+    /**
+     * Merge the rows of a partition file into a run of the rows to send,
+     * tagged and ordered by the sequence they were first seen at. The file is
+     * deleted. When the partition has more keys than fit in memory, it is
+     * spread over partitions of its own that are merged the same way, and
+     * their runs are merged into one.
+     */
+    protected EntityDataFileWriter mergePartition(EntityDataFileWriter partition, int depth) {
+        Map<MergeKey, MergedRow> rows = new LinkedHashMap<MergeKey, MergedRow>();
+        EntityDataFileWriter[] subpartitions = null;
+        partition.close();
+        EntityDataFileReader reader = new EntityDataFileReader(partition.getFile());
+        try {
+            EntityData data = null;
+            while ((data = reader.read()) != null) {
+                MergeKey key = new MergeKey(data, attributesToMergeOn);
+                long sequence = reader.getTag() >>> SOURCE_BITS;
+                int sourceMask = (int) (reader.getTag() & ((1 << SOURCE_BITS) - 1));
+                if (subpartitions != null) {
+                    write(subpartitions, key, data, sequence, sourceMask, depth + 1);
+                } else {
+                    MergedRow existingRecord = rows.get(key);
+                    if (existingRecord != null) {
+                        mergeRecords(data, existingRecord.data);
+                        existingRecord.sourceMask |= sourceMask;
+                    } else {
+                        rows.put(key, new MergedRow(data, sequence, sourceMask));
+                        if (rows.size() > maxRowsInMemory && depth < MAX_REPARTITION_DEPTH) {
+                            subpartitions = repartition(rows, depth + 1);
+                            rows = null;
+                        }
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            if (subpartitions != null) {
+                for (EntityDataFileWriter subpartition : subpartitions) {
+                    delete(subpartition);
+                }
+            }
+            throw ex;
+        } finally {
+            reader.close();
+            delete(partition);
+        }
+
+        if (subpartitions != null) {
+            return mergeSubpartitions(subpartitions, depth + 1);
+        } else {
+            EntityDataFileWriter run = null;
+            for (MergedRow row : rows.values()) {
+                if (isSent(row)) {
+                    if (run == null) {
+                        run = EntityDataFileWriter.createTempFile("metl-merge-");
+                    }
+                    run.write(row.data, row.sequence);
+                }
+            }
+            if (run != null) {
+                run.close();
+            }
+            return run;
+        }
+    }
+
+    /**
+     * Spread the rows merged so far over new partitions. The rest of the
+     * partition file follows them, so each new partition is still in the
+     * order its rows were seen.
+     */
+    protected EntityDataFileWriter[] repartition(Map<MergeKey, MergedRow> rows, int depth) {
+        EntityDataFileWriter[] subpartitions = new EntityDataFileWriter[PARTITIONS];
+        for (Map.Entry<MergeKey, MergedRow> entry : rows.entrySet()) {
+            MergedRow row = entry.getValue();
+            write(subpartitions, entry.getKey(), row.data, row.sequence, row.sourceMask, depth);
+        }
+        info("Repartitioned %d merged rows to %d partitions", rows.size(), PARTITIONS);
+        return subpartitions;
+    }
+
+    protected EntityDataFileWriter mergeSubpartitions(EntityDataFileWriter[] subpartitions, int depth) {
+        EntityDataFileWriter[] merged = new EntityDataFileWriter[PARTITIONS];
+        List<EntityDataFileReader> readers = new ArrayList<>();
+        EntityDataFileWriter run = null;
+        try {
+            for (int i = 0; i < PARTITIONS; i++) {
+                if (subpartitions[i] != null) {
+                    merged[i] = mergePartition(subpartitions[i], depth);
+                    subpartitions[i] = null;
+                }
+            }
+            Iterator<MergedRow> rows = merge(merged, readers);
+            while (rows.hasNext()) {
+                MergedRow row = rows.next();
+                if (run == null) {
+                    run = EntityDataFileWriter.createTempFile("metl-merge-");
+                }
+                run.write(row.data, row.sequence);
+            }
+            if (run != null) {
+                run.close();
+            }
+            return run;
+        } catch (RuntimeException ex) {
+            delete(run);
+            throw ex;
+        } finally {
+            for (EntityDataFileReader reader : readers) {
+                reader.close();
+            }
+            for (int i = 0; i < PARTITIONS; i++) {
+                delete(subpartitions[i]);
+                delete(merged[i]);
+            }
+        }
+    }
+
+    /**
+     * Merge runs on the sequence their rows were first seen at. The readers
+     * that are opened are added to the list so the caller can close them.
+     */
+    protected Iterator<MergedRow> merge(EntityDataFileWriter[] runs, List<EntityDataFileReader> readers) {
+        PriorityQueue<MergedRun> queue = new PriorityQueue<>();
+        for (EntityDataFileWriter run : runs) {
+            if (run != null) {
+                EntityDataFileReader reader = new EntityDataFileReader(run.getFile());
+                readers.add(reader);
+                MergedRun mergedRun = new MergedRun(reader);
+                if (mergedRun.next()) {
+                    queue.add(mergedRun);
+                }
+            }
+        }
+
+        return new Iterator<MergedRow>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public MergedRow next() {
+                MergedRun run = queue.poll();
+                MergedRow row = run.current;
+                if (run.next()) {
+                    queue.add(run);
+                }
+                return row;
+            }
+        };
+    }
+
+    protected void delete(EntityDataFileWriter writer) {
+        if (writer != null) {
+            writer.close();
+            writer.getFile().delete();
+        }
+    }
+
+    /**
+     * The merge attribute values of a row. Numbers are compared by value so
+     * that, for example, an Integer 1 and a BigDecimal 1.0 are the same key.
+     */
+    static class MergeKey {
+
+        Object[] values;
+
+        int hashCode;
+
+        MergeKey(EntityData data, List<String> attributeIds) {
+            values = new Object[attributeIds.size()];
+            for (int i = 0; i < values.length; i++) {
+                Object value = data.get(attributeIds.get(i));
+                if (value instanceof Number && !isNaNOrInfinite((Number) value)) {
+                    BigDecimal number = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+                    value = number.signum() == 0 ? BigDecimal.ZERO : number.stripTrailingZeros();
+                } else if (value instanceof byte[]) {
+                    value = ByteBuffer.wrap((byte[]) value);
+                }
+                values[i] = value;
+            }
+            hashCode = Arrays.hashCode(values);
+        }
+
+        static boolean isNaNOrInfinite(Number value) {
+            double d = value.doubleValue();
+            return (value instanceof Double || value instanceof Float) && (Double.isNaN(d) || Double.isInfinite(d));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof MergeKey && hashCode == obj.hashCode()
+                    && Arrays.equals(values, ((MergeKey) obj).values);
+        }
+    }
+
+    static class MergedRow {
+
+        EntityData data;
+
+        long sequence;
+
+        int sourceMask;
+
+        MergedRow(EntityData data, long sequence, int sourceMask) {
+            this.data = data;
+            this.sequence = sequence;
+            this.sourceMask = sourceMask;
+        }
+    }
+
+    static class MergedRun implements Comparable<MergedRun> {
+
+        EntityDataFileReader reader;
+
+        MergedRow current;
+
+        MergedRun(EntityDataFileReader reader) {
+            this.reader = reader;
+        }
+
+        boolean next() {
+            EntityData data = reader.read();
+            current = data != null ? new MergedRow(data, reader.getTag(), 0) : null;
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(MergedRun o) {
+            return Long.compare(current.sequence, o.current.sequence);
+        }
+    }
 }
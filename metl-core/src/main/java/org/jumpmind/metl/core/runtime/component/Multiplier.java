@@ -25,26 +25,53 @@ import static org.apache.commons.lang.StringUtils.isBlank;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataFileReader;
+import org.jumpmind.metl.core.runtime.EntityDataFileWriter;
+import org.jumpmind.metl.core.runtime.EntityDataLayout;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 
+/**
+ * Sends every inbound row once for each row from the multiplier source, with
+ * the values of the multiplier row added to it. The multiplier rows are kept
+ * in memory until {@link #MAX_MEMORY_MB} is used up, after which all of them
+ * are written to a file that is read once for each inbound message. Rows from
+ * later units of work of the multiplier source are added to the rows already
+ * received.
+ * <p>
+ * Both sides are turned into arrays of attribute ordinals and values up
+ * front, so building an output row is a couple of array copies into entity
+ * data that uses the layout of the input model.
+ */
 public class Multiplier extends AbstractComponentRuntime {
 
     public static final String TYPE = "Multiplier";
 
     public final static String MULTIPLIER_SOURCE_STEP = "multiplier.source.step";
 
+    public final static String MAX_MEMORY_MB = "max.memory.mb";
+
+    static final int ESTIMATED_ROW_SIZE = 512;
+
     boolean multipliersInitialized = false;
 
     String sourceStepId;
 
     int rowsPerMessage;
 
-    List<EntityData> multipliers = new ArrayList<EntityData>();
+    int maxRowsInMemory;
+
+    EntityDataLayout layout;
+
+    List<ResolvedRow> multipliers = new ArrayList<ResolvedRow>();
+
+    EntityDataFileWriter multiplierFile;
 
     List<Message> queuedWhileWaitingForMultiplier = new ArrayList<Message>();
 
@@ -54,6 +81,11 @@ public class Multiplier extends AbstractComponentRuntime {
 
         sourceStepId = getComponent().get(MULTIPLIER_SOURCE_STEP);
         rowsPerMessage = getComponent().getInt(ROWS_PER_MESSAGE, 10);
+        long memoryBudget = Math.max(1, getComponent().getLong(MAX_MEMORY_MB, 256)) * 1024 * 1024;
+        maxRowsInMemory = (int) Math.min(Integer.MAX_VALUE - 8, memoryBudget / ESTIMATED_ROW_SIZE);
+
+        Model inputModel = getInputModel();
+        layout = inputModel != null ? inputModel.getEntityDataLayout() : null;
 
         if (isBlank(sourceStepId) || getFlow().findFlowStepWithId(sourceStepId) == null) {
             throw new IllegalStateException("The source step must be specified");
@@ -70,12 +102,19 @@ public class Multiplier extends AbstractComponentRuntime {
         if (sourceStepId.equals(inputMessage.getHeader().getOriginatingStepId())) {
             if (inputMessage instanceof EntityDataMessage) {
                 List<EntityData> datas = ((EntityDataMessage) inputMessage).getPayload();
-                multipliers.addAll(datas);
+                addMultipliers(datas);
             }
 
             multipliersInitialized = inputMessage instanceof ControlMessage;
 
             if (multipliersInitialized) {
+                if (multiplierFile != null) {
+                    /*
+                     * Left open because a later unit of work from the
+                     * multiplier source adds to the rows already received
+                     */
+                    multiplierFile.flush();
+                }
                 Iterator<Message> messages = queuedWhileWaitingForMultiplier.iterator();
                 while (messages.hasNext()) {
                     Message message = messages.next();
@@ -83,6 +122,7 @@ public class Multiplier extends AbstractComponentRuntime {
                         multiply((EntityDataMessage) message, callback);
                     }
                 }
+                queuedWhileWaitingForMultiplier.clear();
             }
         } else if (!multipliersInitialized) {
             queuedWhileWaitingForMultiplier.add(inputMessage);
@@ -93,25 +133,63 @@ public class Multiplier extends AbstractComponentRuntime {
         }
     }
 
-    protected void multiply(EntityDataMessage message, ISendMessageCallback callback) {
-        ArrayList<EntityData> multiplied = new ArrayList<EntityData>();
-        for (int i = 0; i < multipliers.size(); i++) {
-            EntityData multiplierData = multipliers.get(i);
-
-            List<EntityData> datas = message.getPayload();
-            if (datas != null) {
-                for (int j = 0; j < datas.size(); j++) {
-                    getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-                    EntityData oldData = datas.get(j);
-                    EntityData newData = new EntityData();
-                    newData.putAll(oldData);
-                    newData.putAll(multiplierData);
-                    multiplied.add(newData);
-                    if (multiplied.size() >= rowsPerMessage) {
-                        callback.sendEntityDataMessage(null, multiplied);
-                        multiplied = new ArrayList<EntityData>();
+    @Override
+    public void stop() {
+        if (multiplierFile != null) {
+            multiplierFile.close();
+            multiplierFile.getFile().delete();
+            multiplierFile = null;
+        }
+        multipliers.clear();
+        super.stop();
+    }
+
+    protected void addMultipliers(List<EntityData> datas) {
+        if (datas == null) {
+            return;
+        }
+        for (EntityData data : datas) {
+            if (multiplierFile != null) {
+                multiplierFile.write(data);
+            } else {
+                multipliers.add(new ResolvedRow(data, layout));
+                if (multipliers.size() > maxRowsInMemory) {
+                    multiplierFile = EntityDataFileWriter.createTempFile("metl-multiplier-");
+                    for (ResolvedRow multiplier : multipliers) {
+                        multiplierFile.write(multiplier.toEntityData(null));
                     }
+                    info("Spilled %d multiplier rows to disk", multipliers.size());
+                    multipliers.clear();
+                }
+            }
+        }
+    }
+
+    protected void multiply(EntityDataMessage message, ISendMessageCallback callback) {
+        List<EntityData> datas = message.getPayload();
+        if (datas == null || datas.size() == 0) {
+            return;
+        }
+
+        List<ResolvedRow> rows = new ArrayList<ResolvedRow>(datas.size());
+        for (EntityData data : datas) {
+            rows.add(new ResolvedRow(data, layout));
+        }
+
+        ArrayList<EntityData> multiplied = new ArrayList<EntityData>(rowsPerMessage);
+        if (multiplierFile != null) {
+            EntityDataFileReader reader = new EntityDataFileReader(multiplierFile.getFile(), layout);
+            try {
+                EntityData multiplierData = null;
+                while ((multiplierData = reader.read()) != null) {
+                    multiplied = multiply(new ResolvedRow(multiplierData, layout), rows, multiplied, callback);
                 }
+            } finally {
+                reader.close();
+            }
+        } else {
+            for (ResolvedRow multiplier : multipliers) {
+                multiplied = multiply(multiplier, rows, multiplied, callback);
             }
         }
 
@@ -120,4 +198,62 @@ public class Multiplier extends AbstractComponentRuntime {
         }
     }
 
+    protected ArrayList<EntityData> multiply(ResolvedRow multiplier, List<ResolvedRow> rows, ArrayList<EntityData> multiplied,
+            ISendMessageCallback callback) {
+        for (ResolvedRow row : rows) {
+            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+            EntityData newData = row.toEntityData(layout);
+            multiplier.copyTo(newData);
+            multiplied.add(newData);
+            if (multiplied.size() >= rowsPerMessage) {
+                callback.sendEntityDataMessage(null, multiplied);
+                multiplied = new ArrayList<EntityData>(rowsPerMessage);
+            }
+        }
+        return multiplied;
+    }
+
+    /**
+     * The attribute ids, layout ordinals and values of a row. Attributes that
+     * are not part of the layout have an ordinal of -1.
+     */
+    static class ResolvedRow {
+
+        String[] attributeIds;
+
+        int[] ordinals;
+
+        Object[] values;
+
+        ResolvedRow(EntityData data, EntityDataLayout layout) {
+            attributeIds = new String[data.size()];
+            ordinals = new int[attributeIds.length];
+            values = new Object[attributeIds.length];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                attributeIds[i] = entry.getKey();
+                ordinals[i] = layout != null ? layout.getOrdinal(entry.getKey()) : -1;
+                values[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        EntityData toEntityData(EntityDataLayout layout) {
+            EntityData data = new EntityData(layout);
+            copyTo(data);
+            return data;
+        }
+
+        void copyTo(EntityData data) {
+            boolean ordinal = data.getLayout() != null;
+            for (int i = 0; i < values.length; i++) {
+                if (ordinal && ordinals[i] >= 0) {
+                    data.setValue(ordinals[i], values[i]);
+                } else {
+                    data.put(attributeIds[i], values[i]);
+                }
+            }
+        }
+    }
+
 }
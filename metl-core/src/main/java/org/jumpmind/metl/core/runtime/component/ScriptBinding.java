@@ -0,0 +1,173 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.Message;
+
+import groovy.lang.Binding;
+import groovy.lang.MissingPropertyException;
+
+/**
+ * A Groovy {@link Binding} for expressions that are compiled once and run for
+ * every row. It exposes the same variables that
+ * {@link AbstractComponentRuntime#bindEntityData} binds, but resolves them
+ * when the expression asks for them, so a row only costs the lookups of the
+ * attributes an expression actually references.
+ * <p>
+ * Variables resolve in this order: variables assigned by the script,
+ * inputMessage, text, CHANGE_TYPE and ENTITY_NAMES, flow parameters, message
+ * headers, then model entities. An entity resolves to a map of attribute name
+ * to the value of the current row.
+ */
+public class ScriptBinding extends Binding {
+
+    Map<String, String> flowParameters;
+
+    Map<String, EntityView> entities = new HashMap<>();
+
+    EntityNameLookup entityNameLookup;
+
+    Message message;
+
+    EntityData entityData;
+
+    String text;
+
+    public ScriptBinding(Model model, Map<String, String> flowParameters) {
+        this.flowParameters = flowParameters != null ? flowParameters : Collections.emptyMap();
+        this.entityNameLookup = new EntityNameLookup(model);
+        if (model != null) {
+            for (ModelEntity entity : model.getModelEntities()) {
+                entities.put(entity.getName(), new EntityView(entity));
+            }
+        }
+    }
+
+    public void bind(Message message) {
+        bind(message, null, null);
+    }
+
+    public void bind(Message message, EntityData entityData) {
+        bind(message, entityData, null);
+    }
+
+    public void bind(Message message, String text) {
+        bind(message, null, text);
+    }
+
+    protected void bind(Message message, EntityData entityData, String text) {
+        this.message = message;
+        this.entityData = entityData;
+        this.text = text;
+        Map<?, ?> assigned = super.getVariables();
+        if (!assigned.isEmpty()) {
+            assigned.clear();
+        }
+    }
+
+    @Override
+    public Object getVariable(String name) {
+        Map<?, ?> assigned = super.getVariables();
+        if (!assigned.isEmpty() && assigned.containsKey(name)) {
+            return assigned.get(name);
+        }
+        switch (name) {
+            case "inputMessage":
+                return message;
+            case "text":
+                return text;
+            case "CHANGE_TYPE":
+                return entityData != null ? entityData.getChangeType().name() : null;
+            case "ENTITY_NAMES":
+                return entityData != null ? entityNameLookup.getEntityNames(entityData) : Collections.emptyList();
+            default:
+                break;
+        }
+        if (flowParameters.containsKey(name)) {
+            return flowParameters.get(name);
+        }
+        if (message != null && message.getHeader().containsKey(name)) {
+            return message.getHeader().get(name);
+        }
+        EntityView entity = entities.get(name);
+        if (entity != null) {
+            return entity;
+        }
+        throw new MissingPropertyException(name, getClass());
+    }
+
+    @Override
+    public boolean hasVariable(String name) {
+        try {
+            getVariable(name);
+            return true;
+        } catch (MissingPropertyException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The attributes of one entity by name, read from the current row on
+     * access.
+     */
+    class EntityView extends AbstractMap<String, Object> {
+
+        Map<String, String> attributeIdsByName = new LinkedHashMap<>();
+
+        EntityView(ModelEntity entity) {
+            for (ModelAttrib attribute : entity.getModelAttributes()) {
+                attributeIdsByName.put(attribute.getName(), attribute.getId());
+            }
+        }
+
+        @Override
+        public Object get(Object name) {
+            String attributeId = attributeIdsByName.get(name);
+            return attributeId != null && entityData != null ? entityData.get(attributeId) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return attributeIdsByName.containsKey(name);
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String name : attributeIdsByName.keySet()) {
+                values.put(name, get(name));
+            }
+            return values.entrySet();
+        }
+    }
+
+}
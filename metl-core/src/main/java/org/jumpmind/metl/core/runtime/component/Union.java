@@ -26,15 +26,32 @@ import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
+import org.jumpmind.properties.TypedProperties;
 
+/**
+ * Combines the rows from all of its sources. By default the rows are held
+ * until every source has finished its unit of work and are then sent as one
+ * message. With {@link #STREAMING} set, rows are forwarded as they arrive in
+ * messages of {@link #ROWS_PER_MESSAGE} rows and only the remainder waits for
+ * the end of the unit of work.
+ */
 public class Union extends AbstractComponentRuntime {
 
     public static final String TYPE = "Union";
-        
+
+    public final static String STREAMING = "streaming";
+
     ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
 
+    boolean streaming;
+
+    int rowsPerMessage;
+
     @Override
     public void start() {
+        TypedProperties properties = getTypedProperties();
+        streaming = properties.is(STREAMING, false);
+        rowsPerMessage = Math.max(1, properties.getInt(ROWS_PER_MESSAGE, 1000));
     }
         
     @Override
@@ -46,13 +63,23 @@ public class Union extends AbstractComponentRuntime {
     public void handle( Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {    	
         if (inputMessage instanceof EntityDataMessage) {
             ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
-            dataToSend.addAll(payload);
             getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber, payload.size());
+            if (streaming) {
+                for (EntityData data : payload) {
+                    dataToSend.add(data);
+                    if (dataToSend.size() >= rowsPerMessage) {
+                        callback.sendEntityDataMessage(null, dataToSend);
+                        dataToSend = new ArrayList<EntityData>(rowsPerMessage);
+                    }
+                }
+            } else {
+                dataToSend.addAll(payload);
+            }
         }
 
         if (unitOfWorkBoundaryReached && dataToSend.size() != 0) {
             callback.sendEntityDataMessage(null, dataToSend);
-            dataToSend.clear();
+            dataToSend = new ArrayList<EntityData>();
         }
     }
 
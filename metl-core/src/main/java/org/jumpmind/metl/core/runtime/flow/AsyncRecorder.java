@@ -20,107 +20,110 @@
  */
 package org.jumpmind.metl.core.runtime.flow;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.StringUtils;
 import org.jumpmind.metl.core.model.AbstractObject;
 import org.jumpmind.metl.core.model.ExecutionStepLog;
+import org.jumpmind.metl.core.persist.ExecutionStepLogWriter;
 import org.jumpmind.metl.core.persist.IExecutionService;
-import org.jumpmind.metl.core.util.LogUtils;
-import org.jumpmind.symmetric.csv.CsvWriter;
-import org.jumpmind.util.AppUtils;
-import org.jumpmind.util.FormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Writes step logs on its own thread. Each batch of logs taken from the queue
+ * is flushed once after it has been written. Executions and execution steps are
+ * handed to {@link IExecutionService#queueSave(AbstractObject)} which
+ * coalesces them and writes them in batches across all running flows. They
+ * are flushed when the recorder is shut down at the end of a flow.
+ * <p>
+ * If the recorder thread never started, {@link #shutdown()} writes the queued
+ * logs itself. It waits at most {@link #shutdownTimeoutMs} for a running
+ * recorder thread, which closes its own log writers when it finishes.
+ */
 public class AsyncRecorder implements Runnable {
 
     final Logger log = LoggerFactory.getLogger(getClass());
 
-    protected BlockingQueue<AbstractObject> inQueue;
+    protected BlockingQueue<ExecutionStepLog> inQueue;
 
     protected IExecutionService executionService;
 
-    protected boolean running = false;
+    protected volatile boolean running = false;
+
+    protected volatile boolean stopping = false;
+
+    protected Map<String, ExecutionStepLogWriter> logWriters = new HashMap<>();
 
-    protected boolean stopping = false;
+    protected CountDownLatch stopped = new CountDownLatch(1);
 
-    protected Map<String, CsvWriter> logWriters = new HashMap<>();
+    protected AtomicBoolean claimed = new AtomicBoolean();
+
+    protected long shutdownTimeoutMs = 60000;
 
     public AsyncRecorder(IExecutionService executionService) {
-        this.inQueue = new LinkedBlockingQueue<AbstractObject>();
+        this.inQueue = new LinkedBlockingQueue<ExecutionStepLog>();
         this.executionService = executionService;
     }
 
     public void record(AbstractObject object) {
-        try {
-            synchronized (inQueue) {
-                inQueue.put(object);
-                inQueue.notify();
+        if (object instanceof ExecutionStepLog) {
+            try {
+                inQueue.put((ExecutionStepLog) object);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        } else if (object != null) {
+            executionService.queueSave(object);
         }
     }
 
     protected void logAll() {
         try {
-            HashSet<String> processed = new HashSet<>();
-            List<AbstractObject> toProcess = new ArrayList<>();
-            synchronized (inQueue) {
+            List<ExecutionStepLog> toProcess = new ArrayList<>();
+            ExecutionStepLog first = inQueue.poll(500, TimeUnit.MILLISECONDS);
+            if (first != null) {
+                toProcess.add(first);
                 inQueue.drainTo(toProcess);
-                if (toProcess.isEmpty()) {
-                    inQueue.wait();
-                }
-            }
-            
-            for (int i = toProcess.size() - 1; i >= 0; i--) {
-                AbstractObject object = toProcess.get(i);
-                if (object != null && !(object instanceof ExecutionStepLog)) {
-                    if (!processed.contains(object.getId())) {
-                        executionService.save(object);
-                        processed.add(object.getId());
-                    }
-                }
             }
 
-            for (int i = 0; i < toProcess.size(); i++) {
-                AbstractObject object = toProcess.get(i);
-                if (object instanceof ExecutionStepLog) {
-                    ExecutionStepLog stepLog = (ExecutionStepLog) object;
-                    String executionStepId = stepLog.getExecutionStepId();
-                    CsvWriter writer = logWriters.get(executionStepId);
+            Map<String, ExecutionStepLogWriter> written = new LinkedHashMap<>();
+            for (ExecutionStepLog stepLog : toProcess) {
+                String executionStepId = stepLog.getExecutionStepId();
+                ExecutionStepLogWriter writer = logWriters.get(executionStepId);
+                try {
                     if (writer == null) {
-                        File logFile = new File(LogUtils.getLogDir(), executionStepId + ".log");
-                        writer = new CsvWriter(logFile.getAbsolutePath(), '"',
-                                Charset.forName("UTF-8"));
+                        writer = new ExecutionStepLogWriter(executionStepId, true);
                         logWriters.put(executionStepId, writer);
                     }
-                    try {
-                        writer.writeRecord(new String[] { stepLog.getLevel(),
-                                FormatUtils.TIMESTAMP_FORMATTER.format(stepLog.getCreateTime()),
-                                StringUtils.abbreviate(stepLog.getLogText(), 100000) });
-                        writer.flush();
-                    } catch (IOException e) {
-                        writer.close();
-                        logWriters.remove(executionStepId);
-                        log.error("", e);
-                    }
+                    stepLog.setLogText(StringUtils.abbreviate(stepLog.getLogText(), 100000));
+                    writer.write(stepLog);
+                    written.put(executionStepId, writer);
+                } catch (IOException e) {
+                    close(executionStepId, writer);
+                    written.remove(executionStepId);
+                    log.error("", e);
                 }
             }
 
-            if (toProcess.size() == 0) {
-                AppUtils.sleep(5);
+            for (Map.Entry<String, ExecutionStepLogWriter> entry : written.entrySet()) {
+                try {
+                    entry.getValue().flush();
+                } catch (IOException e) {
+                    close(entry.getKey(), entry.getValue());
+                    log.error("", e);
+                }
             }
 
         } catch (Throwable e) {
@@ -128,10 +131,31 @@ public class AsyncRecorder implements Runnable {
         }
     }
 
+    protected void close(String executionStepId, ExecutionStepLogWriter writer) {
+        logWriters.remove(executionStepId);
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error("", e);
+            }
+        }
+    }
+
     @Override
     public void run() {
-        running = true;
+        if (claimed.compareAndSet(false, true)) {
+            running = true;
+            try {
+                drain();
+            } finally {
+                running = false;
+                stopped.countDown();
+            }
+        }
+    }
 
+    protected void drain() {
         try {
             while (!stopping || inQueue.size() > 0) {
                 try {
@@ -140,23 +164,30 @@ public class AsyncRecorder implements Runnable {
                     log.error("Failed to persist log message", e);
                 }
             }
-
         } finally {
-            running = false;
+            Collection<String> executionStepIds = new ArrayList<>(logWriters.keySet());
+            for (String executionStepId : executionStepIds) {
+                close(executionStepId, logWriters.get(executionStepId));
+            }
         }
     }
 
     public void shutdown() {
         this.stopping = true;
 
-        while (this.running) {
-            AppUtils.sleep(10);
+        if (claimed.compareAndSet(false, true)) {
+            drain();
+        } else {
+            try {
+                if (!stopped.await(shutdownTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    log.warn("Timed out after {}ms waiting for {} queued step logs to be written", shutdownTimeoutMs, inQueue.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
-        Collection<CsvWriter> writers = logWriters.values();
-        for (CsvWriter csvWriter : writers) {
-            csvWriter.close();
-        }
+        executionService.flushQueuedSaves();
     }
 
 }
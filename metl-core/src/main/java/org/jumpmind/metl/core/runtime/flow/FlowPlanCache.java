@@ -0,0 +1,142 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jumpmind.metl.core.model.AbstractObject;
+import org.jumpmind.metl.core.model.AbstractObjectWithSettings;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+
+/**
+ * Holds the manipulated flow of each flow an agent runs so that executions of
+ * an unchanged flow can skip {@link FlowRuntime#manipulateFlow(Flow)}. A plan
+ * is keyed by flow id and is only returned while the signature of the flow it
+ * was built from still matches. The signature covers the ids, last update
+ * times and setting values of the flow and everything reachable from it,
+ * because saving a step or a setting does not touch the flow's own last update
+ * time.
+ */
+public class FlowPlanCache {
+
+    protected Map<String, Plan> plans = new ConcurrentHashMap<>();
+
+    public Flow get(Flow flow) {
+        Plan plan = plans.get(flow.getId());
+        if (plan != null && plan.signature == signature(flow)) {
+            return plan.manipulatedFlow;
+        }
+        return null;
+    }
+
+    public void put(Flow flow, Flow manipulatedFlow) {
+        plans.put(flow.getId(), new Plan(signature(flow), manipulatedFlow));
+    }
+
+    public void remove(String flowId) {
+        plans.remove(flowId);
+    }
+
+    public void clear() {
+        plans.clear();
+    }
+
+    public int size() {
+        return plans.size();
+    }
+
+    protected long signature(Flow flow) {
+        long signature = add(17, flow);
+        signature = addAll(signature, flow.getFlowParameters());
+        signature = addAll(signature, flow.getFlowStepLinks());
+        List<FlowStep> flowSteps = flow.getFlowSteps();
+        signature = signature * 31 + flowSteps.size();
+        for (FlowStep flowStep : flowSteps) {
+            signature = add(signature, flowStep);
+            Component component = flowStep.getComponent();
+            if (component != null) {
+                signature = add(signature, component);
+                signature = addAll(signature, component.getEntitySettings());
+                signature = addAll(signature, component.getAttributeSettings());
+                signature = add(signature, component.getResource());
+                signature = add(signature, component.getInputModel());
+                signature = add(signature, component.getOutputModel());
+            }
+        }
+        return signature;
+    }
+
+    protected long addAll(long signature, List<? extends AbstractObject> objects) {
+        if (objects != null) {
+            signature = signature * 31 + objects.size();
+            for (AbstractObject object : objects) {
+                signature = add(signature, object);
+            }
+        }
+        return signature;
+    }
+
+    protected long add(long signature, AbstractObject object) {
+        if (object == null) {
+            return signature * 31;
+        }
+        signature = signature * 31 + (object.getId() != null ? object.getId().hashCode() : 0);
+        Date lastUpdateTime = object.getLastUpdateTime();
+        signature = signature * 31 + (lastUpdateTime != null ? lastUpdateTime.getTime() : 0);
+        if (object instanceof Setting) {
+            Setting setting = (Setting) object;
+            signature = signature * 31 + (setting.getName() != null ? setting.getName().hashCode() : 0);
+            signature = signature * 31 + (setting.getValue() != null ? setting.getValue().hashCode() : 0);
+        } else if (object instanceof AbstractObjectWithSettings) {
+            signature = addAll(signature, ((AbstractObjectWithSettings) object).getSettings());
+        } else if (object instanceof Model) {
+            List<ModelEntity> entities = ((Model) object).getModelEntities();
+            signature = addAll(signature, entities);
+            if (entities != null) {
+                for (ModelEntity entity : entities) {
+                    signature = addAll(signature, entity.getModelAttributes());
+                }
+            }
+        }
+        return signature;
+    }
+
+    static class Plan {
+
+        long signature;
+
+        Flow manipulatedFlow;
+
+        Plan(long signature, Flow manipulatedFlow) {
+            this.signature = signature;
+            this.manipulatedFlow = manipulatedFlow;
+        }
+    }
+
+}
@@ -118,6 +118,10 @@ public class FlowRuntime {
     
     Flow manipulatedFlow;
 
+    boolean flowManipulated;
+
+    final Object stepFinishedLock = new Object();
+
     public FlowRuntime(String executionId, String userId, AgentProjectVersionFlowDeployment deployment, Agent agent,
             IComponentRuntimeFactory componentRuntimeFactory,
             IDefinitionFactory componentDefinitionFactory,            
@@ -138,6 +142,19 @@ public class FlowRuntime {
             IConfigurationService configurationService, IExecutionService executionService,
             Map<String, IResourceRuntime> deployedResources, List<Notification> notifications,
             Map<String, String> globalSettings, Map<String, String> runtimeParameters) {
+        this(executionId, userId, deployment, agent, componentRuntimeFactory, definitionFactory,
+                threadService, operationsService, configurationService, executionService,
+                deployedResources, notifications, globalSettings, runtimeParameters, null);
+    }
+
+    public FlowRuntime(String executionId, String userId, AgentProjectVersionFlowDeployment deployment, Agent agent,
+            IComponentRuntimeFactory componentRuntimeFactory,
+            IDefinitionFactory definitionFactory,
+            ExecutorService threadService, IOperationsService operationsService,
+            IConfigurationService configurationService, IExecutionService executionService,
+            Map<String, IResourceRuntime> deployedResources, List<Notification> notifications,
+            Map<String, String> globalSettings, Map<String, String> runtimeParameters,
+            FlowPlanCache flowPlanCache) {
         
         if (agent.isAutoRefresh() && configurationService != null && operationsService != null) {
             deployment.setFlow(configurationService.findFlow(deployment.getFlow().getId()));
@@ -170,7 +187,24 @@ public class FlowRuntime {
         }
         this.stepRuntimes = new HashMap<String, StepRuntime>();
 
-        manipulatedFlow = manipulateFlow(deployment.getFlow());
+        Flow flow = deployment.getFlow();
+        manipulatedFlow = flowPlanCache != null ? flowPlanCache.get(flow) : null;
+        if (manipulatedFlow == null) {
+            manipulatedFlow = manipulateFlow(flow);
+            /*
+             * Cached plans are shared by concurrent executions and must not
+             * be changed once they are put in the cache
+             */
+            manipulatedFlow.calculateApproximateOrder();
+            /*
+             * Flow manipulators pull in other flows (e.g. embedded flows) whose
+             * changes the signature of this flow cannot see, so those plans are
+             * only kept when the agent does not refresh its flows
+             */
+            if (flowPlanCache != null && (!flowManipulated || !agent.isAutoRefresh())) {
+                flowPlanCache.put(flow, manipulatedFlow);
+            }
+        }
         
         /* create a step runtime for every component in the flow */
         for (FlowStep flowStep : manipulatedFlow.getFlowSteps()) {
@@ -213,8 +247,24 @@ public class FlowRuntime {
             }
         }
 
-        /* start up each step runtime */
-        manipulatedFlow.calculateApproximateOrder();        
+        for (StepRuntime runtime : stepRuntimes.values()) {
+            runtime.setFused(isFusable(runtime));
+        }
+    }
+
+    /*
+     * A step is fused into its source step when they form a link in a linear
+     * chain: the step has one source, the source has one target and neither is
+     * multi-threaded. The step's messages are then handled by direct calls on
+     * the source step's thread instead of going through a queue.
+     */
+    protected boolean isFusable(StepRuntime stepRuntime) {
+        List<StepRuntime> sources = stepRuntime.getSourceStepRuntimes();
+        if (sources.size() == 1 && stepRuntime.isFusable()) {
+            StepRuntime source = sources.get(0);
+            return source != stepRuntime && source.getTargetStepRuntimes().size() == 1 && source.getThreadCount() == 1;
+        }
+        return false;
     }
 
     public AgentProjectVersionFlowDeployment getAgentProjectVersionFlowDeployment() {
@@ -305,7 +355,9 @@ public class FlowRuntime {
         /* each step is started as a thread */
         for (StepRuntime stepRuntime : stepRuntimes.values()) {
             stepRuntime.startRunning();
-            threadService.execute(stepRuntime);
+            if (!stepRuntime.isFused()) {
+                threadService.execute(stepRuntime);
+            }
         }
 
         ControlMessage startMessage = new ControlMessage();
@@ -335,6 +387,7 @@ public class FlowRuntime {
                             .forName(componentDefintion.getFlowManipulatorClassName())
                             .newInstance();
                     clone = flowManipulator.manipulate(clone, flowStep, configurationService);
+                    flowManipulated = true;
                 } catch (RuntimeException e) {
                     throw e;
                 } catch (Exception e) {
@@ -392,8 +445,21 @@ public class FlowRuntime {
      * Waiting until all steps have exited
      */
     public void waitForFlowCompletion() {
-        while (isRunning()) {
-            AppUtils.sleep(5);
+        synchronized (stepFinishedLock) {
+            while (isRunning()) {
+                try {
+                    stepFinishedLock.wait(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    protected void stepFinished(StepRuntime stepRuntime) {
+        synchronized (stepFinishedLock) {
+            stepFinishedLock.notifyAll();
         }
     }
 
@@ -0,0 +1,56 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jumpmind.metl.core.runtime.Message;
+
+/**
+ * Inbound message queue for a {@link StepRuntime}. Producers that enqueue a
+ * message wake up a consumer that is parked in
+ * {@link #awaitMessage(long, TimeUnit)}, so idle steps do not have to poll.
+ */
+public interface IMessageQueue {
+
+    public boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException;
+
+    public Message poll();
+
+    public Message peek();
+
+    /**
+     * Park the calling thread until a message is available, {@link #wakeUp()}
+     * is called or the timeout expires.
+     * 
+     * @return true if a message is available
+     */
+    public boolean awaitMessage(long timeout, TimeUnit unit) throws InterruptedException;
+
+    public void wakeUp();
+
+    public int size();
+
+    public int remainingCapacity();
+
+    public void clear();
+
+}
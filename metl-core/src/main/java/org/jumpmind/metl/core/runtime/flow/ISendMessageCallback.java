@@ -35,6 +35,10 @@ public interface ISendMessageCallback {
     
     public void sendTextMessage(Map<String, Serializable> messageHeaders, String payload, String... targetStepIds);
 
+    /**
+     * The payload is not copied. It is shared with the target steps and must
+     * not be modified after it has been sent.
+     */
     public void sendBinaryMessage(Map<String, Serializable> messageHeaders, byte[] payload, String... targetStepIds);
     
     public void sendShutdownMessage(boolean cancel);
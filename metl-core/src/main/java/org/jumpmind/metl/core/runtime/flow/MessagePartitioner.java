@@ -0,0 +1,119 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import java.util.ArrayList;
+
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.Message;
+
+/**
+ * Splits inbound messages across the partitions of a step. Entity records are
+ * assigned to a partition by hashing the value of the partition attribute, so
+ * all records that share a value are always handled by the same partition.
+ * Messages without entity records go to the first partition.
+ */
+public class MessagePartitioner {
+
+    final String attributeId;
+
+    final int partitionCount;
+
+    public MessagePartitioner(String attributeId, int partitionCount) {
+        this.attributeId = attributeId;
+        this.partitionCount = partitionCount;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public int getPartition(EntityData entityData) {
+        Object value = entityData.get(attributeId);
+        /*
+         * Hash the string form so that the same key read as a different
+         * numeric type by another source still lands in the same partition
+         */
+        int hash = value != null ? value.toString().hashCode() : 0;
+        return (hash & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    /**
+     * @return one message per partition, indexed by partition. Partitions that
+     *         have nothing to do are null. When the unit of work boundary was
+     *         reached every partition gets a message: those that did not get
+     *         any records get a {@link ControlMessage} so that they still see
+     *         the boundary.
+     */
+    public Message[] partition(Message message, boolean unitOfWorkBoundaryReached) {
+        Message[] partitions = new Message[partitionCount];
+        if (message instanceof ControlMessage) {
+            for (int i = 0; i < partitionCount; i++) {
+                partitions[i] = message;
+            }
+        } else if (message instanceof EntityDataMessage && partitionCount > 1) {
+            @SuppressWarnings("unchecked")
+            ArrayList<EntityData>[] payloads = new ArrayList[partitionCount];
+            for (EntityData entityData : ((EntityDataMessage) message).getPayload()) {
+                int partition = getPartition(entityData);
+                if (payloads[partition] == null) {
+                    payloads[partition] = new ArrayList<>();
+                }
+                payloads[partition].add(entityData);
+            }
+            for (int i = 0; i < partitionCount; i++) {
+                if (payloads[i] != null) {
+                    EntityDataMessage partitionMessage = new EntityDataMessage(message.getHeader().getOriginatingStepId(), payloads[i]);
+                    partitionMessage.getHeader().putAll(message.getHeader());
+                    partitions[i] = partitionMessage;
+                }
+            }
+            if (isEmpty(partitions)) {
+                partitions[0] = message;
+            }
+        } else {
+            partitions[0] = message;
+        }
+
+        if (unitOfWorkBoundaryReached) {
+            for (int i = 0; i < partitionCount; i++) {
+                if (partitions[i] == null) {
+                    ControlMessage controlMessage = new ControlMessage(message.getHeader().getOriginatingStepId());
+                    controlMessage.getHeader().putAll(message.getHeader());
+                    partitions[i] = controlMessage;
+                }
+            }
+        }
+        return partitions;
+    }
+
+    private boolean isEmpty(Message[] partitions) {
+        for (Message message : partitions) {
+            if (message != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Restores input order for the output of a partitioned step. Each inbound
+ * message is registered with the number of partitions it was split across and
+ * given a sequence number. Partitions hand in the sends they made while
+ * handling their part, and those sends are released strictly in sequence
+ * order, and in partition order within a sequence. Only message order is
+ * restored: rows that were split out of one inbound message are not
+ * interleaved back into their original positions.
+ */
+public class OrderedMessageMerger {
+
+    long nextSequenceToRegister;
+
+    long nextSequenceToRelease;
+
+    Map<Long, PendingSequence> pending = new HashMap<>();
+
+    public synchronized long register(int partitionCount) {
+        long sequence = nextSequenceToRegister++;
+        pending.put(sequence, new PendingSequence(partitionCount));
+        return sequence;
+    }
+
+    /**
+     * Records that a partition has finished with its part of a sequence and
+     * runs every send that is now in order. Sends are run while holding the
+     * lock so that two partitions can never release out of order.
+     */
+    public synchronized void complete(long sequence, int partition, List<Runnable> sends) {
+        PendingSequence pendingSequence = pending.get(sequence);
+        if (pendingSequence == null) {
+            throw new IllegalStateException("Sequence " + sequence + " was not registered or was already released");
+        }
+        pendingSequence.complete(partition, sends);
+        while ((pendingSequence = pending.get(nextSequenceToRelease)) != null && pendingSequence.isComplete()) {
+            pending.remove(nextSequenceToRelease++);
+            pendingSequence.release();
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    static class PendingSequence {
+
+        int remaining;
+
+        Map<Integer, List<Runnable>> sendsByPartition = new HashMap<>();
+
+        PendingSequence(int partitionCount) {
+            this.remaining = partitionCount;
+        }
+
+        void complete(int partition, List<Runnable> sends) {
+            remaining--;
+            if (sends != null && sends.size() > 0) {
+                sendsByPartition.put(partition, new ArrayList<>(sends));
+            }
+        }
+
+        boolean isComplete() {
+            return remaining <= 0;
+        }
+
+        void release() {
+            List<Integer> partitions = new ArrayList<>(sendsByPartition.keySet());
+            partitions.sort(null);
+            for (Integer partition : partitions) {
+                for (Runnable send : sendsByPartition.get(partition)) {
+                    send.run();
+                }
+            }
+        }
+    }
+
+}
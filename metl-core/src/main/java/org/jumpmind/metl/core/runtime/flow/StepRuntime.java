@@ -20,6 +20,8 @@
  */
 package org.jumpmind.metl.core.runtime.flow;
 
+import static org.apache.commons.lang.StringUtils.isNotBlank;
+
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -30,12 +32,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -62,7 +63,6 @@ import org.jumpmind.metl.core.runtime.component.IComponentRuntime;
 import org.jumpmind.metl.core.runtime.component.IComponentRuntimeFactory;
 import org.jumpmind.metl.core.util.LogUtils;
 import org.jumpmind.metl.core.util.ThreadUtils;
-import org.jumpmind.util.AppUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -72,22 +72,29 @@ public class StepRuntime implements Runnable {
 
     public static final String THREAD_COUNT = "thread.count";
 
+    public static final String THREAD_PARTITION_ATTRIBUTE = "thread.partition.attribute";
+
+    public static final String THREAD_PRESERVE_MESSAGE_ORDER = "thread.preserve.message.order";
+
     public static final String UNIT_OF_WORK_INPUT_MESSAGE = "Input Message";
 
     public static final String UNIT_OF_WORK_FLOW = "Flow";
 
-    protected BlockingQueue<Message> inQueue;
+    protected IMessageQueue inQueue;
 
     protected Executor componentRuntimeExecutor;
     
-    boolean running = false;
+    volatile boolean running = false;
     
-    boolean cancelling = false;
+    volatile boolean cancelling = false;
 
-    boolean cancelled = false;
+    volatile boolean cancelled = false;
 
     boolean finished = false;
 
+    /* Makes sure a step is only shut down once */
+    final AtomicBoolean shutdownStarted = new AtomicBoolean();
+
     Throwable error;
 
     List<StepRuntime> targetStepRuntimes;
@@ -122,13 +129,25 @@ public class StepRuntime implements Runnable {
     
     int threadCount;
 
+    boolean fused;
+
+    SendMessageCallback fusedCallback;
+
+    MessagePartitioner partitioner;
+
+    OrderedMessageMerger merger;
+
+    ExecutorService[] partitionExecutors;
+
+    SendMessageCallback[] partitionCallbacks;
+
     public StepRuntime(IComponentRuntimeFactory componentFactory, IDefinitionFactory componentDefinitionFactory, ComponentContext componentContext, FlowRuntime flowRuntime) {
         this.flowRuntime = flowRuntime;
         this.componentContext = componentContext;
         this.queueCapacity = componentContext.getFlowStep().getComponent().getInt(AbstractComponentRuntime.INBOUND_QUEUE_CAPACITY, 1000);
-        this.inQueue = new LinkedBlockingQueue<Message>(queueCapacity);
+        this.inQueue = createMessageQueue(queueCapacity);
         this.sourceStepRuntimeUnitOfWorkReceived = new HashMap<String, Boolean>();
-        this.targetStepRuntimeUnitOfWorkSent = new HashSet<String>();
+        this.targetStepRuntimeUnitOfWorkSent = Collections.synchronizedSet(new HashSet<String>());
         this.componentRuntimeFactory = componentFactory;
         this.componentDefintionFactory = componentDefinitionFactory;
         this.componentDefintion = componentDefintionFactory.getComponentDefinition(componentContext.getFlowStep().getComponent().getProjectVersionId(), getComponentType());        
@@ -139,6 +158,10 @@ public class StepRuntime implements Runnable {
         }
     }
 
+    protected IMessageQueue createMessageQueue(int capacity) {
+        return new BlockingMessageQueue(capacity);
+    }
+
     private String getComponentType() {
         return componentContext.getFlowStep().getComponent().getType();
     }
@@ -178,6 +201,10 @@ public class StepRuntime implements Runnable {
     }
 
     protected void queue(Message message) throws InterruptedException {
+        if (fused) {
+            processFused(message);
+            return;
+        }
         if (inQueue.remainingCapacity() == 0
                 && message.getHeader().getOriginatingStepId().equalsIgnoreCase(componentContext.getFlowStep().getId())) {
             throw new RuntimeException("Inbound queue capacity on " + componentContext.getFlowStep().getName()
@@ -192,13 +219,63 @@ public class StepRuntime implements Runnable {
         }
     }
 
+    /*
+     * A fused step does not have its own thread or queue. Messages are
+     * processed on the thread of its only source step as they are sent.
+     */
+    protected void processFused(Message message) {
+        if (running && !cancelled) {
+            Thread thread = Thread.currentThread();
+            ClassLoader previousLoader = thread.getContextClassLoader();
+            try {
+                if (message instanceof ShutdownMessage) {
+                    process((ShutdownMessage) message, fusedCallback);
+                } else {
+                    synchronized (this) {
+                        activeCount++;
+                    }
+                    processOnAnotherThread(message, calculateUnitOfWorkLastMessage(message), fusedCallback);
+                }
+            } finally {
+                thread.setContextClassLoader(previousLoader);
+            }
+        }
+    }
+
+    public void setFused(boolean fused) {
+        this.fused = fused;
+        this.fusedCallback = fused ? createSendMessageCallback() : null;
+    }
+
+    public boolean isFused() {
+        return fused;
+    }
+
+    public boolean isFusable() {
+        return threadCount == 1 && componentDefintion != null && componentDefintion.isFusable();
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
     public void start() {
         try {
             componentContext.setComponentStatistics(new ComponentStatistics());    
             if (threadCount > 1) {
                 String prefix = String.format("%s-%s", LogUtils.normalizeName(flowRuntime.getAgent().getName()),
                         LogUtils.normalizeName(componentContext.getFlowStep().getName()));
-                this.componentRuntimeExecutor = ThreadUtils.createFixedThreadPool(prefix, queueCapacity, threadCount);
+                Component component = componentContext.getFlowStep().getComponent();
+                String partitionAttributeId = component.get(THREAD_PARTITION_ATTRIBUTE);
+                if (isNotBlank(partitionAttributeId) && !startStep) {
+                    startPartitions(prefix, partitionAttributeId, component.getBoolean(THREAD_PRESERVE_MESSAGE_ORDER, false));
+                } else if (componentDefintion != null && componentDefintion.isSupportsPartitionedThreads()
+                        && !componentDefintion.isSupportsMultipleThreads()) {
+                    throw new MisconfiguredException("%s must have a thread partition attribute when the thread count is greater than one",
+                            componentDefintion.getName());
+                } else {
+                    this.componentRuntimeExecutor = ThreadUtils.createFixedThreadPool(prefix, queueCapacity, threadCount);
+                }
             }
             for(IComponentRuntime componentRuntime:componentContext.getComponentRuntimeByThread().values()) {
                 if (sourceStepRuntimes.size() == 0 && !componentRuntime.supportsStartupMessages()) {
@@ -223,6 +300,24 @@ public class StepRuntime implements Runnable {
         }
     }
 
+    /*
+     * Each partition gets its own single threaded executor, its own component
+     * runtime and its own callback so that all records for a key are handled
+     * in order by the same component instance. Preserving message order holds
+     * output until the parts of every earlier input message have been sent.
+     * The rows of one input message still come out grouped by partition.
+     */
+    protected void startPartitions(String threadNamePrefix, String partitionAttributeId, boolean preserveMessageOrder) {
+        this.partitioner = new MessagePartitioner(partitionAttributeId, threadCount);
+        this.merger = preserveMessageOrder ? new OrderedMessageMerger() : null;
+        this.partitionExecutors = new ExecutorService[threadCount];
+        this.partitionCallbacks = new SendMessageCallback[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            this.partitionExecutors[i] = ThreadUtils.createSingleThreadPool(threadNamePrefix, i + 1, queueCapacity);
+            this.partitionCallbacks[i] = createSendMessageCallback();
+        }
+    }
+
     protected void createComponentRuntime(int threadNumber) {
         String type = getComponentType();
         IComponentRuntime componentRuntime = componentRuntimeFactory.create(componentContext.getFlowStep().getComponent().getProjectVersionId(), type, componentContext, threadNumber);
@@ -283,7 +378,7 @@ public class StepRuntime implements Runnable {
                             process(inputMessage, target);
                         }
                     } else if (running && !cancelled) {
-                        AppUtils.sleep(50);
+                        inQueue.awaitMessage(500, TimeUnit.MILLISECONDS);
                     }
                 }
             }
@@ -294,22 +389,31 @@ public class StepRuntime implements Runnable {
     
     protected synchronized void decrementActiveCount() {
         activeCount--;
+        notifyAll();
+    }
+
+    protected synchronized void waitForOtherThreadsToFinish() throws InterruptedException {
+        while (activeCount > 1) {
+            wait(500);
+        }
     }
     
     protected synchronized int getActiveCountPlusQueueSize() {
         return activeCount + inQueue.size();
     }
 
-    protected void process(Message inputMessage, SendMessageCallback target) {
+    protected void process(Message inputMessage, SendMessageCallback target) throws InterruptedException {
         boolean unitOfWorkBoundaryReached = calculateUnitOfWorkLastMessage(inputMessage);
         /*
          * If unitOfWorkBoundaryReached, we might want to consider waiting to
          * send this until all other threads have finished processing to avoid
          * race conditions.
          */
-        if (threadCount > 1) {
-            while (unitOfWorkBoundaryReached && activeCount > 1) {
-                AppUtils.sleep(5);
+        if (partitioner != null) {
+            processPartitioned(inputMessage, unitOfWorkBoundaryReached);
+        } else if (threadCount > 1) {
+            if (unitOfWorkBoundaryReached) {
+                waitForOtherThreadsToFinish();
             }
             this.componentRuntimeExecutor.execute(() -> processOnAnotherThread(inputMessage, unitOfWorkBoundaryReached, target));    
         } else {
@@ -317,6 +421,64 @@ public class StepRuntime implements Runnable {
         }
     }
 
+    /*
+     * The active count taken when the message was polled is held until every
+     * part has been handed off. Messages for a partition are handled in order
+     * by its single thread, so only the control message at a unit of work
+     * boundary needs to wait: it is sent by the last partition after the
+     * others have finished with the boundary.
+     */
+    protected void processPartitioned(Message inputMessage, boolean unitOfWorkBoundaryReached) throws InterruptedException {
+        try {
+            Message[] parts = partitioner.partition(inputMessage, unitOfWorkBoundaryReached);
+            int remaining = 0;
+            for (Message part : parts) {
+                if (part != null) {
+                    remaining++;
+                }
+            }
+            long sequence = merger != null ? merger.register(remaining) : -1;
+            for (int i = 0; i < parts.length; i++) {
+                if (parts[i] != null) {
+                    boolean lastPart = --remaining == 0;
+                    if (unitOfWorkBoundaryReached && lastPart && merger == null) {
+                        waitForOtherThreadsToFinish();
+                    }
+                    Message part = parts[i];
+                    int partition = i;
+                    boolean sendControlMessages = !unitOfWorkBoundaryReached || lastPart;
+                    synchronized (this) {
+                        activeCount++;
+                    }
+                    partitionExecutors[i].execute(() -> processPartition(part, unitOfWorkBoundaryReached, sendControlMessages,
+                            partitionCallbacks[partition], sequence, partition));
+                }
+            }
+        } finally {
+            decrementActiveCount();
+        }
+    }
+
+    protected void processPartition(Message part, boolean unitOfWorkBoundaryReached, boolean sendControlMessages,
+            SendMessageCallback callback, long sequence, int partition) {
+        callback.sendControlMessages = sendControlMessages;
+        callback.heldSends = merger != null ? new ArrayList<>() : null;
+        try {
+            processOnAnotherThread(part, unitOfWorkBoundaryReached, callback);
+        } finally {
+            List<Runnable> sends = callback.heldSends;
+            callback.heldSends = null;
+            callback.sendControlMessages = true;
+            if (merger != null) {
+                try {
+                    merger.complete(sequence, partition, sends);
+                } catch (Throwable ex) {
+                    recordError(partition + 1, ex);
+                }
+            }
+        }
+    }
+
     protected void processOnAnotherThread(Message inputMessage, boolean unitOfWorkBoundaryReached, SendMessageCallback callback) {
         int threadNumber = ThreadUtils.getThreadNumber(threadCount);
         try {
@@ -484,6 +646,10 @@ public class StepRuntime implements Runnable {
     }
 
     private void shutdown(ISendMessageCallback target, boolean waitForShutdown) {
+        if (!shutdownStarted.compareAndSet(false, true)) {
+            return;
+        }
+
         shutdownThreads(waitForShutdown);
 
         if (log.isDebugEnabled()) {
@@ -500,12 +666,23 @@ public class StepRuntime implements Runnable {
         }
 
         recordFlowStepFinished();
+        inQueue.wakeUp();
+        flowRuntime.stepFinished(this);
     }
 
     private void shutdownThreads(boolean waitForShutdown) {
-        if (this.componentRuntimeExecutor instanceof ExecutorService) {
+        if (partitionExecutors != null) {
+            for (ExecutorService partitionExecutor : partitionExecutors) {
+                shutdownThreads(partitionExecutor, waitForShutdown);
+            }
+        }
+        shutdownThreads(componentRuntimeExecutor, waitForShutdown);
+    }
+
+    private void shutdownThreads(Executor executor, boolean waitForShutdown) {
+        if (executor instanceof ExecutorService) {
             try {
-                ExecutorService service = (ExecutorService) this.componentRuntimeExecutor;
+                ExecutorService service = (ExecutorService) executor;
                 service.shutdown();
                 while (waitForShutdown && !service.isTerminated()) {
                     service.awaitTermination(500, TimeUnit.MILLISECONDS);
@@ -527,7 +704,20 @@ public class StepRuntime implements Runnable {
 
     public void cancel() {
         cancelling = true;
-        if (isRunning()) {
+        if (isRunning() && fused) {
+            /*
+             * The source step forwards the shutdown message when it is
+             * cancelled. Only shut down here if the source is already gone.
+             * The source can forward its shutdown message between the check
+             * and the call, so shutdown only runs once either way.
+             */
+            for (IComponentRuntime componentRuntime : getComponentRuntimes()) {
+                componentRuntime.interrupt();
+            }
+            if (!sourceStepRuntimes.get(0).isRunning()) {
+                process(new ShutdownMessage(componentContext.getFlowStep().getId(), true), fusedCallback);
+            }
+        } else if (isRunning()) {
             try {
                 inQueue.clear();
                 queue(new ShutdownMessage(componentContext.getFlowStep().getId(), true));
@@ -663,6 +853,14 @@ public class StepRuntime implements Runnable {
         Map<Integer, Message> currentInputMessages = new HashMap<>();
         Map<Integer, Long> queueTime = new HashMap<>();
 
+        /*
+         * Set by a partitioned step. Control messages are dropped while false
+         * and sends are held instead of delivered while held sends is not null.
+         */
+        boolean sendControlMessages = true;
+
+        List<Runnable> heldSends;
+
         private void setCurrentInputMessage(int threadNumber, Message currentInputMessage) {
             currentInputMessages.put(threadNumber, currentInputMessage);
         }
@@ -685,6 +883,11 @@ public class StepRuntime implements Runnable {
             return newMessage;
         }
 
+        /*
+         * Entity data copies share their values until one side writes to
+         * them, so copying a list of rows is cheap. Binary payloads are
+         * cloned because components reuse and write to their buffers.
+         */
         @SuppressWarnings("unchecked")
         private <T extends Serializable> T copy(T payload) {
             if (payload instanceof ArrayList) {
@@ -725,10 +928,45 @@ public class StepRuntime implements Runnable {
                 logOutput(message, targetFlowStepIds);
             }
             
-            long ts = System.currentTimeMillis();
-
             Collection<String> targetStepIds = targetFlowStepIds != null ? Arrays.asList(targetFlowStepIds) : Collections.emptyList();
 
+            if (heldSends != null) {
+                if (message instanceof ControlMessage) {
+                    for (StepRuntime targetRuntime : targetStepRuntimes) {
+                        if (targetStepIds.size() == 0 || targetStepIds.contains(targetRuntime.getComponentContext().getFlowStep().getId())) {
+                            targetStepRuntimeUnitOfWorkSent.add(targetRuntime.getComponentContext().getFlowStep().getId());
+                        }
+                    }
+                }
+                heldSends.add(() -> deliver(message, targetStepIds));
+                return;
+            }
+
+            long ts = System.currentTimeMillis();
+
+            long fusedTime = deliver(message, targetStepIds);
+            
+            /*
+             * Time spent handling the message in fused targets is neither
+             * waiting nor handling for this step. The fused targets record it
+             * as their own handle time.
+             */
+            long elapsed = System.currentTimeMillis()-ts;
+            long queueTime = Math.max(0, elapsed - fusedTime);
+            Long totalQueueTime = this.queueTime.get(threadNumber);
+            if (totalQueueTime == null) {
+                totalQueueTime = 0l;
+            }
+            totalQueueTime += elapsed;
+            this.queueTime.put(threadNumber, totalQueueTime);
+            statistics.incrementTimeSpentWaiting(threadNumber, queueTime);
+        }
+        
+        /*
+         * Returns the time spent in targets that are fused to this step
+         */
+        private long deliver(Message message, Collection<String> targetStepIds) {
+            long fusedTime = 0;
             for (StepRuntime targetRuntime : targetStepRuntimes) {
                 boolean forward = targetStepIds == null || targetStepIds.size() == 0
                         || targetStepIds.contains(targetRuntime.getComponentContext().getFlowStep().getId());
@@ -738,7 +976,13 @@ public class StepRuntime implements Runnable {
                             log.debug("Sending " + message.getClass().getSimpleName() + " to "
                                     + targetRuntime.getComponentContext().getFlowStep().getName());
                         }
-                        targetRuntime.queue(message);
+                        if (targetRuntime.isFused()) {
+                            long ts = System.currentTimeMillis();
+                            targetRuntime.queue(message);
+                            fusedTime += System.currentTimeMillis() - ts;
+                        } else {
+                            targetRuntime.queue(message);
+                        }
                         if (message instanceof ControlMessage) {
                             targetStepRuntimeUnitOfWorkSent.add(targetRuntime.getComponentContext().getFlowStep().getId());
                         }
@@ -751,17 +995,9 @@ public class StepRuntime implements Runnable {
                     }
                 }
             }
-            
-            long queueTime = System.currentTimeMillis()-ts;
-            Long totalQueueTime = this.queueTime.get(threadNumber);
-            if (totalQueueTime == null) {
-                totalQueueTime = 0l;
-            }
-            totalQueueTime += queueTime;
-            this.queueTime.put(threadNumber, totalQueueTime);
-            statistics.incrementTimeSpentWaiting(threadNumber, queueTime);
+            return fusedTime;
         }
-        
+
         protected long useQueueTime(int threadNumber) {
             Long time = this.queueTime.remove(threadNumber);
             if (time == null) {
@@ -791,6 +1027,9 @@ public class StepRuntime implements Runnable {
 
         @Override
         public void sendControlMessage(Map<String, Serializable> messageHeaders, String... targetStepIds) {
+            if (!sendControlMessages) {
+                return;
+            }
             FlowStep flowStep = componentContext.getFlowStep();
             sendMessage(createMessage(new ControlMessage(flowStep.getId()), messageHeaders), targetStepIds);
             controlMessagesSentCount++;
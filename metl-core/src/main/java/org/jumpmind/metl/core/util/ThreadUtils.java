@@ -63,6 +63,22 @@ final public class ThreadUtils {
           return executor;
     }
 
+    /**
+     * Creates an executor with a single thread whose name ends with the
+     * given thread number so that {@link #getThreadNumber(int)} resolves to
+     * it. Tasks are run in the order they were submitted.
+     */
+    public static ExecutorService createSingleThreadPool(String namePrefix, int threadNumber, int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new CustomThreadFactory(namePrefix, threadNumber));
+        executor.setRejectedExecutionHandler((r, e) -> {try {
+            e.getQueue().put(r);
+        } catch (Exception e1) {
+            throw new RuntimeException(e1);
+        }});
+        return executor;
+    }
+
     public static ExecutorService createUnboundedThreadPool(String namePrefix) {
         return Executors.newCachedThreadPool(new CustomThreadFactory(namePrefix));
     }
@@ -70,10 +86,15 @@ final public class ThreadUtils {
     static class CustomThreadFactory implements ThreadFactory {
 
         String namePrefix;
-        final AtomicInteger threadNumber = new AtomicInteger(1);
+        final AtomicInteger threadNumber;
 
         public CustomThreadFactory(String namePrefix) {
+            this(namePrefix, 1);
+        }
+
+        public CustomThreadFactory(String namePrefix, int firstThreadNumber) {
             this.namePrefix = namePrefix;
+            this.threadNumber = new AtomicInteger(firstThreadNumber);
         }
 
         public Thread newThread(Runnable r) {
@@ -0,0 +1,128 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.jumpmind.metl.core.runtime.EntityDataLayout;
+import org.junit.Test;
+
+public class ModelTest {
+
+    @Test
+    public void testLookupsIgnoreCase() {
+        Model model = createModel();
+        assertSame(model.getModelEntities().get(1), model.getEntityById("E2"));
+        assertSame(model.getModelEntities().get(1), model.getEntityByName("TABLE2"));
+        assertEquals("b", model.getAttributeById("E2A2").getName());
+        assertEquals("e2a2", model.getAttributeByName("table2", "B").getId());
+        assertEquals(2, model.getAttributesByName("A").size());
+        assertNull(model.getAttributeById("missing"));
+    }
+
+    @Test
+    public void testLookupsSeeChangesMadeInPlace() {
+        Model model = createModel();
+        assertNull(model.getEntityByName("table3"));
+
+        ModelEntity entity = new ModelEntity("e3", "table3");
+        entity.getModelAttributes().add(new ModelAttrib("e3a1", "e3", "c"));
+        model.getModelEntities().add(entity);
+        assertSame(entity, model.getEntityByName("table3"));
+        assertEquals("c", model.getAttributeById("e3a1").getName());
+
+        ModelAttrib attribute = model.getAttributeById("e1a1");
+        model.getEntityById("e1").removeModelAttribute(attribute);
+        assertNull(model.getAttributeById("e1a1"));
+
+        model.getEntityById("e1").getModelAttributes().add(new ModelAttrib("e1a3", "e1", "z"));
+        assertEquals("z", model.getAttributeByName("table1", "z").getName());
+
+        model.getEntityById("e2").setName("renamed");
+        assertNull(model.getEntityByName("table2"));
+        assertEquals("e2", model.getEntityByName("renamed").getId());
+    }
+
+    @Test
+    public void testLookupsByIdSeeReplacedEntitiesAndAttributes() {
+        Model model = createModel();
+        assertNull(model.getEntityById("e3"));
+        assertNull(model.getAttributeById("e3a1"));
+
+        ModelEntity entity = new ModelEntity("e3", "table3");
+        entity.getModelAttributes().add(new ModelAttrib("e3a1", "e3", "c"));
+        model.getModelEntities().set(0, entity);
+        assertSame(entity, model.getEntityById("e3"));
+        assertNull(model.getEntityById("e1"));
+        assertEquals("c", model.getAttributeById("e3a1").getName());
+        assertNull(model.getAttributeById("e1a1"));
+
+        entity.getModelAttributes().add(new ModelAttrib("e3a2", "e3", "d"));
+        assertEquals("d", model.getAttributeById("E3A2").getName());
+        assertNull(model.getAttributeById("missing"));
+    }
+
+    @Test
+    public void testEntityDataLayoutFollowsChangesMadeInPlace() {
+        Model model = createModel();
+        EntityDataLayout layout = model.getEntityDataLayout();
+        assertSame(layout, model.getEntityDataLayout());
+        assertEquals(4, layout.size());
+        assertEquals(2, layout.getOrdinal("e2a1"));
+
+        model.getEntityById("e1").removeModelAttribute(model.getAttributeById("e1a1"));
+        layout = model.getEntityDataLayout();
+        assertEquals(3, layout.size());
+        assertEquals(-1, layout.getOrdinal("e1a1"));
+        assertEquals(1, layout.getOrdinal("e2a1"));
+
+        model.getEntityById("e1").getModelAttributes().add(new ModelAttrib("e1a3", "e1", "z"));
+        layout = model.getEntityDataLayout();
+        assertEquals(1, layout.getOrdinal("e1a3"));
+        assertEquals(2, layout.getOrdinal("e2a1"));
+
+        ModelEntity entity = new ModelEntity("e3", "table3");
+        entity.getModelAttributes().add(new ModelAttrib("e3a1", "e3", "c"));
+        model.getModelEntities().set(0, entity);
+        layout = model.getEntityDataLayout();
+        assertEquals(3, layout.size());
+        assertEquals(0, layout.getOrdinal("e3a1"));
+        assertEquals(-1, layout.getOrdinal("e1a2"));
+
+        model.getModelEntities().add(new ModelEntity("e4", "table4"));
+        model.getModelEntities().get(2).addModelAttribute(new ModelAttrib("e4a1", "e4", "d"));
+        assertEquals(3, model.getEntityDataLayout().getOrdinal("e4a1"));
+    }
+
+    protected Model createModel() {
+        Model model = new Model("model");
+        for (int i = 1; i <= 2; i++) {
+            ModelEntity entity = new ModelEntity("e" + i, "table" + i);
+            entity.addModelAttribute(new ModelAttrib("e" + i + "a1", entity.getId(), "a"));
+            entity.addModelAttribute(new ModelAttrib("e" + i + "a2", entity.getId(), "b"));
+            model.getModelEntities().add(entity);
+        }
+        return model;
+    }
+
+}
@@ -0,0 +1,361 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jumpmind.db.platform.IDatabasePlatform;
+import org.jumpmind.db.sql.SqlPersistenceManager;
+import org.jumpmind.db.util.ConfigDatabaseUpgrader;
+import org.jumpmind.db.util.ResettableBasicDataSource;
+import org.jumpmind.metl.core.model.AbstractObject;
+import org.jumpmind.metl.core.model.AbstractObjectNameBasedSorter;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttribSetting;
+import org.jumpmind.metl.core.model.ComponentEntitySetting;
+import org.jumpmind.metl.core.model.ComponentSetting;
+import org.jumpmind.metl.core.model.DataType;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.FlowStepLink;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.ModelRelation;
+import org.jumpmind.metl.core.model.ModelRelationMapping;
+import org.jumpmind.metl.core.model.Resource;
+import org.jumpmind.metl.core.model.ResourceSetting;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.security.SecurityService;
+import org.jumpmind.metl.core.utils.DbTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConfigurationServiceTest {
+
+    static final int STEP_COUNT = ConfigurationService.MAX_IN_LIST_SIZE + 20;
+
+    IDatabasePlatform platform;
+
+    ConfigurationService configurationService;
+
+    @Before
+    public void setup() throws Exception {
+        platform = DbTestUtils.createDatabasePlatform();
+        new ConfigDatabaseUpgrader("/schema.xml", platform, true, "METL").upgrade();
+        configurationService = new ConfigurationService(null, new SecurityService(), platform,
+                new SqlPersistenceManager(platform), "METL");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ResettableBasicDataSource ds = platform.getDataSource();
+        ds.close();
+    }
+
+    @Test
+    public void testFindFlowMatchesRowByRowLoad() throws Exception {
+        Flow flow = createFlow();
+
+        Flow bulk = configurationService.findFlow(flow.getId());
+        Flow rowByRow = findFlowRowByRow(flow.getId());
+
+        assertEquals(STEP_COUNT, bulk.getFlowSteps().size());
+        assertEquals(STEP_COUNT - 1, bulk.getFlowStepLinks().size());
+        assertEquals(describe(rowByRow), describe(bulk));
+    }
+
+    @Test
+    public void testFindInSpansMoreThanOneInList() throws Exception {
+        Flow flow = createFlow();
+        Set<String> modelIds = new HashSet<String>();
+        Set<String> entityIds = new HashSet<String>();
+        for (FlowStep step : flow.getFlowSteps()) {
+            Model model = step.getComponent().getOutputModel();
+            modelIds.add(model.getId());
+            for (ModelEntity entity : model.getModelEntities()) {
+                entityIds.add(entity.getId());
+            }
+        }
+        assertTrue(modelIds.size() > ConfigurationService.MAX_IN_LIST_SIZE);
+
+        Set<String> foundModelIds = new HashSet<String>();
+        for (Model model : configurationService.findIn(Model.class, "id", modelIds)) {
+            foundModelIds.add(model.getId());
+        }
+        assertEquals(modelIds, foundModelIds);
+
+        Set<String> foundEntityIds = new HashSet<String>();
+        for (ModelAttrib attribute : configurationService.findIn(ModelAttrib.class, "entity_id",
+                entityIds)) {
+            foundEntityIds.add(attribute.getEntityId());
+        }
+        assertEquals(entityIds, foundEntityIds);
+    }
+
+    /*
+     * Every step gets its own component and output model and reads the model
+     * of the step before it, so the flow references more models, entities and
+     * attributes than fit in one in list.
+     */
+    protected Flow createFlow() {
+        Flow flow = new Flow();
+        flow.setName("flow");
+        flow.setFlowParameters(new ArrayList<>());
+        flow.setFlowStepLinks(new ArrayList<>());
+        flow.setFlowSteps(new ArrayList<>());
+
+        Model previousModel = null;
+        FlowStep previousStep = null;
+        for (int i = 0; i < STEP_COUNT; i++) {
+            Model model = createModel("model" + i);
+
+            Resource resource = new Resource();
+            resource.setName("resource" + i);
+            resource.setType("Datasource");
+            resource.setSettings(new ArrayList<Setting>());
+            ResourceSetting resourceSetting = new ResourceSetting(resource.getId());
+            resourceSetting.setName("url");
+            resourceSetting.setValue("jdbc:h2:mem:" + i);
+            resource.getSettings().add(resourceSetting);
+            configurationService.save(resource);
+
+            Component component = new Component();
+            component.setName("component" + i);
+            component.setType("Mapping");
+            component.setResourceId(resource.getId());
+            component.setResource(resource);
+            component.setOutputModelId(model.getId());
+            component.setOutputModel(model);
+            if (previousModel != null) {
+                component.setInputModelId(previousModel.getId());
+                component.setInputModel(previousModel);
+            }
+            ComponentSetting setting = new ComponentSetting(component.getId());
+            setting.setName("setting");
+            setting.setValue(Integer.toString(i));
+            component.setSettings(new ArrayList<Setting>());
+            component.getSettings().add(setting);
+            ModelEntity entity = model.getModelEntities().get(0);
+            component.setEntitySettings(new ArrayList<>());
+            component.getEntitySettings().add(
+                    new ComponentEntitySetting(entity.getId(), component.getId(), "entity", "e" + i));
+            component.setAttributeSettings(new ArrayList<>());
+            component.getAttributeSettings().add(new ComponentAttribSetting(
+                    entity.getModelAttributes().get(0).getId(), component.getId(), "attribute", "a" + i));
+
+            FlowStep step = new FlowStep();
+            step.setFlowId(flow.getId());
+            step.setComponent(component);
+            step.setX(STEP_COUNT - i);
+            flow.getFlowSteps().add(step);
+            if (previousStep != null) {
+                flow.getFlowStepLinks().add(new FlowStepLink(previousStep.getId(), step.getId()));
+            }
+
+            previousModel = model;
+            previousStep = step;
+        }
+        configurationService.save(flow);
+        return flow;
+    }
+
+    protected Model createModel(String name) {
+        Model model = new Model();
+        model.setName(name);
+        model.setType(Model.TYPE_RELATIONAL);
+        for (int i = 0; i < 2; i++) {
+            ModelEntity entity = new ModelEntity();
+            entity.setModelId(model.getId());
+            entity.setName(name + "_entity" + i);
+            for (int j = 0; j < 2; j++) {
+                ModelAttrib attribute = new ModelAttrib();
+                attribute.setEntityId(entity.getId());
+                attribute.setName("attribute" + j);
+                attribute.setAttributeOrder(j);
+                attribute.setPk(j == 0);
+                attribute.setDataType(j == 0 ? DataType.INTEGER : DataType.VARCHAR);
+                entity.getModelAttributes().add(attribute);
+            }
+            model.getModelEntities().add(entity);
+        }
+        configurationService.save(model);
+
+        ModelRelation relation = new ModelRelation();
+        relation.setModelId(model.getId());
+        relation.setName(name + "_relation");
+        configurationService.save(relation);
+        ModelRelationMapping mapping = new ModelRelationMapping();
+        mapping.setModelRelationId(relation.getId());
+        mapping.setSourceAttribId(model.getModelEntities().get(0).getModelAttributes().get(0).getId());
+        mapping.setTargetAttribId(model.getModelEntities().get(1).getModelAttributes().get(0).getId());
+        configurationService.save(mapping);
+        return model;
+    }
+
+    /*
+     * Reads the flow the way it was read before the set based queries were
+     * introduced: one component, model and resource at a time and one link
+     * query per step.
+     */
+    protected Flow findFlowRowByRow(String flowId) {
+        Flow flow = new Flow(flowId);
+        configurationService.refresh((AbstractObject) flow);
+        flow.setFlowSteps(new ArrayList<>());
+        flow.setFlowStepLinks(new ArrayList<>());
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("flowId", flowId);
+        List<FlowStep> steps = configurationService.find(FlowStep.class, params);
+        Collections.sort(steps, new Comparator<FlowStep>() {
+            @Override
+            public int compare(FlowStep o1, FlowStep o2) {
+                return new Integer(o1.getX()).compareTo(new Integer(o2.getX()));
+            }
+        });
+
+        for (FlowStep step : steps) {
+            Component component = configurationService.findComponent(step.getComponentId(), false);
+            step.setComponent(component);
+            flow.getFlowSteps().add(step);
+            if (component.getOutputModelId() != null) {
+                component.setOutputModel(findModelRowByRow(component.getOutputModelId()));
+            }
+            if (component.getInputModelId() != null) {
+                component.setInputModel(findModelRowByRow(component.getInputModelId()));
+            }
+            if (component.getResourceId() != null) {
+                component.setResource(configurationService.findResource(component.getResourceId()));
+            }
+            params.clear();
+            params.put("sourceStepId", step.getId());
+            flow.getFlowStepLinks().addAll(configurationService.find(FlowStepLink.class, params));
+        }
+        return flow;
+    }
+
+    protected Model findModelRowByRow(String modelId) {
+        Model model = new Model(modelId);
+        configurationService.refresh((AbstractObject) model);
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("modelId", modelId);
+        List<ModelEntity> entities = configurationService.find(ModelEntity.class, params);
+        for (ModelEntity entity : entities) {
+            params.clear();
+            params.put("entityId", entity.getId());
+            entity.getModelAttributes().addAll(configurationService.find(ModelAttrib.class, params));
+            Collections.sort(entity.getModelAttributes());
+        }
+        AbstractObjectNameBasedSorter.sort(entities);
+        model.setModelEntities(entities);
+
+        params.clear();
+        params.put("modelId", modelId);
+        List<ModelRelation> relations = configurationService.find(ModelRelation.class, params);
+        for (ModelRelation relation : relations) {
+            params.clear();
+            params.put("modelRelationId", relation.getId());
+            for (ModelRelationMapping mapping : configurationService.find(ModelRelationMapping.class,
+                    params)) {
+                configurationService.refresh(mapping);
+                relation.getModelRelationMappings().add(mapping);
+            }
+        }
+        model.setModelRelations(relations);
+        return model;
+    }
+
+    protected String describe(Flow flow) {
+        StringBuilder b = new StringBuilder(flow.getId()).append(" ").append(flow.getName());
+        for (FlowStep step : flow.getFlowSteps()) {
+            Component component = step.getComponent();
+            b.append("\nstep ").append(step.getId()).append(" x=").append(step.getX());
+            b.append("\n component ").append(component.getId()).append(" ")
+                    .append(component.getName()).append(" ").append(component.getType());
+            for (Setting setting : component.getSettings()) {
+                describe(b, setting);
+            }
+            for (Setting setting : component.getEntitySettings()) {
+                describe(b, setting);
+            }
+            for (Setting setting : component.getAttributeSettings()) {
+                describe(b, setting);
+            }
+            describe(b, "input", component.getInputModel());
+            describe(b, "output", component.getOutputModel());
+            Resource resource = component.getResource();
+            if (resource != null) {
+                b.append("\n resource ").append(resource.getId()).append(" ")
+                        .append(resource.getName()).append(" ").append(resource.getType());
+                for (Setting setting : resource.getSettings()) {
+                    describe(b, setting);
+                }
+            }
+        }
+        List<String> links = new ArrayList<String>();
+        for (FlowStepLink link : flow.getFlowStepLinks()) {
+            links.add(link.getSourceStepId() + "->" + link.getTargetStepId());
+        }
+        Collections.sort(links);
+        b.append("\nlinks ").append(links);
+        return b.toString();
+    }
+
+    protected void describe(StringBuilder b, Setting setting) {
+        b.append("\n  setting ").append(setting.getId()).append(" ").append(setting.getName())
+                .append("=").append(setting.getValue());
+    }
+
+    protected void describe(StringBuilder b, String label, Model model) {
+        if (model == null) {
+            return;
+        }
+        b.append("\n ").append(label).append(" model ").append(model.getId()).append(" ")
+                .append(model.getName());
+        for (ModelEntity entity : model.getModelEntities()) {
+            b.append("\n  entity ").append(entity.getId()).append(" ").append(entity.getName());
+            for (ModelAttrib attribute : entity.getModelAttributes()) {
+                b.append("\n   attribute ").append(attribute.getId()).append(" ")
+                        .append(attribute.getName()).append(" ").append(attribute.getType());
+            }
+        }
+        for (ModelRelation relation : model.getModelRelations()) {
+            b.append("\n  relation ").append(relation.getId()).append(" ").append(relation.getName());
+            for (ModelRelationMapping mapping : relation.getModelRelationMappings()) {
+                b.append("\n   mapping ").append(mapping.getSourceAttribute().getId()).append("->")
+                        .append(mapping.getTargetAttribute().getId());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.same;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jumpmind.db.platform.IDatabasePlatform;
+import org.jumpmind.db.sql.ISqlTemplate;
+import org.jumpmind.db.sql.ISqlTransaction;
+import org.jumpmind.metl.core.model.Execution;
+import org.jumpmind.metl.core.model.ExecutionStep;
+import org.jumpmind.persist.IPersistenceManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+public class ExecutionServiceTest {
+
+    IPersistenceManager persistenceManager;
+
+    ISqlTransaction transaction;
+
+    ExecutionService executionService;
+
+    @Before
+    public void setup() throws Exception {
+        persistenceManager = mock(IPersistenceManager.class);
+        transaction = mock(ISqlTransaction.class);
+        ISqlTemplate template = mock(ISqlTemplate.class);
+        when(template.startSqlTransaction()).thenReturn(transaction);
+        IDatabasePlatform platform = mock(IDatabasePlatform.class);
+        when(platform.getSqlTemplate()).thenReturn(template);
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("execution.save.period.time.ms", "3600000");
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test", properties));
+
+        executionService = new ExecutionService(null, persistenceManager, platform, "METL", environment);
+        /* the tests flush the queue themselves */
+        executionService.saveScheduler.shutdown();
+        executionService.saveScheduler.getScheduledExecutor().awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        executionService.purgeScheduler.shutdown();
+        executionService.purgeFileDeleter.shutdown();
+    }
+
+    @Test
+    public void testRepeatedSavesAreWrittenOnce() {
+        Execution running = execution("execution", "RUNNING");
+        Execution done = execution("execution", "DONE");
+        ExecutionStep stepReady = step("step", "execution", "READY");
+        ExecutionStep stepRunning = step("step", "execution", "RUNNING");
+        executionService.queueSave(running);
+        executionService.queueSave(stepReady);
+        executionService.queueSave(done);
+        executionService.queueSave(stepRunning);
+        executionService.flushQueuedSaves();
+
+        ArgumentCaptor<Object> saved = ArgumentCaptor.forClass(Object.class);
+        verify(persistenceManager).save(saved.capture(), anyString(), anyString(), anyString());
+        assertSame(done, saved.getValue());
+
+        ArgumentCaptor<Object> added = ArgumentCaptor.forClass(Object.class);
+        verify(transaction).prepare(startsWith("insert"));
+        verify(transaction).addRow(added.capture(), any(Object[].class), any(int[].class));
+        assertSame(stepRunning, added.getValue());
+        verify(transaction).commit();
+
+        executionService.queueSave(step("step", "execution", "DONE"));
+        executionService.flushQueuedSaves();
+        verify(transaction).prepare(startsWith("update"));
+        verify(transaction, times(2)).addRow(any(), any(Object[].class), any(int[].class));
+        assertTrue(executionService.queuedSaves.isEmpty());
+    }
+
+    @Test
+    public void testFailedBatchSavesStepsOneAtATime() {
+        ExecutionStep first = step("first", "execution", "RUNNING");
+        ExecutionStep bad = step("bad", "execution", "RUNNING");
+        ExecutionStep last = step("last", "execution", "RUNNING");
+        when(transaction.flush()).thenThrow(new RuntimeException("batch failed"));
+        doThrow(new RuntimeException("row failed")).when(persistenceManager).save(same(bad), anyString(),
+                anyString(), anyString());
+
+        executionService.queueSave(first);
+        executionService.queueSave(bad);
+        executionService.queueSave(last);
+        executionService.flushQueuedSaves();
+
+        verify(transaction).rollback();
+        verify(transaction, never()).commit();
+        verify(persistenceManager).save(same(first), anyString(), anyString(), anyString());
+        verify(persistenceManager).save(same(last), anyString(), anyString(), anyString());
+        assertTrue(executionService.isInserted(first));
+        assertTrue(executionService.isInserted(last));
+        assertFalse(executionService.isInserted(bad));
+        assertEquals(1, executionService.queuedSaves.size());
+        assertSame(bad, executionService.queuedSaves.get("bad"));
+    }
+
+    @Test
+    public void testFailedSavesAreRetriedUpToMaxAttempts() {
+        Execution execution = execution("execution", "RUNNING");
+        doThrow(new RuntimeException("save failed")).when(persistenceManager).save(same(execution),
+                anyString(), anyString(), anyString());
+
+        executionService.queueSave(execution);
+        for (int attempt = 1; attempt < ExecutionService.MAX_SAVE_ATTEMPTS; attempt++) {
+            executionService.flushQueuedSaves();
+            assertSame(execution, executionService.queuedSaves.get("execution"));
+            assertEquals(Integer.valueOf(attempt), executionService.failedSaveAttempts.get("execution"));
+        }
+        executionService.flushQueuedSaves();
+        assertTrue(executionService.queuedSaves.isEmpty());
+        assertTrue(executionService.failedSaveAttempts.isEmpty());
+
+        executionService.flushQueuedSaves();
+        verify(persistenceManager, times(ExecutionService.MAX_SAVE_ATTEMPTS)).save(same(execution),
+                anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void testNewerCopyIsNotReplacedByFailedSave() {
+        Execution failing = execution("execution", "RUNNING");
+        Execution newer = execution("execution", "DONE");
+        doAnswer(invocation -> {
+            executionService.queueSave(newer);
+            throw new RuntimeException("save failed");
+        }).when(persistenceManager).save(same(failing), anyString(), anyString(), anyString());
+
+        executionService.queueSave(failing);
+        executionService.flushQueuedSaves();
+        assertSame(newer, executionService.queuedSaves.get("execution"));
+        assertEquals(Integer.valueOf(1), executionService.failedSaveAttempts.get("execution"));
+
+        executionService.flushQueuedSaves();
+        verify(persistenceManager).save(same(newer), anyString(), anyString(), anyString());
+        assertTrue(executionService.queuedSaves.isEmpty());
+        assertTrue(executionService.failedSaveAttempts.isEmpty());
+    }
+
+    protected Execution execution(String id, String status) {
+        Execution execution = new Execution();
+        execution.setId(id);
+        execution.setStatus(status);
+        return execution;
+    }
+
+    protected ExecutionStep step(String id, String executionId, String status) {
+        ExecutionStep step = new ExecutionStep();
+        step.setId(id);
+        step.setExecutionId(executionId);
+        step.setStatus(status);
+        return step;
+    }
+
+}
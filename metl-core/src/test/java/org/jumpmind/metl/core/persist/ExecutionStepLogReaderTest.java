@@ -0,0 +1,116 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.persist;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jumpmind.metl.core.model.ExecutionStepLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExecutionStepLogReaderTest {
+
+    File dir;
+
+    File dataFile;
+
+    File indexFile;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "step-log-test-" + System.nanoTime());
+        dir.mkdirs();
+        dataFile = new File(dir, "step" + ExecutionStepLogFiles.DATA_SUFFIX);
+        indexFile = new File(dir, "step" + ExecutionStepLogFiles.INDEX_SUFFIX);
+    }
+
+    @After
+    public void cleanup() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testPagedReads() throws Exception {
+        try (ExecutionStepLogWriter writer = new ExecutionStepLogWriter(dataFile, indexFile, true)) {
+            for (int i = 0; i < 1000; i++) {
+                writer.write(stepLog(i % 100 == 0 ? "ERROR" : "INFO", i % 250 == 0 ? StringUtils.repeat("long text ", 500) : "line " + i));
+            }
+        }
+        /* appending to an existing log keeps the offsets right */
+        try (ExecutionStepLogWriter writer = new ExecutionStepLogWriter(dataFile, indexFile, true)) {
+            writer.write(stepLog("INFO", "line 1000"));
+        }
+
+        try (ExecutionStepLogReader reader = new ExecutionStepLogReader("step", dataFile, indexFile)) {
+            assertEquals(1001, reader.getRecordCount());
+
+            List<ExecutionStepLog> page = reader.read(500, 100, null);
+            assertEquals(100, page.size());
+            assertEquals(StringUtils.repeat("long text ", 500), page.get(0).getLogText());
+            assertEquals("line 599", page.get(99).getLogText());
+            assertEquals("600", page.get(99).getId());
+
+            page = reader.read(995, 100, null);
+            assertEquals(6, page.size());
+            assertEquals("line 1000", page.get(5).getLogText());
+
+            page = reader.read(0, 5, Collections.singleton("ERROR"));
+            assertEquals(5, page.size());
+            assertEquals("line 100", page.get(1).getLogText());
+            assertEquals("ERROR", page.get(1).getLevel());
+        }
+    }
+
+    @Test
+    public void testIndexWrittenOnlyAfterDataIsFlushed() throws Exception {
+        try (ExecutionStepLogWriter writer = new ExecutionStepLogWriter(dataFile, indexFile, false)) {
+            for (int i = 0; i < 5000; i++) {
+                writer.write(stepLog("INFO", "line " + i));
+            }
+            assertEquals(0, indexFile.length());
+            writer.flush();
+            assertEquals(5000 * 8, indexFile.length());
+            writer.write(stepLog("INFO", "line 5000"));
+            assertEquals(5000 * 8, indexFile.length());
+        }
+        try (ExecutionStepLogReader reader = new ExecutionStepLogReader("step", dataFile, indexFile)) {
+            assertEquals(5001, reader.getRecordCount());
+            assertEquals("line 5000", reader.read(5000, 1, null).get(0).getLogText());
+        }
+    }
+
+    protected ExecutionStepLog stepLog(String level, String text) {
+        ExecutionStepLog stepLog = new ExecutionStepLog();
+        stepLog.setLevel(level);
+        stepLog.setLogText(text);
+        stepLog.setCreateTime(new Date());
+        return stepLog;
+    }
+
+}
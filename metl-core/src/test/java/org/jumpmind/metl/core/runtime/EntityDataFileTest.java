@@ -0,0 +1,83 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.jumpmind.metl.core.util.NameValue;
+import org.junit.Test;
+
+public class EntityDataFileTest {
+
+    @Test
+    public void testWriteAndReadBack() {
+        Timestamp timestamp = new Timestamp(1000);
+        timestamp.setNanos(123456789);
+        EntityData first = new EntityData(new NameValue("s", "text \u00e9"), new NameValue("n", null),
+                new NameValue("l", 5l), new NameValue("i", 6), new NameValue("d", new BigDecimal("1.50")),
+                new NameValue("b", true), new NameValue("date", new Date(2000)), new NameValue("ts", timestamp),
+                new NameValue("dbl", 1.5d), new NameValue("bytes", new byte[] { 1, 2 }));
+        first.setChangeType(ChangeType.CHG);
+
+        EntityDataFileWriter writer = EntityDataFileWriter.createTempFile("test-");
+        File file = writer.getFile();
+        try {
+            for (int i = 0; i < EntityDataFileWriter.RESET_INTERVAL + 10; i++) {
+                writer.write(i == 0 ? first : new EntityData(new NameValue("s", "row" + i)), i);
+            }
+            writer.close();
+
+            EntityDataFileReader reader = new EntityDataFileReader(file);
+            EntityData read = reader.read();
+            assertEquals(ChangeType.CHG, read.getChangeType());
+            assertEquals("text \u00e9", read.get("s"));
+            assertNull(read.get("n"));
+            assertEquals(10, read.size());
+            assertEquals(5l, read.get("l"));
+            assertEquals(6, read.get("i"));
+            assertEquals(new BigDecimal("1.50"), read.get("d"));
+            assertEquals(true, read.get("b"));
+            assertEquals(new Date(2000), read.get("date"));
+            assertEquals(timestamp, read.get("ts"));
+            assertEquals(1.5d, read.get("dbl"));
+            assertEquals(2, ((byte[]) read.get("bytes")).length);
+
+            int count = 1;
+            while ((read = reader.read()) != null) {
+                assertEquals("row" + count, read.get("s"));
+                assertEquals(count, reader.getTag());
+                count++;
+            }
+            assertEquals(EntityDataFileWriter.RESET_INTERVAL + 10, count);
+            reader.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.runtime.component.helpers.ModelAttributeBuilder;
+import org.jumpmind.metl.core.runtime.component.helpers.ModelBuilder;
+import org.jumpmind.metl.core.runtime.component.helpers.ModelEntityBuilder;
+import org.jumpmind.metl.core.util.NameValue;
+import org.junit.Test;
+
+public class EntityDataTest {
+
+    @Test
+    public void testCopyIsIsolatedFromOriginal() {
+        EntityData original = new EntityData(new NameValue("col1", "a"), new NameValue("col2", "b"));
+        EntityData copy = original.copy();
+        assertTrue(copy.isShared());
+        assertEquals(original, copy);
+
+        copy.put("COL1", "changed");
+        assertFalse(copy.isShared());
+        assertEquals("a", original.get("col1"));
+        assertEquals("changed", copy.get("col1"));
+
+        original.remove("col2");
+        assertEquals("b", copy.get("col2"));
+        assertEquals(1, original.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSharedViewsAreReadOnly() {
+        EntityData original = new EntityData(new NameValue("col1", "a"));
+        original.copy();
+        original.entrySet().iterator().next().setValue("b");
+    }
+
+    @Test
+    public void testSharedEntriesCannotWriteThrough() {
+        EntityData original = new EntityData(new NameValue("col1", "a"));
+        EntityData copy = original.copy();
+        try {
+            copy.entrySet().iterator().next().setValue("b");
+            fail("Expected the entries of shared entity data to be read only");
+        } catch (UnsupportedOperationException e) {
+        }
+        assertEquals("a", original.get("col1"));
+        assertEquals("a", copy.get("col1"));
+
+        copy.put("col2", "c");
+        copy.entrySet().iterator().next().setValue("b");
+        assertEquals("b", copy.get("col1"));
+        assertEquals("a", original.get("col1"));
+    }
+
+    @Test
+    public void testLayoutBackedEntityData() {
+        Model model = new ModelBuilder().withEntity(new ModelEntityBuilder().withId("e1")
+                .withAttribute(new ModelAttributeBuilder().withId("a1").withEntityId("e1").build())
+                .withAttribute(new ModelAttributeBuilder().withId("a2").withEntityId("e1").build()).build()).build();
+        EntityDataLayout layout = model.getEntityDataLayout();
+        EntityData data = new EntityData(layout);
+        assertTrue(data.isEmpty());
+
+        data.put("A2", "two");
+        data.put("notInModel", "other");
+        data.setValue(layout.getOrdinal("a1"), null);
+        assertEquals(3, data.size());
+        assertTrue(data.containsKey("a1"));
+        assertNull(data.get("a1"));
+        assertEquals("two", data.getValue(1));
+        assertEquals("other", data.get("NOTINMODEL"));
+        assertEquals("{a1=null, a2=two, notInModel=other}", data.toString());
+
+        EntityData copy = data.copy();
+        copy.remove("a2");
+        assertEquals("two", data.get("a2"));
+        assertFalse(copy.containsKey("a2"));
+        assertEquals(2, copy.size());
+    }
+
+}
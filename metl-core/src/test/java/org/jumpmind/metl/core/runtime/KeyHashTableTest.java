@@ -0,0 +1,90 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class KeyHashTableTest {
+
+    @Test
+    public void testAddFindAndResize() {
+        KeyHashTable table = new KeyHashTable(1024 * 1024, 16);
+        KeyHashTable.Hasher hasher = new KeyHashTable.Hasher();
+        for (int i = 0; i < 10000; i++) {
+            hasher.reset().add("key" + i);
+            assertEquals(-1, table.find(hasher.getHash1(), hasher.getHash2()));
+            table.add(hasher.getHash1(), hasher.getHash2(), i, -i);
+        }
+        assertEquals(10000, table.size());
+        assertFalse(table.isMapped());
+
+        for (int i = 0; i < 10000; i++) {
+            hasher.reset().add("key" + i);
+            long slot = table.find(hasher.getHash1(), hasher.getHash2());
+            assertEquals(i, table.getValue(slot, 0));
+            assertEquals(-i, table.getValue(slot, 1));
+        }
+
+        hasher.reset().add("key1");
+        long slot = table.find(hasher.getHash1(), hasher.getHash2());
+        table.setValue(slot, 1, 42);
+        assertEquals(42, table.getValue(table.find(hasher.getHash1(), hasher.getHash2()), 1));
+        table.close();
+    }
+
+    @Test
+    public void testMovesToMappedFileWhenOverBudget() {
+        KeyHashTable table = new KeyHashTable(64 * 1024);
+        KeyHashTable.Hasher hasher = new KeyHashTable.Hasher();
+        for (long i = 0; i < 5000; i++) {
+            hasher.reset().add(i);
+            table.add(hasher.getHash1(), hasher.getHash2(), i, 0);
+        }
+        assertTrue(table.isMapped());
+        for (long i = 0; i < 5000; i++) {
+            hasher.reset().add(i);
+            assertEquals(i, table.getValue(table.find(hasher.getHash1(), hasher.getHash2()), 0));
+        }
+        table.close();
+    }
+
+    @Test
+    public void testHasherDistinguishesValues() {
+        KeyHashTable.Hasher hasher = new KeyHashTable.Hasher();
+        long nullHash = hasher.reset().add((String) null).getHash1();
+        long nullStringHash = hasher.reset().add("null").getHash1();
+        assertNotEquals(nullHash, nullStringHash);
+
+        long split1 = hasher.reset().add("ab").add("c").getHash2();
+        long split2 = hasher.reset().add("a").add("bc").getHash2();
+        assertNotEquals(split1, split2);
+
+        assertEquals(hasher.reset().add("same").getHash1(), hasher.reset().add("same").getHash1());
+        assertEquals(hasher.reset().add(new byte[] { 1, 2, 3 }).getHash2(),
+                hasher.reset().add(new byte[] { 1, 2, 3 }).getHash2());
+    }
+
+}
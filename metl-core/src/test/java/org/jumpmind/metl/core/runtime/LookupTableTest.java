@@ -0,0 +1,70 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class LookupTableTest {
+
+    @Test
+    public void testPutAndGet() {
+        LookupTable table = new LookupTable(1024 * 1024);
+        table.put("a", "one");
+        table.put("b", new BigDecimal("2.5"));
+        table.put("c", null);
+        table.put("d", new byte[] { 1, 2 });
+        table.put("a", "replaced");
+        assertEquals(4, table.size());
+        assertFalse(table.isMapped());
+        assertEquals("replaced", table.get("a"));
+        assertEquals(new BigDecimal("2.5"), table.get("b"));
+        assertNull(table.get("c"));
+        assertArrayEquals(new byte[] { 1, 2 }, (byte[]) table.get("d"));
+        assertNull(table.get("missing"));
+        table.close();
+    }
+
+    @Test
+    public void testMapsWhenOverBudget() {
+        LookupTable table = new LookupTable(1024 * 1024);
+        for (int i = 0; i < 50000; i++) {
+            table.put("key" + i, "value" + i);
+        }
+        assertTrue(table.isMapped());
+        for (int i = 0; i < 50000; i++) {
+            assertEquals("value" + i, table.get("key" + i));
+        }
+        File file = table.file;
+        assertTrue(file.exists());
+        table.close();
+        assertFalse(file.exists());
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ComponentStatisticsTest {
+
+    @Test
+    public void testConcurrentIncrementsAreNotLost() throws Exception {
+        ComponentStatistics statistics = new ComponentStatistics();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 4; i++) {
+            executor.execute(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    statistics.incrementNumberEntitiesProcessed(1);
+                    statistics.incrementTimeSpentInHandle(1, 2);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        assertEquals(40000, statistics.getNumberEntitiesProcessed(1));
+        assertEquals(80000, statistics.getTimeSpentInHandle(1));
+    }
+
+    @Test
+    public void testSnapshots() {
+        ComponentStatistics statistics = new ComponentStatistics();
+        statistics.incrementInboundMessages(1);
+        statistics.incrementNumberInboundPayload(1, 10);
+        statistics.incrementInboundMessages(5);
+        statistics.incrementNumberOutboundPayload(5, 3);
+
+        ComponentStatistics.Snapshot snapshot = statistics.getSnapshot(5);
+        assertEquals(1, snapshot.getNumberInboundMessages());
+        assertEquals(0, snapshot.getNumberInboundPayload());
+        assertEquals(3, snapshot.getNumberOutboundPayload());
+        assertEquals(0, statistics.getNumberOutboundMessages(3));
+    }
+
+}
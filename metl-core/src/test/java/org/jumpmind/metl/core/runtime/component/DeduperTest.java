@@ -0,0 +1,165 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttribSetting;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class DeduperTest {
+
+    @Test
+    public void testWholeRowsMatchWhateverTheirIterationOrder() {
+        Model model = createModel();
+        Deduper deduper = createDeduper(model, Deduper.DEDUPE_ENTITY, Deduper.PRESERVE_FIRST);
+
+        EntityData layoutRow = new EntityData(model.getEntityDataLayout());
+        layoutRow.put("k", 1);
+        layoutRow.put("seq", 1);
+        layoutRow.put("other", "x");
+        List<EntityData> rows = Arrays.asList(
+                new EntityData(new NameValue("other", "x"), new NameValue("seq", 1), new NameValue("k", 1)),
+                layoutRow,
+                new EntityData(new NameValue("k", 1), new NameValue("other", "x"), new NameValue("seq", 1)),
+                new EntityData(new NameValue("seq", 1), new NameValue("k", 1), new NameValue("extra", "y"),
+                        new NameValue("other", "x")),
+                new EntityData(new NameValue("extra", "y"), new NameValue("k", 1), new NameValue("other", "x"),
+                        new NameValue("seq", 1)));
+
+        List<EntityData> sent = dedupe(deduper, rows, false);
+        assertEquals(2, sent.size());
+        assertEquals(rows.get(0), sent.get(0));
+        assertEquals(rows.get(3), sent.get(1));
+    }
+
+    @Test
+    public void testLastRecordIsSentInFirstSeenOrder() {
+        List<EntityData> rows = createRows(100);
+        List<EntityData> expected = lastRecords(rows);
+        assertEquals(expected, dedupe(rows, Integer.MAX_VALUE, false));
+        assertEquals(expected, dedupe(rows, 3, true));
+        assertEquals(expected, dedupe(rows, 1, true));
+    }
+
+    @Test
+    public void testUnitsOfWorkAfterASpillAreDedupedOnTheirOwn() {
+        Deduper deduper = createDeduper(createModel(), Deduper.DEDUPE_ATTRIBUTE, Deduper.PRESERVE_LAST);
+        deduper.maxRowsInMemory = 2;
+        List<EntityData> first = createRows(30);
+        List<EntityData> second = createRows(40);
+        assertEquals(lastRecords(first), dedupe(deduper, first, true));
+        assertEquals(lastRecords(second), dedupe(deduper, second, true));
+    }
+
+    protected List<EntityData> dedupe(List<EntityData> rows, int maxRowsInMemory, boolean expectSpill) {
+        Deduper deduper = createDeduper(createModel(), Deduper.DEDUPE_ATTRIBUTE, Deduper.PRESERVE_LAST);
+        deduper.maxRowsInMemory = maxRowsInMemory;
+        return dedupe(deduper, rows, expectSpill);
+    }
+
+    protected List<EntityData> dedupe(Deduper deduper, List<EntityData> rows, boolean expectSpill) {
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<>();
+        for (int i = 0; i < rows.size(); i += 10) {
+            EntityDataMessage message = new EntityDataMessage("source");
+            message.setPayload(new ArrayList<>(rows.subList(i, Math.min(rows.size(), i + 10))));
+            deduper.handle(message, callback, false);
+        }
+        if (expectSpill) {
+            assertNotNull(deduper.spilledRows);
+        }
+        deduper.handle(new ControlMessage("source"), callback, true);
+
+        List<EntityData> sent = new ArrayList<>();
+        for (ArrayList<EntityData> payload : callback.getPayloadList()) {
+            sent.addAll(payload);
+        }
+        return sent;
+    }
+
+    protected List<EntityData> lastRecords(List<EntityData> rows) {
+        Map<Object, EntityData> last = new LinkedHashMap<>();
+        for (EntityData row : rows) {
+            /* a LinkedHashMap keeps the first insertion position on a put */
+            last.put(row.get("k"), row);
+        }
+        return new ArrayList<>(last.values());
+    }
+
+    protected List<EntityData> createRows(int count) {
+        Random random = new Random(count);
+        List<EntityData> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new EntityData(new NameValue("k", random.nextInt(count / 4)), new NameValue("seq", i)));
+        }
+        return rows;
+    }
+
+    protected Model createModel() {
+        ModelEntity entity = new ModelEntity("p", "P");
+        entity.addModelAttribute(new ModelAttrib("k", "p", "K"));
+        entity.addModelAttribute(new ModelAttrib("seq", "p", "SEQ"));
+        entity.addModelAttribute(new ModelAttrib("other", "p", "OTHER"));
+        Model model = new Model("m");
+        model.getModelEntities().add(entity);
+        return model;
+    }
+
+    protected Deduper createDeduper(Model model, String dedupeType, String preserveRecord) {
+        List<ComponentAttribSetting> attributeSettings = new ArrayList<>();
+        attributeSettings.add(new ComponentAttribSetting("k", Deduper.ATTRIBUTE_DEDUPE_ENABLED, "true"));
+        Component component = TestUtils.createComponent(Deduper.TYPE, false, null, model, null, null, attributeSettings,
+                new Setting(Deduper.DEDUPE_TYPE, dedupeType), new Setting(Deduper.PRESERVE_RECORD, preserveRecord),
+                new Setting(Deduper.ROWS_PER_MESSAGE, "7"));
+        Flow flow = TestUtils.createFlow("flow", null);
+        FlowStep step = new FlowStep();
+        step.setId("deduper");
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+
+        Deduper deduper = new Deduper();
+        deduper.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null, null));
+        deduper.start();
+        return deduper;
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttribSetting;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.FlowStepLink;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataFileWriter;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class MergerTest {
+
+    @Test
+    public void testFullOuterJoin() {
+        List<EntityData> rows = merge(Merger.JOIN_FULL_OUTER, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 30, 28, 26, 24, 22, 20, 18, 16, 14, 12, 10, 11, 13, 15, 17, 19),
+                getKeys(rows));
+        assertEquals("a12", rows.get(19).get("x"));
+        assertEquals("b12", rows.get(19).get("y"));
+    }
+
+    @Test
+    public void testInnerJoin() {
+        List<EntityData> rows = merge(Merger.JOIN_INNER, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(18, 16, 14, 12, 10), getKeys(rows));
+        for (EntityData row : rows) {
+            assertEquals("a" + row.get("k"), row.get("x"));
+            assertEquals("b" + row.get("k"), row.get("y"));
+        }
+    }
+
+    @Test
+    public void testLeftOuterJoin() {
+        List<EntityData> rows = merge(Merger.JOIN_LEFT_OUTER, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList(30, 28, 26, 24, 22, 20, 18, 16, 14, 12, 10), getKeys(rows));
+    }
+
+    @Test
+    public void testSpilledMergeMatchesInMemoryMerge() {
+        for (String joinType : new String[] { Merger.JOIN_FULL_OUTER, Merger.JOIN_INNER, Merger.JOIN_LEFT_OUTER }) {
+            assertEquals(joinType, merge(joinType, Integer.MAX_VALUE).toString(), merge(joinType, 3).toString());
+        }
+    }
+
+    @Test
+    public void testOversizedPartitionsAreRepartitioned() {
+        int keyCount = Merger.PARTITIONS * 40;
+        for (String joinType : new String[] { Merger.JOIN_FULL_OUTER, Merger.JOIN_INNER, Merger.JOIN_LEFT_OUTER }) {
+            int[] largestPartition = new int[1];
+            Merger merger = new Merger() {
+                @Override
+                protected EntityDataFileWriter[] repartition(Map<MergeKey, MergedRow> rows, int depth) {
+                    largestPartition[0] = Math.max(largestPartition[0], rows.size());
+                    return super.repartition(rows, depth);
+                }
+            };
+            List<EntityData> spilled = merge(merger, joinType, 4, keyCount);
+            assertEquals(joinType, 5, largestPartition[0]);
+            assertEquals(joinType, merge(new Merger(), joinType, Integer.MAX_VALUE, keyCount).toString(), spilled.toString());
+        }
+    }
+
+    protected List<Integer> getKeys(List<EntityData> rows) {
+        List<Integer> keys = new ArrayList<>();
+        for (EntityData row : rows) {
+            keys.add(((Number) row.get("k")).intValue());
+        }
+        return keys;
+    }
+
+    protected List<EntityData> merge(String joinType, int maxRowsInMemory) {
+        return merge(new Merger(), joinType, maxRowsInMemory, 20);
+    }
+
+    /*
+     * Source a sends keys 0 to 19 in two messages around source b, which sends
+     * the even keys from 30 down to 10. Other key counts scale the same way.
+     */
+    protected List<EntityData> merge(Merger merger, String joinType, int maxRowsInMemory, int keyCount) {
+        ModelEntity entity = new ModelEntity("p", "P");
+        entity.addModelAttribute(new ModelAttrib("k", "p", "K"));
+        entity.addModelAttribute(new ModelAttrib("x", "p", "X"));
+        entity.addModelAttribute(new ModelAttrib("y", "p", "Y"));
+        Model model = new Model("m");
+        model.getModelEntities().add(entity);
+
+        List<ComponentAttribSetting> attributeSettings = new ArrayList<>();
+        attributeSettings.add(new ComponentAttribSetting("k", Merger.MERGE_ATTRIBUTE, "true"));
+        Component component = TestUtils.createComponent(Merger.TYPE, false, null, model, null, null, attributeSettings,
+                new Setting(Merger.JOIN_TYPE, joinType), new Setting(Merger.LEFT_SOURCE, "b"),
+                new Setting(Merger.ROWS_PER_MESSAGE, "2"));
+        Flow flow = TestUtils.createFlow("flow", null);
+        FlowStep step = new FlowStep();
+        step.setId("merger");
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+        flow.getFlowStepLinks().add(new FlowStepLink("a", "merger"));
+        flow.getFlowStepLinks().add(new FlowStepLink("b", "merger"));
+
+        merger.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null, null));
+        merger.start();
+        merger.maxRowsInMemory = maxRowsInMemory;
+
+        List<EntityData> a = new ArrayList<>();
+        for (int i = 0; i < keyCount; i++) {
+            a.add(new EntityData(new NameValue("k", i), new NameValue("x", "a" + i)));
+        }
+        List<EntityData> b = new ArrayList<>();
+        for (int i = keyCount * 3 / 2; i >= keyCount / 2; i -= 2) {
+            b.add(new EntityData(new NameValue("k", (long) i), new NameValue("y", "b" + i)));
+        }
+
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<>();
+        try {
+            merger.handle(createMessage("a", a.subList(0, keyCount / 2)), callback, false);
+            merger.handle(createMessage("b", b), callback, false);
+            merger.handle(createMessage("a", a.subList(keyCount / 2, keyCount)), callback, true);
+        } finally {
+            merger.stop();
+        }
+
+        List<EntityData> rows = new ArrayList<>();
+        for (ArrayList<EntityData> payload : callback.getPayloadList()) {
+            rows.addAll(payload);
+        }
+        return rows;
+    }
+
+    protected EntityDataMessage createMessage(String sourceStepId, List<EntityData> rows) {
+        EntityDataMessage message = new EntityDataMessage(sourceStepId);
+        message.setPayload(new ArrayList<>(rows));
+        return message;
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttrib;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class MultiplierTest {
+
+    @Test
+    public void testMultiply() {
+        Multiplier multiplier = createMultiplier(Integer.MAX_VALUE);
+        try {
+            assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "b3"), multiplyFirstUnitOfWork(multiplier));
+            assertNull(multiplier.multiplierFile);
+            assertEquals(Arrays.asList("c1", "c2", "c3", "c4"), multiplySecondUnitOfWork(multiplier));
+        } finally {
+            multiplier.stop();
+        }
+    }
+
+    @Test
+    public void testSpilledMultipliersAreAddedToByLaterUnitsOfWork() {
+        Multiplier multiplier = createMultiplier(2);
+        File file = null;
+        try {
+            assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "b3"), multiplyFirstUnitOfWork(multiplier));
+            assertNotNull(multiplier.multiplierFile);
+            file = multiplier.multiplierFile.getFile();
+            assertEquals(Arrays.asList("c1", "c2", "c3", "c4"), multiplySecondUnitOfWork(multiplier));
+        } finally {
+            multiplier.stop();
+        }
+        assertFalse(file.exists());
+    }
+
+    /*
+     * The multiplier source sends 1 to 3 while a and b arrive from the input
+     */
+    protected List<String> multiplyFirstUnitOfWork(Multiplier multiplier) {
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<>();
+        multiplier.handle(createMessage("m", "m", "1", "2"), callback, false);
+        multiplier.handle(createMessage("in", "v", "a", "b"), callback, false);
+        multiplier.handle(createMessage("m", "m", "3"), callback, false);
+        multiplier.handle(new ControlMessage("m"), callback, false);
+        multiplier.handle(new ControlMessage("in"), callback, true);
+        return getValues(callback);
+    }
+
+    /*
+     * The multiplier source adds 4 while c waits for it
+     */
+    protected List<String> multiplySecondUnitOfWork(Multiplier multiplier) {
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<>();
+        multiplier.handle(createMessage("m", "m", "4"), callback, false);
+        multiplier.handle(createMessage("in", "v", "c"), callback, false);
+        multiplier.handle(new ControlMessage("m"), callback, false);
+        multiplier.handle(new ControlMessage("in"), callback, true);
+        return getValues(callback);
+    }
+
+    protected List<String> getValues(SendMessageCallback<ArrayList<EntityData>> callback) {
+        List<String> values = new ArrayList<>();
+        for (ArrayList<EntityData> payload : callback.getPayloadList()) {
+            for (EntityData data : payload) {
+                values.add((String) data.get("v") + data.get("m"));
+            }
+        }
+        return values;
+    }
+
+    protected EntityDataMessage createMessage(String sourceStepId, String attributeId, String... values) {
+        ArrayList<EntityData> payload = new ArrayList<>();
+        for (String value : values) {
+            payload.add(new EntityData(new NameValue(attributeId, value)));
+        }
+        EntityDataMessage message = new EntityDataMessage(sourceStepId);
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected Multiplier createMultiplier(int maxRowsInMemory) {
+        ModelEntity entity = new ModelEntity("p", "P");
+        entity.addModelAttribute(new ModelAttrib("v", "p", "V"));
+        entity.addModelAttribute(new ModelAttrib("m", "p", "M"));
+        Model model = new Model("model");
+        model.getModelEntities().add(entity);
+
+        Component component = TestUtils.createComponent(Multiplier.TYPE, false, null, model, null, null, null,
+                new Setting(Multiplier.MULTIPLIER_SOURCE_STEP, "m"), new Setting(Multiplier.ROWS_PER_MESSAGE, "4"));
+        Flow flow = TestUtils.createFlow("flow", null);
+        FlowStep source = new FlowStep();
+        source.setId("m");
+        source.setComponent(TestUtils.createComponent(NoOp.TYPE, false));
+        flow.getFlowSteps().add(source);
+        FlowStep step = new FlowStep();
+        step.setId("multiplier");
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+
+        Multiplier multiplier = new Multiplier();
+        multiplier.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null, null));
+        multiplier.start();
+        multiplier.maxRowsInMemory = maxRowsInMemory;
+        return multiplier;
+    }
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.junit.Test;
+
+public class FlowPlanCacheTest {
+
+    @Test
+    public void testPlanIsReturnedUntilTheFlowChanges() {
+        Component component = new Component("component");
+        component.put("sql", "select 1");
+        FlowStep flowStep = new FlowStep(component);
+        flowStep.setId("step");
+        Flow flow = new Flow("flow");
+        flow.getFlowSteps().add(flowStep);
+
+        FlowPlanCache cache = new FlowPlanCache();
+        Flow plan = new Flow("flow");
+        cache.put(flow, plan);
+        assertSame(plan, cache.get(flow));
+
+        component.put("sql", "select 2");
+        assertNull(cache.get(flow));
+
+        cache.put(flow, plan);
+        assertSame(plan, cache.get(flow));
+
+        flowStep.setLastUpdateTime(new Date(flowStep.getLastUpdateTime().getTime() + 1000));
+        assertNull(cache.get(flow));
+    }
+
+}
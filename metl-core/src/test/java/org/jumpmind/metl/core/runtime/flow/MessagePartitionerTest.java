@@ -0,0 +1,82 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.Message;
+import org.jumpmind.metl.core.util.NameValue;
+import org.junit.Test;
+
+public class MessagePartitionerTest {
+
+    @Test
+    public void testRecordsWithTheSameKeyShareAPartition() {
+        MessagePartitioner partitioner = new MessagePartitioner("key", 3);
+        ArrayList<EntityData> payload = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            payload.add(new EntityData(new NameValue("key", i % 5), new NameValue("value", i)));
+        }
+        Message[] parts = partitioner.partition(new EntityDataMessage("step", payload), false);
+        assertEquals(3, parts.length);
+
+        int count = 0;
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                for (EntityData entityData : ((EntityDataMessage) parts[i]).getPayload()) {
+                    assertEquals(i, partitioner.getPartition(entityData));
+                    count++;
+                }
+            }
+        }
+        assertEquals(payload.size(), count);
+        assertEquals(partitioner.getPartition(new EntityData(new NameValue("key", 1))),
+                partitioner.getPartition(new EntityData(new NameValue("key", 1l))));
+    }
+
+    @Test
+    public void testEveryPartitionSeesTheUnitOfWorkBoundary() {
+        MessagePartitioner partitioner = new MessagePartitioner("key", 4);
+        ArrayList<EntityData> payload = new ArrayList<>();
+        payload.add(new EntityData(new NameValue("key", "a")));
+        int partition = partitioner.getPartition(payload.get(0));
+
+        Message[] parts = partitioner.partition(new EntityDataMessage("step", payload), false);
+        for (int i = 0; i < parts.length; i++) {
+            if (i != partition) {
+                assertNull(parts[i]);
+            }
+        }
+
+        parts = partitioner.partition(new EntityDataMessage("step", payload), true);
+        for (int i = 0; i < parts.length; i++) {
+            assertTrue(i == partition ? parts[i] instanceof EntityDataMessage : parts[i] instanceof ControlMessage);
+        }
+    }
+
+}
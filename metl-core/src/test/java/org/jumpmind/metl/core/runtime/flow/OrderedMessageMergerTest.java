@@ -0,0 +1,112 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OrderedMessageMergerTest {
+
+    @Test
+    public void testMergerReleasesInSequenceOrder() {
+        OrderedMessageMerger merger = new OrderedMessageMerger();
+        List<String> sent = new ArrayList<>();
+        long first = merger.register(2);
+        long second = merger.register(1);
+
+        merger.complete(second, 0, Arrays.asList(() -> sent.add("second")));
+        merger.complete(first, 1, Arrays.asList(() -> sent.add("first-1")));
+        assertTrue(sent.isEmpty());
+
+        merger.complete(first, 0, Arrays.asList(() -> sent.add("first-0")));
+        assertEquals(Arrays.asList("first-0", "first-1", "second"), sent);
+        assertEquals(0, merger.getPendingCount());
+    }
+
+    @Test
+    public void testSequencesWithoutSendsDoNotHoldBackLaterSequences() {
+        OrderedMessageMerger merger = new OrderedMessageMerger();
+        List<String> sent = new ArrayList<>();
+        long first = merger.register(1);
+        long second = merger.register(1);
+
+        merger.complete(second, 0, Arrays.asList(() -> sent.add("second")));
+        merger.complete(first, 0, null);
+        assertEquals(Arrays.asList("second"), sent);
+        assertEquals(0, merger.getPendingCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCompletingAReleasedSequenceFails() {
+        OrderedMessageMerger merger = new OrderedMessageMerger();
+        long sequence = merger.register(1);
+        merger.complete(sequence, 0, null);
+        merger.complete(sequence, 0, null);
+    }
+
+    @Test
+    public void testConcurrentPartitionsReleaseInOrder() throws Exception {
+        int partitionCount = 4;
+        int sequenceCount = 500;
+        OrderedMessageMerger merger = new OrderedMessageMerger();
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        List<String> expected = new ArrayList<>();
+        long[] sequences = new long[sequenceCount];
+        for (int i = 0; i < sequenceCount; i++) {
+            sequences[i] = merger.register(partitionCount);
+            for (int partition = 0; partition < partitionCount; partition++) {
+                expected.add(i + "-" + partition);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(partitionCount);
+        for (int partition = 0; partition < partitionCount; partition++) {
+            int thisPartition = partition;
+            Random random = new Random(partition);
+            executor.execute(() -> {
+                for (int i = 0; i < sequenceCount; i++) {
+                    String name = i + "-" + thisPartition;
+                    if (random.nextInt(10) == 0) {
+                        Thread.yield();
+                    }
+                    merger.complete(sequences[i], thisPartition, Arrays.asList(() -> sent.add(name)));
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(expected, sent);
+        assertEquals(0, merger.getPendingCount());
+    }
+
+}
@@ -0,0 +1,384 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.jumpmind.metl.core.model.Agent;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.plugin.IDefinitionFactory;
+import org.jumpmind.metl.core.plugin.XMLComponentDefinition;
+import org.jumpmind.metl.core.runtime.BinaryMessage;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.Message;
+import org.jumpmind.metl.core.runtime.ShutdownMessage;
+import org.jumpmind.metl.core.runtime.component.ComponentContext;
+import org.jumpmind.metl.core.runtime.component.IComponentRuntimeFactory;
+import org.jumpmind.metl.core.runtime.component.NoOp;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class StepRuntimeTest {
+
+    static final int THREAD_COUNT = 3;
+
+    static final int MESSAGE_COUNT = 20;
+
+    static final int RECORDS_PER_MESSAGE = 10;
+
+    @Test
+    public void testPartitionedStepPreservesMessageOrder() throws Exception {
+        List<Message> sent = runPartitioned(true);
+
+        /* input messages stay in order, their rows are grouped by partition */
+        List<Integer> values = assertEntityDataThenOneControlMessage(sent);
+        List<Integer> expected = new ArrayList<>();
+        MessagePartitioner partitioner = new MessagePartitioner("key", THREAD_COUNT);
+        for (EntityDataMessage message : createMessages()) {
+            for (Message part : partitioner.partition(message, false)) {
+                if (part != null) {
+                    for (EntityData entityData : ((EntityDataMessage) part).getPayload()) {
+                        expected.add((Integer) entityData.get("value"));
+                    }
+                }
+            }
+        }
+        assertEquals(expected, values);
+    }
+
+    @Test
+    public void testPartitionedStepSendsOneControlMessageAfterAllData() throws Exception {
+        List<Message> sent = runPartitioned(false);
+
+        List<Integer> values = assertEntityDataThenOneControlMessage(sent);
+        Collections.sort(values);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT * RECORDS_PER_MESSAGE; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, values);
+    }
+
+    protected List<Integer> assertEntityDataThenOneControlMessage(List<Message> sent) {
+        List<Integer> values = new ArrayList<>();
+        assertTrue(sent.size() > 2);
+        assertTrue(sent.get(sent.size() - 1) instanceof ShutdownMessage);
+        assertTrue(sent.get(sent.size() - 2) instanceof ControlMessage);
+        for (Message message : sent.subList(0, sent.size() - 2)) {
+            assertTrue(message instanceof EntityDataMessage);
+            for (EntityData entityData : ((EntityDataMessage) message).getPayload()) {
+                values.add((Integer) entityData.get("value"));
+            }
+        }
+        return values;
+    }
+
+    protected List<EntityDataMessage> createMessages() {
+        List<EntityDataMessage> messages = new ArrayList<>();
+        int value = 0;
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            ArrayList<EntityData> payload = new ArrayList<>();
+            for (int j = 0; j < RECORDS_PER_MESSAGE; j++) {
+                payload.add(new EntityData(new NameValue("key", value % 7), new NameValue("value", value)));
+                value++;
+            }
+            messages.add(new EntityDataMessage("source", payload));
+        }
+        return messages;
+    }
+
+    protected List<Message> runPartitioned(boolean preserveMessageOrder) throws Exception {
+        Flow flow = TestUtils.createFlow("flow", null);
+        Component component = TestUtils.createComponent(NoOp.TYPE, false, null, null, null, null, null,
+                new Setting(StepRuntime.THREAD_COUNT, Integer.toString(THREAD_COUNT)),
+                new Setting(StepRuntime.THREAD_PARTITION_ATTRIBUTE, "key"),
+                new Setting(StepRuntime.THREAD_PRESERVE_MESSAGE_ORDER, Boolean.toString(preserveMessageOrder)));
+        FlowStep step = new FlowStep(component);
+        step.setId("partitioned");
+        step.setName("partitioned");
+        ComponentContext context = new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null, null);
+
+        XMLComponentDefinition definition = new XMLComponentDefinition();
+        IDefinitionFactory definitionFactory = mock(IDefinitionFactory.class);
+        when(definitionFactory.getComponentDefinition(any(), any())).thenReturn(definition);
+        IComponentRuntimeFactory runtimeFactory = (projectVersionId, type, componentContext, threadNumber) -> {
+            /* Slow down the first partition so that the others get ahead of it */
+            NoOp runtime = new NoOp() {
+                @Override
+                public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
+                    if (threadNumber == 1) {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    super.handle(inputMessage, callback, unitOfWorkBoundaryReached);
+                }
+
+                @Override
+                public XMLComponentDefinition getComponentDefintion() {
+                    return definition;
+                }
+            };
+            runtime.create(null, componentContext, threadNumber);
+            return runtime;
+        };
+
+        FlowRuntime flowRuntime = mock(FlowRuntime.class);
+        when(flowRuntime.getAgent()).thenReturn(new Agent("agent"));
+
+        StepRuntime source = mockStepRuntime("source", null);
+        List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+        StepRuntime target = mockStepRuntime("target", sent);
+
+        StepRuntime stepRuntime = new StepRuntime(runtimeFactory, definitionFactory, context, flowRuntime);
+        stepRuntime.setSourceStepRuntimes(Arrays.asList(source));
+        stepRuntime.setTargetStepRuntimes(Arrays.asList(target));
+        stepRuntime.start();
+        stepRuntime.startRunning();
+
+        Thread thread = new Thread(stepRuntime);
+        thread.start();
+        for (EntityDataMessage message : createMessages()) {
+            stepRuntime.queue(message);
+        }
+        stepRuntime.queue(new ControlMessage("source"));
+        stepRuntime.queue(new ShutdownMessage("source"));
+        thread.join(30000);
+
+        assertTrue(stepRuntime.finished);
+        return sent;
+    }
+
+    @Test
+    public void testFusedChainRunsOnTheSourceThread() throws Exception {
+        FlowRuntime flowRuntime = mock(FlowRuntime.class);
+        StepRuntime source = mockStepRuntime("source", null);
+        List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+        StepRuntime target = mockStepRuntime("target", sent);
+        List<String> threadNames = Collections.synchronizedList(new ArrayList<>());
+        StepRuntime first = createFusedStepRuntime("first", flowRuntime, threadNames);
+        StepRuntime second = createFusedStepRuntime("second", flowRuntime, threadNames);
+        link(source, first, second, target);
+
+        List<EntityDataMessage> messages = createMessages();
+        Thread thread = new Thread(() -> {
+            try {
+                for (EntityDataMessage message : messages) {
+                    first.queue(message);
+                }
+                first.queue(new ControlMessage("source"));
+                first.queue(new ShutdownMessage("source"));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, "source-thread");
+        thread.start();
+        thread.join(30000);
+
+        assertEquals((MESSAGE_COUNT + 1) * 2, threadNames.size());
+        for (String threadName : threadNames) {
+            assertEquals("source-thread", threadName);
+        }
+        List<Integer> values = assertEntityDataThenOneControlMessage(sent);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT * RECORDS_PER_MESSAGE; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, values);
+        for (StepRuntime stepRuntime : Arrays.asList(first, second)) {
+            assertTrue(stepRuntime.finished);
+            assertFalse(stepRuntime.isRunning());
+            verify(flowRuntime, times(1)).stepFinished(stepRuntime);
+        }
+    }
+
+    @Test
+    public void testCancelFusedStepWhileSourceIsRunning() throws Exception {
+        FlowRuntime flowRuntime = mock(FlowRuntime.class);
+        StepRuntime source = mockStepRuntime("source", null);
+        when(source.isRunning()).thenReturn(true);
+        List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+        StepRuntime fused = createFusedStepRuntime("fused", flowRuntime, null);
+        link(source, fused, mockStepRuntime("target", sent));
+
+        fused.cancel();
+        assertTrue(fused.isRunning());
+        verify(flowRuntime, never()).stepFinished(fused);
+
+        /* the source forwards its shutdown message when it is cancelled */
+        fused.queue(new ShutdownMessage("source", true));
+        assertTrue(fused.finished);
+        assertTrue(fused.cancelled);
+        verify(flowRuntime, times(1)).stepFinished(fused);
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0) instanceof ShutdownMessage);
+    }
+
+    @Test
+    public void testCancelFusedStepAfterSourceStopped() throws Exception {
+        FlowRuntime flowRuntime = mock(FlowRuntime.class);
+        StepRuntime source = mockStepRuntime("source", null);
+        when(source.isRunning()).thenReturn(false);
+        List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+        StepRuntime fused = createFusedStepRuntime("fused", flowRuntime, null);
+        link(source, fused, mockStepRuntime("target", sent));
+
+        fused.cancel();
+        assertTrue(fused.finished);
+        assertTrue(fused.cancelled);
+        assertFalse(fused.isRunning());
+
+        /* a shutdown message that was already on its way and a second cancel */
+        fused.queue(new ShutdownMessage("source", true));
+        fused.cancel();
+        verify(flowRuntime, times(1)).stepFinished(fused);
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0) instanceof ShutdownMessage);
+    }
+
+    @Test
+    public void testFusedStepShutsDownOnceWhenCancelRacesTheSource() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            FlowRuntime flowRuntime = mock(FlowRuntime.class);
+            StepRuntime source = mockStepRuntime("source", null);
+            when(source.isRunning()).thenReturn(false);
+            List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+            StepRuntime fused = createFusedStepRuntime("fused", flowRuntime, null);
+            link(source, fused, mockStepRuntime("target", sent));
+
+            CountDownLatch latch = new CountDownLatch(1);
+            Thread sourceThread = new Thread(() -> {
+                try {
+                    latch.await();
+                    fused.queue(new ShutdownMessage("source", true));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            sourceThread.start();
+            latch.countDown();
+            fused.cancel();
+            sourceThread.join(30000);
+
+            verify(flowRuntime, times(1)).stepFinished(fused);
+            assertEquals(1, sent.size());
+        }
+    }
+
+    @Test
+    public void testBinaryPayloadsAreCopiedWhenSent() throws Exception {
+        List<Message> sent = Collections.synchronizedList(new ArrayList<>());
+        StepRuntime stepRuntime = createFusedStepRuntime("binary", mock(FlowRuntime.class), null);
+        link(mockStepRuntime("source", null), stepRuntime, mockStepRuntime("target", sent));
+
+        byte[] buffer = new byte[] { 1, 2, 3 };
+        stepRuntime.createSendMessageCallback().sendBinaryMessage(null, buffer);
+        buffer[0] = 9;
+
+        assertEquals(1, sent.size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, ((BinaryMessage) sent.get(0)).getPayload());
+    }
+
+    /*
+     * Links the steps into a linear chain. Every step between the first and
+     * the last must be a real, fused step runtime.
+     */
+    protected void link(StepRuntime... stepRuntimes) {
+        for (int i = 1; i < stepRuntimes.length - 1; i++) {
+            stepRuntimes[i].setSourceStepRuntimes(Arrays.asList(stepRuntimes[i - 1]));
+            stepRuntimes[i].setTargetStepRuntimes(Arrays.asList(stepRuntimes[i + 1]));
+            stepRuntimes[i].setFused(true);
+            stepRuntimes[i].start();
+            stepRuntimes[i].startRunning();
+        }
+    }
+
+    protected StepRuntime createFusedStepRuntime(String stepId, FlowRuntime flowRuntime, List<String> threadNames) {
+        Component component = TestUtils.createComponent(NoOp.TYPE, false);
+        FlowStep step = new FlowStep(component);
+        step.setId(stepId);
+        step.setName(stepId);
+        ComponentContext context = new ComponentContext(null, step, TestUtils.createFlow("flow", null), new ExecutionTrackerNoOp(),
+                null, null, null, null);
+
+        XMLComponentDefinition definition = new XMLComponentDefinition();
+        IDefinitionFactory definitionFactory = mock(IDefinitionFactory.class);
+        when(definitionFactory.getComponentDefinition(any(), any())).thenReturn(definition);
+        IComponentRuntimeFactory runtimeFactory = (projectVersionId, type, componentContext, threadNumber) -> {
+            NoOp runtime = new NoOp() {
+                @Override
+                public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
+                    if (threadNames != null) {
+                        threadNames.add(Thread.currentThread().getName());
+                    }
+                    super.handle(inputMessage, callback, unitOfWorkBoundaryReached);
+                }
+
+                @Override
+                public XMLComponentDefinition getComponentDefintion() {
+                    return definition;
+                }
+            };
+            runtime.create(null, componentContext, threadNumber);
+            return runtime;
+        };
+        return new StepRuntime(runtimeFactory, definitionFactory, context, flowRuntime);
+    }
+
+    protected StepRuntime mockStepRuntime(String stepId, List<Message> received) throws Exception {
+        FlowStep step = new FlowStep(new Component());
+        step.setId(stepId);
+        step.setName(stepId);
+        StepRuntime stepRuntime = mock(StepRuntime.class);
+        when(stepRuntime.getComponentContext())
+                .thenReturn(new ComponentContext(null, step, null, new ExecutionTrackerNoOp(), null, null, null, null));
+        if (received != null) {
+            doAnswer(invocation -> received.add((Message) invocation.getArguments()[0])).when(stepRuntime).queue(any(Message.class));
+        }
+        return stepRuntime;
+    }
+
+}
@@ -278,9 +278,16 @@ public class PropertySheet extends AbsoluteLayout {
     }
 
     protected void addThreadCount(XMLComponentDefinition componentDefintion, FormLayout formLayout, final Component component) {
-        if (componentDefintion.isSupportsMultipleThreads()) {
+        if (componentDefintion.isSupportsMultipleThreads() || componentDefintion.isSupportsPartitionedThreads()) {
             XMLSetting setting = new XMLSetting(StepRuntime.THREAD_COUNT, "Thread Count", "1", Type.INTEGER, true);
             addSettingField(setting, component, formLayout);
+            setting = new XMLSetting(StepRuntime.THREAD_PARTITION_ATTRIBUTE, "Thread Partition Attribute", null, Type.ENTITY_COLUMN,
+                    componentDefintion.isSupportsPartitionedThreads() && !componentDefintion.isSupportsMultipleThreads());
+            setting.setDescription("When set, entity records are hashed on this attribute so that all records with the same value are handled by the same thread");
+            addSettingField(setting, component, formLayout);
+            setting = new XMLSetting(StepRuntime.THREAD_PRESERVE_MESSAGE_ORDER, "Thread Preserve Message Order", "false", Type.BOOLEAN, false);
+            setting.setDescription("When partitioned, hold output messages so they are sent in the order of the input messages that produced them. Records from one input message are still sent grouped by partition");
+            addSettingField(setting, component, formLayout);
         }
     }
 
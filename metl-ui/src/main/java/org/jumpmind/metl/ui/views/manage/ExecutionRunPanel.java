@@ -22,8 +22,6 @@ package org.jumpmind.metl.ui.views.manage;
 
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -138,6 +136,14 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
 
     Button downloadLink;
 
+    Button previousPageButton;
+
+    Button nextPageButton;
+
+    long logStart;
+
+    long logCount;
+
     Label endLabel = new Label();
 
     Button removeButton;
@@ -301,14 +307,8 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
                 .setWidth(140);
         stepTable.setContainerDataSource(stepContainer);
         stepTable.addSelectionListener(event -> {
-            String stepId = (String) stepTable.getSelectedRow();
-            logContainer.removeAllItems();
-            List<ExecutionStepLog> logs = executionService.findExecutionStepLogs(stepId,
-                    getMaxToShow());
-            logContainer.addAll(logs);
-            downloadLink.setVisible(logs.size() > 0);
-            setLogMinimized(logContainer.size()==0);
-            updateStatus();
+            logStart = 0;
+            showStepLogs();
         });
         
         HeaderRow stepTableFilterHeader = stepTable.appendHeaderRow();
@@ -392,6 +392,26 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
         statusBar.setComponentAlignment(status, Alignment.MIDDLE_LEFT);
         logLayout.addComponent(statusBar);
 
+        previousPageButton = new Button("Previous", FontAwesome.ARROW_LEFT);
+        previousPageButton.addClickListener(e -> {
+            logStart = Math.max(0, logStart - getMaxToShow());
+            showStepLogs();
+        });
+        previousPageButton.addStyleName(ValoTheme.BUTTON_LINK);
+        previousPageButton.setVisible(false);
+        statusBar.addComponent(previousPageButton);
+        statusBar.setComponentAlignment(previousPageButton, Alignment.MIDDLE_RIGHT);
+
+        nextPageButton = new Button("Next", FontAwesome.ARROW_RIGHT);
+        nextPageButton.addClickListener(e -> {
+            logStart += getMaxToShow();
+            showStepLogs();
+        });
+        nextPageButton.addStyleName(ValoTheme.BUTTON_LINK);
+        nextPageButton.setVisible(false);
+        statusBar.addComponent(nextPageButton);
+        statusBar.setComponentAlignment(nextPageButton, Alignment.MIDDLE_RIGHT);
+
         downloadLink = new Button("Download", FontAwesome.DOWNLOAD);
         downloadLink.addClickListener(e -> download());
         downloadLink.addStyleName(ValoTheme.BUTTON_LINK);
@@ -416,15 +436,14 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
     }
 
     protected void download() {
-        String stepId = (String) stepTable.getSelectedRow();
+        final String stepId = (String) stepTable.getSelectedRow();
         if (stepId != null) {
-            final File file = executionService.getExecutionStepLog(stepId);
             StreamSource ss = new StreamSource() {
                 private static final long serialVersionUID = 1L;
 
                 public InputStream getStream() {
                     try {
-                        return new FileInputStream(file);
+                        return executionService.openExecutionStepLog(stepId);
                     } catch (Exception e) {
                         log.error("Failed to download log file", e);
                         CommonUiUtils.notify("Failed to download log file", Type.ERROR_MESSAGE);
@@ -432,13 +451,40 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
                     }
                 }
             };
-            StreamResource resource = new StreamResource(ss, file.getName());
+            StreamResource resource = new StreamResource(ss, stepId + ".log");
             final String KEY = "export";
             setResource(KEY, resource);
             Page.getCurrent().open(ResourceReference.create(resource, this, KEY).getURL(), null);
         }
     }
 
+    /**
+     * Shows the page of the selected step's log that starts at logStart. Logs
+     * written in the old format cannot be paged and show their first records.
+     */
+    protected void showStepLogs() {
+        String stepId = (String) stepTable.getSelectedRow();
+        logContainer.removeAllItems();
+        logCount = countStepLogs(stepId);
+        List<ExecutionStepLog> logs = findStepLogs(stepId, logCount);
+        logContainer.addAll(logs);
+        downloadLink.setVisible(logs.size() > 0);
+        setLogMinimized(logContainer.size()==0);
+        updateStatus();
+    }
+
+    protected long countStepLogs(String stepId) {
+        return stepId != null ? executionService.countExecutionStepLogs(stepId) : 0;
+    }
+
+    protected List<ExecutionStepLog> findStepLogs(String stepId, long count) {
+        if (count > 0) {
+            return executionService.findExecutionStepLogs(stepId, logStart, getMaxToShow());
+        } else {
+            return executionService.findExecutionStepLogs(stepId, getMaxToShow());
+        }
+    }
+
     protected void redrawFlow() {
         if (diagram != null) {
             diagramLayout.removeComponent(diagram);
@@ -620,7 +666,9 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
         this.flow = context.getConfigurationService().findFlow(data.execution.getFlowId());
 
         String selected = (String) stepTable.getSelectedRow();
-        data.logs = executionService.findExecutionStepLogs(selected, getMaxToShow());
+        data.logStart = logStart;
+        data.logCount = countStepLogs(selected);
+        data.logs = findStepLogs(selected, data.logCount);
         return data;
     }
 
@@ -656,6 +704,8 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
                 }
 
                 logContainer.removeAllItems();
+                logStart = 0;
+                logCount = 0;
                 List<ExecutionStepLog> logs = executionService.findExecutionStepLogs(stepIds,
                         getMaxToShow());
                 logContainer.addAll(logs);
@@ -676,7 +726,17 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
     }
 
     protected void updateStatus() {
-        boolean max = logContainer.getItemIds().size() >= getMaxToShow();
+        int size = logContainer.getItemIds().size();
+        previousPageButton.setVisible(logCount > 0);
+        nextPageButton.setVisible(logCount > 0);
+        if (logCount > 0) {
+            previousPageButton.setEnabled(logStart > 0);
+            nextPageButton.setEnabled(logStart + size < logCount);
+            status.setValue("<span>Displaying messages " + (size > 0 ? logStart + 1 : logStart) + " to "
+                    + (logStart + size) + " of " + logCount + "</span>");
+            return;
+        }
+        boolean max = size >= getMaxToShow();
         if (max) {
             status.setValue(
                     "<span style='color:red'>Displaying only " + logContainer.getItemIds().size()
@@ -757,12 +817,18 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
             List<ExecutionStepLog> logMessages = new ArrayList<>(logContainer.getItemIds());
 
             List<ExecutionStepLog> newLogMessages = new ArrayList<>(data.logs);
+            if (data.logStart != logStart) {
+                /* the page changed while the data was loading */
+                newLogMessages.clear();
+                data.logCount = logCount;
+            }
 
             for (ExecutionStepLog logMsg : logMessages) {
                 newLogMessages.remove(logMsg);
             }
 
-            if (newLogMessages.size() > 0) {
+            if (newLogMessages.size() > 0 || data.logCount != logCount) {
+                logCount = data.logCount;
                 logContainer.addAll(newLogMessages);
                 if (lastSortOrder != null) {
                     logTable.setSortOrder(lastSortOrder);
@@ -790,6 +856,8 @@ public class ExecutionRunPanel extends VerticalLayout implements IUiPanel, IBack
         public Execution execution;
         public List<ExecutionStep> steps;
         public List<ExecutionStepLog> logs;
+        public long logStart;
+        public long logCount;
 
         ExecutionStep findExecutionStep(String id) {
             ExecutionStep executionStep = null;